@@ -2,9 +2,13 @@ package org.opencds.cqf.ruler.behavior.r4;
 
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
@@ -41,6 +45,7 @@ public interface MeasureReportUser extends DaoRegistryUser, IdCreator {
 	static final String MEASUREREPORT_MEASURE_SUPPLEMENTALDATA_EXTENSION = "http://hl7.org/fhir/us/davinci-deqm/StructureDefinition/extension-supplementalData";
 	static final String MEASUREREPORT_SUPPLEMENTALDATA_SEARCHPARAMETER_URL = "http://hl7.org/fhir/us/davinci-deqm/SearchParameter/measurereport-supplemental-data";
 	static final String MEASUREREPORT_SUPPLEMENTALDATA_SEARCHPARAMETER_VERSION = "0.1.0";
+	static final int MAX_ID_SEARCH_SIZE = 500;
 
 	static final List<ContactDetail> CQI_CONTACTDETAIL = new ArrayList<ContactDetail>() {
 		{
@@ -70,19 +75,19 @@ public interface MeasureReportUser extends DaoRegistryUser, IdCreator {
 	}
 
 	default MeasureReportUser getEvaluatedResources(MeasureReport report, Map<String, Resource> resources) {
+		return resolveResources(getEvaluatedResourceIds(report), resources);
+	}
+
+	default List<IIdType> getEvaluatedResourceIds(MeasureReport report) {
+		List<IIdType> ids = new ArrayList<>();
 		report.getEvaluatedResource().forEach(evaluatedResource -> {
 			IIdType resourceId = evaluatedResource.getReferenceElement();
-			if (resourceId.getResourceType() == null || resources.containsKey(Ids.simple(resourceId))) {
-				return;
-			}
-			IBaseResource resourceBase = read(resourceId);
-			if (resourceBase instanceof Resource) {
-				Resource resource = (Resource) resourceBase;
-				resources.put(Ids.simple(resourceId), resource);
+			if (resourceId.getResourceType() != null) {
+				ids.add(resourceId);
 			}
 		});
 
-		return this;
+		return ids;
 	}
 
 	default Map<String, Resource> getSDE(MeasureReport report) {
@@ -92,6 +97,11 @@ public interface MeasureReportUser extends DaoRegistryUser, IdCreator {
 	}
 
 	default MeasureReportUser getSDE(MeasureReport report, Map<String, Resource> resources) {
+		return resolveResources(getSDEIds(report), resources);
+	}
+
+	default List<IIdType> getSDEIds(MeasureReport report) {
+		List<IIdType> ids = new ArrayList<>();
 		if (report.hasExtension()) {
 			for (Extension extension : report.getExtension()) {
 				if (extension.hasUrl() && extension.getUrl().equals(MEASUREREPORT_MEASURE_SUPPLEMENTALDATA_EXTENSION)) {
@@ -99,17 +109,83 @@ public interface MeasureReportUser extends DaoRegistryUser, IdCreator {
 							? (Reference) extension.getValue()
 							: null;
 					if (sdeRef != null && sdeRef.hasReference() && !sdeRef.getReference().startsWith("#")) {
-						IdType sdeId = new IdType(sdeRef.getReference());
-						if (!resources.containsKey(Ids.simple(sdeId))) {
-							resources.put(Ids.simple(sdeId), read(sdeId));
-						}
+						ids.add(new IdType(sdeRef.getReference()));
 					}
 				}
 			}
 		}
+		return ids;
+	}
+
+	/**
+	 * Reads the Resources with the given Ids that are not in the map yet and adds
+	 * them to it, keyed by their simple Id. The Ids are grouped by Resource type
+	 * and each group is read with {@code _id} searches of at most
+	 * {@link #MAX_ID_SEARCH_SIZE} Ids, so the number of round trips does not grow
+	 * with the number of references. An Id the searches do not return is read on
+	 * its own, failing like {@link #read(IIdType)} if it is not present. An Id
+	 * with a version is always read on its own, as that version. Only the first
+	 * Id of each Resource is resolved.
+	 *
+	 * @param ids       the Ids to read
+	 * @param resources the Resources already read, shared by the callers that
+	 *                  serve the same request
+	 * @return this
+	 */
+	default MeasureReportUser resolveResources(Collection<? extends IIdType> ids, Map<String, Resource> resources) {
+		Map<String, Set<String>> idPartsByType = new LinkedHashMap<>();
+		Set<String> resolving = new LinkedHashSet<>();
+		for (IIdType id : ids) {
+			String simpleId = Ids.simple(id);
+			if (resources.containsKey(simpleId) || !resolving.add(simpleId)) {
+				continue;
+			}
+			if (id.hasVersionIdPart()) {
+				// _id searches only find the current version
+				IBaseResource resource = read(id);
+				if (resource instanceof Resource) {
+					resources.put(simpleId, (Resource) resource);
+				}
+			} else {
+				idPartsByType.computeIfAbsent(id.getResourceType(), type -> new LinkedHashSet<>()).add(id.getIdPart());
+			}
+		}
+
+		idPartsByType.forEach((type, idParts) -> {
+			List<String> batch = new ArrayList<>(MAX_ID_SEARCH_SIZE);
+			for (String idPart : idParts) {
+				batch.add(idPart);
+				if (batch.size() == MAX_ID_SEARCH_SIZE) {
+					searchById(type, batch, resources);
+					batch.clear();
+				}
+			}
+			if (!batch.isEmpty()) {
+				searchById(type, batch, resources);
+			}
+			for (String idPart : idParts) {
+				IdType id = new IdType(type, idPart);
+				if (!resources.containsKey(Ids.simple(id))) {
+					IBaseResource resource = read(id);
+					if (resource instanceof Resource) {
+						resources.put(Ids.simple(id), (Resource) resource);
+					}
+				}
+			}
+		});
+
 		return this;
 	}
 
+	private void searchById(String type, List<String> idParts, Map<String, Resource> resources) {
+		for (IBaseResource resource : getDaoRegistry().getResourceDao(type)
+				.search(Searches.byIds(idParts), null).getAllResources()) {
+			if (resource instanceof Resource) {
+				resources.put(Ids.simple(resource.getIdElement()), (Resource) resource);
+			}
+		}
+	}
+
 	default OperationOutcome generateIssue(String severity, String issue) {
 		OperationOutcome error = new OperationOutcome();
 		error.addIssue()
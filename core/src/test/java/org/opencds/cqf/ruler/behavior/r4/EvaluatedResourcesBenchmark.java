@@ -0,0 +1,149 @@
+package org.opencds.cqf.ruler.behavior.r4;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.opencds.cqf.fhir.utility.Ids;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+
+/**
+ * Compares resolving the evaluated resources and supplemental data of a
+ * MeasureReport one read per reference, the way {@link MeasureReportUser} used
+ * to, against {@link MeasureReportUser#resolveResources}. The DAOs are in
+ * memory and spend {@code roundTripMicros} on every read or search to stand in
+ * for the database; the round trips of one resolution are printed at the end
+ * of each trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EvaluatedResourcesBenchmark implements MeasureReportUser {
+	@Param({ "100", "300", "600" })
+	public int evaluatedResources;
+
+	@Param({ "200" })
+	public long roundTripMicros;
+
+	private InMemoryDaoRegistry registry;
+	private MeasureReport report;
+	private int invocations;
+
+	@Override
+	public FhirContext getFhirContext() {
+		return FhirContext.forR4Cached();
+	}
+
+	@Override
+	public DaoRegistry getDaoRegistry() {
+		return registry.getDaoRegistry();
+	}
+
+	@Setup(Level.Trial)
+	public void setup() {
+		registry = new InMemoryDaoRegistry(TimeUnit.MICROSECONDS.toNanos(roundTripMicros));
+		report = new MeasureReport();
+		for (int i = 0; i < evaluatedResources; i++) {
+			Resource resource;
+			switch (i % 3) {
+				case 0:
+					resource = new Observation().setId("Observation/obs-" + i);
+					break;
+				case 1:
+					resource = new Condition().setId("Condition/cond-" + i);
+					break;
+				default:
+					resource = new Encounter().setId("Encounter/enc-" + i);
+					break;
+			}
+			registry.add(resource);
+			report.addEvaluatedResource(new Reference(resource.getIdElement().getValue()));
+		}
+		// supplemental data mostly points at resources that were also evaluated
+		for (int i = 0; i < evaluatedResources / 10; i++) {
+			String id = i % 2 == 0 ? "Observation/obs-" + i * 3 : "Observation/sde-" + i;
+			registry.add(new Observation().setId(id));
+			report.addExtension(new Extension(MEASUREREPORT_MEASURE_SUPPLEMENTALDATA_EXTENSION, new Reference(id)));
+		}
+	}
+
+	@Setup(Level.Iteration)
+	public void resetCounts() {
+		registry.reset();
+		invocations = 0;
+	}
+
+	@TearDown(Level.Iteration)
+	public void printCounts() {
+		if (invocations > 0) {
+			System.out.printf("%n%.1f reads, %.1f searches per resolution%n",
+					(double) registry.getReads() / invocations, (double) registry.getSearches() / invocations);
+		}
+	}
+
+	@Benchmark
+	public Map<String, Resource> perReference() {
+		invocations++;
+		Map<String, Resource> resources = new HashMap<>();
+		report.getEvaluatedResource().forEach(evaluatedResource -> {
+			IIdType resourceId = evaluatedResource.getReferenceElement();
+			if (resourceId.getResourceType() == null || resources.containsKey(Ids.simple(resourceId))) {
+				return;
+			}
+			IBaseResource resourceBase = read(resourceId);
+			if (resourceBase instanceof Resource) {
+				resources.put(Ids.simple(resourceId), (Resource) resourceBase);
+			}
+		});
+		for (IIdType sdeId : getSDEIds(report)) {
+			if (!resources.containsKey(Ids.simple(sdeId))) {
+				resources.put(Ids.simple(sdeId), read(sdeId));
+			}
+		}
+		return resources;
+	}
+
+	@Benchmark
+	public Map<String, Resource> batched() {
+		invocations++;
+		Map<String, Resource> resources = new HashMap<>();
+		getEvaluatedResources(report, resources).getSDE(report, resources);
+		return resources;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(EvaluatedResourcesBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+}
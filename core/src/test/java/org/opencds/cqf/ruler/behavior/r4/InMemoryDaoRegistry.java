@@ -0,0 +1,111 @@
+package org.opencds.cqf.ruler.behavior.r4;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Resource;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+
+/**
+ * A DaoRegistry over a map of resources that answers reads, versioned reads
+ * and {@code _id} searches, counts the round trips and optionally spends a fixed time on each
+ * one to stand in for the database.
+ */
+class InMemoryDaoRegistry {
+	private final Map<String, Resource> resources = new HashMap<>();
+	private final Map<String, IFhirResourceDao<IBaseResource>> daos = new ConcurrentHashMap<>();
+	private final AtomicInteger reads = new AtomicInteger();
+	private final AtomicInteger searches = new AtomicInteger();
+	private final long roundTripNanos;
+	private final DaoRegistry daoRegistry = mock(DaoRegistry.class);
+
+	InMemoryDaoRegistry(long roundTripNanos) {
+		this.roundTripNanos = roundTripNanos;
+		doAnswer(invocation -> daos.computeIfAbsent(invocation.getArgument(0), this::dao)).when(daoRegistry).getResourceDao(anyString());
+	}
+
+	/**
+	 * Adds a Resource, as the current version of it and, if its Id has a
+	 * version, as that version.
+	 */
+	InMemoryDaoRegistry add(Resource resource) {
+		resources.put(resource.getIdElement().toUnqualifiedVersionless().getValue(), resource);
+		if (resource.getIdElement().hasVersionIdPart()) {
+			resources.put(resource.getIdElement().toUnqualified().getValue(), resource);
+		}
+		return this;
+	}
+
+	DaoRegistry getDaoRegistry() {
+		return daoRegistry;
+	}
+
+	int getReads() {
+		return reads.get();
+	}
+
+	int getSearches() {
+		return searches.get();
+	}
+
+	void reset() {
+		reads.set(0);
+		searches.set(0);
+	}
+
+	@SuppressWarnings("unchecked")
+	private IFhirResourceDao<IBaseResource> dao(String type) {
+		IFhirResourceDao<IBaseResource> dao = mock(IFhirResourceDao.class);
+		doAnswer(invocation -> {
+			roundTrip(reads);
+			IIdType id = invocation.getArgument(0);
+			Resource resource = resources.get(type + "/" + id.getIdPart()
+					+ (id.hasVersionIdPart() ? "/_history/" + id.getVersionIdPart() : ""));
+			if (resource == null) {
+				throw new ResourceNotFoundException(id);
+			}
+			return resource;
+		}).when(dao).read(any(IIdType.class), any());
+		doAnswer(invocation -> {
+			roundTrip(searches);
+			SearchParameterMap map = invocation.getArgument(0);
+			List<IBaseResource> found = new ArrayList<>();
+			for (List<IQueryParameterType> or : map.get("_id")) {
+				for (IQueryParameterType param : or) {
+					Resource resource = resources.get(type + "/" + ((TokenParam) param).getValue());
+					if (resource != null) {
+						found.add(resource);
+					}
+				}
+			}
+			return new SimpleBundleProvider(found);
+		}).when(dao).search(any(SearchParameterMap.class), any());
+		return dao;
+	}
+
+	private void roundTrip(AtomicInteger counter) {
+		counter.incrementAndGet();
+		if (roundTripNanos > 0) {
+			LockSupport.parkNanos(roundTripNanos);
+		}
+	}
+}
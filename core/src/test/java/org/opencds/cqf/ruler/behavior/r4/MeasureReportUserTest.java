@@ -0,0 +1,105 @@
+package org.opencds.cqf.ruler.behavior.r4;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+
+public class MeasureReportUserTest implements MeasureReportUser {
+	private InMemoryDaoRegistry registry;
+
+	@Override
+	public FhirContext getFhirContext() {
+		return FhirContext.forR4Cached();
+	}
+
+	@Override
+	public DaoRegistry getDaoRegistry() {
+		return registry.getDaoRegistry();
+	}
+
+	@BeforeEach
+	public void setup() {
+		registry = new InMemoryDaoRegistry(0);
+		for (int i = 0; i < 3 * MAX_ID_SEARCH_SIZE; i++) {
+			registry.add(new Observation().setId("Observation/obs-" + i));
+		}
+		registry.add(new Condition().setId("Condition/cond-1"));
+	}
+
+	@Test
+	public void evaluatedResourcesAreReadPerType() {
+		MeasureReport report = new MeasureReport();
+		for (int i = 0; i < 2 * MAX_ID_SEARCH_SIZE + 1; i++) {
+			report.addEvaluatedResource(new Reference("Observation/obs-" + i));
+		}
+		report.addEvaluatedResource(new Reference("Condition/cond-1"));
+		report.addEvaluatedResource(new Reference("Observation/obs-0"));
+
+		Map<String, Resource> resources = getEvaluatedResources(report);
+
+		assertEquals(2 * MAX_ID_SEARCH_SIZE + 2, resources.size());
+		assertEquals(4, registry.getSearches());
+		assertEquals(0, registry.getReads());
+	}
+
+	@Test
+	public void resourcesAlreadyResolvedAreNotReadAgain() {
+		MeasureReport report = new MeasureReport();
+		report.addEvaluatedResource(new Reference("Observation/obs-1"));
+		report.addExtension(new Extension(MEASUREREPORT_MEASURE_SUPPLEMENTALDATA_EXTENSION,
+				new Reference("Observation/obs-1")));
+		report.addExtension(new Extension(MEASUREREPORT_MEASURE_SUPPLEMENTALDATA_EXTENSION,
+				new Reference("Condition/cond-1")));
+
+		Map<String, Resource> resources = new HashMap<>();
+		getEvaluatedResources(report, resources).getSDE(report, resources);
+
+		assertEquals(2, resources.size());
+		assertEquals(2, registry.getSearches());
+	}
+
+	@Test
+	public void missingResourceFailsLikeRead() {
+		MeasureReport report = new MeasureReport();
+		report.addEvaluatedResource(new Reference("Observation/obs-1"));
+		report.addEvaluatedResource(new Reference("Observation/missing"));
+
+		assertThrows(ResourceNotFoundException.class, () -> getEvaluatedResources(report));
+		assertEquals(1, registry.getReads());
+	}
+
+	@Test
+	public void versionedReferencesAreReadAsThatVersion() {
+		registry.add(new Observation().setStatus(Observation.ObservationStatus.PRELIMINARY)
+				.setId("Observation/obs-versioned/_history/1"));
+		registry.add(new Observation().setStatus(Observation.ObservationStatus.FINAL)
+				.setId("Observation/obs-versioned/_history/2"));
+		MeasureReport report = new MeasureReport();
+		report.addEvaluatedResource(new Reference("Observation/obs-1"));
+		report.addEvaluatedResource(new Reference("Observation/obs-versioned/_history/1"));
+
+		Map<String, Resource> resources = getEvaluatedResources(report);
+
+		assertEquals(2, resources.size());
+		Observation versioned = (Observation) resources.get("Observation/obs-versioned");
+		assertEquals("1", versioned.getIdElement().getVersionIdPart());
+		assertEquals(Observation.ObservationStatus.PRELIMINARY, versioned.getStatus());
+		assertEquals(1, registry.getReads());
+		assertEquals(1, registry.getSearches());
+	}
+}
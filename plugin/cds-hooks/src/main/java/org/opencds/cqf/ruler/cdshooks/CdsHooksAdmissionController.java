@@ -0,0 +1,148 @@
+package org.opencds.cqf.ruler.cdshooks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decides whether a hook request may be evaluated, before any work is done
+ * for it.
+ * <p>
+ * At most {@code maxConcurrent} evaluations are in flight at once, and at most
+ * {@code maxConcurrentPerService} (or the per-service override) for any one
+ * service. A request arriving beyond those limits waits up to
+ * {@code maxWaitMillis} for a slot, provided fewer than {@code queueCapacity}
+ * requests are already waiting; otherwise it is rejected straight away so the
+ * client gets a fast 503 rather than a slow answer. The limits are read from
+ * {@link CdsHooksProperties.Admission} on every request and can be changed at
+ * runtime.
+ */
+public class CdsHooksAdmissionController {
+	public static final String ACCEPTED = "accepted";
+	public static final String QUEUED = "queued";
+	public static final String REJECTED = "rejected";
+
+	private final CdsHooksProperties.Admission properties;
+	private final CdsHooksMetrics metrics;
+
+	private final ReentrantLock lock = new ReentrantLock(true);
+	private final Condition released = lock.newCondition();
+	// guarded by lock
+	private final Map<String, Integer> inFlightByService = new HashMap<>();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger waiting = new AtomicInteger();
+
+	public CdsHooksAdmissionController(CdsHooksProperties.Admission properties, CdsHooksMetrics metrics) {
+		this.properties = properties;
+		this.metrics = metrics;
+		metrics.registerAdmissionGauges(inFlight, waiting);
+	}
+
+	/**
+	 * A slot for one evaluation, released by {@link #close()}. Closing twice has
+	 * no effect.
+	 */
+	public final class Permit implements AutoCloseable {
+		private final String serviceId;
+		private final AtomicBoolean closed = new AtomicBoolean();
+
+		private Permit(String serviceId) {
+			this.serviceId = serviceId;
+		}
+
+		@Override
+		public void close() {
+			if (serviceId != null && closed.compareAndSet(false, true)) {
+				release(serviceId);
+			}
+		}
+	}
+
+	/**
+	 * Admits an evaluation of a service, waiting a short while for a slot if
+	 * the limits are reached.
+	 *
+	 * @param serviceId the id of the service
+	 * @return the permit to close once the evaluation is done, or null if the
+	 *         request is rejected
+	 * @throws InterruptedException if interrupted while waiting for a slot
+	 */
+	public Permit admit(String serviceId) throws InterruptedException {
+		if (!properties.isEnabled()) {
+			return new Permit(null);
+		}
+		lock.lock();
+		try {
+			if (!canRun(serviceId)) {
+				if (waiting.get() >= properties.getQueueCapacity()) {
+					metrics.recordAdmission(serviceId, REJECTED);
+					return null;
+				}
+				metrics.recordAdmission(serviceId, QUEUED);
+				waiting.incrementAndGet();
+				try {
+					long nanos = TimeUnit.MILLISECONDS.toNanos(properties.getMaxWaitMillis());
+					while (!canRun(serviceId)) {
+						if (nanos <= 0) {
+							metrics.recordAdmission(serviceId, REJECTED);
+							return null;
+						}
+						nanos = released.awaitNanos(nanos);
+					}
+				} finally {
+					waiting.decrementAndGet();
+				}
+			}
+			inFlight.incrementAndGet();
+			inFlightByService.merge(serviceId, 1, Integer::sum);
+			metrics.recordAdmission(serviceId, ACCEPTED);
+			return new Permit(serviceId);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return a permit holding no slot, for requests that admit each of their
+	 *         evaluations separately
+	 */
+	public Permit unlimited() {
+		return new Permit(null);
+	}
+
+	private boolean canRun(String serviceId) {
+		return inFlight.get() < properties.getMaxConcurrent()
+				&& inFlightByService.getOrDefault(serviceId, 0) < properties.getMaxConcurrent(serviceId);
+	}
+
+	private void release(String serviceId) {
+		lock.lock();
+		try {
+			inFlight.decrementAndGet();
+			inFlightByService.computeIfPresent(serviceId, (id, count) -> count > 1 ? count - 1 : null);
+			// waiters may be held back by different limits
+			released.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the seconds a rejected client is asked to wait before retrying
+	 */
+	public int getRetryAfterSeconds() {
+		return properties.getRetryAfterSeconds();
+	}
+
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	public int getWaiting() {
+		return waiting.get();
+	}
+}
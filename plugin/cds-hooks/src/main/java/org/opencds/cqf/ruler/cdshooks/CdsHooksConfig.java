@@ -2,10 +2,20 @@ package org.opencds.cqf.ruler.cdshooks;
 
 import org.opencds.cqf.external.annotations.OnR4Condition;
 import org.opencds.cqf.external.cr.StarterCrR4Config;
+import org.opencds.cqf.fhir.cql.EvaluationSettings;
+import org.opencds.cqf.ruler.cdshooks.cache.CardsCache;
+import org.opencds.cqf.ruler.cdshooks.cache.PatientCompartmentInvalidator;
+import org.opencds.cqf.ruler.cdshooks.capture.HookCapture;
+import org.opencds.cqf.ruler.cdshooks.prefetch.PrefetchFulfiller;
 import org.opencds.cqf.ruler.cdshooks.providers.ProviderConfiguration;
 import org.opencds.cqf.ruler.cdshooks.r4.CdsHooksServlet;
+import org.opencds.cqf.ruler.cdshooks.remote.DeadlineLimitedHttpClient;
+import org.opencds.cqf.ruler.cdshooks.remote.RemoteDataRetriever;
+import org.opencds.cqf.ruler.cdshooks.remote.RemoteFhirClientRegistry;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.web.servlet.ServletRegistrationBean;
 import org.springframework.context.annotation.Bean;
@@ -13,9 +23,16 @@ import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
 
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.cache.IResourceChangeListenerRegistry;
+import ca.uhn.fhir.jpa.searchparam.MatchUrlService;
 import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
 
 @Configuration
 @ConditionalOnProperty(prefix = "hapi.fhir.cdshooks", name = "enabled", havingValue = "true", matchIfMissing = true)
@@ -37,15 +54,163 @@ public class CdsHooksConfig {
 		return new ProviderConfiguration(cdsProperties);
 	}
 
+	@Bean
+	public CdsHooksMetrics cdsHooksMetrics(ObjectProvider<MeterRegistry> meterRegistry) {
+		return new CdsHooksMetrics(
+				meterRegistry.getIfAvailable(() -> new PrometheusMeterRegistry(PrometheusConfig.DEFAULT)));
+	}
+
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir.cdshooks.metrics", name = "prometheus-enabled",
+			havingValue = "true")
+	public ServletRegistrationBean<CdsHooksMetricsServlet> cdsHooksMetricsRegistrationBean(
+			CdsHooksMetrics cdsHooksMetrics, ObjectProvider<CdsHooksProperties> cdsProperties) {
+		ServletRegistrationBean<CdsHooksMetricsServlet> registrationBean = new ServletRegistrationBean<>();
+		registrationBean.setName("cds-hooks metrics servlet");
+		registrationBean.setServlet(new CdsHooksMetricsServlet(
+				CdsHooksMetricsServlet.prometheusRegistry(cdsHooksMetrics.getRegistry())));
+		registrationBean.addUrlMappings(cdsProperties.getIfAvailable(CdsHooksProperties::new).getMetrics()
+				.getPrometheusPath());
+		return registrationBean;
+	}
+
+	@Bean(destroyMethod = "shutdown")
+	@Conditional(OnR4Condition.class)
+	public CdsHooksEvaluationExecutor cdsHooksEvaluationExecutor(CdsHooksProperties cdsProperties,
+			CdsHooksMetrics cdsHooksMetrics) {
+		return new CdsHooksEvaluationExecutor(cdsProperties.getAsync(), cdsHooksMetrics);
+	}
+
+	@Bean
+	@Conditional(OnR4Condition.class)
+	public CdsHooksAdmissionController cdsHooksAdmissionController(CdsHooksProperties cdsProperties,
+			CdsHooksMetrics cdsHooksMetrics) {
+		return new CdsHooksAdmissionController(cdsProperties.getAdmission(), cdsHooksMetrics);
+	}
+
+	/**
+	 * The registry pools its connections on an HTTP client of its own; the
+	 * restful client factory of the server's FhirContext is left untouched.
+	 */
+	@Bean(destroyMethod = "close")
+	@Conditional(OnR4Condition.class)
+	public RemoteFhirClientRegistry remoteFhirClientRegistry(FhirContext fhirContext,
+			CdsHooksProperties cdsProperties, ProviderConfiguration providerConfiguration,
+			CdsHooksMetrics cdsHooksMetrics) {
+		return new RemoteFhirClientRegistry(fhirContext, cdsProperties.getRemoteClient(),
+				providerConfiguration.getClientIdHeaderName(), cdsHooksMetrics);
+	}
+
+	@Bean(destroyMethod = "close")
+	@Conditional(OnR4Condition.class)
+	public RemoteDataRetriever remoteDataRetriever(DaoRegistry daoRegistry, CdsHooksProperties cdsProperties,
+			ProviderConfiguration providerConfiguration) {
+		return new RemoteDataRetriever(daoRegistry, providerConfiguration,
+				cdsProperties.getRemoteClient().getRetrieveThreads());
+	}
+
+	@Bean(destroyMethod = "close")
+	@Conditional(OnR4Condition.class)
+	public PrefetchFulfiller prefetchFulfiller(DaoRegistry daoRegistry, MatchUrlService matchUrlService,
+			RemoteDataRetriever remoteDataRetriever, CdsHooksProperties cdsProperties,
+			CdsHooksMetrics cdsHooksMetrics) {
+		return new PrefetchFulfiller(daoRegistry, matchUrlService, remoteDataRetriever, cdsHooksMetrics,
+				cdsProperties.getPrefetch().getFulfillThreads());
+	}
+
+	@Bean(destroyMethod = "close")
+	@Conditional(OnR4Condition.class)
+	public CdsHooksFanOut cdsHooksFanOut(CdsHooksProperties cdsProperties) {
+		return new CdsHooksFanOut(cdsProperties.getFanOut().getThreads());
+	}
+
+	@Bean(destroyMethod = "close")
+	@Conditional(OnR4Condition.class)
+	public HookCapture hookCapture(CdsHooksProperties cdsProperties) {
+		return new HookCapture(cdsProperties.getCapture());
+	}
+
+	@Bean
+	@Conditional(OnR4Condition.class)
+	public CardsCache cardsCache(CdsHooksProperties cdsProperties, CdsHooksMetrics cdsHooksMetrics,
+			IInterceptorService interceptorService, FhirContext fhirContext) {
+		CardsCache cardsCache = new CardsCache(cdsProperties.getCache(), cdsHooksMetrics);
+		if (cdsProperties.getCache().isEnabled()) {
+			interceptorService.registerInterceptor(new PatientCompartmentInvalidator(cardsCache, fhirContext));
+		}
+		return cardsCache;
+	}
+
+	/**
+	 * Only acts on the threads evaluating a hook with a deadline; other requests
+	 * pay a thread-local lookup per search or remote request. The remote
+	 * retrieves of the CQL engine are bounded through the HTTP client of the
+	 * server's restful client factory, which is wrapped without changing its
+	 * pool or default timeouts.
+	 */
+	@Bean
+	@Conditional(OnR4Condition.class)
+	public EvaluationDeadlineInterceptor evaluationDeadlineInterceptor(IInterceptorService interceptorService,
+			FhirContext fhirContext) {
+		EvaluationDeadlineInterceptor interceptor = new EvaluationDeadlineInterceptor();
+		interceptorService.registerInterceptor(interceptor);
+		DeadlineLimitedHttpClient.install(fhirContext);
+		return interceptor;
+	}
+
 	@Bean
 	public CdsServicesCache cdsServiceInterceptor(IResourceChangeListenerRegistry resourceChangeListenerRegistry,
-			DaoRegistry daoRegistry) {
-		CdsServicesCache listener = new CdsServicesCache(daoRegistry);
+			DaoRegistry daoRegistry, ObjectProvider<CdsHooksProperties> cdsProperties) {
+		CdsServicesCache listener = new CdsServicesCache(daoRegistry,
+				cdsProperties.getIfAvailable(CdsHooksProperties::new).getDiscovery());
 		resourceChangeListenerRegistry.registerResourceResourceChangeListener("PlanDefinition",
 				SearchParameterMap.newSynchronous(), listener, 1000);
+		resourceChangeListenerRegistry.registerResourceResourceChangeListener("ActivityDefinition",
+				SearchParameterMap.newSynchronous(), listener.getActivityTemplateCache(), 1000);
+		return listener;
+	}
+
+	@Bean
+	public CdsServiceDependencyListener cdsServiceDependencyListener(
+			IResourceChangeListenerRegistry resourceChangeListenerRegistry, DaoRegistry daoRegistry,
+			CdsServicesCache cdsServicesCache) {
+		CdsServiceDependencyListener listener = new CdsServiceDependencyListener(cdsServicesCache, daoRegistry);
+		resourceChangeListenerRegistry.registerResourceResourceChangeListener("Library",
+				SearchParameterMap.newSynchronous(), listener, 1000);
+		resourceChangeListenerRegistry.registerResourceResourceChangeListener("ValueSet",
+				SearchParameterMap.newSynchronous(), listener, 1000);
 		return listener;
 	}
 
+	/**
+	 * Starts once the services are first resolved, see
+	 * {@link CdsServicesCache#addInitListener}.
+	 */
+	@Bean(destroyMethod = "close")
+	@Conditional(OnR4Condition.class)
+	public CdsHooksWarmup cdsHooksWarmup(CdsServicesCache cdsServicesCache, DaoRegistry daoRegistry,
+			ObjectProvider<EvaluationSettings> evaluationSettings, RestfulServer restfulServer,
+			CdsHooksProperties cdsProperties) {
+		CdsHooksWarmup warmup = new CdsHooksWarmup(cdsServicesCache, daoRegistry,
+				evaluationSettings.getIfAvailable(), restfulServer, cdsProperties.getWarmup());
+		cdsServicesCache.addInitListener(warmup::start);
+		return warmup;
+	}
+
+	/**
+	 * The warmup readiness indicator, only when the server includes Spring Boot
+	 * Actuator, which the plugin does not bring along.
+	 */
+	@Configuration
+	@ConditionalOnClass(name = "org.springframework.boot.actuate.health.HealthIndicator")
+	static class WarmupHealthConfig {
+		@Bean
+		@Conditional(OnR4Condition.class)
+		public CdsHooksWarmupHealthIndicator cdsHooksWarmupHealthIndicator(CdsHooksWarmup cdsHooksWarmup) {
+			return new CdsHooksWarmupHealthIndicator(cdsHooksWarmup);
+		}
+	}
+
 	@Bean
 	@Conditional(OnR4Condition.class)
 	public ServletRegistrationBean<org.opencds.cqf.ruler.cdshooks.r4.CdsHooksServlet> cdsHooksRegistrationBeanR4() {
@@ -57,6 +222,7 @@ public class CdsHooksConfig {
 		registrationBean.setServlet(cdsHooksServlet);
 		registrationBean.addUrlMappings("/cds-services/*");
 		registrationBean.setLoadOnStartup(1);
+		registrationBean.setAsyncSupported(true);
 		return registrationBean;
 	}
 }
@@ -0,0 +1,174 @@
+package org.opencds.cqf.ruler.cdshooks;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The size-limited executor CDS Hooks evaluations run on when the servlet is in
+ * async mode, keeping hook evaluation off the container's request threads.
+ * <p>
+ * At most {@code maxThreads} evaluations run at once and at most
+ * {@code queueCapacity} wait for a slot; anything beyond that is rejected with a
+ * {@link RejectedExecutionException}. When virtual threads are requested and
+ * the JVM supports them (21+), each evaluation gets its own virtual thread and
+ * the same limits are enforced with a semaphore. Otherwise a fixed pool of
+ * platform threads is used.
+ * <p>
+ * The number of queued and running evaluations is tracked per service and
+ * published as gauges through {@link CdsHooksMetrics}.
+ */
+public class CdsHooksEvaluationExecutor {
+	private static final Logger logger = LoggerFactory.getLogger(CdsHooksEvaluationExecutor.class);
+
+	public static final int DEFAULT_QUEUE_CAPACITY = 128;
+	public static final long DEFAULT_TIMEOUT_MILLIS = 30000;
+
+	private final boolean enabled;
+	private final int maxThreads;
+	private final int queueCapacity;
+	private final long timeoutMillis;
+	private final CdsHooksMetrics metrics;
+	private final ExecutorService executorService;
+	private final Semaphore running;
+	private final AtomicInteger pending = new AtomicInteger();
+	private final Map<String, ServiceLoad> loads = new ConcurrentHashMap<>();
+
+	public CdsHooksEvaluationExecutor(CdsHooksProperties.Async properties, CdsHooksMetrics metrics) {
+		this.enabled = properties.isEnabled();
+		this.maxThreads = properties.getMaxThreads() != null ? properties.getMaxThreads()
+				: Runtime.getRuntime().availableProcessors();
+		this.queueCapacity = properties.getQueueCapacity() != null ? properties.getQueueCapacity()
+				: DEFAULT_QUEUE_CAPACITY;
+		this.timeoutMillis = properties.getTimeoutMillis() != null ? properties.getTimeoutMillis()
+				: DEFAULT_TIMEOUT_MILLIS;
+		this.metrics = metrics;
+
+		ExecutorService virtualThreads = properties.isVirtualThreads() ? newVirtualThreadExecutor() : null;
+		if (virtualThreads != null) {
+			this.executorService = virtualThreads;
+			this.running = new Semaphore(maxThreads);
+		} else {
+			this.executorService = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<>(queueCapacity), new EvaluationThreadFactory(),
+					new ThreadPoolExecutor.AbortPolicy());
+			this.running = null;
+		}
+	}
+
+	/**
+	 * Virtual threads are only available from Java 21 while this project
+	 * targets 11, so the factory method is looked up reflectively.
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) java.util.concurrent.Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			logger.warn("Virtual threads are not supported by this JVM, using a platform thread pool");
+			return null;
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public long getTimeoutMillis() {
+		return timeoutMillis;
+	}
+
+	/**
+	 * Schedules the evaluation of a hook for a service.
+	 *
+	 * @param service    the id of the service being evaluated
+	 * @param evaluation the evaluation
+	 * @return the evaluation, which may be cancelled, interrupting it if it is
+	 *         running; a cancelled evaluation still frees its slot
+	 * @throws RejectedExecutionException if the executor is saturated
+	 */
+	public Future<?> execute(String service, Runnable evaluation) {
+		FutureTask<Void> task = new FutureTask<>(evaluation, null);
+		ServiceLoad load = loads.computeIfAbsent(service, this::newServiceLoad);
+		if (running != null && pending.incrementAndGet() > queueCapacity + maxThreads) {
+			pending.decrementAndGet();
+			throw new RejectedExecutionException("CDS Hooks evaluation queue is full");
+		}
+		load.queued.incrementAndGet();
+		try {
+			executorService.execute(() -> run(load, task));
+		} catch (RejectedExecutionException e) {
+			load.queued.decrementAndGet();
+			if (running != null) {
+				pending.decrementAndGet();
+			}
+			throw e;
+		}
+		return task;
+	}
+
+	private void run(ServiceLoad load, Runnable evaluation) {
+		boolean acquired = false;
+		try {
+			if (running != null) {
+				running.acquire();
+				acquired = true;
+			}
+			load.queued.decrementAndGet();
+			load.active.incrementAndGet();
+			try {
+				evaluation.run();
+			} finally {
+				load.active.decrementAndGet();
+			}
+		} catch (InterruptedException e) {
+			load.queued.decrementAndGet();
+			Thread.currentThread().interrupt();
+		} finally {
+			if (acquired) {
+				running.release();
+			}
+			if (running != null) {
+				pending.decrementAndGet();
+			}
+		}
+	}
+
+	private ServiceLoad newServiceLoad(String service) {
+		ServiceLoad load = new ServiceLoad();
+		metrics.registerEvaluationGauges(service, load.queued, load.active);
+		return load;
+	}
+
+	public void shutdown() {
+		executorService.shutdownNow();
+	}
+
+	private static class ServiceLoad {
+		private final AtomicInteger queued = new AtomicInteger();
+		private final AtomicInteger active = new AtomicInteger();
+	}
+
+	private static class EvaluationThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "cds-hooks-evaluation-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package org.opencds.cqf.ruler.cdshooks;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Evaluates every service registered for a hook in parallel, for the
+ * {@code POST /cds-services/$hook/{hookName}} endpoint.
+ * <p>
+ * The services run on a fixed pool with the deadline of the calling thread
+ * bound to each of them. A service that fails, or has not finished when the
+ * deadline passes, is left out of the result so that the other services still
+ * contribute their cards.
+ */
+public class CdsHooksFanOut implements AutoCloseable {
+	private static final Logger logger = LoggerFactory.getLogger(CdsHooksFanOut.class);
+
+	private final ExecutorService executor;
+
+	public CdsHooksFanOut(int threads) {
+		this.executor = Executors.newFixedThreadPool(threads, new FanOutThreadFactory());
+	}
+
+	/**
+	 * @param serviceIds the services to evaluate
+	 * @param evaluation evaluates a service
+	 * @return the results of the services that completed, keyed by service id in
+	 *         the order of {@code serviceIds}
+	 */
+	public <T> Map<String, T> evaluate(List<String> serviceIds, Function<String, T> evaluation) {
+		EvaluationDeadline deadline = EvaluationDeadline.current();
+		Map<String, Future<T>> futures = new LinkedHashMap<>();
+		for (String serviceId : serviceIds) {
+			futures.put(serviceId, executor.submit(deadline.wrap(() -> evaluation.apply(serviceId))));
+		}
+
+		Map<String, T> results = new LinkedHashMap<>();
+		try {
+			for (Map.Entry<String, Future<T>> future : futures.entrySet()) {
+				try {
+					results.put(future.getKey(), deadline.isBounded()
+							? future.getValue().get(deadline.remainingMillis(), TimeUnit.MILLISECONDS)
+							: future.getValue().get());
+				} catch (ExecutionException e) {
+					logger.warn("cds-hooks evaluation of {} failed: {}", future.getKey(),
+							e.getCause() != null ? e.getCause().toString() : e.toString());
+				} catch (TimeoutException e) {
+					logger.warn("cds-hooks evaluation of {} did not finish before the deadline", future.getKey());
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while evaluating services", e);
+		} finally {
+			futures.values().forEach(future -> future.cancel(true));
+		}
+		return results;
+	}
+
+	@Override
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	private static class FanOutThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "cds-hooks-fan-out-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package org.opencds.cqf.ruler.cdshooks;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Meters recorded by the CDS Hooks plugin. Meters are tagged with the service
+ * id and, for per-request meters, the hook that invoked it.
+ */
+public class CdsHooksMetrics {
+	public static final String ENGINE_INVOCATIONS = "cdshooks.engine.invocations";
+	public static final String EVALUATIONS_QUEUED = "cdshooks.evaluations.queued";
+	public static final String EVALUATIONS_ACTIVE = "cdshooks.evaluations.active";
+	public static final String REMOTE_REQUESTS = "cdshooks.remote.requests";
+	public static final String PREFETCH_FULFILLMENT = "cdshooks.prefetch.fulfillment";
+	public static final String CARDS_CACHE = "cdshooks.cards.cache";
+	public static final String EVALUATION_TIMEOUTS = "cdshooks.evaluation.timeouts";
+	public static final String STAGE_DURATION = "cdshooks.stage.duration";
+	public static final String ADMISSION_REQUESTS = "cdshooks.admission.requests";
+	public static final String ADMISSION_IN_FLIGHT = "cdshooks.admission.inflight";
+	public static final String ADMISSION_WAITING = "cdshooks.admission.waiting";
+
+	public static final String SERVICE_TAG = "service";
+	public static final String HOOK_TAG = "hook";
+	public static final String HOST_TAG = "host";
+	public static final String OUTCOME_TAG = "outcome";
+	public static final String PREFETCH_TAG = "prefetch";
+	public static final String SOURCE_TAG = "source";
+	public static final String RESULT_TAG = "result";
+	public static final String STAGE_TAG = "stage";
+
+	public static final String CACHE_HIT = "hit";
+	public static final String CACHE_MISS = "miss";
+	public static final String CACHE_COALESCED = "coalesced";
+
+	/** The bucket boundaries of {@link #STAGE_DURATION}. */
+	public static final Duration[] STAGE_BUCKETS = { Duration.ofMillis(10), Duration.ofMillis(50),
+			Duration.ofMillis(100), Duration.ofMillis(250), Duration.ofMillis(500), Duration.ofSeconds(1),
+			Duration.ofSeconds(5) };
+
+	private final MeterRegistry registry;
+
+	public CdsHooksMetrics(MeterRegistry registry) {
+		this.registry = registry;
+	}
+
+	public MeterRegistry getRegistry() {
+		return registry;
+	}
+
+	/**
+	 * Records the number of CQL engine invocations (library and inline
+	 * expression evaluations) made to answer a single hook request.
+	 *
+	 * @param service the service id
+	 * @param hook    the hook name
+	 * @param count   the number of engine invocations
+	 */
+	public void recordEngineInvocations(String service, String hook, int count) {
+		DistributionSummary.builder(ENGINE_INVOCATIONS)
+				.description("CQL engine invocations per hook request")
+				.baseUnit("invocations")
+				.tag(SERVICE_TAG, service)
+				.tag(HOOK_TAG, String.valueOf(hook))
+				.register(registry)
+				.record(count);
+	}
+
+	/**
+	 * Registers the gauges reporting how many evaluations of a service are
+	 * waiting for and running on the evaluation executor.
+	 *
+	 * @param service the service id
+	 * @param queued  the number of queued evaluations
+	 * @param active  the number of running evaluations
+	 */
+	public void registerEvaluationGauges(String service, AtomicInteger queued, AtomicInteger active) {
+		Gauge.builder(EVALUATIONS_QUEUED, queued, AtomicInteger::get)
+				.description("CDS Hooks evaluations waiting for the evaluation executor")
+				.tag(SERVICE_TAG, service)
+				.register(registry);
+		Gauge.builder(EVALUATIONS_ACTIVE, active, AtomicInteger::get)
+				.description("CDS Hooks evaluations running on the evaluation executor")
+				.tag(SERVICE_TAG, service)
+				.register(registry);
+	}
+
+	/**
+	 * Records a request made to a remote FHIR server on behalf of a hook.
+	 *
+	 * @param host    the host (and port) of the remote server
+	 * @param outcome the status class of the response (e.g. 2xx), or error if no
+	 *                response was received, or rejected if the per-host limit was
+	 *                not available in time
+	 * @param nanos   the time taken, including reading the response body
+	 */
+	public void recordRemoteRequest(String host, String outcome, long nanos) {
+		Timer.builder(REMOTE_REQUESTS)
+				.description("Requests to remote FHIR servers")
+				.tag(HOST_TAG, host)
+				.tag(OUTCOME_TAG, outcome)
+				.register(registry)
+				.record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Records the server-side fulfillment of a prefetch template.
+	 *
+	 * @param service  the service id
+	 * @param prefetch the prefetch key of the template
+	 * @param source   local or remote
+	 * @param outcome  success or error
+	 * @param nanos    the time taken
+	 */
+	public void recordPrefetch(String service, String prefetch, String source, String outcome, long nanos) {
+		Timer.builder(PREFETCH_FULFILLMENT)
+				.description("Server-side fulfillment of prefetch templates")
+				.tag(SERVICE_TAG, service)
+				.tag(PREFETCH_TAG, prefetch)
+				.tag(SOURCE_TAG, source)
+				.tag(OUTCOME_TAG, outcome)
+				.register(registry)
+				.record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Counts a lookup in the cards cache.
+	 *
+	 * @param result hit, miss, or coalesced if the request waited for an identical
+	 *               running evaluation
+	 */
+	public void recordCardsCache(String result) {
+		Counter.builder(CARDS_CACHE)
+				.description("Cards cache lookups")
+				.tag(RESULT_TAG, result)
+				.register(registry)
+				.increment();
+	}
+
+	/**
+	 * Counts a hook evaluation cut off by its deadline.
+	 *
+	 * @param service the service id
+	 * @param hook    the hook name
+	 * @param stage   the stage that was running when the deadline passed
+	 */
+	public void recordTimeout(String service, String hook, String stage) {
+		Counter.builder(EVALUATION_TIMEOUTS)
+				.description("CDS Hooks evaluations cut off by their deadline")
+				.tag(SERVICE_TAG, service)
+				.tag(HOOK_TAG, String.valueOf(hook))
+				.tag(STAGE_TAG, stage)
+				.register(registry)
+				.increment();
+	}
+
+	/**
+	 * Counts an admission decision for a hook request. A request that had to
+	 * wait is counted as queued and then as accepted or rejected.
+	 *
+	 * @param service the service id
+	 * @param result  accepted, queued or rejected
+	 */
+	public void recordAdmission(String service, String result) {
+		Counter.builder(ADMISSION_REQUESTS)
+				.description("CDS Hooks admission decisions")
+				.tag(SERVICE_TAG, service)
+				.tag(RESULT_TAG, result)
+				.register(registry)
+				.increment();
+	}
+
+	/**
+	 * Registers the gauges reporting how many hook evaluations are admitted and
+	 * how many requests are waiting for admission.
+	 *
+	 * @param inFlight the number of admitted evaluations
+	 * @param waiting  the number of waiting requests
+	 */
+	public void registerAdmissionGauges(AtomicInteger inFlight, AtomicInteger waiting) {
+		Gauge.builder(ADMISSION_IN_FLIGHT, inFlight, AtomicInteger::get)
+				.description("CDS Hooks evaluations admitted and not yet finished")
+				.register(registry);
+		Gauge.builder(ADMISSION_WAITING, waiting, AtomicInteger::get)
+				.description("CDS Hooks requests waiting for admission")
+				.register(registry);
+	}
+
+	/**
+	 * Records the time a hook request spent in one stage of its evaluation.
+	 * There is a timer per service, hook and stage, so each publishes only a
+	 * few fixed buckets (see {@link #STAGE_BUCKETS}) rather than a full
+	 * percentile histogram; they are enough to aggregate latency across
+	 * instances against the usual hook latency targets.
+	 *
+	 * @param service the service id
+	 * @param hook    the hook name
+	 * @param stage   the stage, see {@link CdsHooksStageTimings}
+	 * @param nanos   the time spent
+	 */
+	public void recordStage(String service, String hook, String stage, long nanos) {
+		Timer.builder(STAGE_DURATION)
+				.description("Time spent per stage of a CDS Hooks request")
+				.tag(SERVICE_TAG, service)
+				.tag(HOOK_TAG, String.valueOf(hook))
+				.tag(STAGE_TAG, stage)
+				.serviceLevelObjectives(STAGE_BUCKETS)
+				.register(registry)
+				.record(nanos, TimeUnit.NANOSECONDS);
+	}
+}
@@ -0,0 +1,67 @@
+package org.opencds.cqf.ruler.cdshooks;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Serves the meters of the CDS Hooks plugin in the Prometheus text format, so
+ * the stage timers can be scraped without Spring Boot Actuator. Answers 404 if
+ * the server's meter registry does not publish to Prometheus.
+ */
+public class CdsHooksMetricsServlet extends HttpServlet {
+	private static final long serialVersionUID = 1L;
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private final transient PrometheusMeterRegistry registry;
+
+	/**
+	 * @param registry the Prometheus registry, may be null
+	 */
+	public CdsHooksMetricsServlet(PrometheusMeterRegistry registry) {
+		this.registry = registry;
+	}
+
+	/**
+	 * Finds the Prometheus registry meters are published to, adding one to a
+	 * composite registry that has none.
+	 *
+	 * @param registry the registry the plugin's meters are registered with
+	 * @return the Prometheus registry, or null if meters can not be published
+	 *         to one
+	 */
+	public static PrometheusMeterRegistry prometheusRegistry(MeterRegistry registry) {
+		if (registry instanceof PrometheusMeterRegistry) {
+			return (PrometheusMeterRegistry) registry;
+		}
+		if (registry instanceof CompositeMeterRegistry) {
+			CompositeMeterRegistry composite = (CompositeMeterRegistry) registry;
+			return composite.getRegistries().stream().filter(PrometheusMeterRegistry.class::isInstance)
+					.map(PrometheusMeterRegistry.class::cast).findFirst().orElseGet(() -> {
+						PrometheusMeterRegistry prometheus = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+						composite.add(prometheus);
+						return prometheus;
+					});
+		}
+		return null;
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		if (registry == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		byte[] body = registry.scrape().getBytes(StandardCharsets.UTF_8);
+		response.setContentType(CONTENT_TYPE);
+		response.setContentLength(body.length);
+		response.getOutputStream().write(body);
+	}
+}
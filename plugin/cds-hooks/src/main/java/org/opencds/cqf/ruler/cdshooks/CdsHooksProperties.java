@@ -1,5 +1,8 @@
 package org.opencds.cqf.ruler.cdshooks;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
 import ca.uhn.fhir.rest.api.SearchStyleEnum;
@@ -99,5 +102,639 @@ public class CdsHooksProperties {
 		public void setMaxUriLength(Integer maxUriLength) {
 			this.maxUriLength = maxUriLength;
 		}
+
+		private boolean fulfill;
+
+		public boolean isFulfill() {
+			return fulfill;
+		}
+
+		public void setFulfill(boolean fulfill) {
+			this.fulfill = fulfill;
+		}
+
+		private int fulfillThreads = 8;
+
+		public int getFulfillThreads() {
+			return fulfillThreads;
+		}
+
+		public void setFulfillThreads(int fulfillThreads) {
+			this.fulfillThreads = fulfillThreads;
+		}
+	}
+
+	private Async async = new Async();
+
+	public Async getAsync() {
+		return this.async;
+	}
+
+	public void setAsync(Async async) {
+		this.async = async;
+	}
+
+	public static class Async {
+		private boolean enabled;
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		private Integer maxThreads;
+
+		public Integer getMaxThreads() {
+			return maxThreads;
+		}
+
+		public void setMaxThreads(Integer maxThreads) {
+			this.maxThreads = maxThreads;
+		}
+
+		private Integer queueCapacity;
+
+		public Integer getQueueCapacity() {
+			return queueCapacity;
+		}
+
+		public void setQueueCapacity(Integer queueCapacity) {
+			this.queueCapacity = queueCapacity;
+		}
+
+		private boolean virtualThreads;
+
+		public boolean isVirtualThreads() {
+			return virtualThreads;
+		}
+
+		public void setVirtualThreads(boolean virtualThreads) {
+			this.virtualThreads = virtualThreads;
+		}
+
+		private Long timeoutMillis;
+
+		public Long getTimeoutMillis() {
+			return timeoutMillis;
+		}
+
+		public void setTimeoutMillis(Long timeoutMillis) {
+			this.timeoutMillis = timeoutMillis;
+		}
+	}
+
+	private Response response = new Response();
+
+	public Response getResponse() {
+		return this.response;
+	}
+
+	public void setResponse(Response response) {
+		this.response = response;
+	}
+
+	public static class Response {
+		private boolean prettyPrint;
+
+		public boolean isPrettyPrint() {
+			return prettyPrint;
+		}
+
+		public void setPrettyPrint(boolean prettyPrint) {
+			this.prettyPrint = prettyPrint;
+		}
+
+		private double logSampleRate = 1.0;
+
+		public double getLogSampleRate() {
+			return logSampleRate;
+		}
+
+		public void setLogSampleRate(double logSampleRate) {
+			this.logSampleRate = logSampleRate;
+		}
+
+		private int logMaxBytes = 4096;
+
+		public int getLogMaxBytes() {
+			return logMaxBytes;
+		}
+
+		public void setLogMaxBytes(int logMaxBytes) {
+			this.logMaxBytes = logMaxBytes;
+		}
+	}
+
+	private Discovery discovery = new Discovery();
+
+	public Discovery getDiscovery() {
+		return this.discovery;
+	}
+
+	public void setDiscovery(Discovery discovery) {
+		this.discovery = discovery;
+	}
+
+	public static class Discovery {
+		private Integer initThreads;
+
+		public Integer getInitThreads() {
+			return initThreads;
+		}
+
+		public void setInitThreads(Integer initThreads) {
+			this.initThreads = initThreads;
+		}
+
+		private String snapshotPath;
+
+		public String getSnapshotPath() {
+			return snapshotPath;
+		}
+
+		public void setSnapshotPath(String snapshotPath) {
+			this.snapshotPath = snapshotPath;
+		}
+	}
+
+	private RemoteClient remoteClient = new RemoteClient();
+
+	public RemoteClient getRemoteClient() {
+		return this.remoteClient;
+	}
+
+	public void setRemoteClient(RemoteClient remoteClient) {
+		this.remoteClient = remoteClient;
+	}
+
+	public static class RemoteClient {
+		private int maxConnections = 200;
+
+		public int getMaxConnections() {
+			return maxConnections;
+		}
+
+		public void setMaxConnections(int maxConnections) {
+			this.maxConnections = maxConnections;
+		}
+
+		private int maxConnectionsPerHost = 50;
+
+		public int getMaxConnectionsPerHost() {
+			return maxConnectionsPerHost;
+		}
+
+		public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+			this.maxConnectionsPerHost = maxConnectionsPerHost;
+		}
+
+		private int maxConcurrentRequestsPerHost = 32;
+
+		public int getMaxConcurrentRequestsPerHost() {
+			return maxConcurrentRequestsPerHost;
+		}
+
+		public void setMaxConcurrentRequestsPerHost(int maxConcurrentRequestsPerHost) {
+			this.maxConcurrentRequestsPerHost = maxConcurrentRequestsPerHost;
+		}
+
+		private long keepAliveMillis = 60000;
+
+		public long getKeepAliveMillis() {
+			return keepAliveMillis;
+		}
+
+		public void setKeepAliveMillis(long keepAliveMillis) {
+			this.keepAliveMillis = keepAliveMillis;
+		}
+
+		private int connectTimeoutMillis = 10000;
+
+		public int getConnectTimeoutMillis() {
+			return connectTimeoutMillis;
+		}
+
+		public void setConnectTimeoutMillis(int connectTimeoutMillis) {
+			this.connectTimeoutMillis = connectTimeoutMillis;
+		}
+
+		private int socketTimeoutMillis = 60000;
+
+		public int getSocketTimeoutMillis() {
+			return socketTimeoutMillis;
+		}
+
+		public void setSocketTimeoutMillis(int socketTimeoutMillis) {
+			this.socketTimeoutMillis = socketTimeoutMillis;
+		}
+
+		private long acquireTimeoutMillis = 30000;
+
+		public long getAcquireTimeoutMillis() {
+			return acquireTimeoutMillis;
+		}
+
+		public void setAcquireTimeoutMillis(long acquireTimeoutMillis) {
+			this.acquireTimeoutMillis = acquireTimeoutMillis;
+		}
+
+		private boolean preloadDataRequirements = true;
+
+		public boolean isPreloadDataRequirements() {
+			return preloadDataRequirements;
+		}
+
+		public void setPreloadDataRequirements(boolean preloadDataRequirements) {
+			this.preloadDataRequirements = preloadDataRequirements;
+		}
+
+		private int retrieveThreads = 16;
+
+		public int getRetrieveThreads() {
+			return retrieveThreads;
+		}
+
+		public void setRetrieveThreads(int retrieveThreads) {
+			this.retrieveThreads = retrieveThreads;
+		}
+	}
+
+	private Cache cache = new Cache();
+
+	public Cache getCache() {
+		return this.cache;
+	}
+
+	public void setCache(Cache cache) {
+		this.cache = cache;
+	}
+
+	public static class Cache {
+		private boolean enabled;
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		private long ttlMillis = 10000;
+
+		public long getTtlMillis() {
+			return ttlMillis;
+		}
+
+		public void setTtlMillis(long ttlMillis) {
+			this.ttlMillis = ttlMillis;
+		}
+
+		private int maxEntries = 1000;
+
+		public int getMaxEntries() {
+			return maxEntries;
+		}
+
+		public void setMaxEntries(int maxEntries) {
+			this.maxEntries = maxEntries;
+		}
+	}
+
+	private Deadline deadline = new Deadline();
+
+	public Deadline getDeadline() {
+		return this.deadline;
+	}
+
+	public void setDeadline(Deadline deadline) {
+		this.deadline = deadline;
+	}
+
+	public static class Deadline {
+		private long timeoutMillis;
+
+		public long getTimeoutMillis() {
+			return timeoutMillis;
+		}
+
+		public void setTimeoutMillis(long timeoutMillis) {
+			this.timeoutMillis = timeoutMillis;
+		}
+
+		private Map<String, Long> services = new HashMap<>();
+
+		public Map<String, Long> getServices() {
+			return services;
+		}
+
+		public void setServices(Map<String, Long> services) {
+			this.services = services;
+		}
+
+		/**
+		 * @param serviceId the id of the service
+		 * @return the deadline of the service in milliseconds, 0 for none
+		 */
+		public long getTimeoutMillis(String serviceId) {
+			Long timeout = services.get(serviceId);
+			return timeout != null ? timeout : timeoutMillis;
+		}
+	}
+
+	private Admission admission = new Admission();
+
+	public Admission getAdmission() {
+		return this.admission;
+	}
+
+	public void setAdmission(Admission admission) {
+		this.admission = admission;
+	}
+
+	/**
+	 * Limits on the hook evaluations in flight. The limits are read on every
+	 * request, so they can be changed while the server is running.
+	 */
+	public static class Admission {
+		private boolean enabled;
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		private int maxConcurrent = 64;
+
+		public int getMaxConcurrent() {
+			return maxConcurrent;
+		}
+
+		public void setMaxConcurrent(int maxConcurrent) {
+			this.maxConcurrent = maxConcurrent;
+		}
+
+		private int maxConcurrentPerService = 32;
+
+		public int getMaxConcurrentPerService() {
+			return maxConcurrentPerService;
+		}
+
+		public void setMaxConcurrentPerService(int maxConcurrentPerService) {
+			this.maxConcurrentPerService = maxConcurrentPerService;
+		}
+
+		private Map<String, Integer> services = new HashMap<>();
+
+		public Map<String, Integer> getServices() {
+			return services;
+		}
+
+		public void setServices(Map<String, Integer> services) {
+			this.services = services;
+		}
+
+		/**
+		 * @param serviceId the id of the service
+		 * @return the number of evaluations of the service allowed in flight
+		 */
+		public int getMaxConcurrent(String serviceId) {
+			Integer max = services.get(serviceId);
+			return max != null ? max : maxConcurrentPerService;
+		}
+
+		private int queueCapacity = 32;
+
+		public int getQueueCapacity() {
+			return queueCapacity;
+		}
+
+		public void setQueueCapacity(int queueCapacity) {
+			this.queueCapacity = queueCapacity;
+		}
+
+		private long maxWaitMillis = 250;
+
+		public long getMaxWaitMillis() {
+			return maxWaitMillis;
+		}
+
+		public void setMaxWaitMillis(long maxWaitMillis) {
+			this.maxWaitMillis = maxWaitMillis;
+		}
+
+		private int retryAfterSeconds = 1;
+
+		public int getRetryAfterSeconds() {
+			return retryAfterSeconds;
+		}
+
+		public void setRetryAfterSeconds(int retryAfterSeconds) {
+			this.retryAfterSeconds = retryAfterSeconds;
+		}
+	}
+
+	private Metrics metrics = new Metrics();
+
+	public Metrics getMetrics() {
+		return this.metrics;
+	}
+
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public static class Metrics {
+		private double serverTimingSampleRate;
+
+		public double getServerTimingSampleRate() {
+			return serverTimingSampleRate;
+		}
+
+		public void setServerTimingSampleRate(double serverTimingSampleRate) {
+			this.serverTimingSampleRate = serverTimingSampleRate;
+		}
+
+		private boolean prometheusEnabled;
+
+		public boolean isPrometheusEnabled() {
+			return prometheusEnabled;
+		}
+
+		public void setPrometheusEnabled(boolean prometheusEnabled) {
+			this.prometheusEnabled = prometheusEnabled;
+		}
+
+		private String prometheusPath = "/metrics/cds-hooks";
+
+		public String getPrometheusPath() {
+			return prometheusPath;
+		}
+
+		public void setPrometheusPath(String prometheusPath) {
+			this.prometheusPath = prometheusPath;
+		}
+	}
+
+	private FanOut fanOut = new FanOut();
+
+	public FanOut getFanOut() {
+		return this.fanOut;
+	}
+
+	public void setFanOut(FanOut fanOut) {
+		this.fanOut = fanOut;
+	}
+
+	public static class FanOut {
+		private boolean enabled = true;
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		private int threads = 8;
+
+		public int getThreads() {
+			return threads;
+		}
+
+		public void setThreads(int threads) {
+			this.threads = threads;
+		}
+	}
+
+	private Capture capture = new Capture();
+
+	public Capture getCapture() {
+		return this.capture;
+	}
+
+	public void setCapture(Capture capture) {
+		this.capture = capture;
+	}
+
+	public static class Capture {
+		private boolean enabled;
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		private double sampleRate = 1.0;
+
+		public double getSampleRate() {
+			return sampleRate;
+		}
+
+		public void setSampleRate(double sampleRate) {
+			this.sampleRate = sampleRate;
+		}
+
+		private String directory = "target/cds-hooks-capture";
+
+		public String getDirectory() {
+			return directory;
+		}
+
+		public void setDirectory(String directory) {
+			this.directory = directory;
+		}
+
+		private long maxFileBytes = 64L * 1024 * 1024;
+
+		public long getMaxFileBytes() {
+			return maxFileBytes;
+		}
+
+		public void setMaxFileBytes(long maxFileBytes) {
+			this.maxFileBytes = maxFileBytes;
+		}
+
+		private int maxFiles = 10;
+
+		public int getMaxFiles() {
+			return maxFiles;
+		}
+
+		public void setMaxFiles(int maxFiles) {
+			this.maxFiles = maxFiles;
+		}
+
+		private boolean pseudonymize = true;
+
+		public boolean isPseudonymize() {
+			return pseudonymize;
+		}
+
+		public void setPseudonymize(boolean pseudonymize) {
+			this.pseudonymize = pseudonymize;
+		}
+
+		private String pseudonymSalt;
+
+		public String getPseudonymSalt() {
+			return pseudonymSalt;
+		}
+
+		public void setPseudonymSalt(String pseudonymSalt) {
+			this.pseudonymSalt = pseudonymSalt;
+		}
+	}
+
+	private Warmup warmup = new Warmup();
+
+	public Warmup getWarmup() {
+		return this.warmup;
+	}
+
+	public void setWarmup(Warmup warmup) {
+		this.warmup = warmup;
+	}
+
+	public static class Warmup {
+		private boolean enabled;
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		private int threads = 4;
+
+		public int getThreads() {
+			return threads;
+		}
+
+		public void setThreads(int threads) {
+			this.threads = threads;
+		}
+
+		private boolean holdTraffic;
+
+		public boolean isHoldTraffic() {
+			return holdTraffic;
+		}
+
+		public void setHoldTraffic(boolean holdTraffic) {
+			this.holdTraffic = holdTraffic;
+		}
 	}
 }
@@ -0,0 +1,79 @@
+package org.opencds.cqf.ruler.cdshooks;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.function.Supplier;
+
+/**
+ * The time spent in each stage of answering a single hook request. A stage
+ * entered more than once, e.g. {@code $apply} for several suggestions, adds up.
+ * <p>
+ * The timings are published as {@link CdsHooksMetrics#STAGE_DURATION} timers
+ * once the request is done and, for sampled requests, sent back in a
+ * {@code Server-Timing} header.
+ */
+public class CdsHooksStageTimings {
+	public static final String PARSE = "parse";
+	public static final String PLAN = "plan";
+	public static final String FULFILL = "fulfill";
+	public static final String PREFETCH = "prefetch";
+	public static final String LIBRARY = "library";
+	public static final String INLINE = "inline";
+	public static final String APPLY = "apply";
+	public static final String CARDS = "cards";
+	public static final String SERIALIZE = "serialize";
+
+	private final Map<String, Long> nanos = new LinkedHashMap<>();
+
+	/**
+	 * Runs a stage and adds its duration, also when it fails.
+	 *
+	 * @param stage the stage
+	 * @param work  the work of the stage
+	 * @return the result of the work
+	 */
+	public <T> T time(String stage, Supplier<T> work) {
+		long start = System.nanoTime();
+		try {
+			return work.get();
+		} finally {
+			record(stage, System.nanoTime() - start);
+		}
+	}
+
+	public synchronized void record(String stage, long duration) {
+		nanos.merge(stage, duration, Long::sum);
+	}
+
+	/**
+	 * @param stage the stage
+	 * @return the nanoseconds spent in the stage so far
+	 */
+	public synchronized long get(String stage) {
+		return nanos.getOrDefault(stage, 0L);
+	}
+
+	/**
+	 * @return the stages timed so far as a {@code Server-Timing} header value,
+	 *         with durations in milliseconds
+	 */
+	public synchronized String toServerTiming() {
+		StringJoiner header = new StringJoiner(", ");
+		nanos.forEach((stage, duration) -> header
+				.add(String.format(Locale.ROOT, "%s;dur=%.2f", stage, duration / 1_000_000.0)));
+		return header.toString();
+	}
+
+	/**
+	 * Records the timings of the request.
+	 *
+	 * @param metrics the metrics to record to
+	 * @param service the service id
+	 * @param hook    the hook name
+	 */
+	public synchronized void publish(CdsHooksMetrics metrics, String service, String hook) {
+		nanos.forEach((stage, duration) -> metrics.recordStage(service, hook, stage, duration));
+	}
+}
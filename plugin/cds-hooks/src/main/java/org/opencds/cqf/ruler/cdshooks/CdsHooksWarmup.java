@@ -0,0 +1,204 @@
+package org.opencds.cqf.ruler.cdshooks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.StringLibrarySourceProvider;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.hl7.fhir.r4.model.Library;
+import org.opencds.cqf.fhir.cql.Engines;
+import org.opencds.cqf.fhir.cql.EvaluationSettings;
+import org.opencds.cqf.ruler.cdshooks.r4.R4ServicePlan;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.cr.repo.HapiFhirRepository;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.server.RestfulServer;
+
+/**
+ * Compiles the CQL of every CDS service once the services are first resolved,
+ * so that the first hook for a service does not pay for translating its
+ * libraries.
+ * <p>
+ * For each service the plan is compiled and its primary Library resolved
+ * through the engine's library manager, which translates the CQL (or loads the
+ * ELM attached to the Library) together with everything it includes, using
+ * the {@code hapi.fhir.cr.cql.compiler} options, and stores the result in the
+ * shared library cache the evaluations use. The generated library holding the
+ * inline expressions of the plan is compiled the same way. Services are warmed
+ * up in parallel; a library that fails to compile is logged and compiled
+ * again by the first hook that needs it.
+ * <p>
+ * The warm-up is {@link #isReady() ready} once every service is done, which
+ * is reported by {@link CdsHooksWarmupHealthIndicator} when Actuator is on the
+ * classpath and, when {@code holdTraffic} is set, holds back hook requests
+ * until then.
+ */
+public class CdsHooksWarmup implements AutoCloseable {
+	private static final Logger logger = LoggerFactory.getLogger(CdsHooksWarmup.class);
+
+	private final CdsServicesCache cdsServicesCache;
+	private final DaoRegistry daoRegistry;
+	private final EvaluationSettings evaluationSettings;
+	private final RestfulServer restfulServer;
+	private final CdsHooksProperties.Warmup properties;
+	private final ExecutorService executor;
+
+	private final AtomicBoolean started = new AtomicBoolean();
+	private volatile boolean ready;
+	private final AtomicInteger services = new AtomicInteger();
+	private final AtomicInteger warmed = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	// libraries already compiled, by library id, so services sharing one compile it once
+	private final Map<String, CompletableFuture<Void>> libraries = new ConcurrentHashMap<>();
+
+	public CdsHooksWarmup(CdsServicesCache cdsServicesCache, DaoRegistry daoRegistry,
+			EvaluationSettings evaluationSettings, RestfulServer restfulServer,
+			CdsHooksProperties.Warmup properties) {
+		this.cdsServicesCache = cdsServicesCache;
+		this.daoRegistry = daoRegistry;
+		this.evaluationSettings = evaluationSettings;
+		this.restfulServer = restfulServer;
+		this.properties = properties;
+		this.executor = Executors.newFixedThreadPool(properties.getThreads(), new WarmupThreadFactory());
+		if (!properties.isEnabled() || evaluationSettings == null) {
+			if (properties.isEnabled()) {
+				logger.warn("No CQL evaluation settings available, CDS services are not warmed up");
+			}
+			ready = true;
+		}
+	}
+
+	/**
+	 * Starts warming up the services in the background. Only the first call has
+	 * an effect.
+	 *
+	 * @param serviceIds the ids of the services
+	 */
+	public void start(Set<String> serviceIds) {
+		if (ready || !started.compareAndSet(false, true)) {
+			return;
+		}
+		long start = System.nanoTime();
+		services.set(serviceIds.size());
+		List<CompletableFuture<Void>> warmups = new ArrayList<>();
+		for (String serviceId : serviceIds) {
+			warmups.add(CompletableFuture.runAsync(() -> warmUp(serviceId), executor));
+		}
+		CompletableFuture.allOf(warmups.toArray(new CompletableFuture[0])).whenComplete((x, e) -> {
+			ready = true;
+			logger.info("Warmed up {} CDS services in {} ms, {} failed", warmed.get(),
+					(System.nanoTime() - start) / 1_000_000, failed.get());
+		});
+	}
+
+	private void warmUp(String serviceId) {
+		try {
+			R4ServicePlan plan = cdsServicesCache.getServicePlanCache().get(serviceId);
+			// a library shared by several services is compiled by the first of them,
+			// the others wait for it so none is reported warm too early
+			CompletableFuture<Void> compiled = new CompletableFuture<>();
+			CompletableFuture<Void> existing = libraries.putIfAbsent(plan.getLibraryId().getIdPart(), compiled);
+			if (existing != null) {
+				existing.join();
+			} else {
+				try {
+					compileLibrary(plan);
+					compiled.complete(null);
+				} catch (RuntimeException e) {
+					compiled.completeExceptionally(e);
+					throw e;
+				}
+			}
+			if (plan.getInlineLibraryIdentifier() != null) {
+				compileInlineLibrary(plan);
+			}
+			warmed.incrementAndGet();
+		} catch (RuntimeException e) {
+			failed.incrementAndGet();
+			logger.warn("Failed to warm up CDS service {}: {}", serviceId, e.getMessage());
+		}
+	}
+
+	private void compileLibrary(R4ServicePlan plan) {
+		Library library = (Library) daoRegistry.getResourceDao("Library").read(plan.getLibraryId(),
+				new SystemRequestDetails());
+		libraryManager().resolveLibrary(
+				new VersionedIdentifier().withId(library.getName()).withVersion(library.getVersion()));
+	}
+
+	private void compileInlineLibrary(R4ServicePlan plan) {
+		LibraryManager libraryManager = libraryManager();
+		libraryManager.getLibrarySourceLoader()
+				.registerProvider(new StringLibrarySourceProvider(Collections.singletonList(plan.getInlineLibrary())));
+		libraryManager.resolveLibrary(plan.getInlineLibraryIdentifier());
+	}
+
+	/**
+	 * @return a library manager backed by the local server and the shared
+	 *         library cache
+	 */
+	private LibraryManager libraryManager() {
+		SystemRequestDetails requestDetails = new SystemRequestDetails();
+		requestDetails.setServer(restfulServer);
+		return Engines.forRepository(new HapiFhirRepository(daoRegistry, requestDetails, restfulServer),
+				evaluationSettings).getEnvironment().getLibraryManager();
+	}
+
+	/**
+	 * @return true once every service has been warmed up, or straight away if
+	 *         the warm-up is disabled
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * @return true if hook requests are to be held back until the warm-up is
+	 *         done
+	 */
+	public boolean isHoldingTraffic() {
+		return properties.isHoldTraffic() && !ready;
+	}
+
+	public int getServices() {
+		return services.get();
+	}
+
+	public int getWarmed() {
+		return warmed.get();
+	}
+
+	public int getFailed() {
+		return failed.get();
+	}
+
+	@Override
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	private static class WarmupThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "cds-hooks-warmup-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,26 @@
+package org.opencds.cqf.ruler.cdshooks;
+
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+
+/**
+ * Reports the CDS services as out of service until their libraries have been
+ * warmed up, so that a load balancer using the readiness probe only sends
+ * hooks to the server once they are answered at full speed.
+ */
+public class CdsHooksWarmupHealthIndicator implements HealthIndicator {
+	private final CdsHooksWarmup warmup;
+
+	public CdsHooksWarmupHealthIndicator(CdsHooksWarmup warmup) {
+		this.warmup = warmup;
+	}
+
+	@Override
+	public Health health() {
+		Health.Builder builder = warmup.isReady() ? Health.up() : Health.outOfService();
+		return builder.withDetail("services", warmup.getServices())
+				.withDetail("warmed", warmup.getWarmed())
+				.withDetail("failed", warmup.getFailed())
+				.build();
+	}
+}
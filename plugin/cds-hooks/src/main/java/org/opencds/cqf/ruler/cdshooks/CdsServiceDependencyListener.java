@@ -0,0 +1,77 @@
+package org.opencds.cqf.ruler.cdshooks;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.MetadataResource;
+import org.opencds.cqf.fhir.utility.Canonicals;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.cache.IResourceChangeEvent;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListener;
+
+/**
+ * Listens for Library and ValueSet changes and refreshes only the CDS services
+ * whose prefetch templates were derived from the changed resources. Resources
+ * are matched by versionless id and, for created or updated resources, by
+ * canonical url, so a new resource for a canonical a service already uses is
+ * picked up as well.
+ */
+public class CdsServiceDependencyListener implements IResourceChangeListener {
+	private static final Logger logger = LoggerFactory.getLogger(CdsServiceDependencyListener.class);
+
+	private final CdsServicesCache cdsServicesCache;
+	private final DaoRegistry daoRegistry;
+
+	public CdsServiceDependencyListener(CdsServicesCache cdsServicesCache, DaoRegistry daoRegistry) {
+		this.cdsServicesCache = cdsServicesCache;
+		this.daoRegistry = daoRegistry;
+	}
+
+	@Override
+	public void handleInit(Collection<IIdType> collection) {
+		// the services are resolved when the PlanDefinition listener is initialized
+	}
+
+	@Override
+	public void handleChange(IResourceChangeEvent iResourceChangeEvent) {
+		if (iResourceChangeEvent == null)
+			return;
+		Set<String> keys = new HashSet<>();
+		addKeys(keys, iResourceChangeEvent.getCreatedResourceIds(), true);
+		addKeys(keys, iResourceChangeEvent.getUpdatedResourceIds(), true);
+		addKeys(keys, iResourceChangeEvent.getDeletedResourceIds(), false);
+		if (keys.isEmpty())
+			return;
+
+		Set<String> serviceIds = cdsServicesCache.getDependentServiceIds(keys);
+		if (!serviceIds.isEmpty()) {
+			cdsServicesCache.refresh(serviceIds);
+		}
+	}
+
+	private void addKeys(Set<String> keys, List<IIdType> ids, boolean read) {
+		if (ids == null)
+			return;
+		for (IIdType id : ids) {
+			IIdType versionless = id.toUnqualifiedVersionless();
+			keys.add(versionless.getValue());
+			if (!read)
+				continue;
+			try {
+				IBaseResource resource = daoRegistry.getResourceDao(versionless.getResourceType()).read(versionless);
+				if (resource instanceof MetadataResource && ((MetadataResource) resource).hasUrl()) {
+					keys.add(Canonicals.getUrl(((MetadataResource) resource).getUrl()));
+				}
+			} catch (Exception e) {
+				logger.info("Failed to read {} to find the CDS services depending on it", versionless.getValue());
+			}
+		}
+	}
+}
@@ -1,61 +1,376 @@
 package org.opencds.cqf.ruler.cdshooks;
 
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.PlanDefinition;
 import org.opencds.cqf.ruler.cdshooks.discovery.DiscoveryResolutionR4;
 import org.opencds.cqf.ruler.cdshooks.discovery.DiscoveryResolutionStu3;
+import org.opencds.cqf.ruler.cdshooks.discovery.DiscoverySnapshotStore;
+import org.opencds.cqf.ruler.cdshooks.discovery.ResolvedService;
+import org.opencds.cqf.ruler.cdshooks.r4.R4ActivityTemplateCache;
+import org.opencds.cqf.ruler.cdshooks.r4.R4ServicePlanCache;
+import org.opencds.cqf.ruler.utility.Searches;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
 import ca.uhn.fhir.jpa.cache.IResourceChangeEvent;
 import ca.uhn.fhir.jpa.cache.IResourceChangeListener;
-import ca.uhn.fhir.jpa.cache.ResourceChangeEvent;
 
 public class CdsServicesCache implements IResourceChangeListener {
 	private static final Logger logger = LoggerFactory.getLogger(CdsServicesCache.class);
+	private static final List<String> CANONICAL_RESOURCE_TYPES = List.of("Library", "ValueSet");
 
-	private AtomicReference<JsonArray> cdsServiceCache;
+	private final AtomicReference<CdsServicesSnapshot> cdsServiceCache;
+	private final Map<String, ResolvedService> resolvedServices = new LinkedHashMap<>();
+	// versionless Library/ValueSet ids and canonical urls -> ids of the services
+	// resolved from them
+	private volatile Map<String, Set<String>> dependentServices = Collections.emptyMap();
+	// service id -> versions of the PlanDefinition and the resources it was
+	// resolved from
+	private volatile Map<String, String> serviceVersions = Collections.emptyMap();
+	private final DaoRegistry daoRegistry;
 	private IFhirResourceDao<?> planDefinitionDao;
 	private DiscoveryResolutionR4 discoveryResolutionR4;
 	private DiscoveryResolutionStu3 discoveryResolutionStu3;
+	private final R4ServicePlanCache servicePlanCache;
+	private final R4ActivityTemplateCache activityTemplateCache;
+	private final int initThreads;
+	private final DiscoverySnapshotStore snapshotStore;
+	// guarded by this; incremented whenever services to persist are published
+	private long publishedGeneration;
+	// guarded by snapshotStore; the last generation written to the snapshot store
+	private long savedGeneration;
+	// ids of services changed while a background revalidation is running
+	private Set<String> changedDuringRevalidation;
+	// guarded by initListeners
+	private final List<Consumer<Set<String>>> initListeners = new ArrayList<>();
+	private boolean initialized;
 
 	public CdsServicesCache(DaoRegistry daoRegistry) {
+		this(daoRegistry, new CdsHooksProperties.Discovery());
+	}
+
+	public CdsServicesCache(DaoRegistry daoRegistry, CdsHooksProperties.Discovery properties) {
+		this.daoRegistry = daoRegistry;
 		this.planDefinitionDao = daoRegistry.getResourceDao("PlanDefinition");
 		this.discoveryResolutionR4 = new DiscoveryResolutionR4(daoRegistry);
 		this.discoveryResolutionStu3 = new DiscoveryResolutionStu3(daoRegistry);
-		this.cdsServiceCache = new AtomicReference<>(new JsonArray());
+		this.cdsServiceCache = new AtomicReference<>(CdsServicesSnapshot.EMPTY);
+		this.servicePlanCache = new R4ServicePlanCache(daoRegistry);
+		this.activityTemplateCache = new R4ActivityTemplateCache(servicePlanCache);
+		this.initThreads = properties.getInitThreads() != null ? properties.getInitThreads()
+				: Runtime.getRuntime().availableProcessors();
+		this.snapshotStore = properties.getSnapshotPath() != null
+				? new DiscoverySnapshotStore(Paths.get(properties.getSnapshotPath()))
+				: null;
+	}
+
+	/**
+	 * @return the current services; the snapshot never changes, later changes
+	 *         are published as new snapshots
+	 */
+	public CdsServicesSnapshot getSnapshot() {
+		return this.cdsServiceCache.get();
 	}
 
-	public AtomicReference<JsonArray> getCdsServiceCache() {
-		return this.cdsServiceCache;
+	public R4ServicePlanCache getServicePlanCache() {
+		return this.servicePlanCache;
+	}
+
+	public R4ActivityTemplateCache getActivityTemplateCache() {
+		return this.activityTemplateCache;
+	}
+
+	/**
+	 * Registers a listener called with the ids of the services once they are
+	 * first resolved, or straight away if that already happened.
+	 *
+	 * @param listener the listener
+	 */
+	public void addInitListener(Consumer<Set<String>> listener) {
+		boolean notify;
+		synchronized (initListeners) {
+			initListeners.add(listener);
+			notify = initialized;
+		}
+		if (notify) {
+			listener.accept(getSnapshot().toMap().keySet());
+		}
+	}
+
+	private void initialized() {
+		List<Consumer<Set<String>>> listeners;
+		synchronized (initListeners) {
+			initialized = true;
+			listeners = new ArrayList<>(initListeners);
+		}
+		Set<String> serviceIds = getSnapshot().toMap().keySet();
+		listeners.forEach(listener -> listener.accept(serviceIds));
+	}
+
+	public synchronized void clearCache() {
+		this.resolvedServices.clear();
+		this.cdsServiceCache.set(CdsServicesSnapshot.EMPTY);
+		this.dependentServices = Collections.emptyMap();
+		this.serviceVersions = Collections.emptyMap();
+		this.servicePlanCache.clear();
+		this.activityTemplateCache.clear();
+	}
+
+	/**
+	 * @param keys versionless Library or ValueSet resource ids (e.g.
+	 *             {@code ValueSet/opioids}) and versionless canonical urls
+	 * @return the ids of the services resolved from any of the given resources
+	 */
+	public Set<String> getDependentServiceIds(Collection<String> keys) {
+		Map<String, Set<String>> index = this.dependentServices;
+		Set<String> serviceIds = new HashSet<>();
+		for (String key : keys) {
+			serviceIds.addAll(index.getOrDefault(key, Collections.emptySet()));
+		}
+		return serviceIds;
+	}
+
+	/**
+	 * @param serviceId the id of a service
+	 * @return a string that changes whenever the PlanDefinition of the service or
+	 *         a Library or ValueSet it was resolved from changes, or null if the
+	 *         service is unknown
+	 */
+	public String getServiceVersion(String serviceId) {
+		return this.serviceVersions.get(serviceId);
+	}
+
+	/**
+	 * Resolves the given services again from their current PlanDefinition,
+	 * Library and ValueSet resources and publishes the result. Services that can
+	 * no longer be resolved are removed.
+	 *
+	 * @param serviceIds the ids of the services to resolve
+	 */
+	public void refresh(Collection<String> serviceIds) {
+		if (serviceIds.isEmpty()) {
+			return;
+		}
+		PendingSave pending;
+		synchronized (this) {
+			pending = refreshServices(serviceIds);
+		}
+		save(pending);
 	}
 
-	public void clearCache() {
-		this.cdsServiceCache = new AtomicReference<>(new JsonArray());
+	private PendingSave refreshServices(Collection<String> serviceIds) {
+		for (String serviceId : serviceIds) {
+			IIdType id = new IdType("PlanDefinition", serviceId);
+			changed(id);
+			servicePlanCache.invalidate(id);
+			try {
+				ResolvedService service = resolve(id, null);
+				if (service != null) {
+					resolvedServices.put(serviceId, service);
+				} else {
+					resolvedServices.remove(serviceId);
+				}
+			} catch (Exception e) {
+				resolvedServices.remove(serviceId);
+				logger.info(String.format("Failed to refresh service for %s: %s", serviceId, e.getMessage()));
+			}
+		}
+		logger.info("Refreshed CDS services {}", serviceIds);
+		return publish();
 	}
 
+	/**
+	 * Resolves all services on a bounded pool. If a persisted snapshot is
+	 * available, the services in it are published immediately and revalidated
+	 * against the current PlanDefinition, Library and ValueSet versions in the
+	 * background; only services whose resources changed are resolved again.
+	 */
 	@Override
 	public void handleInit(Collection<IIdType> collection) {
-		handleChange(ResourceChangeEvent.fromCreatedUpdatedDeletedResourceIds(new ArrayList<>(collection),
-				Collections.emptyList(), Collections.emptyList()));
+		List<IIdType> ids = new ArrayList<>(collection);
+		Map<String, ResolvedService> stored = snapshotStore != null ? snapshotStore.load()
+				: Collections.emptyMap();
+		if (stored.isEmpty()) {
+			Map<String, ResolvedService> resolved = resolveAll(ids, stored);
+			PendingSave pending;
+			synchronized (this) {
+				resolvedServices.putAll(resolved);
+				pending = publish();
+			}
+			save(pending);
+			initialized();
+			return;
+		}
+
+		Set<String> idParts = ids.stream().map(IIdType::getIdPart).collect(Collectors.toSet());
+		synchronized (this) {
+			stored.values().stream().filter(service -> idParts.contains(service.getServiceId()))
+					.forEach(service -> resolvedServices.put(service.getServiceId(), service));
+			cdsServiceCache.set(snapshot());
+			dependentServices = index();
+			serviceVersions = versions();
+			changedDuringRevalidation = new HashSet<>();
+		}
+		logger.info("Serving {} persisted CDS services while revalidating", resolvedServices.size());
+		initialized();
+
+		Thread revalidation = new Thread(() -> revalidate(ids, stored), "cds-hooks-discovery-revalidation");
+		revalidation.setDaemon(true);
+		revalidation.start();
 	}
 
+	private void revalidate(List<IIdType> ids, Map<String, ResolvedService> stored) {
+		Map<String, ResolvedService> resolved = null;
+		try {
+			resolved = resolveAll(ids, stored);
+		} catch (RuntimeException e) {
+			logger.warn("Failed to revalidate persisted CDS services: {}", e.getMessage());
+		}
+		PendingSave pending = null;
+		synchronized (this) {
+			if (resolved == null) {
+				// keep serving the persisted services
+				changedDuringRevalidation = null;
+			} else {
+				Map<String, ResolvedService> current = new LinkedHashMap<>(resolvedServices);
+				resolvedServices.clear();
+				for (Map.Entry<String, ResolvedService> entry : resolved.entrySet()) {
+					if (!changedDuringRevalidation.contains(entry.getKey())) {
+						resolvedServices.put(entry.getKey(), entry.getValue());
+					}
+				}
+				for (String id : changedDuringRevalidation) {
+					if (current.containsKey(id)) {
+						resolvedServices.put(id, current.get(id));
+					}
+				}
+				changedDuringRevalidation = null;
+				pending = publish();
+			}
+		}
+		save(pending);
+	}
+
+	private Map<String, ResolvedService> resolveAll(List<IIdType> ids, Map<String, ResolvedService> stored) {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(initThreads, ids.size())),
+				new DiscoveryThreadFactory());
+		try {
+			List<Future<ResolvedService>> futures = new ArrayList<>();
+			for (IIdType id : ids) {
+				futures.add(executor.submit(() -> resolve(id, stored.get(id.getIdPart()))));
+			}
+			Map<String, ResolvedService> resolved = new LinkedHashMap<>();
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					ResolvedService service = futures.get(i).get();
+					if (service != null) {
+						resolved.put(service.getServiceId(), service);
+					}
+				} catch (ExecutionException e) {
+					logger.info(String.format("Failed to create service for %s", ids.get(i).getIdPart()));
+				}
+			}
+			return resolved;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while resolving CDS services", e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private ResolvedService resolve(IIdType id, ResolvedService stored) {
+		IBaseResource resource = planDefinitionDao.read(id);
+		if (resource instanceof PlanDefinition) {
+			PlanDefinition planDefinition = (PlanDefinition) resource;
+			ResolvedService service = isCurrent(stored, planDefinition) ? stored
+					: discoveryResolutionR4.resolveServiceWithDependencies(planDefinition);
+			compile(planDefinition);
+			return service;
+		} else if (resource instanceof org.hl7.fhir.dstu3.model.PlanDefinition) {
+			org.hl7.fhir.dstu3.model.PlanDefinition planDefinition = (org.hl7.fhir.dstu3.model.PlanDefinition) resource;
+			return new ResolvedService(discoveryResolutionStu3.resolveService(planDefinition),
+					planDefinition.getMeta().getVersionId(), Collections.emptyMap());
+		}
+		return null;
+	}
+
+	private boolean isCurrent(ResolvedService stored, PlanDefinition planDefinition) {
+		if (stored == null
+				|| !Objects.equals(stored.getPlanDefinitionVersion(), planDefinition.getMeta().getVersionId())) {
+			return false;
+		}
+		try {
+			// a new Library or ValueSet with one of the canonical urls changes which
+			// resources the service resolves to, even if no stored dependency changed
+			Set<String> current = new HashSet<>();
+			for (String canonical : stored.getCanonicals()) {
+				for (String resourceType : CANONICAL_RESOURCE_TYPES) {
+					daoRegistry.getResourceDao(resourceType).search(Searches.byUrl(canonical)).getAllResources()
+							.forEach(resource -> current.add(resource.getIdElement().toUnqualifiedVersionless().getValue()));
+				}
+			}
+			if (!current.equals(stored.getDependencies().keySet())) {
+				return false;
+			}
+			for (Map.Entry<String, String> dependency : stored.getDependencies().entrySet()) {
+				IdType id = new IdType(dependency.getKey());
+				IBaseResource resource = daoRegistry.getResourceDao(id.getResourceType()).read(id);
+				if (!Objects.equals(dependency.getValue(), resource.getMeta().getVersionId())) {
+					return false;
+				}
+			}
+		} catch (Exception e) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Applies the changes to a copy of the current services and publishes them
+	 * as a new snapshot in one step, so readers see either all or none of the
+	 * changes. Changes are applied one event at a time.
+	 */
 	@Override
 	public void handleChange(IResourceChangeEvent iResourceChangeEvent) {
 		if (iResourceChangeEvent == null)
 			return;
+		PendingSave pending;
+		synchronized (this) {
+			pending = applyChange(iResourceChangeEvent);
+		}
+		save(pending);
+	}
+
+	private PendingSave applyChange(IResourceChangeEvent iResourceChangeEvent) {
 		if (iResourceChangeEvent.getCreatedResourceIds() != null
 				&& !iResourceChangeEvent.getCreatedResourceIds().isEmpty()) {
 			insert(iResourceChangeEvent.getCreatedResourceIds());
@@ -68,17 +383,16 @@ public class CdsServicesCache implements IResourceChangeListener {
 				&& !iResourceChangeEvent.getDeletedResourceIds().isEmpty()) {
 			delete(iResourceChangeEvent.getDeletedResourceIds());
 		}
+		return publish();
 	}
 
 	private void insert(List<IIdType> createdIds) {
 		for (IIdType id : createdIds) {
+			changed(id);
 			try {
-				IBaseResource resource = planDefinitionDao.read(id);
-				if (resource instanceof PlanDefinition) {
-					cdsServiceCache.get().add(discoveryResolutionR4.resolveService((PlanDefinition) resource));
-				} else if (resource instanceof org.hl7.fhir.dstu3.model.PlanDefinition) {
-					cdsServiceCache.get().add(
-							discoveryResolutionStu3.resolveService((org.hl7.fhir.dstu3.model.PlanDefinition) resource));
+				ResolvedService service = resolve(id, null);
+				if (service != null) {
+					resolvedServices.put(service.getServiceId(), service);
 				}
 			} catch (Exception e) {
 				logger.info(String.format("Failed to create service for %s", id.getIdPart()));
@@ -86,6 +400,15 @@ public class CdsServicesCache implements IResourceChangeListener {
 		}
 	}
 
+	private void compile(PlanDefinition planDefinition) {
+		try {
+			servicePlanCache.put(planDefinition);
+		} catch (Exception e) {
+			logger.info(String.format("Failed to compile service plan for %s: %s",
+					planDefinition.getIdElement().getIdPart(), e.getMessage()));
+		}
+	}
+
 	private void update(List<IIdType> updatedIds) {
 		try {
 			delete(updatedIds);
@@ -97,13 +420,96 @@ public class CdsServicesCache implements IResourceChangeListener {
 
 	private void delete(List<IIdType> deletedIds) {
 		for (IIdType id : deletedIds) {
-			for (int i = 0; i < cdsServiceCache.get().size(); i++) {
-				if (((JsonObject) cdsServiceCache.get().get(i)).get("id").getAsString().equals(id.getIdPart())) {
-					cdsServiceCache.get().remove(i);
-					break;
-				} else
-					logger.info("Failed to delete service for {}", id.getIdPart());
+			changed(id);
+			servicePlanCache.invalidate(id);
+			if (resolvedServices.remove(id.getIdPart()) == null) {
+				logger.info("Failed to delete service for {}", id.getIdPart());
 			}
 		}
 	}
+
+	private void changed(IIdType id) {
+		if (changedDuringRevalidation != null) {
+			changedDuringRevalidation.add(id.getIdPart());
+		}
+	}
+
+	private CdsServicesSnapshot snapshot() {
+		Map<String, JsonObject> services = new LinkedHashMap<>();
+		resolvedServices.forEach((id, service) -> services.put(id, service.getService()));
+		return CdsServicesSnapshot.of(services);
+	}
+
+	private Map<String, Set<String>> index() {
+		Map<String, Set<String>> index = new HashMap<>();
+		resolvedServices.forEach((id, service) -> {
+			service.getDependencies().keySet()
+					.forEach(key -> index.computeIfAbsent(key, x -> new HashSet<>()).add(id));
+			service.getCanonicals().forEach(key -> index.computeIfAbsent(key, x -> new HashSet<>()).add(id));
+		});
+		return index;
+	}
+
+	private Map<String, String> versions() {
+		Map<String, String> versions = new HashMap<>();
+		resolvedServices.forEach((id, service) -> {
+			StringBuilder version = new StringBuilder(String.valueOf(service.getPlanDefinitionVersion()));
+			new TreeMap<>(service.getDependencies())
+					.forEach((dependency, dependencyVersion) -> version.append(';').append(dependency).append('=')
+							.append(dependencyVersion));
+			versions.put(id, version.toString());
+		});
+		return versions;
+	}
+
+	/**
+	 * Publishes the current services. Must be called holding the lock; the
+	 * returned services are written to the snapshot store by {@link #save}
+	 * after the lock is released.
+	 *
+	 * @return the services to persist, or null if nothing is persisted
+	 */
+	private PendingSave publish() {
+		cdsServiceCache.set(snapshot());
+		dependentServices = index();
+		serviceVersions = versions();
+		if (snapshotStore != null && changedDuringRevalidation == null) {
+			return new PendingSave(++publishedGeneration, new ArrayList<>(resolvedServices.values()));
+		}
+		return null;
+	}
+
+	private void save(PendingSave pending) {
+		if (pending == null) {
+			return;
+		}
+		synchronized (snapshotStore) {
+			// a save that lost the race to a later one must not overwrite it
+			if (pending.generation > savedGeneration) {
+				snapshotStore.save(pending.services);
+				savedGeneration = pending.generation;
+			}
+		}
+	}
+
+	private static class PendingSave {
+		private final long generation;
+		private final List<ResolvedService> services;
+
+		private PendingSave(long generation, List<ResolvedService> services) {
+			this.generation = generation;
+			this.services = services;
+		}
+	}
+
+	private static class DiscoveryThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "cds-hooks-discovery-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
 }
@@ -0,0 +1,166 @@
+package org.opencds.cqf.ruler.cdshooks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * An immutable view of the CDS services offered by the server, indexed by
+ * service id and by hook.
+ * <p>
+ * The discovery response ({@code GET /cds-services}) is encoded once when the
+ * snapshot is built, together with a gzip-compressed copy and an ETag, so
+ * answering discovery requests only copies bytes. The service descriptions
+ * are shared with later snapshots and must not be modified.
+ */
+public final class CdsServicesSnapshot {
+	public static final CdsServicesSnapshot EMPTY = new CdsServicesSnapshot(Collections.emptyMap());
+
+	private final Map<String, JsonObject> services;
+	private final Map<String, List<String>> serviceIdsByHook;
+	private final byte[] discovery;
+	private final byte[] discoveryGzip;
+	private final String etag;
+
+	private CdsServicesSnapshot(Map<String, JsonObject> services) {
+		this.services = Collections.unmodifiableMap(services);
+
+		Map<String, List<String>> byHook = new LinkedHashMap<>();
+		JsonArray array = new JsonArray();
+		services.forEach((id, service) -> {
+			array.add(service);
+			JsonElement hook = service.get("hook");
+			if (hook != null && hook.isJsonPrimitive()) {
+				byHook.computeIfAbsent(hook.getAsString(), x -> new ArrayList<>()).add(id);
+			}
+		});
+		byHook.replaceAll((hook, ids) -> Collections.unmodifiableList(ids));
+		this.serviceIdsByHook = Collections.unmodifiableMap(byHook);
+
+		JsonObject body = new JsonObject();
+		body.add("services", array);
+		this.discovery = (new GsonBuilder().setPrettyPrinting().create().toJson(body) + "\n")
+				.getBytes(StandardCharsets.UTF_8);
+		this.discoveryGzip = gzip(discovery);
+		this.etag = etag(discovery);
+	}
+
+	/**
+	 * @param services the discovery descriptions of the services keyed by
+	 *                 service id, in discovery order
+	 * @return a snapshot of the services
+	 */
+	public static CdsServicesSnapshot of(Map<String, JsonObject> services) {
+		return services.isEmpty() ? EMPTY : new CdsServicesSnapshot(new LinkedHashMap<>(services));
+	}
+
+	/**
+	 * @return a modifiable copy of the services keyed by service id, used to
+	 *         build the next snapshot
+	 */
+	public Map<String, JsonObject> toMap() {
+		return new LinkedHashMap<>(services);
+	}
+
+	public int size() {
+		return services.size();
+	}
+
+	public boolean contains(String serviceId) {
+		return services.containsKey(serviceId);
+	}
+
+	public JsonObject getService(String serviceId) {
+		return services.get(serviceId);
+	}
+
+	/**
+	 * @return the service descriptions in discovery order
+	 */
+	public List<JsonObject> getServices() {
+		return Collections.unmodifiableList(new ArrayList<>(services.values()));
+	}
+
+	/**
+	 * @param hook the hook name, e.g. patient-view
+	 * @return the ids of the services invoked by the hook
+	 */
+	public List<String> getServiceIds(String hook) {
+		return serviceIdsByHook.getOrDefault(hook, Collections.emptyList());
+	}
+
+	/**
+	 * @return the UTF-8 encoded discovery response; callers must not modify it
+	 */
+	public byte[] getDiscovery() {
+		return discovery;
+	}
+
+	/**
+	 * @return the gzip-compressed discovery response; callers must not modify it
+	 */
+	public byte[] getDiscoveryGzip() {
+		return discoveryGzip;
+	}
+
+	/**
+	 * @return the strong ETag (including quotes) of the discovery response
+	 */
+	public String getETag() {
+		return etag;
+	}
+
+	/**
+	 * @param ifNoneMatch the value of an If-None-Match request header
+	 * @return true if the header matches the ETag of this snapshot
+	 */
+	public boolean matches(String ifNoneMatch) {
+		if (ifNoneMatch == null) {
+			return false;
+		}
+		for (String tag : ifNoneMatch.split(",")) {
+			String trimmed = tag.trim();
+			if (trimmed.equals("*") || trimmed.equals(etag) || trimmed.equals("W/" + etag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static byte[] gzip(byte[] bytes) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 32);
+		try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+			gzip.write(bytes);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return out.toByteArray();
+	}
+
+	private static String etag(byte[] bytes) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+			StringBuilder builder = new StringBuilder("\"");
+			for (int i = 0; i < 16; i++) {
+				builder.append(String.format("%02x", digest[i]));
+			}
+			return builder.append('"').toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
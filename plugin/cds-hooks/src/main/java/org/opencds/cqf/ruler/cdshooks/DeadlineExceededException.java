@@ -0,0 +1,23 @@
+package org.opencds.cqf.ruler.cdshooks;
+
+/**
+ * Thrown when the evaluation of a hook runs past its {@link EvaluationDeadline}.
+ */
+public class DeadlineExceededException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	private final String stage;
+
+	public DeadlineExceededException(String stage) {
+		super(String.format("CDS Hooks evaluation deadline exceeded during %s", stage));
+		this.stage = stage;
+	}
+
+	/**
+	 * @return the stage of the evaluation that was running when the deadline
+	 *         passed, e.g. prefetch or library
+	 */
+	public String getStage() {
+		return stage;
+	}
+}
@@ -0,0 +1,135 @@
+package org.opencds.cqf.ruler.cdshooks;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The point in time by which the evaluation of a hook has to be finished.
+ * <p>
+ * The deadline of the running evaluation is bound to its thread (see
+ * {@link #bind()}) so code that is not handed the deadline explicitly, e.g.
+ * local searches made by the CQL engine (see
+ * {@link EvaluationDeadlineInterceptor}) and requests to remote servers, can
+ * give up once it has passed. Work handed to other threads carries the
+ * deadline along through {@link #wrap(Callable)}.
+ */
+public final class EvaluationDeadline {
+	public static final EvaluationDeadline NONE = new EvaluationDeadline(0, false);
+
+	private static final ThreadLocal<EvaluationDeadline> current = new ThreadLocal<>();
+
+	private final long deadlineNanos;
+	private final boolean bounded;
+
+	private EvaluationDeadline(long deadlineNanos, boolean bounded) {
+		this.deadlineNanos = deadlineNanos;
+		this.bounded = bounded;
+	}
+
+	/**
+	 * @param timeoutMillis the time allowed from now, 0 or less for none
+	 * @return the deadline
+	 */
+	public static EvaluationDeadline after(long timeoutMillis) {
+		return timeoutMillis > 0
+				? new EvaluationDeadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis), true)
+				: NONE;
+	}
+
+	/**
+	 * @param timeoutMillis the time allowed from now, 0 or less for none
+	 * @return the earlier of this deadline and the given timeout
+	 */
+	public EvaluationDeadline within(long timeoutMillis) {
+		EvaluationDeadline other = after(timeoutMillis);
+		if (!other.bounded) {
+			return this;
+		}
+		return !bounded || other.deadlineNanos - deadlineNanos < 0 ? other : this;
+	}
+
+	/**
+	 * @return the deadline bound to the current thread, {@link #NONE} if there is
+	 *         none
+	 */
+	public static EvaluationDeadline current() {
+		EvaluationDeadline deadline = current.get();
+		return deadline != null ? deadline : NONE;
+	}
+
+	public boolean isBounded() {
+		return bounded;
+	}
+
+	public boolean isExpired() {
+		return bounded && deadlineNanos - System.nanoTime() <= 0;
+	}
+
+	/**
+	 * @return the milliseconds left, 0 once expired and {@link Long#MAX_VALUE} if
+	 *         unbounded
+	 */
+	public long remainingMillis() {
+		if (!bounded) {
+			return Long.MAX_VALUE;
+		}
+		return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
+	}
+
+	/**
+	 * @param timeoutMillis a timeout
+	 * @return the timeout, shortened to the time left if that is less
+	 */
+	public long limit(long timeoutMillis) {
+		return Math.min(timeoutMillis, remainingMillis());
+	}
+
+	/**
+	 * @param stage the stage of the evaluation, reported in the exception
+	 * @throws DeadlineExceededException if the deadline has passed
+	 */
+	public void check(String stage) {
+		if (isExpired()) {
+			throw new DeadlineExceededException(stage);
+		}
+	}
+
+	/**
+	 * Binds this deadline to the current thread until the returned scope is
+	 * closed, restoring the previous one afterwards.
+	 *
+	 * @return the scope of the binding
+	 */
+	public Scope bind() {
+		EvaluationDeadline previous = current.get();
+		current.set(this);
+		return () -> {
+			if (previous != null) {
+				current.set(previous);
+			} else {
+				current.remove();
+			}
+		};
+	}
+
+	/**
+	 * @param task a task to run on another thread
+	 * @return the task, running with this deadline bound
+	 */
+	public <T> Callable<T> wrap(Callable<T> task) {
+		if (!bounded) {
+			return task;
+		}
+		return () -> {
+			check("scheduled");
+			try (Scope scope = bind()) {
+				return task.call();
+			}
+		};
+	}
+
+	public interface Scope extends AutoCloseable {
+		@Override
+		void close();
+	}
+}
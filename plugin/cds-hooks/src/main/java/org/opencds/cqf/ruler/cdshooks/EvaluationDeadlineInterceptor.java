@@ -0,0 +1,26 @@
+package org.opencds.cqf.ruler.cdshooks;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+
+/**
+ * Stops local searches and reads made on behalf of a hook once its
+ * {@link EvaluationDeadline} has passed, so the CQL engine and
+ * {@code $apply} give up on the next data access instead of running to
+ * completion. Requests without a deadline bound to their thread are not
+ * affected.
+ */
+@Interceptor
+public class EvaluationDeadlineInterceptor {
+
+	@Hook(Pointcut.STORAGE_PRESEARCH_REGISTERED)
+	public void searchRegistered() {
+		EvaluationDeadline.current().check("search");
+	}
+
+	@Hook(Pointcut.STORAGE_PREACCESS_RESOURCES)
+	public void resourcesAccessed() {
+		EvaluationDeadline.current().check("read");
+	}
+}
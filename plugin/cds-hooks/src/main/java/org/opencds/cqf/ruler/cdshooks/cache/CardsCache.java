@@ -0,0 +1,263 @@
+package org.opencds.cqf.ruler.cdshooks.cache;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import org.opencds.cqf.ruler.cdshooks.CdsHooksMetrics;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksProperties;
+import org.opencds.cqf.ruler.cdshooks.response.Cards;
+
+/**
+ * Memoizes the cards of hook invocations so that repeated identical requests,
+ * e.g. patient-view fired again on a tab switch, are not evaluated again.
+ * <p>
+ * Entries live for at most {@code ttlMillis} and at most {@code maxEntries}
+ * are kept, least recently used first out. Entries evaluated against the
+ * local server are dropped when a resource in the patient's compartment
+ * changes (see {@link PatientCompartmentInvalidator}); entries for remote
+ * servers only expire. Concurrent requests for the same key are coalesced:
+ * one of them evaluates and the others wait for its result.
+ * <p>
+ * Cached cards are shared between responses and must not be modified. Partial
+ * cards of evaluations cut off by their deadline are not cached.
+ */
+public class CardsCache {
+	private final long ttlNanos;
+	private final int maxEntries;
+	private final LongSupplier clock;
+	private final CdsHooksMetrics metrics;
+
+	// access ordered, guarded by this
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	// keys of the local entries by patient id, guarded by this
+	private final Map<String, Set<Key>> localKeysByPatient = new HashMap<>();
+	private final Map<Key, Flight> inFlight = new ConcurrentHashMap<>();
+
+	public CardsCache(CdsHooksProperties.Cache properties, CdsHooksMetrics metrics) {
+		this(properties, metrics, System::nanoTime);
+	}
+
+	public CardsCache(CdsHooksProperties.Cache properties, CdsHooksMetrics metrics, LongSupplier clock) {
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(properties.getTtlMillis());
+		this.maxEntries = properties.getMaxEntries();
+		this.clock = clock;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Identifies a hook invocation. Two invocations with equal keys produce the
+	 * same cards as long as the data they read does not change.
+	 */
+	public static final class Key {
+		private final String serviceId;
+		private final String serviceVersion;
+		private final String activityDefinitionVersions;
+		private final String hook;
+		private final String patientId;
+		private final String fhirServer;
+		private final String subject;
+		private final String contextHash;
+		private final String prefetchHash;
+
+		/**
+		 * @param serviceId                  the id of the service
+		 * @param serviceVersion             the version of the service's
+		 *                                   PlanDefinition and of the resources
+		 *                                   it was resolved from
+		 * @param activityDefinitionVersions the ids and versions of the
+		 *                                   ActivityDefinitions the service
+		 *                                   applies
+		 * @param hook                       the hook name
+		 * @param patientId                  the patient in context
+		 * @param fhirServer                 the remote fhirServer of the hook,
+		 *                                   null for the local server
+		 * @param subject                    the authorization subject, may be
+		 *                                   null
+		 * @param contextHash                a hash of the hook context,
+		 *                                   including draft orders
+		 * @param prefetchHash               a hash of the prefetch, may be null
+		 */
+		public Key(String serviceId, String serviceVersion, String activityDefinitionVersions, String hook,
+				String patientId, String fhirServer, String subject, String contextHash, String prefetchHash) {
+			this.serviceId = serviceId;
+			this.serviceVersion = serviceVersion;
+			this.activityDefinitionVersions = activityDefinitionVersions;
+			this.hook = hook;
+			this.patientId = patientId;
+			this.fhirServer = fhirServer;
+			this.subject = subject;
+			this.contextHash = contextHash;
+			this.prefetchHash = prefetchHash;
+		}
+
+		public String getPatientId() {
+			return patientId;
+		}
+
+		public boolean isLocal() {
+			return fhirServer == null;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) other;
+			return Objects.equals(serviceId, key.serviceId) && Objects.equals(serviceVersion, key.serviceVersion)
+					&& Objects.equals(activityDefinitionVersions, key.activityDefinitionVersions)
+					&& Objects.equals(hook, key.hook) && Objects.equals(patientId, key.patientId)
+					&& Objects.equals(fhirServer, key.fhirServer) && Objects.equals(subject, key.subject)
+					&& Objects.equals(contextHash, key.contextHash) && Objects.equals(prefetchHash, key.prefetchHash);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(serviceId, serviceVersion, activityDefinitionVersions, hook, patientId, fhirServer,
+					subject, contextHash, prefetchHash);
+		}
+	}
+
+	private static final class Entry {
+		private final Cards cards;
+		private final long expiresAt;
+
+		private Entry(Cards cards, long expiresAt) {
+			this.cards = cards;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private static final class Flight {
+		private final CompletableFuture<Cards> result = new CompletableFuture<>();
+		// cleared when the patient's data changes while evaluating
+		private volatile boolean cacheable = true;
+	}
+
+	/**
+	 * Returns the cached cards for the key, or evaluates them. If an evaluation
+	 * for the same key is already running, waits for its result instead.
+	 *
+	 * @param key        the key of the invocation
+	 * @param evaluation evaluates the cards
+	 * @return the cards
+	 */
+	public Cards get(Key key, Supplier<Cards> evaluation) {
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null) {
+				if (entry.expiresAt - clock.getAsLong() > 0) {
+					metrics.recordCardsCache(CdsHooksMetrics.CACHE_HIT);
+					return entry.cards;
+				}
+				remove(key);
+			}
+		}
+
+		Flight flight = new Flight();
+		Flight running = inFlight.putIfAbsent(key, flight);
+		if (running != null) {
+			metrics.recordCardsCache(CdsHooksMetrics.CACHE_COALESCED);
+			return await(running);
+		}
+
+		metrics.recordCardsCache(CdsHooksMetrics.CACHE_MISS);
+		try {
+			Cards cards = evaluation.get();
+			if (flight.cacheable && !cards.partial) {
+				put(key, cards);
+			}
+			flight.result.complete(cards);
+			return cards;
+		} catch (RuntimeException | Error e) {
+			flight.result.completeExceptionally(e);
+			throw e;
+		} finally {
+			inFlight.remove(key, flight);
+		}
+	}
+
+	private static Cards await(Flight flight) {
+		try {
+			return flight.result.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	private synchronized void put(Key key, Cards cards) {
+		remove(key);
+		entries.put(key, new Entry(cards, clock.getAsLong() + ttlNanos));
+		if (key.isLocal()) {
+			localKeysByPatient.computeIfAbsent(key.getPatientId(), x -> new HashSet<>()).add(key);
+		}
+		Iterator<Key> eldest = entries.keySet().iterator();
+		while (entries.size() > maxEntries && eldest.hasNext()) {
+			Key evicted = eldest.next();
+			eldest.remove();
+			unindex(evicted);
+		}
+	}
+
+	private void remove(Key key) {
+		if (entries.remove(key) != null) {
+			unindex(key);
+		}
+	}
+
+	private void unindex(Key key) {
+		if (key.isLocal()) {
+			Set<Key> keys = localKeysByPatient.get(key.getPatientId());
+			if (keys != null && keys.remove(key) && keys.isEmpty()) {
+				localKeysByPatient.remove(key.getPatientId());
+			}
+		}
+	}
+
+	/**
+	 * Drops the entries evaluated against the local server for a patient and
+	 * keeps running evaluations for the patient from being cached.
+	 *
+	 * @param patientId the id of the patient
+	 */
+	public void invalidatePatient(String patientId) {
+		inFlight.forEach((key, flight) -> {
+			if (key.isLocal() && Objects.equals(patientId, key.getPatientId())) {
+				flight.cacheable = false;
+			}
+		});
+		synchronized (this) {
+			Set<Key> keys = localKeysByPatient.remove(patientId);
+			if (keys != null) {
+				keys.forEach(entries::remove);
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		inFlight.values().forEach(flight -> flight.cacheable = false);
+		entries.clear();
+		localKeysByPatient.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+}
@@ -0,0 +1,92 @@
+package org.opencds.cqf.ruler.cdshooks.cache;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+
+/**
+ * Drops the cached cards of a patient whenever a resource in the patient's
+ * compartment is created, updated or deleted on the local server.
+ * <p>
+ * This is a storage interceptor rather than an
+ * {@link ca.uhn.fhir.jpa.cache.IResourceChangeListener}: change listeners
+ * rescan the versions of every resource of the types they watch on each
+ * refresh, which is too expensive for the clinical resource types in the
+ * patient compartment, and only report ids, while the interceptor sees each
+ * change as it is written. Entries are dropped before the change is committed
+ * and again once its transaction completes, so an evaluation that read the
+ * data in between is not cached either.
+ */
+@Interceptor
+public class PatientCompartmentInvalidator {
+	private final CardsCache cardsCache;
+	private final FhirContext fhirContext;
+
+	public PatientCompartmentInvalidator(CardsCache cardsCache, FhirContext fhirContext) {
+		this.cardsCache = cardsCache;
+		this.fhirContext = fhirContext;
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+	public void resourceCreated(IBaseResource resource) {
+		invalidate(patientIds(resource));
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+	public void resourceUpdated(IBaseResource previous, IBaseResource updated) {
+		Set<String> patientIds = patientIds(previous);
+		patientIds.addAll(patientIds(updated));
+		invalidate(patientIds);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+	public void resourceDeleted(IBaseResource resource) {
+		invalidate(patientIds(resource));
+	}
+
+	private void invalidate(Set<String> patientIds) {
+		if (patientIds.isEmpty()) {
+			return;
+		}
+		patientIds.forEach(cardsCache::invalidatePatient);
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCompletion(int status) {
+					patientIds.forEach(cardsCache::invalidatePatient);
+				}
+			});
+		}
+	}
+
+	/**
+	 * @param resource a resource
+	 * @return the ids of the patients whose compartment contains the resource
+	 */
+	public Set<String> patientIds(IBaseResource resource) {
+		Set<String> patientIds = new HashSet<>();
+		if (resource == null) {
+			return patientIds;
+		}
+		if ("Patient".equals(fhirContext.getResourceType(resource)) && resource.getIdElement().hasIdPart()) {
+			patientIds.add(resource.getIdElement().getIdPart());
+		}
+		for (IIdType owner : fhirContext.newTerser().getCompartmentOwnersForResource("Patient", resource,
+				Collections.emptyList())) {
+			if (owner.hasIdPart()) {
+				patientIds.add(owner.getIdPart());
+			}
+		}
+		return patientIds;
+	}
+}
@@ -0,0 +1,250 @@
+package org.opencds.cqf.ruler.cdshooks.capture;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.opencds.cqf.ruler.cdshooks.CdsHooksProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+
+/**
+ * Writes hook requests, with the status and duration of their responses, to
+ * rotating NDJSON files so that real traffic can be replayed against the
+ * server later (see {@code org.opencds.cqf.ruler.test.replay.HookReplay}).
+ * <p>
+ * Each line holds one request:
+ * <pre>
+ * {"timestamp":"...","service":"...","hook":"...","status":200,"durationMillis":12.5,"request":{...}}
+ * </pre>
+ * A new file is started once the current one reaches {@code maxFileBytes} and
+ * only the newest {@code maxFiles} are kept. The {@code fhirAuthorization} of a
+ * request is never written. When pseudonymization is on, the
+ * patient in context is replaced throughout the request by a salted hash, as
+ * are the identifier values of Patient resources, so a captured patient keeps
+ * the same pseudonym across requests.
+ * <p>
+ * Even pseudonymized, captured requests hold clinical data; capture is meant
+ * for test and staging servers and must never be enabled in production.
+ */
+public class HookCapture implements AutoCloseable {
+	private static final Logger logger = LoggerFactory.getLogger(HookCapture.class);
+	private static final ObjectMapper mapper = new ObjectMapper();
+	private static final DateTimeFormatter FILE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS")
+			.withZone(ZoneOffset.UTC);
+	static final String PREFIX = "hooks-";
+	static final String SUFFIX = ".ndjson";
+
+	private final CdsHooksProperties.Capture properties;
+	private final Path directory;
+	// guarded by this
+	private OutputStream out;
+	private long written;
+	private int sequence;
+
+	public HookCapture(CdsHooksProperties.Capture properties) {
+		this.properties = properties;
+		this.directory = Paths.get(properties.getDirectory());
+		if (properties.isEnabled()) {
+			logger.warn("cds-hooks requests are captured to {}; capture must never be enabled in production",
+					directory.toAbsolutePath());
+		}
+	}
+
+	/**
+	 * @return true if the request being started should be captured
+	 */
+	public boolean sample() {
+		return properties.isEnabled() && ThreadLocalRandom.current().nextDouble() < properties.getSampleRate();
+	}
+
+	/**
+	 * Appends a request to the capture. Failures are logged, never thrown, so
+	 * capturing can not fail a hook.
+	 *
+	 * @param service       the id of the service invoked
+	 * @param hook          the hook name
+	 * @param request       the request body as sent
+	 * @param status        the status of the response
+	 * @param durationNanos the time taken to answer the request
+	 */
+	public void record(String service, String hook, byte[] request, int status, long durationNanos) {
+		try {
+			ObjectNode line = mapper.createObjectNode();
+			line.put("timestamp", Instant.now().toString());
+			line.put("service", service);
+			line.put("hook", hook);
+			line.put("status", status);
+			line.put("durationMillis", durationNanos / 1_000_000.0);
+			JsonNode body = mapper.readTree(request);
+			if (body.isObject()) {
+				// the access token of the EHR is never written
+				((ObjectNode) body).remove("fhirAuthorization");
+			}
+			if (properties.isPseudonymize()) {
+				pseudonymize(body, properties.getPseudonymSalt());
+			}
+			line.set("request", body);
+			write(mapper.writeValueAsBytes(line));
+		} catch (IOException | RuntimeException e) {
+			logger.warn("Failed to capture cds-hooks request for {}: {}", service, e.toString());
+		}
+	}
+
+	private synchronized void write(byte[] line) throws IOException {
+		if (out == null || written + line.length + 1 > properties.getMaxFileBytes()) {
+			rotate();
+		}
+		out.write(line);
+		out.write('\n');
+		out.flush();
+		written += line.length + 1;
+	}
+
+	private void rotate() throws IOException {
+		if (out != null) {
+			out.close();
+			out = null;
+		}
+		Files.createDirectories(directory);
+		Path file = directory.resolve(String.format("%s%s-%03d%s", PREFIX, FILE_TIME.format(Instant.now()),
+				sequence++ % 1000, SUFFIX));
+		out = new BufferedOutputStream(Files.newOutputStream(file));
+		written = 0;
+
+		List<Path> files = captureFiles(directory);
+		for (int i = 0; i < files.size() - properties.getMaxFiles(); i++) {
+			Files.deleteIfExists(files.get(i));
+		}
+	}
+
+	/**
+	 * @param directory the capture directory
+	 * @return the capture files in the directory, oldest first
+	 * @throws IOException if the directory can not be listed
+	 */
+	public static List<Path> captureFiles(Path directory) throws IOException {
+		if (!Files.isDirectory(directory)) {
+			return new ArrayList<>();
+		}
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.filter(file -> {
+				String name = file.getFileName().toString();
+				return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+			}).sorted().collect(Collectors.toList());
+		}
+	}
+
+	/**
+	 * Replaces the patient in context of a hook request with a pseudonym,
+	 * wherever its id appears, and the identifier values of the Patient
+	 * resources in the request with theirs.
+	 *
+	 * @param request the parsed request, changed in place
+	 * @param salt    the salt of the hash, may be null
+	 */
+	public static void pseudonymize(JsonNode request, String salt) {
+		JsonNode patientId = request.path("context").path("patientId");
+		String id = patientId.isTextual() ? patientId.asText().replaceFirst("^Patient/", "") : null;
+		replace(request, id, id != null ? pseudonym(id, salt) : null, salt);
+	}
+
+	private static void replace(JsonNode node, String id, String pseudonym, String salt) {
+		if (node.isObject()) {
+			ObjectNode object = (ObjectNode) node;
+			boolean patient = "Patient".equals(object.path("resourceType").asText(null));
+			Iterator<Map.Entry<String, JsonNode>> fields = object.fields();
+			while (fields.hasNext()) {
+				Map.Entry<String, JsonNode> field = fields.next();
+				JsonNode replaced = replaceText(field.getValue(), id, pseudonym);
+				if (replaced != null) {
+					field.setValue(replaced);
+				} else {
+					replace(field.getValue(), id, pseudonym, salt);
+				}
+			}
+			if (patient && object.path("identifier").isArray()) {
+				for (JsonNode identifier : object.get("identifier")) {
+					if (identifier.path("value").isTextual()) {
+						((ObjectNode) identifier).put("value", pseudonym(identifier.get("value").asText(), salt));
+					}
+				}
+			}
+		} else if (node.isArray()) {
+			ArrayNode array = (ArrayNode) node;
+			for (int i = 0; i < array.size(); i++) {
+				JsonNode replaced = replaceText(array.get(i), id, pseudonym);
+				if (replaced != null) {
+					array.set(i, replaced);
+				} else {
+					replace(array.get(i), id, pseudonym, salt);
+				}
+			}
+		}
+	}
+
+	private static JsonNode replaceText(JsonNode node, String id, String pseudonym) {
+		if (id == null || !node.isTextual()) {
+			return null;
+		}
+		String text = node.asText();
+		if (text.equals(id)) {
+			return TextNode.valueOf(pseudonym);
+		}
+		if (text.endsWith("Patient/" + id)) {
+			return TextNode.valueOf(text.substring(0, text.length() - id.length()) + pseudonym);
+		}
+		return null;
+	}
+
+	static String pseudonym(String value, String salt) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			if (salt != null) {
+				digest.update(salt.getBytes(StandardCharsets.UTF_8));
+			}
+			byte[] hash = digest.digest(value.getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder("p-");
+			for (int i = 0; i < 12; i++) {
+				hex.append(String.format("%02x", hash[i]));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				logger.warn("Failed to close cds-hooks capture: {}", e.toString());
+			}
+			out = null;
+		}
+	}
+}
@@ -1,14 +1,21 @@
 package org.opencds.cqf.ruler.cdshooks.discovery;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CanonicalType;
 import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.DataRequirement;
 import org.hl7.fhir.r4.model.Library;
 import org.hl7.fhir.r4.model.PlanDefinition;
+import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.ValueSet;
+import org.opencds.cqf.fhir.utility.Canonicals;
 import org.opencds.cqf.ruler.behavior.DaoRegistryUser;
 import org.opencds.cqf.ruler.utility.Searches;
 
@@ -65,12 +72,19 @@ public class DiscoveryResolutionR4 implements DaoRegistryUser {
 	}
 
 	public Library resolvePrimaryLibrary(PlanDefinition planDefinition) {
+		return resolvePrimaryLibrary(planDefinition, null);
+	}
+
+	private Library resolvePrimaryLibrary(PlanDefinition planDefinition, Dependencies dependencies) {
 		// Assuming 1 library
 		// TODO: enhance to handle multiple libraries - need a way to identify primary
 		// library
 		Library library = null;
 		if (planDefinition.hasLibrary() && !planDefinition.getLibrary().isEmpty()) {
-			library = search(Library.class, Searches.byCanonical(planDefinition.getLibrary().get(0))).single();
+			CanonicalType canonical = planDefinition.getLibrary().get(0);
+			addCanonical(dependencies, canonical.getValue());
+			library = search(Library.class, Searches.byCanonical(canonical)).single();
+			addDependency(dependencies, library);
 		}
 		return library;
 	}
@@ -93,34 +107,51 @@ public class DiscoveryResolutionR4 implements DaoRegistryUser {
 	}
 
 	public List<String> resolveValueSetCodes(String valueSetId) {
+		return resolveValueSetCodes(valueSetId, null);
+	}
+
+	private List<String> resolveValueSetCodes(String valueSetId, Dependencies dependencies) {
+		addCanonical(dependencies, valueSetId);
 		ValueSet valueSet = search(ValueSet.class, Searches.byCanonical(valueSetId)).single();
+		addDependency(dependencies, valueSet);
 		List<String> result = new ArrayList<>();
 		StringBuilder codes = new StringBuilder();
+		for (String codeToken : getCodeTokens(valueSet)) {
+			codes = getCodesStringBuilder(result, codes, codeToken);
+		}
+		result.add(codes.toString());
+		return result;
+	}
+
+	/**
+	 * @param valueSet the ValueSet
+	 * @return the codes of the expansion of the ValueSet, or of the concepts it
+	 *         includes if it is not expanded, as system|code search tokens
+	 */
+	public List<String> getCodeTokens(ValueSet valueSet) {
+		List<String> tokens = new ArrayList<>();
 		if (valueSet.hasExpansion() && valueSet.getExpansion().hasContains()) {
 			for (ValueSet.ValueSetExpansionContainsComponent contains : valueSet.getExpansion().getContains()) {
-				String system = contains.getSystem();
-				String code = contains.getCode();
-
-				codes = getCodesStringBuilder(result, codes, system, code);
+				tokens.add(contains.getSystem() + "|" + contains.getCode());
 			}
 		} else if (valueSet.hasCompose() && valueSet.getCompose().hasInclude()) {
 			for (ValueSet.ConceptSetComponent concepts : valueSet.getCompose().getInclude()) {
 				String system = concepts.getSystem();
 				if (concepts.hasConcept()) {
 					for (ValueSet.ConceptReferenceComponent concept : concepts.getConcept()) {
-						String code = concept.getCode();
-
-						codes = getCodesStringBuilder(result, codes, system, code);
+						tokens.add(system + "|" + concept.getCode());
 					}
 				}
 			}
 		}
-		result.add(codes.toString());
-		return result;
+		return tokens;
 	}
 
 	private StringBuilder getCodesStringBuilder(List<String> ret, StringBuilder codes, String system, String code) {
-		String codeToken = system + "|" + code;
+		return getCodesStringBuilder(ret, codes, system + "|" + code);
+	}
+
+	private StringBuilder getCodesStringBuilder(List<String> ret, StringBuilder codes, String codeToken) {
 		int postAppendLength = codes.length() + codeToken.length();
 
 		if (codes.length() > 0 && postAppendLength < this.maxUriLength) {
@@ -134,6 +165,10 @@ public class DiscoveryResolutionR4 implements DaoRegistryUser {
 	}
 
 	public List<String> createRequestUrl(DataRequirement dataRequirement) {
+		return createRequestUrl(dataRequirement, null);
+	}
+
+	private List<String> createRequestUrl(DataRequirement dataRequirement, Dependencies dependencies) {
 		if (dataRequirement.getType() == null) {
 			return null;
 		}
@@ -150,7 +185,7 @@ public class DiscoveryResolutionR4 implements DaoRegistryUser {
 					continue;
 				String path = mapCodePathToSearchParam(dataRequirement.getType(), codeFilterComponent.getPath());
 				if (codeFilterComponent.hasValueSetElement()) {
-					for (String codes : resolveValueSetCodes(codeFilterComponent.getValueSet())) {
+					for (String codes : resolveValueSetCodes(codeFilterComponent.getValueSet(), dependencies)) {
 						ret.add(patientRelatedResource + "&" + path + "=" + codes);
 					}
 				} else if (codeFilterComponent.hasCode()) {
@@ -175,17 +210,21 @@ public class DiscoveryResolutionR4 implements DaoRegistryUser {
 	}
 
 	public PrefetchUrlList getPrefetchUrlList(PlanDefinition planDefinition) {
+		return getPrefetchUrlList(planDefinition, null);
+	}
+
+	private PrefetchUrlList getPrefetchUrlList(PlanDefinition planDefinition, Dependencies dependencies) {
 		PrefetchUrlList prefetchList = new PrefetchUrlList();
 		if (planDefinition == null)
 			return null;
 		if (!isEca(planDefinition))
 			return null;
-		Library library = resolvePrimaryLibrary(planDefinition);
+		Library library = resolvePrimaryLibrary(planDefinition, dependencies);
 		// TODO: resolve data requirements
 		if (library == null || !library.hasDataRequirement())
 			return null;
 		for (DataRequirement dataRequirement : library.getDataRequirement()) {
-			List<String> requestUrls = createRequestUrl(dataRequirement);
+			List<String> requestUrls = createRequestUrl(dataRequirement, dependencies);
 			if (requestUrls != null) {
 				prefetchList.addAll(requestUrls);
 			}
@@ -208,7 +247,41 @@ public class DiscoveryResolutionR4 implements DaoRegistryUser {
 		return new DiscoveryElementR4(planDefinition, getPrefetchUrlList(planDefinition)).getAsJson();
 	}
 
-	private String mapCodePathToSearchParam(String dataType, String path) {
+	/**
+	 * Resolves the discovery description of a service along with the versions and
+	 * canonical urls of the Library and ValueSet resources the description was
+	 * derived from.
+	 *
+	 * @param planDefinition the PlanDefinition of the service
+	 * @return the resolved service
+	 */
+	public ResolvedService resolveServiceWithDependencies(PlanDefinition planDefinition) {
+		Dependencies dependencies = new Dependencies();
+		JsonObject service = new DiscoveryElementR4(planDefinition, getPrefetchUrlList(planDefinition, dependencies))
+				.getAsJson();
+		return new ResolvedService(service, planDefinition.getMeta().getVersionId(), dependencies.versions,
+				dependencies.canonicals);
+	}
+
+	private void addDependency(Dependencies dependencies, Resource resource) {
+		if (dependencies != null && resource != null) {
+			dependencies.versions.put(resource.getIdElement().toUnqualifiedVersionless().getValue(),
+					resource.getMeta().getVersionId());
+		}
+	}
+
+	private void addCanonical(Dependencies dependencies, String canonical) {
+		if (dependencies != null && canonical != null) {
+			dependencies.canonicals.add(Canonicals.getUrl(canonical));
+		}
+	}
+
+	private static class Dependencies {
+		private final Map<String, String> versions = new LinkedHashMap<>();
+		private final Set<String> canonicals = new LinkedHashSet<>();
+	}
+
+	public String mapCodePathToSearchParam(String dataType, String path) {
 		switch (dataType) {
 			case "MedicationAdministration":
 				if (path.equals("medication"))
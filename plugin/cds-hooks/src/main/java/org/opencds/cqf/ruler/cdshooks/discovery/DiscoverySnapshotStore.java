@@ -0,0 +1,119 @@
+package org.opencds.cqf.ruler.cdshooks.discovery;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Persists resolved CDS services to a local file so that discovery can be
+ * answered immediately after a restart. Each service is stored with the
+ * versions of the PlanDefinition, Library and ValueSet resources it was
+ * resolved from, which are used to decide whether it is still current.
+ */
+public class DiscoverySnapshotStore {
+	private static final Logger logger = LoggerFactory.getLogger(DiscoverySnapshotStore.class);
+	private static final int FORMAT_VERSION = 2;
+
+	private final Path path;
+	private final Gson gson = new Gson();
+
+	public DiscoverySnapshotStore(Path path) {
+		this.path = path;
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * @return the persisted services keyed by service id, or an empty map if
+	 *         there is no usable snapshot
+	 */
+	public Map<String, ResolvedService> load() {
+		if (!Files.isRegularFile(path)) {
+			return Collections.emptyMap();
+		}
+		try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+			JsonObject snapshot = gson.fromJson(reader, JsonObject.class);
+			if (snapshot == null || !snapshot.has("formatVersion")
+					|| snapshot.get("formatVersion").getAsInt() != FORMAT_VERSION) {
+				return Collections.emptyMap();
+			}
+			Map<String, ResolvedService> services = new LinkedHashMap<>();
+			for (JsonElement element : snapshot.getAsJsonArray("services")) {
+				JsonObject entry = element.getAsJsonObject();
+				Map<String, String> dependencies = new LinkedHashMap<>();
+				entry.getAsJsonObject("dependencies").entrySet().forEach(
+						dependency -> dependencies.put(dependency.getKey(),
+								dependency.getValue().isJsonNull() ? null : dependency.getValue().getAsString()));
+				Set<String> canonicals = new LinkedHashSet<>();
+				entry.getAsJsonArray("canonicals").forEach(canonical -> canonicals.add(canonical.getAsString()));
+				ResolvedService service = new ResolvedService(entry.getAsJsonObject("service"),
+						entry.has("version") && !entry.get("version").isJsonNull()
+								? entry.get("version").getAsString()
+								: null,
+						dependencies, canonicals);
+				services.put(service.getServiceId(), service);
+			}
+			return services;
+		} catch (Exception e) {
+			logger.warn("Ignoring unreadable CDS services snapshot {}: {}", path, e.getMessage());
+			return Collections.emptyMap();
+		}
+	}
+
+	/**
+	 * Replaces the persisted snapshot. Failures are logged, the snapshot is only
+	 * an optimization.
+	 *
+	 * @param services the services to persist
+	 */
+	public void save(Collection<ResolvedService> services) {
+		JsonArray array = new JsonArray();
+		for (ResolvedService service : services) {
+			JsonObject entry = new JsonObject();
+			entry.addProperty("version", service.getPlanDefinitionVersion());
+			JsonObject dependencies = new JsonObject();
+			service.getDependencies().forEach(dependencies::addProperty);
+			entry.add("dependencies", dependencies);
+			JsonArray canonicals = new JsonArray();
+			service.getCanonicals().forEach(canonicals::add);
+			entry.add("canonicals", canonicals);
+			entry.add("service", service.getService());
+			array.add(entry);
+		}
+		JsonObject snapshot = new JsonObject();
+		snapshot.addProperty("formatVersion", FORMAT_VERSION);
+		snapshot.add("services", array);
+
+		try {
+			Path parent = path.toAbsolutePath().getParent();
+			Files.createDirectories(parent);
+			Path temp = Files.createTempFile(parent, path.getFileName().toString(), ".tmp");
+			try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+				gson.toJson(snapshot, writer);
+			}
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			logger.warn("Failed to persist CDS services snapshot {}: {}", path, e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package org.opencds.cqf.ruler.cdshooks.discovery;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.gson.JsonObject;
+
+/**
+ * The discovery description of a CDS service together with the versions of
+ * the resources it was resolved from: the PlanDefinition itself and the
+ * Library and ValueSet resources (keyed by versionless resource id, e.g.
+ * {@code ValueSet/opioids}) read while building its prefetch templates. The
+ * canonical urls used to look up those resources are kept as well, so a new
+ * resource matching one of them is recognized as a dependency.
+ */
+public final class ResolvedService {
+	private final JsonObject service;
+	private final String planDefinitionVersion;
+	private final Map<String, String> dependencies;
+	private final Set<String> canonicals;
+
+	public ResolvedService(JsonObject service, String planDefinitionVersion, Map<String, String> dependencies) {
+		this(service, planDefinitionVersion, dependencies, Collections.emptySet());
+	}
+
+	public ResolvedService(JsonObject service, String planDefinitionVersion, Map<String, String> dependencies,
+			Set<String> canonicals) {
+		this.service = service;
+		this.planDefinitionVersion = planDefinitionVersion;
+		this.dependencies = Collections.unmodifiableMap(new LinkedHashMap<>(dependencies));
+		this.canonicals = Collections.unmodifiableSet(new LinkedHashSet<>(canonicals));
+	}
+
+	public String getServiceId() {
+		return service.get("id").getAsString();
+	}
+
+	/**
+	 * @return the discovery description; must not be modified
+	 */
+	public JsonObject getService() {
+		return service;
+	}
+
+	public String getPlanDefinitionVersion() {
+		return planDefinitionVersion;
+	}
+
+	/**
+	 * @return the version of each resource the service was resolved from, keyed by
+	 *         versionless resource id
+	 */
+	public Map<String, String> getDependencies() {
+		return dependencies;
+	}
+
+	/**
+	 * @return the versionless canonical urls of the Library and ValueSet
+	 *         resources the service was resolved from
+	 */
+	public Set<String> getCanonicals() {
+		return canonicals;
+	}
+}
@@ -0,0 +1,264 @@
+package org.opencds.cqf.ruler.cdshooks.prefetch;
+
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Resource;
+import org.opencds.cqf.ruler.behavior.DaoRegistryUser;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksMetrics;
+import org.opencds.cqf.ruler.cdshooks.DeadlineExceededException;
+import org.opencds.cqf.ruler.cdshooks.EvaluationDeadline;
+import org.opencds.cqf.ruler.cdshooks.remote.RemoteDataRetriever;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.searchparam.MatchUrlService;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+
+/**
+ * Fulfills the prefetch templates of a service on the server side, for hook
+ * requests that carry no (or only a partial) prefetch.
+ * <p>
+ * The templates of the service's discovery description are filled in with the
+ * hook context and run in parallel before evaluation, either against the
+ * local DAOs or, when the hook names a remote {@code fhirServer}, through the
+ * {@link RemoteDataRetriever}. Templates the client already fulfilled and
+ * templates referring to context values that are not available are skipped; a
+ * template that fails is left unfulfilled and the engine retrieves its data on
+ * demand. The latency of every template is recorded through
+ * {@link CdsHooksMetrics}.
+ */
+public class PrefetchFulfiller implements DaoRegistryUser, AutoCloseable {
+	private static final Logger logger = LoggerFactory.getLogger(PrefetchFulfiller.class);
+	private static final Pattern TOKEN = Pattern.compile("\\{\\{\\s*([^}\\s]+)\\s*}}");
+
+	private final DaoRegistry daoRegistry;
+	private final MatchUrlService matchUrlService;
+	private final RemoteDataRetriever remoteDataRetriever;
+	private final CdsHooksMetrics metrics;
+	private final ExecutorService executor;
+
+	public PrefetchFulfiller(DaoRegistry daoRegistry, MatchUrlService matchUrlService,
+			RemoteDataRetriever remoteDataRetriever, CdsHooksMetrics metrics, int threads) {
+		this.daoRegistry = daoRegistry;
+		this.matchUrlService = matchUrlService;
+		this.remoteDataRetriever = remoteDataRetriever;
+		this.metrics = metrics;
+		this.executor = Executors.newFixedThreadPool(threads, new FulfillmentThreadFactory());
+	}
+
+	@Override
+	public DaoRegistry getDaoRegistry() {
+		return daoRegistry;
+	}
+
+	/**
+	 * @param serviceId     the id of the service
+	 * @param templates     the prefetch templates of the service keyed by
+	 *                      prefetch key
+	 * @param provided      the prefetch sent by the client, null entries are
+	 *                      fulfilled again
+	 * @param context       the hook context values keyed by template token, e.g.
+	 *                      {@code context.patientId}
+	 * @param remoteClient  the client for the remote fhirServer of the hook, or
+	 *                      null to use the local DAOs
+	 * @return the fulfilled templates keyed by prefetch key
+	 */
+	public Map<String, Resource> fulfill(String serviceId, JsonObject templates, Map<String, Resource> provided,
+			Map<String, String> context, IGenericClient remoteClient) {
+		if (templates == null) {
+			return Collections.emptyMap();
+		}
+		String source = remoteClient != null ? "remote" : "local";
+		EvaluationDeadline deadline = EvaluationDeadline.current();
+		Map<String, Future<Resource>> futures = new LinkedHashMap<>();
+		for (Map.Entry<String, JsonElement> template : templates.entrySet()) {
+			String key = template.getKey();
+			if (provided != null && provided.get(key) != null) {
+				continue;
+			}
+			String url = fill(template.getValue().getAsString(), context);
+			if (url == null) {
+				logger.debug("Skipping prefetch {} of {}, the hook context does not provide its tokens", key,
+						serviceId);
+				continue;
+			}
+			futures.put(key, executor.submit(deadline.wrap(() -> {
+				long start = System.nanoTime();
+				String outcome = "error";
+				try {
+					Resource resource = remoteClient != null ? fetchRemote(remoteClient, url) : fetchLocal(url);
+					outcome = "success";
+					return resource;
+				} finally {
+					metrics.recordPrefetch(serviceId, key, source, outcome, System.nanoTime() - start);
+				}
+			})));
+		}
+
+		Map<String, Resource> fulfilled = new LinkedHashMap<>();
+		try {
+			for (Map.Entry<String, Future<Resource>> future : futures.entrySet()) {
+				try {
+					fulfilled.put(future.getKey(), deadline.isBounded()
+							? future.getValue().get(deadline.remainingMillis(), TimeUnit.MILLISECONDS)
+							: future.getValue().get());
+				} catch (ExecutionException e) {
+					logger.warn("Failed to fulfill prefetch {} of {}: {}", future.getKey(), serviceId,
+							e.getCause() != null ? e.getCause().getMessage() : e.getMessage());
+				}
+			}
+		} catch (TimeoutException e) {
+			throw new DeadlineExceededException("prefetch");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while fulfilling prefetch", e);
+		} finally {
+			futures.values().forEach(future -> future.cancel(true));
+		}
+		return fulfilled;
+	}
+
+	/**
+	 * Each token value is encoded once as it is inserted: the FHIR search
+	 * separators {@code ,}, {@code |} and {@code $} are escaped with a
+	 * backslash and the result is percent-encoded, so a value can not add
+	 * parameters, alternatives or tokens to the search. The patient id may be
+	 * given with or without its {@code Patient/} prefix.
+	 *
+	 * @param template the prefetch template
+	 * @param context  the values of the template tokens
+	 * @return the template with its tokens replaced, or null if a token has no
+	 *         value
+	 */
+	public static String fill(String template, Map<String, String> context) {
+		Matcher matcher = TOKEN.matcher(template);
+		StringBuilder url = new StringBuilder();
+		while (matcher.find()) {
+			String value = context.get(matcher.group(1));
+			if (value == null) {
+				return null;
+			}
+			if (matcher.group(1).equals("context.patientId")) {
+				// templates reference the patient as Patient/{{context.patientId}}
+				value = value.replaceFirst("^Patient/", "");
+			}
+			matcher.appendReplacement(url, Matcher.quoteReplacement(encode(value)));
+		}
+		matcher.appendTail(url);
+		// discovery renders Patient templates as _id=Patient/{{context.patientId}}
+		return url.toString().replace("_id=Patient/", "_id=");
+	}
+
+	/**
+	 * Splits a filled template into a search. A parameter holding system|code
+	 * tokens is taken as the code filter of the search so that it can be split
+	 * by the retriever. The url is split on the separators of the template
+	 * before the values are decoded, so separators inside token values are
+	 * kept as part of the value; the retriever encodes the values again when
+	 * it builds the search urls.
+	 *
+	 * @param url the filled template, either Type?query or Type/id
+	 * @return the search
+	 */
+	public static RemoteDataRetriever.Query toQuery(String url) {
+		int separator = url.indexOf('?');
+		if (separator < 0) {
+			IdType id = new IdType(url);
+			return new RemoteDataRetriever.Query(id.getResourceType(),
+					Collections.singletonMap("_id", decode(id.getIdPart())));
+		}
+		Map<String, String> parameters = new LinkedHashMap<>();
+		String codeParameter = null;
+		List<String> codes = new ArrayList<>();
+		for (String parameter : url.substring(separator + 1).split("&")) {
+			int equals = parameter.indexOf('=');
+			if (equals < 0) {
+				continue;
+			}
+			String name = decode(parameter.substring(0, equals));
+			String value = parameter.substring(equals + 1);
+			if (codeParameter == null && value.contains("|")) {
+				codeParameter = name;
+				for (String code : value.split(",")) {
+					codes.add(decode(code));
+				}
+			} else {
+				parameters.put(name, decode(value));
+			}
+		}
+		return new RemoteDataRetriever.Query(url.substring(0, separator), parameters, codeParameter, codes);
+	}
+
+	// spaces are sent as %20 so that a literal + in a template survives decoding
+	private static String encode(String value) {
+		String escaped = value.replace("\\", "\\\\").replace(",", "\\,").replace("|", "\\|")
+				.replace("$", "\\$");
+		return URLEncoder.encode(escaped, StandardCharsets.UTF_8).replace("+", "%20");
+	}
+
+	private static String decode(String value) {
+		return URLDecoder.decode(value.replace("+", "%2B"), StandardCharsets.UTF_8);
+	}
+
+	private Resource fetchRemote(IGenericClient client, String url) {
+		return remoteDataRetriever.retrieve(client, Collections.singletonList(toQuery(url)));
+	}
+
+	private Resource fetchLocal(String url) {
+		int separator = url.indexOf('?');
+		Bundle bundle = new Bundle().setType(Bundle.BundleType.SEARCHSET);
+		if (separator < 0) {
+			bundle.addEntry().setResource((Resource) read(new IdType(url)));
+			return bundle;
+		}
+		String resourceType = url.substring(0, separator);
+		SearchParameterMap searchParameterMap = matchUrlService.translateMatchUrl(url,
+				getFhirContext().getResourceDefinition(resourceType));
+		searchParameterMap.setLoadSynchronous(true);
+		for (IBaseResource resource : search(getClass(resourceType), searchParameterMap).getAllResources()) {
+			bundle.addEntry().setResource((Resource) resource);
+		}
+		return bundle;
+	}
+
+	@Override
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	private static class FulfillmentThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "cds-hooks-prefetch-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
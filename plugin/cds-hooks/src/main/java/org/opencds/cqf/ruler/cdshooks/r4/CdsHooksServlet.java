@@ -1,23 +1,35 @@
 package org.opencds.cqf.ruler.cdshooks.r4;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 
 import ca.uhn.fhir.context.FhirVersionEnum;
 import org.apache.http.entity.ContentType;
 import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.ActivityDefinition;
 import org.hl7.fhir.r4.model.BooleanType;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Endpoint;
 import org.hl7.fhir.r4.model.IdType;
-import org.hl7.fhir.r4.model.Library;
 import org.hl7.fhir.r4.model.Parameters;
-import org.hl7.fhir.r4.model.PlanDefinition;
-import org.hl7.fhir.r4.model.RelatedArtifact;
+import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.Type;
 import org.opencds.cqf.cql.engine.debug.DebugMap;
 import org.opencds.cqf.cql.engine.exception.CqlException;
@@ -25,14 +37,28 @@ import org.opencds.cqf.cql.engine.exception.DataProviderException;
 import org.opencds.cqf.cql.engine.model.ModelResolver;
 import org.opencds.cqf.external.AppProperties;
 import org.opencds.cqf.fhir.cql.engine.model.FhirModelResolverCache;
-import org.opencds.cqf.fhir.utility.Canonicals;
-import org.opencds.cqf.fhir.utility.Ids;
 import org.opencds.cqf.ruler.behavior.DaoRegistryUser;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksAdmissionController;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksEvaluationExecutor;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksFanOut;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksMetrics;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksProperties;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksStageTimings;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksWarmup;
 import org.opencds.cqf.ruler.cdshooks.CdsServicesCache;
+import org.opencds.cqf.ruler.cdshooks.CdsServicesSnapshot;
+import org.opencds.cqf.ruler.cdshooks.DeadlineExceededException;
+import org.opencds.cqf.ruler.cdshooks.EvaluationDeadline;
+import org.opencds.cqf.ruler.cdshooks.cache.CardsCache;
+import org.opencds.cqf.ruler.cdshooks.capture.HookCapture;
+import org.opencds.cqf.ruler.cdshooks.prefetch.PrefetchFulfiller;
 import org.opencds.cqf.ruler.cdshooks.providers.ProviderConfiguration;
+import org.opencds.cqf.ruler.cdshooks.remote.RemoteDataRetriever;
+import org.opencds.cqf.ruler.cdshooks.remote.RemoteFhirClientRegistry;
 import org.opencds.cqf.ruler.cdshooks.request.CdsHooksRequest;
 import org.opencds.cqf.ruler.cdshooks.response.Card;
 import org.opencds.cqf.ruler.cdshooks.response.Cards;
+import org.opencds.cqf.ruler.cdshooks.response.CardsWriter;
 import org.opencds.cqf.ruler.cdshooks.response.ErrorHandling;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,18 +66,24 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Configurable;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 
 import ca.uhn.fhir.cr.r4.cpg.CqlExecutionOperationProvider;
 import ca.uhn.fhir.cr.r4.cpg.LibraryEvaluationOperationProvider;
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
 import ca.uhn.fhir.rest.server.RestfulServer;
 import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
-import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import jakarta.annotation.PostConstruct;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
@@ -61,6 +93,12 @@ import jakarta.servlet.http.HttpServletResponse;
 public class CdsHooksServlet extends HttpServlet implements DaoRegistryUser {
 	private static final Logger logger = LoggerFactory.getLogger(CdsHooksServlet.class);
 	private static final long serialVersionUID = 1L;
+	// path of the endpoint evaluating every service of a hook, followed by the hook name
+	private static final String FAN_OUT = "$hook/";
+	// FHIR decimals are kept as BigDecimal so prefetch resources parse without loss
+	private static final ObjectMapper mapper = new ObjectMapper()
+			.setSerializationInclusion(JsonInclude.Include.NON_NULL)
+			.enable(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS);
 	@Autowired
 	private DaoRegistry daoRegistry;
 	@Autowired
@@ -77,7 +115,29 @@ public class CdsHooksServlet extends HttpServlet implements DaoRegistryUser {
 	@Autowired
 	CdsServicesCache cdsServicesCache;
 	@Autowired
+	CdsHooksMetrics cdsHooksMetrics;
+	@Autowired
+	CdsHooksEvaluationExecutor evaluationExecutor;
+	@Autowired
+	CdsHooksProperties cdsHooksProperties;
+	@Autowired
 	RestfulServer restfulServer;
+	@Autowired
+	RemoteFhirClientRegistry remoteFhirClients;
+	@Autowired
+	RemoteDataRetriever remoteDataRetriever;
+	@Autowired
+	PrefetchFulfiller prefetchFulfiller;
+	@Autowired
+	CardsCache cardsCache;
+	@Autowired
+	CdsHooksAdmissionController admissionController;
+	@Autowired
+	CdsHooksFanOut cdsHooksFanOut;
+	@Autowired
+	HookCapture hookCapture;
+	@Autowired
+	CdsHooksWarmup cdsHooksWarmup;
 
 	public CdsHooksServlet() {
 		// myAppProperties is null
@@ -91,9 +151,6 @@ public class CdsHooksServlet extends HttpServlet implements DaoRegistryUser {
 		return this.providerConfiguration;
 	}
 
-	private final ServletRequestDetails requestDetails = new ServletRequestDetails();
-	private R4CqlExecution cqlExecutor;
-
 	// CORS Pre-flight
 	@Override
 	protected void doOptions(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
@@ -114,106 +171,657 @@ public class CdsHooksServlet extends HttpServlet implements DaoRegistryUser {
 			/// requests.");
 		}
 		ErrorHandling.setAccessControlHeaders(response, myAppProperties);
+		CdsServicesSnapshot snapshot = cdsServicesCache.getSnapshot();
+		response.setHeader("ETag", snapshot.getETag());
+		response.setHeader("Vary", "Accept-Encoding");
+		if (snapshot.matches(request.getHeader("If-None-Match"))) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
 		response.setHeader("Content-Type", ContentType.APPLICATION_JSON.getMimeType());
-		response.getWriter().println(new GsonBuilder().setPrettyPrinting().create().toJson(getServices()));
+		byte[] body = snapshot.getDiscovery();
+		if (acceptsGzip(request)) {
+			response.setHeader("Content-Encoding", "gzip");
+			body = snapshot.getDiscoveryGzip();
+		}
+		response.setContentLength(body.length);
+		response.getOutputStream().write(body);
+	}
+
+	private static boolean acceptsGzip(HttpServletRequest request) {
+		Enumeration<String> values = request.getHeaders("Accept-Encoding");
+		while (values != null && values.hasMoreElements()) {
+			for (String coding : values.nextElement().split(",")) {
+				String[] parts = coding.trim().split(";");
+				if (parts[0].trim().equalsIgnoreCase("gzip")
+						&& !(parts.length > 1 && parts[1].trim().replace(" ", "").matches("q=0(\\.0*)?"))) {
+					return true;
+				}
+			}
+		}
+		return false;
 	}
 
 	@Override
 	protected void doPost(HttpServletRequest request, HttpServletResponse response)
 			throws ServletException, IOException {
+		String service = serviceId(request);
+		if (cdsHooksWarmup.isHoldingTraffic()) {
+			unavailable(response, "ERROR: CDS services are warming up.");
+			return;
+		}
+		// before admission, the executor and the metrics, all of which are tagged by service
+		if (!isKnownService(service)) {
+			logger.warn("cds-hooks request for unknown service {}", service);
+			ErrorHandling.setAccessControlHeaders(response, myAppProperties);
+			response.sendError(HttpServletResponse.SC_NOT_FOUND, "ERROR: Unknown CDS service.");
+			return;
+		}
+		// the deadline includes the time spent waiting for admission and the evaluation executor
+		EvaluationDeadline deadline = EvaluationDeadline.after(
+				cdsHooksProperties.getDeadline().getTimeoutMillis(service));
+		CdsHooksAdmissionController.Permit permit;
 		try {
-			if (request.getContentType() == null || !request.getContentType().startsWith("application/json")) {
-				throw new ServletException(String.format("Invalid content type %s. Please use application/json.",
-						request.getContentType()));
+			// the services of a fan-out are admitted one by one as they are evaluated
+			permit = service.startsWith(FAN_OUT) ? admissionController.unlimited()
+					: admissionController.admit(service);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			unavailable(response, "ERROR: Interrupted waiting for CDS Hooks evaluation capacity.");
+			return;
+		}
+		if (permit == null) {
+			logger.warn("cds-hooks evaluation of {} not admitted", service);
+			unavailable(response, "ERROR: CDS Hooks evaluation capacity exceeded.");
+			return;
+		}
+
+		if (evaluationExecutor.isEnabled() && request.isAsyncSupported()) {
+			try {
+				doPostAsync(request, response, deadline, permit);
+			} catch (IOException | RuntimeException e) {
+				permit.close();
+				throw e;
 			}
-			logger.info(request.getRequestURI());
-			String baseUrl = myAppProperties.getServer_address();
-			String service = request.getPathInfo().replace("/", "");
-			ObjectMapper mapper = new ObjectMapper().setSerializationInclusion(JsonInclude.Include.NON_NULL);
+		} else {
+			try (permit) {
+				evaluate(HookPost.read(service, request), response, deadline, new ResponseGuard(new AtomicBoolean()));
+			}
+		}
+	}
 
-			String requestJson = request.getReader().lines().collect(Collectors.joining());
-			CdsHooksRequest cdsHooksRequest = mapper.readValue(requestJson, CdsHooksRequest.class);
-			logRequestInfo(cdsHooksRequest, requestJson);
+	/**
+	 * @return whether the service is one of the services discovered, or, for
+	 *         the endpoint evaluating every service of a hook, whether the hook
+	 *         has any
+	 */
+	private boolean isKnownService(String service) {
+		CdsServicesSnapshot snapshot = cdsServicesCache.getSnapshot();
+		return service.startsWith(FAN_OUT) ? !snapshot.getServiceIds(service.substring(FAN_OUT.length())).isEmpty()
+				: snapshot.contains(service);
+	}
 
-			cqlExecutor = new R4CqlExecution(baseUrl);
-			requestDetails.setFhirServerBase(baseUrl);
-			requestDetails.setServer(restfulServer);
+	/**
+	 * A hook request read off the servlet request, so the evaluation does not
+	 * touch the request once it runs on another thread.
+	 */
+	private static final class HookPost {
+		private final String service;
+		private final String contentType;
+		private final String requestUri;
+		private final byte[] body;
+
+		private HookPost(String service, String contentType, String requestUri, byte[] body) {
+			this.service = service;
+			this.contentType = contentType;
+			this.requestUri = requestUri;
+			this.body = body;
+		}
 
-			PlanDefinition servicePlan = read(Ids.newId(PlanDefinition.class, service));
-			if (!servicePlan.hasLibrary()) {
-				throw new ErrorHandling.CdsHooksError(
-						"Logic library reference missing from PlanDefinition: " + servicePlan.getId());
+		static HookPost read(String service, HttpServletRequest request) throws IOException {
+			return new HookPost(service, request.getContentType(), request.getRequestURI(),
+					request.getInputStream().readAllBytes());
+		}
+	}
+
+	/**
+	 * Decides whether the evaluation or the async timeout answers the request.
+	 * Whichever claims {@code completed} first owns the response; the other
+	 * must neither write to it nor complete it.
+	 */
+	private static final class ResponseGuard {
+		private final AtomicBoolean completed;
+		// only used by the evaluating thread
+		private boolean owned;
+
+		ResponseGuard(AtomicBoolean completed) {
+			this.completed = completed;
+		}
+
+		boolean claim() {
+			if (!owned) {
+				owned = completed.compareAndSet(false, true);
 			}
+			return owned;
+		}
 
-			IdType logicId = Ids.newId(Library.class, Canonicals.getIdPart(servicePlan.getLibrary().get(0)));
-
-			String patientId;
-			Parameters parameters = null;
-			if (cdsHooksRequest instanceof CdsHooksRequest.OrderSelect) {
-				patientId = ((CdsHooksRequest.OrderSelect) cdsHooksRequest).context.patientId;
-				parameters = CdsHooksUtil.getParameters(
-						((CdsHooksRequest.OrderSelect) cdsHooksRequest).context.draftOrders);
-			} else if (cdsHooksRequest instanceof CdsHooksRequest.OrderSign) {
-				patientId = ((CdsHooksRequest.OrderSign) cdsHooksRequest).context.patientId;
-				parameters = CdsHooksUtil.getParameters(
-						((CdsHooksRequest.OrderSign) cdsHooksRequest).context.draftOrders);
-			} else {
-				patientId = cdsHooksRequest.context.patientId;
+		boolean isOwned() {
+			return owned;
+		}
+	}
+
+	/**
+	 * Hands the hook off to the evaluation executor and releases the container
+	 * thread. The response is completed by the executor thread, or with a 503 if
+	 * the executor is saturated or the evaluation does not finish in time, in
+	 * which case the evaluation is cancelled. The request body is read before
+	 * the hand-off and the response is only written by whichever side claims it
+	 * first, so a late evaluation never touches a completed (and possibly
+	 * recycled) request or response. The admission permit is held until the
+	 * evaluation itself is done.
+	 */
+	private void doPostAsync(HttpServletRequest request, HttpServletResponse response, EvaluationDeadline deadline,
+			CdsHooksAdmissionController.Permit permit) throws IOException {
+		HookPost hookPost = HookPost.read(serviceId(request), request);
+		String service = hookPost.service;
+		AsyncContext asyncContext = request.startAsync();
+		asyncContext.setTimeout(evaluationExecutor.getTimeoutMillis());
+		AtomicBoolean completed = new AtomicBoolean(false);
+		// claimed by the evaluation when it starts, or by the timeout to keep it from starting
+		AtomicBoolean started = new AtomicBoolean(false);
+		AtomicReference<Future<?>> evaluation = new AtomicReference<>();
+		asyncContext.addListener(new AsyncListener() {
+			@Override
+			public void onTimeout(AsyncEvent event) throws IOException {
+				if (completed.compareAndSet(false, true)) {
+					logger.error("cds-hooks evaluation of {} timed out", service);
+					Future<?> future = evaluation.get();
+					if (future != null) {
+						future.cancel(true);
+					}
+					if (started.compareAndSet(false, true)) {
+						// the evaluation never runs; once running, the engine ignores the
+						// interrupt and the evaluation releases the permit when it is done
+						permit.close();
+					}
+					unavailable(response, "ERROR: CDS Hooks evaluation timed out.");
+					asyncContext.complete();
+				}
 			}
 
-			List<String> expressions = CdsHooksUtil.getExpressions(servicePlan);
-			// BooleanType useServerData = null;
-			Endpoint remoteDataEndpoint = null;
-			if (cdsHooksRequest.fhirServer != null && !cdsHooksRequest.fhirServer.equals(baseUrl)) {
-				// useServerData = new BooleanType(false);
-				remoteDataEndpoint = new Endpoint().setAddress(cdsHooksRequest.fhirServer);
-				if (cdsHooksRequest.fhirAuthorization != null) {
-					remoteDataEndpoint.addHeader(String.format("Authorization: %s %s",
-							cdsHooksRequest.fhirAuthorization.tokenType,
-							cdsHooksRequest.fhirAuthorization.accessToken));
-					if (cdsHooksRequest.fhirAuthorization.subject != null) {
-						remoteDataEndpoint.addHeader(this.getProviderConfiguration().getClientIdHeaderName()
-								+ ": " + cdsHooksRequest.fhirAuthorization.subject);
+			@Override
+			public void onComplete(AsyncEvent event) {
+				completed.set(true);
+			}
+
+			@Override
+			public void onError(AsyncEvent event) {
+				logger.error("cds-hooks async error: {}", String.valueOf(event.getThrowable()));
+			}
+
+			@Override
+			public void onStartAsync(AsyncEvent event) {
+				// not used
+			}
+		});
+
+		try {
+			evaluation.set(evaluationExecutor.execute(service, () -> {
+				if (!started.compareAndSet(false, true)) {
+					return;
+				}
+				ResponseGuard guard = new ResponseGuard(completed);
+				try {
+					evaluate(hookPost, response, deadline, guard);
+				} catch (Exception e) {
+					logger.error(e.toString());
+					if (guard.claim() && !response.isCommitted()) {
+						try {
+							response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+									"ERROR: Exception in cds-hooks processing.");
+						} catch (IOException ioe) {
+							logger.error(ioe.toString());
+						}
+					}
+				} finally {
+					permit.close();
+					if (guard.claim()) {
+						asyncContext.complete();
 					}
 				}
+			}));
+		} catch (RejectedExecutionException e) {
+			permit.close();
+			if (completed.compareAndSet(false, true)) {
+				logger.warn("cds-hooks evaluation of {} rejected: {}", service, e.getMessage());
+				unavailable(response, "ERROR: CDS Hooks evaluation capacity exceeded.");
+				asyncContext.complete();
 			}
-			Bundle data = CdsHooksUtil.getPrefetchResources(cdsHooksRequest);
+		}
+	}
 
-			Parameters evaluationResult = cqlExecutor.getLibraryExecution(libraryExecution, logicId, patientId,
-					expressions, parameters, data, remoteDataEndpoint);
+	/**
+	 * @return the id of the service invoked, or {@code $hook/<hookName>} for the
+	 *         endpoint evaluating every service of a hook
+	 */
+	private static String serviceId(HttpServletRequest request) {
+		String path = request.getPathInfo();
+		return path.startsWith("/" + FAN_OUT) ? path.substring(1) : path.replace("/", "");
+	}
 
-			List<Card.Link> links = resolvePlanLinks(servicePlan);
-			List<Card> cards = new ArrayList<>();
+	private void unavailable(HttpServletResponse response, String message) throws IOException {
+		if (!response.isCommitted()) {
+			ErrorHandling.setAccessControlHeaders(response, myAppProperties);
+			response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			response.setHeader("Retry-After", String.valueOf(admissionController.getRetryAfterSeconds()));
+			response.getWriter().println(message);
+		}
+	}
 
-			if (servicePlan.hasAction()) {
-				resolveServicePlan(servicePlan.getAction(), evaluationResult, patientId, cards, links);
+	/**
+	 * Evaluates a hook and writes the cards, or the error, once {@code guard}
+	 * is claimed. If the guard can not be claimed the request has already been
+	 * answered and the result is dropped.
+	 */
+	private void evaluate(HookPost hookPost, HttpServletResponse response, EvaluationDeadline deadline,
+			ResponseGuard guard) throws ServletException, IOException {
+		String service = hookPost.service;
+		CdsHooksStageTimings timings = new CdsHooksStageTimings();
+		String hook = null;
+		long start = System.nanoTime();
+		boolean capture = hookCapture.sample();
+		byte[] requestJson = null;
+		boolean failed = true;
+		try {
+			if (hookPost.contentType == null || !hookPost.contentType.startsWith("application/json")) {
+				throw new ServletException(String.format("Invalid content type %s. Please use application/json.",
+						hookPost.contentType));
 			}
+			logger.info(hookPost.requestUri);
+			String baseUrl = myAppProperties.getServer_address();
+			long parseStart = System.nanoTime();
+			requestJson = hookPost.body;
+			boolean cacheEnabled = cdsHooksProperties.getCache().isEnabled();
+			// the cache key hashes the context and prefetch as sent
+			JsonNode requestTree = cacheEnabled ? mapper.readTree(requestJson) : null;
+			CdsHooksRequest cdsHooksRequest = requestTree != null
+					? mapper.treeToValue(requestTree, CdsHooksRequest.class)
+					: mapper.readValue(requestJson, CdsHooksRequest.class);
+			timings.record(CdsHooksStageTimings.PARSE, System.nanoTime() - parseStart);
+			hook = cdsHooksRequest.getHookName();
+			logRequestInfo(cdsHooksRequest, requestJson);
 
-			Cards result = new Cards();
-			result.cards = cards;
-			// Using GSON pretty print format as Jackson's is ugly
-			String jsonResponse = new GsonBuilder().disableHtmlEscaping().setPrettyPrinting().create()
-					.toJson(JsonParser.parseString(mapper.writeValueAsString(result)));
-			logger.info(jsonResponse);
-			response.setContentType("text/json;charset=UTF-8");
-			response.getWriter().println(jsonResponse);
+			Cards result;
+			if (service.startsWith(FAN_OUT)) {
+				result = evaluateFanOut(service.substring(FAN_OUT.length()), cdsHooksRequest, requestTree, baseUrl,
+						deadline, timings);
+			} else {
+				result = evaluateService(service, cdsHooksRequest, requestTree, baseUrl, deadline, timings, null);
+			}
+			if (!guard.claim()) {
+				logger.warn("cds-hooks evaluation of {} finished after the request was answered", service);
+				return;
+			}
+			// the body is streamed, so the header can not include serialization
+			double sampleRate = cdsHooksProperties.getMetrics().getServerTimingSampleRate();
+			if (sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate) {
+				response.setHeader("Server-Timing", timings.toServerTiming());
+			}
+			long serializeStart = System.nanoTime();
+			writeCards(result, response);
+			timings.record(CdsHooksStageTimings.SERIALIZE, System.nanoTime() - serializeStart);
+			failed = false;
 		} catch (BaseServerResponseException e) {
-			ErrorHandling.handleError(response, "ERROR: Exception connecting to remote server.", e, myAppProperties);
-			logger.error(e.toString());
+			handleError(response, guard, "ERROR: Exception connecting to remote server.", e);
 		} catch (DataProviderException e) {
-			ErrorHandling.handleError(response, "ERROR: Exception in DataProvider.", e, myAppProperties);
-			logger.error(e.toString());
+			handleError(response, guard, "ERROR: Exception in DataProvider.", e);
 		} catch (CqlException e) {
-			ErrorHandling.handleError(response, "ERROR: Exception in CQL Execution.", e, myAppProperties);
-			logger.error(e.toString());
+			handleError(response, guard, "ERROR: Exception in CQL Execution.", e);
 		} catch (Exception e) {
 			logger.error(e.toString());
 			throw new ServletException("ERROR: Exception in cds-hooks processing.", e);
+		} finally {
+			if (hook != null) {
+				timings.publish(cdsHooksMetrics, service, hook);
+				if (capture) {
+					// a failure rethrown as a ServletException is answered with a 500 by the container,
+					// a request answered by the timeout with a 503
+					int status = !guard.isOwned() ? HttpServletResponse.SC_SERVICE_UNAVAILABLE
+							: failed && response.getStatus() < 400 ? HttpServletResponse.SC_INTERNAL_SERVER_ERROR
+									: response.getStatus();
+					hookCapture.record(service, hook, requestJson, status, System.nanoTime() - start);
+				}
+			}
+		}
+	}
+
+	private void handleError(HttpServletResponse response, ResponseGuard guard, String message, Exception e)
+			throws IOException {
+		logger.error(e.toString());
+		if (guard.claim()) {
+			ErrorHandling.handleError(response, message, e, myAppProperties);
+		}
+	}
+
+	/**
+	 * Evaluates a single service, through the cards cache when it is enabled.
+	 *
+	 * @param requestTree the request as sent, null if the cache is disabled
+	 * @param data        the prefetch resources already fulfilled for the
+	 *                    request, or null to fulfill and collect them for this
+	 *                    service
+	 */
+	private Cards evaluateService(String service, CdsHooksRequest cdsHooksRequest, JsonNode requestTree,
+			String baseUrl, EvaluationDeadline deadline, CdsHooksStageTimings timings, Bundle data)
+			throws IOException {
+		R4ServicePlan servicePlan = timings.time(CdsHooksStageTimings.PLAN,
+				() -> cdsServicesCache.getServicePlanCache().get(service));
+		String patientId = patientId(cdsHooksRequest);
+		Parameters parameters = draftOrders(cdsHooksRequest);
+		boolean remote = isRemote(cdsHooksRequest, baseUrl);
+
+		Supplier<Cards> evaluation = () -> evaluateCards(service, cdsHooksRequest, servicePlan, patientId,
+				parameters, baseUrl, remote, deadline, timings, data);
+		return requestTree != null
+				? cardsCache.get(cacheKey(service, servicePlan, cdsHooksRequest, requestTree, patientId, remote),
+						evaluation)
+				: evaluation.get();
+	}
+
+	/**
+	 * Evaluates one service of a fan-out under its own admission permit and
+	 * deadline, the latter bounded by the deadline of the fan-out.
+	 *
+	 * @return the cards, or null if the service is not admitted
+	 */
+	private Cards evaluateFanOutService(String service, CdsHooksRequest cdsHooksRequest, JsonNode requestTree,
+			String baseUrl, EvaluationDeadline fanOutDeadline, Bundle data) {
+		EvaluationDeadline deadline = fanOutDeadline.within(
+				cdsHooksProperties.getDeadline().getTimeoutMillis(service));
+		CdsHooksAdmissionController.Permit permit;
+		try {
+			permit = admissionController.admit(service);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		if (permit == null) {
+			logger.warn("cds-hooks evaluation of {} not admitted", service);
+			return null;
+		}
+		CdsHooksStageTimings timings = new CdsHooksStageTimings();
+		try (permit; EvaluationDeadline.Scope scope = deadline.bind()) {
+			return evaluateService(service, cdsHooksRequest, requestTree, baseUrl, deadline, timings, data);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			timings.publish(cdsHooksMetrics, service, cdsHooksRequest.getHookName());
+		}
+	}
+
+	/**
+	 * Evaluates every service registered for a hook against one parsed request.
+	 * The prefetch templates of all the services are fulfilled first and their
+	 * resources collected into a single bundle, which the services then share
+	 * read-only while they are evaluated in parallel, each admitted and bounded
+	 * by its own deadline as if it had been called directly. The merged cards
+	 * are tagged with the id of the service that produced them.
+	 */
+	private Cards evaluateFanOut(String hook, CdsHooksRequest cdsHooksRequest, JsonNode requestTree,
+			String baseUrl, EvaluationDeadline deadline, CdsHooksStageTimings timings) throws ServletException {
+		if (!cdsHooksProperties.getFanOut().isEnabled()) {
+			throw new ServletException("Evaluating every service of a hook is disabled.");
+		}
+		if (!hook.equals(cdsHooksRequest.getHookName())) {
+			throw new ServletException(String.format("The request is for hook %s, not %s.",
+					cdsHooksRequest.getHookName(), hook));
+		}
+		List<String> services = cdsServicesCache.getSnapshot().getServiceIds(hook);
+		Cards result = new Cards();
+		result.cards = new ArrayList<>();
+
+		try (EvaluationDeadline.Scope scope = deadline.bind()) {
+			deadline.check("prefetch");
+			if (cdsHooksProperties.getPrefetch().isFulfill()) {
+				long fulfillStart = System.nanoTime();
+				// sequential, each service only fetches the templates not fulfilled yet
+				for (String service : services) {
+					fulfillPrefetch(service, cdsHooksRequest, patientId(cdsHooksRequest),
+							isRemote(cdsHooksRequest, baseUrl));
+				}
+				timings.record(CdsHooksStageTimings.FULFILL, System.nanoTime() - fulfillStart);
+			}
+			Bundle data = timings.time(CdsHooksStageTimings.PREFETCH,
+					() -> CdsHooksUtil.getPrefetchResources(cdsHooksRequest));
+
+			Map<String, Cards> results = cdsHooksFanOut.evaluate(services,
+					service -> evaluateFanOutService(service, cdsHooksRequest, requestTree, baseUrl, deadline, data));
+			results.forEach((service, cards) -> {
+				if (cards != null) {
+					cards.cards.forEach(card -> result.cards.add(card.withServiceId(service)));
+					result.partial |= cards.partial;
+				} else {
+					result.partial = true;
+				}
+			});
+			result.partial |= results.size() < services.size();
+		} catch (DeadlineExceededException e) {
+			logger.warn("cds-hooks evaluation of {} exceeded its deadline during {}", FAN_OUT + hook,
+					e.getStage());
+			cdsHooksMetrics.recordTimeout(FAN_OUT + hook, hook, e.getStage());
+			result.partial = true;
+		}
+		return result;
+	}
+
+	/**
+	 * @return the id of the patient of the hook without the {@code Patient/}
+	 *         prefix it may be sent with, the form the cards cache and its
+	 *         invalidation key on
+	 */
+	private static String patientId(CdsHooksRequest cdsHooksRequest) {
+		String patientId;
+		if (cdsHooksRequest instanceof CdsHooksRequest.OrderSelect) {
+			patientId = ((CdsHooksRequest.OrderSelect) cdsHooksRequest).context.patientId;
+		} else if (cdsHooksRequest instanceof CdsHooksRequest.OrderSign) {
+			patientId = ((CdsHooksRequest.OrderSign) cdsHooksRequest).context.patientId;
+		} else {
+			patientId = cdsHooksRequest.context.patientId;
+		}
+		return patientId != null ? new IdType(patientId).getIdPart() : null;
+	}
+
+	private static Parameters draftOrders(CdsHooksRequest cdsHooksRequest) {
+		if (cdsHooksRequest instanceof CdsHooksRequest.OrderSelect) {
+			return CdsHooksUtil.getParameters(((CdsHooksRequest.OrderSelect) cdsHooksRequest).context.draftOrders);
+		} else if (cdsHooksRequest instanceof CdsHooksRequest.OrderSign) {
+			return CdsHooksUtil.getParameters(((CdsHooksRequest.OrderSign) cdsHooksRequest).context.draftOrders);
+		}
+		return null;
+	}
+
+	private static boolean isRemote(CdsHooksRequest cdsHooksRequest, String baseUrl) {
+		return cdsHooksRequest.fhirServer != null && !cdsHooksRequest.fhirServer.equals(baseUrl);
+	}
+
+	/**
+	 * Evaluates the service with the deadline bound to the current thread. When
+	 * the deadline passes, the evaluation stops at the next stage, search or
+	 * remote request and the cards completed so far are returned.
+	 */
+	private Cards evaluateCards(String service, CdsHooksRequest cdsHooksRequest, R4ServicePlan servicePlan,
+			String patientId, Parameters parameters, String baseUrl, boolean remote, EvaluationDeadline deadline,
+			CdsHooksStageTimings timings, Bundle prefetchData) {
+		R4EvaluationContext context = R4EvaluationContext.create(service, patientId, baseUrl, restfulServer,
+				timings);
+		List<Card> cards = new ArrayList<>();
+		Cards result = new Cards();
+		result.cards = cards;
+		String stage = "prefetch";
+		try (EvaluationDeadline.Scope scope = deadline.bind()) {
+			deadline.check(stage);
+			// BooleanType useServerData = null;
+			Endpoint remoteDataEndpoint = null;
+			if (remote) {
+				// useServerData = new BooleanType(false);
+				remoteDataEndpoint = remoteFhirClients.getEndpoint(cdsHooksRequest.fhirServer,
+						cdsHooksRequest.fhirAuthorization);
+			}
+			Bundle data = prefetchData;
+			if (data == null) {
+				if (cdsHooksProperties.getPrefetch().isFulfill()) {
+					long fulfillStart = System.nanoTime();
+					fulfillPrefetch(service, cdsHooksRequest, patientId, remote);
+					timings.record(CdsHooksStageTimings.FULFILL, System.nanoTime() - fulfillStart);
+				}
+				data = timings.time(CdsHooksStageTimings.PREFETCH,
+						() -> CdsHooksUtil.getPrefetchResources(cdsHooksRequest));
+			}
+			if (remote && cdsHooksProperties.getRemoteClient().isPreloadDataRequirements()) {
+				RemoteDataRetriever.Preloaded preloaded = timings.time(CdsHooksStageTimings.FULFILL,
+						() -> remoteDataRetriever.preload(
+								remoteFhirClients.getClient(cdsHooksRequest.fhirServer,
+										cdsHooksRequest.fhirAuthorization),
+								servicePlan.getLibraryId(), patientId));
+				if (preloaded != null) {
+					data = merge(data, preloaded.getData());
+					if (preloaded.isComplete()) {
+						// every data requirement was preloaded, the library needs nothing else
+						remoteDataEndpoint = null;
+					}
+				}
+			}
+
+			stage = "library";
+			deadline.check(stage);
+			context = context.withEvaluationResults(context.getCqlExecution().getLibraryExecution(libraryExecution,
+					cqlExecution, servicePlan, patientId, parameters, data, remoteDataEndpoint));
+
+			stage = "actions";
+			deadline.check(stage);
+			// card assembly, less the $apply calls made for suggestions
+			long cardsStart = System.nanoTime() - timings.get(CdsHooksStageTimings.APPLY);
+			try {
+				resolveServicePlan(servicePlan.getActions(), context, cards, servicePlan.getLinks());
+			} finally {
+				timings.record(CdsHooksStageTimings.CARDS,
+						System.nanoTime() - cardsStart - timings.get(CdsHooksStageTimings.APPLY));
+			}
+		} catch (RuntimeException e) {
+			// the engine reports a search stopped by the deadline as an evaluation error
+			if (!deadline.isExpired()) {
+				throw e;
+			}
+			String timedOut = e instanceof DeadlineExceededException ? ((DeadlineExceededException) e).getStage()
+					: stage;
+			logger.warn("cds-hooks evaluation of {} exceeded its deadline during {}, returning {} cards", service,
+					timedOut, cards.size());
+			cdsHooksMetrics.recordTimeout(service, cdsHooksRequest.getHookName(), timedOut);
+			result.partial = true;
+		} finally {
+			cdsHooksMetrics.recordEngineInvocations(service, cdsHooksRequest.getHookName(),
+					context.getCqlExecution().getEngineInvocations());
+		}
+		return result;
+	}
+
+	/**
+	 * @return a new Bundle with the resources of both, the prefetch data is
+	 *         shared by the services of a fan-out and is not modified
+	 */
+	private static Bundle merge(Bundle prefetchData, Bundle preloaded) {
+		if (prefetchData == null) {
+			return preloaded;
+		}
+		Bundle data = new Bundle().setType(Bundle.BundleType.COLLECTION);
+		Map<String, Resource> resources = new LinkedHashMap<>();
+		for (Bundle bundle : List.of(prefetchData, preloaded)) {
+			bundle.getEntry().stream().filter(Bundle.BundleEntryComponent::hasResource)
+					.map(Bundle.BundleEntryComponent::getResource)
+					.forEach(resource -> resources.putIfAbsent(
+							resource.fhirType() + "/" + resource.getIdElement().getIdPart(), resource));
+		}
+		resources.values().forEach(resource -> data.addEntry().setResource(resource));
+		return data;
+	}
+
+	private CardsCache.Key cacheKey(String service, R4ServicePlan servicePlan, CdsHooksRequest cdsHooksRequest,
+			JsonNode requestTree, String patientId, boolean remote) throws IOException {
+		return new CardsCache.Key(service, cdsServicesCache.getServiceVersion(service),
+				servicePlan.getDefinitionVersions(), cdsHooksRequest.getHookName(), patientId,
+				remote ? cdsHooksRequest.fhirServer : null,
+				cdsHooksRequest.fhirAuthorization != null ? cdsHooksRequest.fhirAuthorization.subject : null,
+				hash(requestTree.get("context")), hash(requestTree.get("prefetch")));
+	}
+
+	private static String hash(JsonNode node) throws IOException {
+		if (node == null || node.isNull()) {
+			return null;
+		}
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(mapper.writeValueAsBytes(node));
+			StringBuilder hex = new StringBuilder();
+			for (byte b : digest) {
+				hex.append(String.format("%02x", b));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
 		}
 	}
 
-	private void logRequestInfo(CdsHooksRequest request, String jsonRequest) {
-		logger.info(jsonRequest);
+	/**
+	 * Fills in the prefetch templates of the service the client did not
+	 * fulfill, from the remote fhirServer of the hook or the local server.
+	 */
+	private void fulfillPrefetch(String service, CdsHooksRequest cdsHooksRequest, String patientId,
+			boolean remote) {
+		JsonObject serviceDescription = cdsServicesCache.getSnapshot().getService(service);
+		if (serviceDescription == null || !serviceDescription.has("prefetch")) {
+			return;
+		}
+		Map<String, String> context = new HashMap<>();
+		context.put("context.patientId", patientId);
+		CdsHooksRequest.Context hookContext = cdsHooksRequest.getHookContext();
+		if (hookContext != null) {
+			if (hookContext.userId != null)
+				context.put("context.userId", hookContext.userId);
+			if (hookContext.encounterId != null)
+				context.put("context.encounterId", hookContext.encounterId);
+		}
+		Map<String, Resource> fulfilled = prefetchFulfiller.fulfill(service,
+				serviceDescription.getAsJsonObject("prefetch"),
+				cdsHooksRequest.prefetch != null ? cdsHooksRequest.prefetch.resources : null, context,
+				remote ? remoteFhirClients.getClient(cdsHooksRequest.fhirServer, cdsHooksRequest.fhirAuthorization)
+						: null);
+		if (!fulfilled.isEmpty()) {
+			if (cdsHooksRequest.prefetch == null) {
+				cdsHooksRequest.prefetch = new CdsHooksRequest.Prefetch();
+			}
+			cdsHooksRequest.prefetch.resources.putAll(fulfilled);
+		}
+	}
+
+	private void writeCards(Cards cards, HttpServletResponse response) throws IOException {
+		CdsHooksProperties.Response properties = cdsHooksProperties.getResponse();
+		boolean log = logger.isInfoEnabled() && properties.getLogSampleRate() > 0
+				&& ThreadLocalRandom.current().nextDouble() < properties.getLogSampleRate();
+		response.setContentType("text/json;charset=UTF-8");
+		String logged = new CardsWriter(properties.isPrettyPrint()).write(cards, response.getOutputStream(),
+				log ? properties.getLogMaxBytes() : 0);
+		if (logged != null) {
+			logger.info(logged);
+		}
+	}
+
+	private void logRequestInfo(CdsHooksRequest request, byte[] jsonRequest) {
+		if (logger.isInfoEnabled()) {
+			int logMaxBytes = cdsHooksProperties.getResponse().getLogMaxBytes();
+			logger.info(jsonRequest.length > logMaxBytes
+					? new String(jsonRequest, 0, logMaxBytes, StandardCharsets.UTF_8)
+							+ "... (" + jsonRequest.length + " bytes)"
+					: new String(jsonRequest, StandardCharsets.UTF_8));
+		}
 		logger.info("cds-hooks hook instance: {}", request.hookInstance);
 		logger.info("cds-hooks maxCodesPerQuery: {}", this.getProviderConfiguration().getMaxCodesPerQuery());
 		logger.info("cds-hooks expandValueSets: {}", this.getProviderConfiguration().getExpandValueSets());
@@ -224,171 +832,78 @@ public class CdsHooksServlet extends HttpServlet implements DaoRegistryUser {
 		logger.info("cds-hooks fhir server address: {}", request.fhirServer);
 	}
 
-	private List<Card.Link> resolvePlanLinks(PlanDefinition servicePlan) {
-		List<Card.Link> links = new ArrayList<>();
-		// links - listed on each card
-		if (servicePlan.hasRelatedArtifact()) {
-			servicePlan.getRelatedArtifact().forEach(
-					ra -> {
-						Card.Link link = new Card.Link();
-						if (ra.hasDisplay())
-							link.setLabel(ra.getDisplay());
-						if (ra.hasUrl())
-							link.setUrl(ra.getUrl());
-						if (ra.hasExtension()) {
-							link.setType(ra.getExtensionFirstRep().getValue().primitiveValue());
-						} else
-							link.setType("absolute"); // default
-						links.add(link);
-					});
-		}
-		return links;
-	}
-
-	private void resolveServicePlan(List<PlanDefinition.PlanDefinitionActionComponent> actions,
-			Parameters evaluationResults, String patientId, List<Card> cards,
-			List<Card.Link> links) {
+	private void resolveServicePlan(List<R4ServicePlan.Action> actions, R4EvaluationContext context,
+			List<Card> cards, List<Card.Link> links) {
 		Card card = new Card();
 		if (links != null)
 			card.setLinks(links);
 		actions.forEach(
 				action -> {
-					if (resolveCondition(action, evaluationResults, patientId).get()) {
-						if (action.hasTitle()) {
+					EvaluationDeadline.current().check("actions");
+					if (resolveCondition(action, context).get()) {
+						if (action.getTitle() != null) {
 							card.setSummary(action.getTitle());
 						}
-						if (action.hasDescription()) {
+						if (action.getDescription() != null) {
 							card.setDetail(action.getDescription());
 						}
-						if (action.hasPriority()) {
-							String indicator;
-							switch (action.getPriority().toCode()) {
-								case "routine":
-									indicator = "info";
-									break;
-								case "urgent":
-									indicator = "warning";
-									break;
-								case "stat":
-									indicator = "critical";
-									break;
-								default:
-									throw new IllegalArgumentException(
-											"Invalid priority code: " + action.getPriority().toCode());
-							}
-							card.setIndicator(indicator);
+						if (action.getIndicator() != null) {
+							card.setIndicator(action.getIndicator());
 						}
-						if (action.hasDocumentation()) {
-							card.setSource(resolveSource(action));
+						if (action.getSource() != null) {
+							card.setSource(action.getSource());
 						}
-						if (action.hasSelectionBehavior()) {
-							card.setSelectionBehavior(action.getSelectionBehavior().toCode());
-						}
-						if (action.hasSelectionBehavior()) {
-							card.setSelectionBehavior(action.getSelectionBehavior().toCode());
-							Card.Suggestion suggestion = resolveSuggestions(action, patientId);
+						if (action.hasSuggestion()) {
+							card.setSelectionBehavior(action.getSelectionBehavior());
+							Card.Suggestion suggestion = resolveSuggestions(action, context);
 							card.setSuggestions(Collections.singletonList(suggestion));
 						}
-						if (action.hasDynamicValue()) {
-							resolveDynamicActions(action, evaluationResults, patientId, card);
+						if (!action.getDynamicValues().isEmpty()) {
+							resolveDynamicActions(action, context, card);
 						}
-						if (action.hasAction()) {
-							resolveServicePlan(action.getAction(), evaluationResults, patientId, cards, links);
+						if (!action.getActions().isEmpty()) {
+							resolveServicePlan(action.getActions(), context, cards, links);
 						}
 						cards.add(card);
 					}
 				});
 	}
 
-	public AtomicBoolean resolveCondition(PlanDefinition.PlanDefinitionActionComponent action,
-			Parameters evaluationResults, String patientId) {
+	public AtomicBoolean resolveCondition(R4ServicePlan.Action action, R4EvaluationContext context) {
 		AtomicBoolean conditionMet = new AtomicBoolean(false);
-		if (action.hasCondition()) {
-			action.getCondition().forEach(
-					condition -> {
-						if (condition.hasExpression() && condition.getExpression().hasLanguage()
-								&& condition.getExpression().hasExpression()) {
-							Type conditionResult;
-							var lang = condition.getExpression().getLanguage();
-							if ("text/cql-identifier".equals(lang) || "text/cql.identifier".equals(lang)) {
-								conditionResult = evaluationResults.getParameter(
-										condition.getExpression().getExpression()).getValue();
-							} else if (condition.getExpression().getLanguage().equals("text/cql")) {
-								conditionResult = cqlExecutor.getExpressionExecution(cqlExecution,
-										patientId, condition.getExpression().getExpression())
-										.getParameterValue("return");
-
-							} else
-								conditionResult = new BooleanType(false);
-							if (conditionResult != null) {
-								conditionMet.set(conditionResult.isPrimitive()
-										&& Boolean.parseBoolean(conditionResult.primitiveValue()));
-							}
-						}
-					});
-		}
+		action.getConditions().forEach(
+				condition -> {
+					Type conditionResult = condition.getKind() == R4ServicePlan.ExpressionKind.UNSUPPORTED
+							? new BooleanType(false)
+							: getResult(context, condition);
+					if (conditionResult != null) {
+						conditionMet.set(conditionResult.isPrimitive()
+								&& Boolean.parseBoolean(conditionResult.primitiveValue()));
+					}
+				});
 		return conditionMet;
 	}
 
-	public Card.Source resolveSource(PlanDefinition.PlanDefinitionActionComponent action) {
-		Card.Source source = new Card.Source();
-		RelatedArtifact documentation = action.getDocumentationFirstRep();
-		if (documentation.hasDisplay()) {
-			source.setLabel(documentation.getDisplay());
-		}
-		if (documentation.hasUrl()) {
-			source.setUri(documentation.getUrl());
-		}
-		if (documentation.hasDocument() && documentation.getDocument().hasUrl()) {
-			source.setIcon(documentation.getDocument().getUrl());
-		}
-		return source;
-	}
-
-	public Card.Suggestion resolveSuggestions(PlanDefinition.PlanDefinitionActionComponent action, String patientId) {
+	public Card.Suggestion resolveSuggestions(R4ServicePlan.Action action, R4EvaluationContext context) {
 		Card.Suggestion suggestion = new Card.Suggestion();
 		Card.Suggestion.Action suggAction = new Card.Suggestion.Action();
 		suggAction.fhirContext = getFhirContext();
-		if (action.hasPrefix())
+		if (action.getPrefix() != null)
 			suggestion.setLabel(action.getPrefix());
 		boolean hasAction = false;
-		if (action.hasDescription()) {
+		if (action.getDescription() != null) {
 			suggAction.setDescription(action.getDescription());
 			hasAction = true;
 		}
-		if (action.hasType() && action.getType().hasCoding()
-				&& action.getType().getCodingFirstRep().hasCode()
-				&& !action.getType().getCodingFirstRep().getCode().equals("fire-event")) {
-			String actionCode = action.getType().getCodingFirstRep().getCode();
-			suggAction.setType(actionCode);
+		if (action.getSuggestionType() != null) {
+			suggAction.setType(action.getSuggestionType());
 			hasAction = true;
 		}
-		if (action.hasDefinitionCanonicalType() &&
-				action.getDefinitionCanonicalType().getValue().contains("ActivityDefinition")) {
+		if (action.getDefinitionId() != null) {
+			EvaluationDeadline.current().check("apply");
 			suggAction.setType("create");
-			IdType definitionId = new IdType(
-					Canonicals.getResourceType(action.getDefinitionCanonicalType().getValue()),
-					Canonicals.getIdPart(action.getDefinitionCanonicalType().getValue()));
-			suggAction.setResource(applyEvaluator.apply(
-					definitionId,
-					null,
-					null,
-					patientId,
-					null,
-					null,
-					null,
-					null,
-					null,
-					null,
-					null,
-					null,
-					null,
-					null,
-					null,
-					null,
-					null,
-					null,
-					requestDetails));
+			suggAction.setResource(context.getTimings().time(CdsHooksStageTimings.APPLY,
+					() -> applyDefinition(action, context)));
 			hasAction = true;
 		}
 		if (hasAction)
@@ -396,50 +911,98 @@ public class CdsHooksServlet extends HttpServlet implements DaoRegistryUser {
 		return suggestion;
 	}
 
-	public void resolveDynamicActions(PlanDefinition.PlanDefinitionActionComponent action,
-			Parameters evaluationResults, String patientId, Card card) {
-		action.getDynamicValue().forEach(
+	private IBaseResource applyDefinition(R4ServicePlan.Action action, R4EvaluationContext context) {
+		if (!action.hasDefinitionTemplate()) {
+			return applyDefinition(action.getDefinitionId(), null, context);
+		}
+		ActivityDefinition definition = cdsServicesCache.getActivityTemplateCache().get(action,
+				this::readActivityDefinition);
+		if (definition == null) {
+			return applyDefinition(action.getDefinitionId(), null, context);
+		}
+		IBaseResource resource = applyDefinition(null, definition, context);
+		if (resource != null) {
+			for (R4ServicePlan.DynamicValue dv : action.getDefinitionDynamicValues()) {
+				Type value = getResult(context, dv.getExpression());
+				if (value != null) {
+					modelResolver.setValue(resource, dv.getPath(), value);
+				}
+			}
+		}
+		return resource;
+	}
+
+	@SuppressWarnings("unchecked")
+	private ActivityDefinition readActivityDefinition(IdType id) {
+		try {
+			return ((IFhirResourceDao<ActivityDefinition>) daoRegistry.getResourceDao("ActivityDefinition"))
+					.read(id, new SystemRequestDetails());
+		} catch (ResourceNotFoundException | ResourceGoneException e) {
+			return null;
+		}
+	}
+
+	private IBaseResource applyDefinition(IdType definitionId, ActivityDefinition definition,
+			R4EvaluationContext context) {
+		return applyEvaluator.apply(
+				definitionId,
+				definition,
+				null,
+				context.getPatientId(),
+				null,
+				null,
+				null,
+				null,
+				null,
+				null,
+				null,
+				null,
+				null,
+				null,
+				null,
+				null,
+				null,
+				null,
+				context.getRequestDetails());
+	}
+
+	public void resolveDynamicActions(R4ServicePlan.Action action, R4EvaluationContext context, Card card) {
+		action.getDynamicValues().forEach(
 				dv -> {
-					if (dv.hasPath() && dv.hasExpression() && dv.getExpression().hasLanguage()
-							&& dv.getExpression().hasExpression()) {
-						IBase dynamicValueResult;
-						var lang = dv.getExpression().getLanguage();
-						if ("text/cql-identifier".equals(lang) || "text/cql.identifier".equals(lang)) {
-							dynamicValueResult = evaluationResults.getParameter(
-									dv.getExpression().getExpression()).getValue();
-						} else {
-							dynamicValueResult = cqlExecutor.getExpressionExecution(cqlExecution,
-									patientId, dv.getExpression().getExpression())
-									.getParameter("return").getValue();
-						}
-						if (dynamicValueResult != null) {
-							if (dv.getPath().endsWith("title")) {
+					IBase dynamicValueResult = getResult(context, dv.getExpression());
+					if (dynamicValueResult != null) {
+						switch (dv.getTarget()) {
+							case SUMMARY:
 								card.setSummary(dynamicValueResult.toString());
-							} else if (dv.getPath().endsWith("description")) {
+								break;
+							case DETAIL:
 								card.setDetail(dynamicValueResult.toString());
 								if (card.getSuggestions() != null
 										&& card.getSuggestions().get(0).getActions() != null) {
 									card.getSuggestions().get(0).getActions().get(0).setDescription(
 											dynamicValueResult.toString());
 								}
-							} else if (dv.getPath().endsWith("extension")) {
+								break;
+							case INDICATOR:
 								card.setIndicator(dynamicValueResult.toString());
-							} else if (card.getSuggestions() != null
-									&& card.getSuggestions().get(0).getActions() != null
-									&& card.getSuggestions().get((0)).getActions().get(0).getResource() != null) {
-								modelResolver.setValue(
-										card.getSuggestions().get((0)).getActions().get(0).getResource(),
-										dv.getPath(), dynamicValueResult);
-							}
+								break;
+							default:
+								if (card.getSuggestions() != null
+										&& card.getSuggestions().get(0).getActions() != null
+										&& card.getSuggestions().get(0).getActions().get(0).getResource() != null) {
+									modelResolver.setValue(
+											card.getSuggestions().get(0).getActions().get(0).getResource(),
+											dv.getPath(), dynamicValueResult);
+								}
 						}
 					}
 				});
 	}
 
-	private JsonObject getServices() {
-		JsonObject services = new JsonObject();
-		services.add("services", this.cdsServicesCache.getCdsServiceCache().get());
-		return services;
+	private Type getResult(R4EvaluationContext context, R4ServicePlan.Expression expression) {
+		Parameters.ParametersParameterComponent result = context.getEvaluationResults()
+				.getParameter(expression.getName());
+		return result == null ? null : result.getValue();
 	}
 
 	public DebugMap getDebugMap() {
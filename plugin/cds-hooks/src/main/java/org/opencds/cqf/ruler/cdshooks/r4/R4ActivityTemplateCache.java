@@ -0,0 +1,113 @@
+package org.opencds.cqf.ruler.cdshooks.r4;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.function.Function;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.ActivityDefinition;
+import org.hl7.fhir.r4.model.IdType;
+
+import ca.uhn.fhir.jpa.cache.IResourceChangeEvent;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListener;
+
+/**
+ * Cache of the ActivityDefinitions applied for suggestions, keyed by
+ * ActivityDefinition version.
+ * <p>
+ * Only the definitions of actions with
+ * {@link R4ServicePlan.Action#hasDefinitionTemplate() a template} are cached,
+ * and only the parts that do not depend on the patient: the definition is
+ * stored without its dynamicValues, which are evaluated together with the card
+ * conditions. Every hook applies a copy of it for its own patient and sets the
+ * evaluated dynamicValues on top.
+ * <p>
+ * A definition is read at most once per version; concurrent hooks for the same
+ * version wait for the same read, which runs outside the map.
+ * <p>
+ * Registered for ActivityDefinition changes; any change drops the definitions
+ * and the compiled plans, which record the version of each definition they
+ * apply.
+ */
+public class R4ActivityTemplateCache implements IResourceChangeListener {
+	private final ConcurrentMap<String, Future<ActivityDefinition>> definitions = new ConcurrentHashMap<>();
+	private final R4ServicePlanCache servicePlanCache;
+
+	public R4ActivityTemplateCache(R4ServicePlanCache servicePlanCache) {
+		this.servicePlanCache = servicePlanCache;
+	}
+
+	/**
+	 * Returns the ActivityDefinition of an action without its dynamicValues,
+	 * reading the version the plan was compiled with if it is not cached yet.
+	 *
+	 * @param action an action with a definition template
+	 * @param read   reads an ActivityDefinition by versioned id, returning null
+	 *               if it does not exist
+	 * @return a copy of the definition owned by the caller, or null if the
+	 *         version no longer exists
+	 */
+	public ActivityDefinition get(R4ServicePlan.Action action, Function<IdType, ActivityDefinition> read) {
+		IdType id = action.getDefinitionId().withVersion(action.getDefinitionVersion());
+		String key = id.getIdPart() + "/_history/" + id.getVersionIdPart();
+		Future<ActivityDefinition> future = definitions.get(key);
+		if (future == null) {
+			FutureTask<ActivityDefinition> task = new FutureTask<>(() -> withoutDynamicValues(read.apply(id)));
+			future = definitions.putIfAbsent(key, task);
+			if (future == null) {
+				future = task;
+				task.run();
+			}
+		}
+		ActivityDefinition definition;
+		try {
+			definition = future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted reading " + id.getValue(), e);
+		} catch (ExecutionException e) {
+			definitions.remove(key, future);
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+		if (definition == null) {
+			definitions.remove(key, future);
+			return null;
+		}
+		return definition.copy();
+	}
+
+	private static ActivityDefinition withoutDynamicValues(ActivityDefinition definition) {
+		if (definition == null) {
+			return null;
+		}
+		ActivityDefinition template = definition.copy();
+		template.getDynamicValue().clear();
+		return template;
+	}
+
+	public int size() {
+		return definitions.size();
+	}
+
+	public void clear() {
+		definitions.clear();
+		servicePlanCache.clear();
+	}
+
+	@Override
+	public void handleInit(Collection<IIdType> collection) {
+		// definitions are read on first use
+	}
+
+	@Override
+	public void handleChange(IResourceChangeEvent iResourceChangeEvent) {
+		clear();
+	}
+}
@@ -10,14 +10,27 @@ import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.OperationOutcome;
 import org.hl7.fhir.r4.model.Parameters;
 import org.opencds.cqf.cql.engine.exception.CqlException;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksStageTimings;
 
 import java.util.List;
 
 public class R4CqlExecution {
     private final RequestDetails requestDetails = new SystemRequestDetails();
+    private final CdsHooksStageTimings timings;
+    private int engineInvocations;
 
     public R4CqlExecution(String baseUrl) {
+        this(baseUrl, new CdsHooksStageTimings());
+    }
+
+    /**
+     * @param baseUrl the base url of the local FHIR server
+     * @param timings the timings of the hook request, the library and inline
+     *                expression evaluations are added to
+     */
+    public R4CqlExecution(String baseUrl, CdsHooksStageTimings timings) {
         this.requestDetails.setFhirServerBase(baseUrl);
+        this.timings = timings;
     }
 
     private void checkError(Parameters result) {
@@ -30,12 +43,52 @@ public class R4CqlExecution {
         }
     }
 
+    /**
+     * @return the number of CQL engine invocations made through this executor
+     */
+    public int getEngineInvocations() {
+        return engineInvocations;
+    }
+
+    /**
+     * Evaluates the primary library expressions of a service plan and, in a
+     * single additional invocation, every inline CQL expression of the plan.
+     * The inline results are added to the returned parameters under the names
+     * of their {@link R4ServicePlan.Expression expressions}.
+     */
+    public Parameters getLibraryExecution(LibraryEvaluationOperationProvider libraryExecution,
+                                          CqlExecutionOperationProvider cqlExecution, R4ServicePlan plan,
+                                          String patientId, Parameters parameters, Bundle data,
+                                          Endpoint remoteDataEndpoint) {
+        Parameters executionResult = timings.time(CdsHooksStageTimings.LIBRARY,
+                () -> getLibraryExecution(libraryExecution, plan.getLibraryId(), patientId,
+                        plan.getExpressions(), parameters, data, remoteDataEndpoint));
+        if (plan.getInlineLibrary() != null) {
+            timings.time(CdsHooksStageTimings.INLINE,
+                    () -> getContentExecution(cqlExecution, patientId, plan.getInlineLibrary()))
+                    .getParameter().forEach(executionResult::addParameter);
+        }
+        return executionResult;
+    }
+
     public Parameters getLibraryExecution(LibraryEvaluationOperationProvider libraryExecution, IdType logicId,
 														String patientId, List<String> expressions, Parameters parameters,
 														Bundle data, Endpoint remoteDataEndpoint) {
         Parameters executionResult = libraryExecution.evaluate(requestDetails, logicId, patientId,
                 expressions, parameters, data, null, remoteDataEndpoint,
                 null, null);
+        engineInvocations++;
+        checkError(executionResult);
+        return executionResult;
+    }
+
+    public Parameters getContentExecution(CqlExecutionOperationProvider cqlExecution, String patientId,
+                                          String content) {
+        Parameters executionResult = cqlExecution.evaluate(requestDetails,
+                patientId, null, null, null, null,
+                null, null, null, null,
+                null, content);
+        engineInvocations++;
         checkError(executionResult);
         return executionResult;
     }
@@ -46,6 +99,7 @@ public class R4CqlExecution {
                 patientId, expression, null, null, null,
                 null, null, null, null,
                 null, null);
+        engineInvocations++;
         checkError(executionResult);
         return executionResult;
     }
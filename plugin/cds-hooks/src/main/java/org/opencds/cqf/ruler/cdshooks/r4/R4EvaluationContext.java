@@ -0,0 +1,104 @@
+package org.opencds.cqf.ruler.cdshooks.r4;
+
+import static java.util.Objects.requireNonNull;
+
+import org.hl7.fhir.r4.model.Parameters;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksStageTimings;
+
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+/**
+ * Immutable state for a single CDS Hooks service invocation.
+ * <p>
+ * Everything that varies per request (the service being invoked, the patient,
+ * the request details handed to the CR operation providers, the CQL executor,
+ * the results of the primary library evaluation and the stage timings) is
+ * carried here and threaded through the resolution of the service plan, so
+ * that the servlet itself holds no per-request state and can serve concurrent
+ * hooks.
+ */
+public final class R4EvaluationContext {
+	private final String serviceId;
+	private final String patientId;
+	private final ServletRequestDetails requestDetails;
+	private final R4CqlExecution cqlExecution;
+	private final Parameters evaluationResults;
+	private final CdsHooksStageTimings timings;
+
+	private R4EvaluationContext(String serviceId, String patientId, ServletRequestDetails requestDetails,
+			R4CqlExecution cqlExecution, Parameters evaluationResults, CdsHooksStageTimings timings) {
+		this.serviceId = requireNonNull(serviceId, "serviceId can not be null");
+		this.patientId = patientId;
+		this.requestDetails = requireNonNull(requestDetails, "requestDetails can not be null");
+		this.cqlExecution = requireNonNull(cqlExecution, "cqlExecution can not be null");
+		this.evaluationResults = evaluationResults;
+		this.timings = requireNonNull(timings, "timings can not be null");
+	}
+
+	/**
+	 * Creates the context for a new hook invocation. Each call creates its own
+	 * {@link ServletRequestDetails} and {@link R4CqlExecution}; neither is shared
+	 * with any other request.
+	 *
+	 * @param serviceId the id of the service (PlanDefinition) being invoked
+	 * @param patientId the patient in context for the hook
+	 * @param baseUrl   the base url of the local FHIR server
+	 * @param server    the local RestfulServer
+	 * @return a context without evaluation results
+	 */
+	public static R4EvaluationContext create(String serviceId, String patientId, String baseUrl,
+			RestfulServer server) {
+		return create(serviceId, patientId, baseUrl, server, new CdsHooksStageTimings());
+	}
+
+	/**
+	 * @param timings the timings of the hook request, the CQL evaluations are
+	 *                added to
+	 * @see #create(String, String, String, RestfulServer)
+	 */
+	public static R4EvaluationContext create(String serviceId, String patientId, String baseUrl,
+			RestfulServer server, CdsHooksStageTimings timings) {
+		ServletRequestDetails requestDetails = new ServletRequestDetails();
+		requestDetails.setFhirServerBase(baseUrl);
+		requestDetails.setServer(server);
+		return new R4EvaluationContext(serviceId, patientId, requestDetails, new R4CqlExecution(baseUrl, timings),
+				null, timings);
+	}
+
+	/**
+	 * Returns a copy of this context carrying the results of the primary library
+	 * evaluation.
+	 *
+	 * @param evaluationResults the result of the library evaluation
+	 * @return a new context
+	 */
+	public R4EvaluationContext withEvaluationResults(Parameters evaluationResults) {
+		return new R4EvaluationContext(serviceId, patientId, requestDetails, cqlExecution, evaluationResults,
+				timings);
+	}
+
+	public String getServiceId() {
+		return serviceId;
+	}
+
+	public String getPatientId() {
+		return patientId;
+	}
+
+	public ServletRequestDetails getRequestDetails() {
+		return requestDetails;
+	}
+
+	public R4CqlExecution getCqlExecution() {
+		return cqlExecution;
+	}
+
+	public Parameters getEvaluationResults() {
+		return evaluationResults;
+	}
+
+	public CdsHooksStageTimings getTimings() {
+		return timings;
+	}
+}
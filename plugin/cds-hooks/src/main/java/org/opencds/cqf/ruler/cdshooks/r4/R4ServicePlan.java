@@ -0,0 +1,596 @@
+package org.opencds.cqf.ruler.cdshooks.r4;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.hl7.fhir.r4.model.ActivityDefinition;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Library;
+import org.hl7.fhir.r4.model.PlanDefinition;
+import org.hl7.fhir.r4.model.RelatedArtifact;
+import org.opencds.cqf.fhir.utility.Canonicals;
+import org.opencds.cqf.fhir.utility.Ids;
+import org.opencds.cqf.ruler.cdshooks.response.Card;
+import org.opencds.cqf.ruler.cdshooks.response.ErrorHandling;
+
+/**
+ * The compiled, immutable form of a CDS service (an R4 PlanDefinition).
+ * <p>
+ * Everything about a service that does not depend on the hook request is
+ * resolved once, when the plan is compiled: the primary Library, the
+ * deduplicated list of library expressions to evaluate, the links shown on
+ * every card and the action tree with its condition and dynamicValue kinds
+ * already classified. Evaluating a hook against a compiled plan requires no
+ * reads of the PlanDefinition and no walking of the FHIR resource.
+ * <p>
+ * Inline CQL expressions are gathered into a single generated library (see
+ * {@link #getInlineLibrary()}) so they can all be evaluated with one engine
+ * invocation instead of one per expression.
+ */
+public final class R4ServicePlan {
+
+	/**
+	 * The ways an expression in the plan is evaluated.
+	 */
+	public enum ExpressionKind {
+		/** A reference to an expression defined in the primary Library. */
+		IDENTIFIER,
+		/** An inline CQL expression evaluated on its own. */
+		INLINE_CQL,
+		/** A language the service can not evaluate. Conditions of this kind are false. */
+		UNSUPPORTED
+	}
+
+	/**
+	 * The part of a card a dynamicValue sets, determined from its path.
+	 */
+	public enum DynamicValueTarget {
+		SUMMARY,
+		DETAIL,
+		INDICATOR,
+		RESOURCE
+	}
+
+	private static final Pattern INLINE_LIBRARY_HEADER = Pattern.compile("^library (\\S+) version '([^']+)'");
+
+	private final String serviceId;
+	private final String version;
+	private final IdType libraryId;
+	private final List<String> expressions;
+	private final String inlineLibrary;
+	private final List<Card.Link> links;
+	private final List<Action> actions;
+	private final String definitionVersions;
+
+	private R4ServicePlan(String serviceId, String version, IdType libraryId, List<String> expressions,
+			String inlineLibrary, List<Card.Link> links, List<Action> actions) {
+		this.serviceId = serviceId;
+		this.version = version;
+		this.libraryId = libraryId;
+		this.expressions = Collections.unmodifiableList(expressions);
+		this.inlineLibrary = inlineLibrary;
+		this.links = Collections.unmodifiableList(links);
+		this.actions = Collections.unmodifiableList(actions);
+		Map<String, String> versions = new TreeMap<>();
+		collectDefinitionVersions(actions, versions);
+		this.definitionVersions = versions.entrySet().stream().map(e -> e.getKey() + "=" + e.getValue())
+				.collect(Collectors.joining(","));
+	}
+
+	private static void collectDefinitionVersions(List<Action> actions, Map<String, String> versions) {
+		for (Action action : actions) {
+			if (action.getDefinitionId() != null) {
+				versions.put(action.getDefinitionId().getIdPart(), String.valueOf(action.getDefinitionVersion()));
+			}
+			collectDefinitionVersions(action.getActions(), versions);
+		}
+	}
+
+	/**
+	 * Compiles a PlanDefinition into a service plan without looking at the
+	 * ActivityDefinitions of its suggestions, which are then always applied in
+	 * full.
+	 *
+	 * @param planDefinition the PlanDefinition describing the service
+	 * @return the compiled plan
+	 * @throws ErrorHandling.CdsHooksError if the PlanDefinition has no logic
+	 *                                     library
+	 */
+	public static R4ServicePlan compile(PlanDefinition planDefinition) {
+		return compile(planDefinition, id -> null);
+	}
+
+	/**
+	 * Compiles a PlanDefinition into a service plan. The dynamicValues of the
+	 * ActivityDefinitions applied for suggestions are compiled into the plan
+	 * where possible, so they are evaluated together with the card conditions
+	 * and the rest of the ActivityDefinition can be read once and reused
+	 * (see {@link R4ActivityTemplateCache}).
+	 *
+	 * @param planDefinition      the PlanDefinition describing the service
+	 * @param activityDefinitions reads an ActivityDefinition, returning null if
+	 *                            it does not exist
+	 * @return the compiled plan
+	 * @throws ErrorHandling.CdsHooksError if the PlanDefinition has no logic
+	 *                                     library
+	 */
+	public static R4ServicePlan compile(PlanDefinition planDefinition,
+			Function<IdType, ActivityDefinition> activityDefinitions) {
+		if (!planDefinition.hasLibrary()) {
+			throw new ErrorHandling.CdsHooksError(
+					"Logic library reference missing from PlanDefinition: " + planDefinition.getId());
+		}
+		IdType libraryId = Ids.newId(Library.class,
+				Canonicals.getIdPart(planDefinition.getLibrary().get(0)));
+
+		String serviceId = planDefinition.getIdElement().getIdPart();
+		Expressions expressions = new Expressions(libraryId, activityDefinitions);
+		List<Action> actions = compileActions(planDefinition.getAction(), expressions);
+
+		return new R4ServicePlan(serviceId, planDefinition.getIdElement().getVersionIdPart(), libraryId,
+				new ArrayList<>(expressions.identifiers), expressions.inlineLibrary(serviceId),
+				compileLinks(planDefinition), actions);
+	}
+
+	private static List<Card.Link> compileLinks(PlanDefinition planDefinition) {
+		List<Card.Link> links = new ArrayList<>();
+		// links - listed on each card
+		if (planDefinition.hasRelatedArtifact()) {
+			planDefinition.getRelatedArtifact().forEach(
+					ra -> {
+						Card.Link link = new Card.Link();
+						if (ra.hasDisplay())
+							link.setLabel(ra.getDisplay());
+						if (ra.hasUrl())
+							link.setUrl(ra.getUrl());
+						if (ra.hasExtension()) {
+							link.setType(ra.getExtensionFirstRep().getValue().primitiveValue());
+						} else
+							link.setType("absolute"); // default
+						links.add(link);
+					});
+		}
+		return links;
+	}
+
+	private static List<Action> compileActions(List<PlanDefinition.PlanDefinitionActionComponent> actions,
+			Expressions expressions) {
+		List<Action> compiled = new ArrayList<>();
+		if (actions != null) {
+			for (PlanDefinition.PlanDefinitionActionComponent action : actions) {
+				compiled.add(new Action(action, expressions));
+			}
+		}
+		return compiled;
+	}
+
+	private static ExpressionKind classify(String language) {
+		if ("text/cql-identifier".equals(language) || "text/cql.identifier".equals(language)) {
+			return ExpressionKind.IDENTIFIER;
+		}
+		return "text/cql".equals(language) ? ExpressionKind.INLINE_CQL : ExpressionKind.UNSUPPORTED;
+	}
+
+	private static String indicatorFor(String priority) {
+		switch (priority) {
+			case "routine":
+				return "info";
+			case "urgent":
+				return "warning";
+			case "stat":
+				return "critical";
+			default:
+				return null;
+		}
+	}
+
+	public String getServiceId() {
+		return serviceId;
+	}
+
+	public String getVersion() {
+		return version;
+	}
+
+	public IdType getLibraryId() {
+		return libraryId;
+	}
+
+	/**
+	 * @return the deduplicated expressions referenced from the primary Library
+	 */
+	public List<String> getExpressions() {
+		return expressions;
+	}
+
+	/**
+	 * Returns the CQL library defining every inline expression of the plan, or
+	 * null if the plan has no inline expressions. Each inline
+	 * {@link Expression} is defined in this library under its
+	 * {@link Expression#getName() name}.
+	 *
+	 * @return the generated library content
+	 */
+	public String getInlineLibrary() {
+		return inlineLibrary;
+	}
+
+	/**
+	 * @return the identifier the inline library is declared with, or null if the
+	 *         plan has no inline expressions
+	 */
+	public VersionedIdentifier getInlineLibraryIdentifier() {
+		if (inlineLibrary == null) {
+			return null;
+		}
+		Matcher matcher = INLINE_LIBRARY_HEADER.matcher(inlineLibrary);
+		return matcher.find() ? new VersionedIdentifier().withId(matcher.group(1)).withVersion(matcher.group(2))
+				: null;
+	}
+
+	/**
+	 * @return the links listed on each card of the service
+	 */
+	public List<Card.Link> getLinks() {
+		return links;
+	}
+
+	public List<Action> getActions() {
+		return actions;
+	}
+
+	/**
+	 * @return the id and version of every ActivityDefinition applied by the
+	 *         plan, sorted by id; cards produced with other versions are stale
+	 */
+	public String getDefinitionVersions() {
+		return definitionVersions;
+	}
+
+	/**
+	 * Collects the expressions of a plan while its actions are compiled.
+	 */
+	private static final class Expressions {
+		private final Set<String> identifiers = new LinkedHashSet<>();
+		private final Map<String, String> inline = new LinkedHashMap<>();
+		private final IdType libraryId;
+		private final Function<IdType, ActivityDefinition> activityDefinitions;
+
+		Expressions(IdType libraryId, Function<IdType, ActivityDefinition> activityDefinitions) {
+			this.libraryId = libraryId;
+			this.activityDefinitions = activityDefinitions;
+		}
+
+		Expression add(ExpressionKind kind, String expression) {
+			switch (kind) {
+				case IDENTIFIER:
+					identifiers.add(expression);
+					return new Expression(kind, expression, expression);
+				case INLINE_CQL:
+					return new Expression(kind, expression,
+							inline.computeIfAbsent(expression, x -> "Inline Expression " + (inline.size() + 1)));
+				default:
+					return new Expression(kind, expression, null);
+			}
+		}
+
+		String inlineLibrary(String serviceId) {
+			if (inline.isEmpty()) {
+				return null;
+			}
+			StringBuilder definitions = new StringBuilder();
+			inline.forEach((expression, name) -> definitions.append("define \"").append(name).append("\":\n  ")
+					.append(expression).append("\n\n"));
+			// The identifier is unique per service and the version changes with the
+			// content so the engine never reuses a library compiled for another plan.
+			return String.format("library CdsHooksInline_%s version '%s'%n%n"
+					+ "using FHIR version '4.0.1'%n%n"
+					+ "include FHIRHelpers version '4.0.1' called FHIRHelpers%n%n"
+					+ "context Patient%n%n%s",
+					serviceId.replaceAll("[^A-Za-z0-9_]", "_"),
+					Integer.toHexString(definitions.toString().hashCode()), definitions);
+		}
+	}
+
+	/**
+	 * A compiled expression: its kind, its text (the identifier for
+	 * {@link ExpressionKind#IDENTIFIER}, the CQL otherwise) and the name its
+	 * result is reported under in the evaluation results.
+	 */
+	public static final class Expression {
+		private final ExpressionKind kind;
+		private final String expression;
+		private final String name;
+
+		Expression(ExpressionKind kind, String expression, String name) {
+			this.kind = kind;
+			this.expression = expression;
+			this.name = name;
+		}
+
+		public ExpressionKind getKind() {
+			return kind;
+		}
+
+		public String getExpression() {
+			return expression;
+		}
+
+		/**
+		 * @return the name of the result in the evaluation results, or null for
+		 *         {@link ExpressionKind#UNSUPPORTED} expressions
+		 */
+		public String getName() {
+			return name;
+		}
+	}
+
+	/**
+	 * A compiled dynamicValue: the path it sets, the part of the card that path
+	 * maps to and the expression computing the value.
+	 */
+	public static final class DynamicValue {
+		private final String path;
+		private final DynamicValueTarget target;
+		private final Expression expression;
+
+		DynamicValue(String path, DynamicValueTarget target, Expression expression) {
+			this.path = path;
+			this.target = target;
+			this.expression = expression;
+		}
+
+		DynamicValue(String path, Expression expression) {
+			this.path = path;
+			this.expression = expression;
+			if (path.endsWith("title")) {
+				this.target = DynamicValueTarget.SUMMARY;
+			} else if (path.endsWith("description")) {
+				this.target = DynamicValueTarget.DETAIL;
+			} else if (path.endsWith("extension")) {
+				this.target = DynamicValueTarget.INDICATOR;
+			} else {
+				this.target = DynamicValueTarget.RESOURCE;
+			}
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public DynamicValueTarget getTarget() {
+			return target;
+		}
+
+		public Expression getExpression() {
+			return expression;
+		}
+	}
+
+	/**
+	 * A compiled PlanDefinition action. Holds the static card content of the
+	 * action, its classified conditions and dynamicValues, the suggestion it
+	 * produces (if any) and its nested actions.
+	 */
+	public static final class Action {
+		private final String title;
+		private final String description;
+		private final String priority;
+		private final String indicator;
+		private final Card.Source source;
+		private final String selectionBehavior;
+		private final String prefix;
+		private final String suggestionType;
+		private final IdType definitionId;
+		private final String definitionVersion;
+		private final List<DynamicValue> definitionDynamicValues;
+		private final List<Expression> conditions;
+		private final List<DynamicValue> dynamicValues;
+		private final List<Action> actions;
+
+		Action(PlanDefinition.PlanDefinitionActionComponent action, Expressions expressions) {
+			this.title = action.hasTitle() ? action.getTitle() : null;
+			this.description = action.hasDescription() ? action.getDescription() : null;
+			this.priority = action.hasPriority() ? action.getPriority().toCode() : null;
+			this.indicator = priority == null ? null : indicatorFor(priority);
+			this.source = action.hasDocumentation() ? compileSource(action.getDocumentationFirstRep()) : null;
+			this.selectionBehavior = action.hasSelectionBehavior() ? action.getSelectionBehavior().toCode() : null;
+			this.prefix = action.hasPrefix() ? action.getPrefix() : null;
+			this.suggestionType = action.hasType() && action.getType().hasCoding()
+					&& action.getType().getCodingFirstRep().hasCode()
+					&& !action.getType().getCodingFirstRep().getCode().equals("fire-event")
+							? action.getType().getCodingFirstRep().getCode()
+							: null;
+			if (action.hasDefinitionCanonicalType()
+					&& action.getDefinitionCanonicalType().getValue().contains("ActivityDefinition")) {
+				this.definitionId = new IdType(
+						Canonicals.getResourceType(action.getDefinitionCanonicalType().getValue()),
+						Canonicals.getIdPart(action.getDefinitionCanonicalType().getValue()));
+			} else {
+				this.definitionId = null;
+			}
+			ActivityDefinition definition = definitionId != null
+					? expressions.activityDefinitions.apply(definitionId)
+					: null;
+			this.definitionDynamicValues = compileDefinitionDynamicValues(definition, expressions);
+			this.definitionVersion = definition != null ? definition.getIdElement().getVersionIdPart() : null;
+
+			List<Expression> compiledConditions = new ArrayList<>();
+			action.getCondition().forEach(
+					condition -> {
+						if (condition.hasExpression() && condition.getExpression().hasLanguage()
+								&& condition.getExpression().hasExpression()) {
+							compiledConditions.add(expressions.add(
+									classify(condition.getExpression().getLanguage()),
+									condition.getExpression().getExpression()));
+						}
+					});
+			this.conditions = Collections.unmodifiableList(compiledConditions);
+
+			List<DynamicValue> compiledDynamicValues = new ArrayList<>();
+			action.getDynamicValue().forEach(
+					dv -> {
+						if (dv.hasPath() && dv.hasExpression() && dv.getExpression().hasLanguage()
+								&& dv.getExpression().hasExpression()) {
+							// anything that is not an identifier is evaluated as inline CQL
+							ExpressionKind kind = classify(dv.getExpression().getLanguage()) == ExpressionKind.IDENTIFIER
+									? ExpressionKind.IDENTIFIER
+									: ExpressionKind.INLINE_CQL;
+							compiledDynamicValues.add(new DynamicValue(dv.getPath(),
+									expressions.add(kind, dv.getExpression().getExpression())));
+						}
+					});
+			this.dynamicValues = Collections.unmodifiableList(compiledDynamicValues);
+
+			this.actions = Collections.unmodifiableList(compileActions(action.getAction(), expressions));
+		}
+
+		/**
+		 * Compiles the dynamicValues of an ActivityDefinition, which set parts of
+		 * the applied resource. Returns null, meaning the definition is applied in
+		 * full for every hook, if the definition could not be read or has a
+		 * dynamicValue that can not be evaluated with the plan: one in a language
+		 * other than CQL, or any CQL of a definition with a library other than
+		 * the primary one.
+		 */
+		private static List<DynamicValue> compileDefinitionDynamicValues(ActivityDefinition definition,
+				Expressions expressions) {
+			if (definition == null || definition.getIdElement().getVersionIdPart() == null) {
+				return null;
+			}
+			boolean primaryLibrary = !definition.hasLibrary() || expressions.libraryId.getIdPart()
+					.equals(Canonicals.getIdPart(definition.getLibrary().get(0)));
+			List<String[]> dynamicValues = new ArrayList<>();
+			for (ActivityDefinition.ActivityDefinitionDynamicValueComponent dv : definition.getDynamicValue()) {
+				if (!dv.hasPath() || !dv.hasExpression() || !dv.getExpression().hasExpression()) {
+					continue;
+				}
+				ExpressionKind kind = classify(dv.getExpression().getLanguage());
+				// inline CQL is compiled with FHIRHelpers only, without the definition's library
+				if (kind == ExpressionKind.UNSUPPORTED || !primaryLibrary) {
+					return null;
+				}
+				dynamicValues.add(new String[] { dv.getPath(), kind.name(), dv.getExpression().getExpression() });
+			}
+			List<DynamicValue> compiled = new ArrayList<>();
+			for (String[] dv : dynamicValues) {
+				compiled.add(new DynamicValue(dv[0], DynamicValueTarget.RESOURCE,
+						expressions.add(ExpressionKind.valueOf(dv[1]), dv[2])));
+			}
+			return Collections.unmodifiableList(compiled);
+		}
+
+		private static Card.Source compileSource(RelatedArtifact documentation) {
+			Card.Source source = new Card.Source();
+			if (documentation.hasDisplay()) {
+				source.setLabel(documentation.getDisplay());
+			}
+			if (documentation.hasUrl()) {
+				source.setUri(documentation.getUrl());
+			}
+			if (documentation.hasDocument() && documentation.getDocument().hasUrl()) {
+				source.setIcon(documentation.getDocument().getUrl());
+			}
+			return source;
+		}
+
+		public String getTitle() {
+			return title;
+		}
+
+		public String getDescription() {
+			return description;
+		}
+
+		/**
+		 * @return the card indicator for the action priority, or null if the
+		 *         action has no priority
+		 * @throws IllegalArgumentException if the priority has no indicator
+		 */
+		public String getIndicator() {
+			if (priority != null && indicator == null) {
+				throw new IllegalArgumentException("Invalid priority code: " + priority);
+			}
+			return indicator;
+		}
+
+		public Card.Source getSource() {
+			return source;
+		}
+
+		public String getSelectionBehavior() {
+			return selectionBehavior;
+		}
+
+		public String getPrefix() {
+			return prefix;
+		}
+
+		/**
+		 * @return the suggestion action type from the action type coding, or null
+		 */
+		public String getSuggestionType() {
+			return suggestionType;
+		}
+
+		/**
+		 * @return the id of the ActivityDefinition applied for the suggestion, or
+		 *         null
+		 */
+		public IdType getDefinitionId() {
+			return definitionId;
+		}
+
+		/**
+		 * @return the version of the ActivityDefinition the plan was compiled
+		 *         with, or null if it was not found
+		 */
+		public String getDefinitionVersion() {
+			return definitionVersion;
+		}
+
+		/**
+		 * @return true if the ActivityDefinition can be read once per version
+		 *         and reused, with its dynamicValues evaluated together with the
+		 *         card conditions
+		 */
+		public boolean hasDefinitionTemplate() {
+			return definitionDynamicValues != null;
+		}
+
+		/**
+		 * @return the dynamicValues of the ActivityDefinition, or null if it is
+		 *         applied in full for every hook
+		 */
+		public List<DynamicValue> getDefinitionDynamicValues() {
+			return definitionDynamicValues;
+		}
+
+		public List<Expression> getConditions() {
+			return conditions;
+		}
+
+		public List<DynamicValue> getDynamicValues() {
+			return dynamicValues;
+		}
+
+		public List<Action> getActions() {
+			return actions;
+		}
+
+		public boolean hasSuggestion() {
+			return selectionBehavior != null;
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package org.opencds.cqf.ruler.cdshooks.r4;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.ActivityDefinition;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.PlanDefinition;
+import org.opencds.cqf.fhir.utility.Ids;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+
+/**
+ * Cache of compiled {@link R4ServicePlan}s keyed by service id. Each entry is
+ * compiled from a single version of its PlanDefinition and is dropped by
+ * {@link org.opencds.cqf.ruler.cdshooks.CdsServicesCache} whenever that
+ * PlanDefinition changes, and by {@link R4ActivityTemplateCache} whenever an
+ * ActivityDefinition changes.
+ */
+public class R4ServicePlanCache {
+	private final Map<String, R4ServicePlan> plans = new ConcurrentHashMap<>();
+	private final DaoRegistry daoRegistry;
+
+	public R4ServicePlanCache(DaoRegistry daoRegistry) {
+		this.daoRegistry = daoRegistry;
+	}
+
+	/**
+	 * Returns the compiled plan for a service, compiling it from the
+	 * PlanDefinition if it is not cached yet.
+	 *
+	 * @param serviceId the id of the service
+	 * @return the compiled plan
+	 */
+	public R4ServicePlan get(String serviceId) {
+		return plans.computeIfAbsent(serviceId, this::compile);
+	}
+
+	/**
+	 * Compiles the given PlanDefinition and caches the result, replacing any
+	 * earlier plan for the same service.
+	 *
+	 * @param planDefinition the PlanDefinition to compile
+	 * @return the compiled plan
+	 */
+	public R4ServicePlan put(PlanDefinition planDefinition) {
+		R4ServicePlan plan = R4ServicePlan.compile(planDefinition, this::readActivityDefinition);
+		plans.put(plan.getServiceId(), plan);
+		return plan;
+	}
+
+	public void invalidate(IIdType id) {
+		plans.remove(id.getIdPart());
+	}
+
+	public void clear() {
+		plans.clear();
+	}
+
+	@SuppressWarnings("unchecked")
+	private R4ServicePlan compile(String serviceId) {
+		IFhirResourceDao<PlanDefinition> planDefinitionDao = (IFhirResourceDao<PlanDefinition>) daoRegistry
+				.getResourceDao("PlanDefinition");
+		return R4ServicePlan.compile(planDefinitionDao.read(Ids.newId(PlanDefinition.class, serviceId)),
+				this::readActivityDefinition);
+	}
+
+	@SuppressWarnings("unchecked")
+	private ActivityDefinition readActivityDefinition(IdType id) {
+		IFhirResourceDao<ActivityDefinition> activityDefinitionDao = (IFhirResourceDao<ActivityDefinition>) daoRegistry
+				.getResourceDao("ActivityDefinition");
+		try {
+			return activityDefinitionDao.read(id.toUnqualifiedVersionless());
+		} catch (ResourceNotFoundException | ResourceGoneException e) {
+			return null;
+		}
+	}
+}
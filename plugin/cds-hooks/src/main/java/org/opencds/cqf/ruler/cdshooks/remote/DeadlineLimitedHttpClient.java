@@ -0,0 +1,123 @@
+package org.opencds.cqf.ruler.cdshooks.remote;
+
+import java.io.IOException;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.opencds.cqf.ruler.cdshooks.EvaluationDeadline;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IRestfulClientFactory;
+import ca.uhn.fhir.rest.client.apache.ApacheRestfulClientFactory;
+
+/**
+ * Bounds the requests made on behalf of a hook with an
+ * {@link EvaluationDeadline} by the time it has left: no request is sent once
+ * the deadline has passed, and the connect, pool and socket timeouts of a
+ * request are shortened to the remaining time. Requests made on threads
+ * without a deadline are passed on unchanged.
+ */
+@SuppressWarnings("deprecation")
+public class DeadlineLimitedHttpClient extends CloseableHttpClient {
+	private static final Logger logger = LoggerFactory.getLogger(DeadlineLimitedHttpClient.class);
+
+	private final CloseableHttpClient delegate;
+	private final RequestConfig requestConfig;
+
+	public DeadlineLimitedHttpClient(CloseableHttpClient delegate, RequestConfig requestConfig) {
+		this.delegate = delegate;
+		this.requestConfig = requestConfig;
+	}
+
+	/**
+	 * Wraps the HTTP client the restful client factory of a FhirContext builds
+	 * its clients on. The clinical reasoning operations build the clients for
+	 * remote data endpoints from the server's FhirContext, so this is what
+	 * bounds the engine's remote retrieves by the deadline of the hook. The
+	 * pool and the default timeouts of the factory are kept as they are.
+	 *
+	 * @param fhirContext the FhirContext
+	 */
+	public static void install(FhirContext fhirContext) {
+		IRestfulClientFactory factory = fhirContext.getRestfulClientFactory();
+		if (!(factory instanceof ApacheRestfulClientFactory)) {
+			logger.warn("Remote requests of the CQL engine are not bounded by the hook deadline, "
+					+ "unsupported client factory {}", factory.getClass().getName());
+			return;
+		}
+		ApacheRestfulClientFactory apacheFactory = (ApacheRestfulClientFactory) factory;
+		HttpClient httpClient = apacheFactory.getNativeHttpClient();
+		if (httpClient instanceof DeadlineLimitedHttpClient) {
+			return;
+		}
+		if (!(httpClient instanceof CloseableHttpClient)) {
+			logger.warn("Remote requests of the CQL engine are not bounded by the hook deadline, "
+					+ "unsupported HTTP client {}", httpClient.getClass().getName());
+			return;
+		}
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(factory.getConnectTimeout())
+				.setConnectionRequestTimeout(factory.getConnectionRequestTimeout())
+				.setSocketTimeout(factory.getSocketTimeout())
+				.build();
+		apacheFactory.setHttpClient(new DeadlineLimitedHttpClient((CloseableHttpClient) httpClient, requestConfig));
+	}
+
+	@Override
+	protected CloseableHttpResponse doExecute(HttpHost target, HttpRequest request, HttpContext context)
+			throws IOException, ClientProtocolException {
+		EvaluationDeadline deadline = EvaluationDeadline.current();
+		if (deadline.isBounded()) {
+			deadline.check("remote request");
+			if (request instanceof HttpRequestBase) {
+				limit((HttpRequestBase) request, requestConfig, deadline);
+			}
+		}
+		return delegate.execute(target, request, context);
+	}
+
+	/**
+	 * Shortens the timeouts of a request made on behalf of a hook with a
+	 * deadline to the time it has left. The socket timeout bounds each read,
+	 * not the whole response.
+	 */
+	static void limit(HttpRequestBase request, RequestConfig defaults, EvaluationDeadline deadline) {
+		RequestConfig config = request.getConfig() != null ? request.getConfig() : defaults;
+		request.setConfig(RequestConfig.copy(config)
+				.setConnectTimeout(limit(config.getConnectTimeout(), deadline))
+				.setConnectionRequestTimeout(limit(config.getConnectionRequestTimeout(), deadline))
+				.setSocketTimeout(limit(config.getSocketTimeout(), deadline))
+				.build());
+	}
+
+	private static int limit(int timeoutMillis, EvaluationDeadline deadline) {
+		long limited = deadline.limit(timeoutMillis > 0 ? timeoutMillis : Integer.MAX_VALUE);
+		return (int) Math.max(1, limited);
+	}
+
+	@Override
+	public void close() throws IOException {
+		delegate.close();
+	}
+
+	@Override
+	public HttpParams getParams() {
+		return delegate.getParams();
+	}
+
+	@Override
+	public ClientConnectionManager getConnectionManager() {
+		return delegate.getConnectionManager();
+	}
+}
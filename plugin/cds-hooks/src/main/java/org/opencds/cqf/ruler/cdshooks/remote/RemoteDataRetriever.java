@@ -0,0 +1,366 @@
+package org.opencds.cqf.ruler.cdshooks.remote;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DataRequirement;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Library;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.opencds.cqf.ruler.behavior.DaoRegistryUser;
+import org.opencds.cqf.ruler.cdshooks.DeadlineExceededException;
+import org.opencds.cqf.ruler.cdshooks.EvaluationDeadline;
+import org.opencds.cqf.ruler.cdshooks.discovery.DiscoveryResolutionR4;
+import org.opencds.cqf.ruler.cdshooks.providers.ProviderConfiguration;
+import org.opencds.cqf.ruler.utility.Searches;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.rest.api.SearchStyleEnum;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.util.UrlUtil;
+
+/**
+ * Retrieves the data for a set of code-filtered searches from a remote FHIR
+ * server, following the {@link ProviderConfiguration} settings:
+ * <ul>
+ * <li>the codes of a search are split into chunks of at most
+ * {@code maxCodesPerQuery} codes, one search per chunk;</li>
+ * <li>searches are sent as GET or as POST {@code _search} according to
+ * {@code searchStyle};</li>
+ * <li>when there are more than {@code queryBatchThreshold} searches they are
+ * sent as a single {@code batch} Bundle of GET entries, otherwise they are run
+ * in parallel;</li>
+ * <li>ValueSet filters are sent as expanded code lists when
+ * {@code expandValueSets} is set and with the {@code :in} modifier
+ * otherwise.</li>
+ * </ul>
+ * All pages of every search are read and the resources are returned in a
+ * single collection Bundle without duplicates.
+ */
+public class RemoteDataRetriever implements DaoRegistryUser, AutoCloseable {
+	private static final Logger logger = LoggerFactory.getLogger(RemoteDataRetriever.class);
+
+	private final DaoRegistry daoRegistry;
+	private final ProviderConfiguration providerConfiguration;
+	private final DiscoveryResolutionR4 discoveryResolution;
+	private final ExecutorService executor;
+
+	public RemoteDataRetriever(DaoRegistry daoRegistry, ProviderConfiguration providerConfiguration, int threads) {
+		this.daoRegistry = daoRegistry;
+		this.providerConfiguration = providerConfiguration;
+		this.discoveryResolution = new DiscoveryResolutionR4(daoRegistry);
+		this.executor = Executors.newFixedThreadPool(threads, new RetrieveThreadFactory());
+	}
+
+	@Override
+	public DaoRegistry getDaoRegistry() {
+		return daoRegistry;
+	}
+
+	/**
+	 * A search for one resource type. The codes, if any, are OR-ed together in
+	 * the code parameter and may be split over several requests.
+	 */
+	public static final class Query {
+		private final String resourceType;
+		private final Map<String, String> parameters;
+		private final String codeParameter;
+		private final List<String> codes;
+
+		public Query(String resourceType, Map<String, String> parameters) {
+			this(resourceType, parameters, null, Collections.emptyList());
+		}
+
+		public Query(String resourceType, Map<String, String> parameters, String codeParameter, List<String> codes) {
+			this.resourceType = resourceType;
+			this.parameters = Collections.unmodifiableMap(new LinkedHashMap<>(parameters));
+			this.codeParameter = codeParameter;
+			this.codes = Collections.unmodifiableList(new ArrayList<>(codes));
+		}
+
+		public String getResourceType() {
+			return resourceType;
+		}
+
+		public Map<String, String> getParameters() {
+			return parameters;
+		}
+
+		public String getCodeParameter() {
+			return codeParameter;
+		}
+
+		public List<String> getCodes() {
+			return codes;
+		}
+	}
+
+	/**
+	 * The data preloaded for a library, and whether it is all the data the
+	 * library needs.
+	 */
+	public static final class Preloaded {
+		private final Bundle data;
+		private final boolean complete;
+
+		Preloaded(Bundle data, boolean complete) {
+			this.data = data;
+			this.complete = complete;
+		}
+
+		public Bundle getData() {
+			return data;
+		}
+
+		/**
+		 * @return whether every data requirement of the library was preloaded;
+		 *         if not, the library still needs the remote server for the
+		 *         requirements outside the patient compartment
+		 */
+		public boolean isComplete() {
+			return complete;
+		}
+	}
+
+	/**
+	 * Reads the patient-compartment data requirements of a library from a
+	 * remote server, so the library can be evaluated against the returned data
+	 * instead of having the engine search the server retrieve by retrieve. The
+	 * Patient is always read.
+	 *
+	 * @param client    the client for the remote server
+	 * @param libraryId the id of the library
+	 * @param patientId the id of the patient, bare or as {@code Patient/id}
+	 * @return the resources found, or null if the library declares no
+	 *         patient-compartment data requirements
+	 */
+	public Preloaded preload(IGenericClient client, IdType libraryId, String patientId) {
+		Library library = read(libraryId);
+		List<Query> queries = getQueries(library, patientId);
+		if (queries.isEmpty()) {
+			return null;
+		}
+		if (queries.stream().noneMatch(query -> "Patient".equals(query.getResourceType()))) {
+			queries.add(new Query("Patient", Collections.singletonMap("_id", new IdType(patientId).getIdPart())));
+		}
+		boolean complete = library.getDataRequirement().stream()
+				.allMatch(dataRequirement -> dataRequirement.getType() == null
+						|| DiscoveryResolutionR4.isPatientCompartment(dataRequirement.getType()));
+		return new Preloaded(retrieve(client, queries), complete);
+	}
+
+	/**
+	 * Builds the searches for the patient-compartment data requirements of a
+	 * library.
+	 *
+	 * @param library   the library
+	 * @param patientId the id of the patient, bare or as {@code Patient/id}
+	 * @return the searches
+	 */
+	public List<Query> getQueries(Library library, String patientId) {
+		String idPart = new IdType(patientId).getIdPart();
+		List<Query> queries = new ArrayList<>();
+		for (DataRequirement dataRequirement : library.getDataRequirement()) {
+			String type = dataRequirement.getType();
+			if (type == null || !DiscoveryResolutionR4.isPatientCompartment(type)) {
+				continue;
+			}
+			Map<String, String> parameters = new LinkedHashMap<>();
+			String patientParameter = discoveryResolution.getPatientSearchParam(type);
+			parameters.put(patientParameter, patientParameter.equals("_id") ? idPart : "Patient/" + idPart);
+
+			boolean filtered = false;
+			for (DataRequirement.DataRequirementCodeFilterComponent codeFilter : dataRequirement.getCodeFilter()) {
+				if (!codeFilter.hasPath()) {
+					continue;
+				}
+				String codeParameter = discoveryResolution.mapCodePathToSearchParam(type, codeFilter.getPath());
+				if (codeFilter.hasValueSet()) {
+					if (providerConfiguration.getExpandValueSets()) {
+						ValueSet valueSet = search(ValueSet.class, Searches.byCanonical(codeFilter.getValueSet()))
+								.single();
+						queries.add(new Query(type, parameters, codeParameter,
+								discoveryResolution.getCodeTokens(valueSet)));
+					} else {
+						Map<String, String> inValueSet = new LinkedHashMap<>(parameters);
+						inValueSet.put(codeParameter + ":in", codeFilter.getValueSet());
+						queries.add(new Query(type, inValueSet));
+					}
+					filtered = true;
+				} else if (codeFilter.hasCode()) {
+					List<String> codes = new ArrayList<>();
+					for (Coding coding : codeFilter.getCode()) {
+						codes.add(coding.getSystem() + "|" + coding.getCode());
+					}
+					queries.add(new Query(type, parameters, codeParameter, codes));
+					filtered = true;
+				}
+			}
+			if (!filtered) {
+				queries.add(new Query(type, parameters));
+			}
+		}
+		return queries;
+	}
+
+	/**
+	 * @param queries the searches
+	 * @return the relative search urls the searches are split into, at most
+	 *         {@code maxCodesPerQuery} codes each
+	 */
+	public List<String> getSearchUrls(List<Query> queries) {
+		Integer maxCodes = providerConfiguration.getMaxCodesPerQuery();
+		List<String> urls = new ArrayList<>();
+		for (Query query : queries) {
+			StringBuilder base = new StringBuilder(query.getResourceType()).append('?');
+			query.getParameters().forEach((name, value) -> base.append(name).append('=')
+					.append(UrlUtil.escapeUrlParam(value)).append('&'));
+			List<String> codes = query.getCodes();
+			if (query.getCodeParameter() == null || codes.isEmpty()) {
+				urls.add(base.substring(0, base.length() - 1));
+				continue;
+			}
+			int chunkSize = maxCodes != null && maxCodes > 0 ? maxCodes : codes.size();
+			for (int start = 0; start < codes.size(); start += chunkSize) {
+				List<String> chunk = codes.subList(start, Math.min(codes.size(), start + chunkSize));
+				urls.add(base + query.getCodeParameter() + "=" + UrlUtil.escapeUrlParam(String.join(",", chunk)));
+			}
+		}
+		return urls;
+	}
+
+	/**
+	 * Runs the searches against a remote server.
+	 *
+	 * @param client  the client for the remote server
+	 * @param queries the searches
+	 * @return the resources found, without duplicates
+	 */
+	public Bundle retrieve(IGenericClient client, List<Query> queries) {
+		return retrieveUrls(client, getSearchUrls(queries));
+	}
+
+	/**
+	 * Runs already split searches against a remote server, as a batch or in
+	 * parallel depending on their number.
+	 *
+	 * @param client the client for the remote server
+	 * @param urls   the relative search urls
+	 * @return the resources found, without duplicates
+	 */
+	public Bundle retrieveUrls(IGenericClient client, List<String> urls) {
+		Integer threshold = providerConfiguration.getQueryBatchThreshold();
+		List<Bundle> results = threshold != null && urls.size() > threshold ? batch(client, urls)
+				: parallel(client, urls);
+
+		Map<String, Resource> resources = new LinkedHashMap<>();
+		for (Bundle result : results) {
+			Bundle page = result;
+			while (page != null) {
+				page.getEntry().stream().filter(Bundle.BundleEntryComponent::hasResource)
+						.map(Bundle.BundleEntryComponent::getResource)
+						.forEach(resource -> resources.putIfAbsent(
+								resource.fhirType() + "/" + resource.getIdElement().getIdPart(), resource));
+				if (page.getLink(Bundle.LINK_NEXT) != null) {
+					EvaluationDeadline.current().check("remote retrieval");
+					page = client.loadPage().next(page).execute();
+				} else {
+					page = null;
+				}
+			}
+		}
+		Bundle data = new Bundle().setType(Bundle.BundleType.COLLECTION);
+		resources.values().forEach(resource -> data.addEntry().setResource(resource));
+		return data;
+	}
+
+	private List<Bundle> parallel(IGenericClient client, List<String> urls) {
+		SearchStyleEnum searchStyle = providerConfiguration.getSearchStyle() != null
+				? providerConfiguration.getSearchStyle()
+				: SearchStyleEnum.GET;
+		EvaluationDeadline deadline = EvaluationDeadline.current();
+		List<Future<Bundle>> futures = new ArrayList<>();
+		for (String url : urls) {
+			futures.add(executor.submit(deadline.wrap(() -> client.search().byUrl(url).usingStyle(searchStyle)
+					.returnBundle(Bundle.class).execute())));
+		}
+		List<Bundle> results = new ArrayList<>();
+		try {
+			for (Future<Bundle> future : futures) {
+				results.add(deadline.isBounded() ? future.get(deadline.remainingMillis(), TimeUnit.MILLISECONDS)
+						: future.get());
+			}
+		} catch (TimeoutException e) {
+			throw new DeadlineExceededException("remote retrieval");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while retrieving remote data", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			futures.forEach(future -> future.cancel(true));
+		}
+		return results;
+	}
+
+	/**
+	 * The entries are always GET requests: the batch itself is POSTed, so the
+	 * search parameters never end up in a request line.
+	 */
+	private List<Bundle> batch(IGenericClient client, List<String> urls) {
+		Bundle batch = new Bundle().setType(Bundle.BundleType.BATCH);
+		urls.forEach(url -> batch.addEntry().getRequest().setMethod(Bundle.HTTPVerb.GET).setUrl(url));
+		Bundle response = client.transaction().withBundle(batch).execute();
+
+		List<Bundle> results = new ArrayList<>();
+		for (int i = 0; i < response.getEntry().size(); i++) {
+			Bundle.BundleEntryComponent entry = response.getEntry().get(i);
+			String status = entry.getResponse().getStatus();
+			if (status != null && !status.startsWith("2")) {
+				logger.warn("Remote batch entry {} failed with {}", urls.get(i), status);
+				throw BaseServerResponseException.newInstance(Integer.parseInt(status.split(" ")[0]),
+						String.format("Remote search %s failed with %s", urls.get(i), status));
+			}
+			if (entry.getResource() instanceof Bundle) {
+				results.add((Bundle) entry.getResource());
+			}
+		}
+		return results;
+	}
+
+	@Override
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	private static class RetrieveThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "cds-hooks-remote-retrieve-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
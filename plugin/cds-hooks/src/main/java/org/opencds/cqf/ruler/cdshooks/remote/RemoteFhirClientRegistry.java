@@ -0,0 +1,251 @@
+package org.opencds.cqf.ruler.cdshooks.remote;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.entity.BufferedHttpEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.hl7.fhir.r4.model.Endpoint;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksMetrics;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksProperties;
+import org.opencds.cqf.ruler.cdshooks.EvaluationDeadline;
+import org.opencds.cqf.ruler.cdshooks.request.CdsHooksRequest;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.client.apache.ApacheRestfulClientFactory;
+
+/**
+ * Clients for the remote FHIR servers ({@code fhirServer}) named by hook
+ * requests.
+ * <p>
+ * Every hook request gets its own lightweight client carrying only its own
+ * authorization, so the access token of one request is never sent on behalf
+ * of another. All clients share a single pooled HTTP client, with a connection
+ * manager of its own, that keeps connections alive between requests, so TLS
+ * handshakes and connection setup are paid once per connection rather than
+ * once per request. At most
+ * {@code maxConcurrentRequestsPerHost} requests run against one host at a time;
+ * further requests wait up to {@code acquireTimeoutMillis} for a slot. The
+ * latency and outcome of every request is recorded through
+ * {@link CdsHooksMetrics}.
+ */
+public class RemoteFhirClientRegistry implements AutoCloseable {
+	private final String clientIdHeaderName;
+	private final CloseableHttpClient httpClient;
+	private final ApacheRestfulClientFactory clientFactory;
+
+	public RemoteFhirClientRegistry(FhirContext fhirContext, CdsHooksProperties.RemoteClient properties,
+			String clientIdHeaderName, CdsHooksMetrics metrics) {
+		this.clientIdHeaderName = clientIdHeaderName;
+
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(
+				properties.getKeepAliveMillis(), TimeUnit.MILLISECONDS);
+		connectionManager.setMaxTotal(properties.getMaxConnections());
+		connectionManager.setDefaultMaxPerRoute(properties.getMaxConnectionsPerHost());
+		connectionManager.setValidateAfterInactivity(2000);
+		long keepAliveMillis = properties.getKeepAliveMillis();
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(properties.getConnectTimeoutMillis())
+				.setConnectionRequestTimeout(properties.getConnectTimeoutMillis())
+				.setSocketTimeout(properties.getSocketTimeoutMillis())
+				.build();
+		CloseableHttpClient pooled = HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setKeepAliveStrategy((response, context) -> {
+					long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE
+							.getKeepAliveDuration(response, context);
+					return serverKeepAlive > 0 ? Math.min(serverKeepAlive, keepAliveMillis) : keepAliveMillis;
+				})
+				.setDefaultRequestConfig(requestConfig)
+				.evictIdleConnections(keepAliveMillis, TimeUnit.MILLISECONDS)
+				.evictExpiredConnections()
+				.build();
+		this.httpClient = new HostLimitedHttpClient(pooled, properties.getMaxConcurrentRequestsPerHost(),
+				properties.getAcquireTimeoutMillis(), requestConfig, metrics);
+
+		this.clientFactory = new ApacheRestfulClientFactory(fhirContext);
+		this.clientFactory.setHttpClient(httpClient);
+		this.clientFactory.setServerValidationMode(ServerValidationModeEnum.NEVER);
+	}
+
+	/**
+	 * Returns a client for a remote server that applies the given authorization
+	 * to every request made with it. The client is meant to be used for a
+	 * single hook request; it only holds the authorization, connections come
+	 * from the shared pool.
+	 *
+	 * @param fhirServer    the base url of the remote server
+	 * @param authorization the authorization from the hook request, may be null
+	 * @return the client
+	 */
+	public IGenericClient getClient(String fhirServer, CdsHooksRequest.FhirAuthorization authorization) {
+		IGenericClient client = clientFactory.newGenericClient(normalize(fhirServer));
+		client.registerInterceptor(new AuthorizationInterceptor(clientIdHeaderName, authorization));
+		return client;
+	}
+
+	/**
+	 * Builds the endpoint handed to the clinical reasoning operations for data
+	 * retrieval from a remote server, carrying the same headers as the clients
+	 * of this registry.
+	 *
+	 * @param fhirServer    the base url of the remote server
+	 * @param authorization the authorization from the hook request, may be null
+	 * @return the endpoint
+	 */
+	public Endpoint getEndpoint(String fhirServer, CdsHooksRequest.FhirAuthorization authorization) {
+		Endpoint endpoint = new Endpoint().setAddress(fhirServer);
+		if (authorization != null) {
+			endpoint.addHeader(String.format("Authorization: %s %s", authorization.tokenType,
+					authorization.accessToken));
+			if (authorization.subject != null) {
+				endpoint.addHeader(clientIdHeaderName + ": " + authorization.subject);
+			}
+		}
+		return endpoint;
+	}
+
+	@Override
+	public void close() throws IOException {
+		httpClient.close();
+	}
+
+	private static String normalize(String fhirServer) {
+		String base = Objects.requireNonNull(fhirServer, "fhirServer can not be null").trim();
+		while (base.endsWith("/")) {
+			base = base.substring(0, base.length() - 1);
+		}
+		return base;
+	}
+
+	private static class AuthorizationInterceptor implements IClientInterceptor {
+		private final String clientIdHeaderName;
+		private final CdsHooksRequest.FhirAuthorization authorization;
+
+		AuthorizationInterceptor(String clientIdHeaderName, CdsHooksRequest.FhirAuthorization authorization) {
+			this.clientIdHeaderName = clientIdHeaderName;
+			this.authorization = authorization;
+		}
+
+		@Override
+		public void interceptRequest(IHttpRequest request) {
+			if (authorization != null) {
+				request.addHeader("Authorization", authorization.tokenType + " " + authorization.accessToken);
+				if (authorization.subject != null && clientIdHeaderName != null) {
+					request.addHeader(clientIdHeaderName, authorization.subject);
+				}
+			}
+		}
+
+		@Override
+		public void interceptResponse(IHttpResponse response) {
+			// nothing to do
+		}
+	}
+
+	/**
+	 * Limits the number of concurrent requests per host and records their
+	 * latency. The response body is read while the slot is held, which also
+	 * hands the connection back to the pool as soon as possible. Requests made
+	 * on behalf of a hook with an {@link EvaluationDeadline} wait for a slot and
+	 * for the server no longer than the time it has left.
+	 */
+	@SuppressWarnings("deprecation")
+	private static class HostLimitedHttpClient extends CloseableHttpClient {
+		private final CloseableHttpClient delegate;
+		private final int maxConcurrentRequests;
+		private final long acquireTimeoutMillis;
+		private final RequestConfig requestConfig;
+		private final CdsHooksMetrics metrics;
+		private final Map<String, Semaphore> hosts = new ConcurrentHashMap<>();
+
+		HostLimitedHttpClient(CloseableHttpClient delegate, int maxConcurrentRequests, long acquireTimeoutMillis,
+				RequestConfig requestConfig, CdsHooksMetrics metrics) {
+			this.delegate = delegate;
+			this.maxConcurrentRequests = maxConcurrentRequests;
+			this.acquireTimeoutMillis = acquireTimeoutMillis;
+			this.requestConfig = requestConfig;
+			this.metrics = metrics;
+		}
+
+		@Override
+		protected CloseableHttpResponse doExecute(HttpHost target, HttpRequest request, HttpContext context)
+				throws IOException, ClientProtocolException {
+			String host = target != null ? target.toHostString() : "unknown";
+			Semaphore slots = hosts.computeIfAbsent(host, x -> new Semaphore(maxConcurrentRequests, true));
+			EvaluationDeadline deadline = EvaluationDeadline.current();
+			deadline.check("remote request");
+			long start = System.nanoTime();
+			try {
+				if (!slots.tryAcquire(deadline.limit(acquireTimeoutMillis), TimeUnit.MILLISECONDS)) {
+					metrics.recordRemoteRequest(host, "rejected", System.nanoTime() - start);
+					throw new ConnectionPoolTimeoutException(
+							String.format("Timed out waiting for a request slot for %s", host));
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for a request slot for " + host);
+			}
+
+			if (deadline.isBounded() && request instanceof HttpRequestBase) {
+				DeadlineLimitedHttpClient.limit((HttpRequestBase) request, requestConfig, deadline);
+			}
+
+			String outcome = "error";
+			try {
+				CloseableHttpResponse response = delegate.execute(target, request, context);
+				try {
+					if (response.getEntity() != null) {
+						response.setEntity(new BufferedHttpEntity(response.getEntity()));
+					}
+				} catch (IOException e) {
+					response.close();
+					throw e;
+				}
+				outcome = (response.getStatusLine().getStatusCode() / 100) + "xx";
+				return response;
+			} finally {
+				slots.release();
+				metrics.recordRemoteRequest(host, outcome, System.nanoTime() - start);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			delegate.close();
+		}
+
+		@Override
+		public HttpParams getParams() {
+			return delegate.getParams();
+		}
+
+		@Override
+		public ClientConnectionManager getConnectionManager() {
+			return delegate.getConnectionManager();
+		}
+	}
+}
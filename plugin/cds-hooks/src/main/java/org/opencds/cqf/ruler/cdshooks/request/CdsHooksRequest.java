@@ -1,18 +1,24 @@
 package org.opencds.cqf.ruler.cdshooks.request;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonTypeInfo;
 import com.fasterxml.jackson.annotation.JsonSubTypes;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonAnySetter;
 import com.fasterxml.jackson.annotation.JsonTypeName;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.google.gson.Gson;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonNull;
-import com.google.gson.JsonObject;
-
-import java.util.HashMap;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Resource;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -23,8 +29,6 @@ import java.util.Map;
         @JsonSubTypes.Type(value = CdsHooksRequest.OrderSelect.class, name = "order-select")
 })
 public class CdsHooksRequest {
-    private static final Gson gson = new Gson();
-
     @JsonProperty(required = true)
     public String hook;
     @JsonProperty(required = true)
@@ -40,6 +44,24 @@ public class CdsHooksRequest {
     @JsonIgnore
     public Object extension;
 
+    /**
+     * @return the name of the hook, taken from the request type since Jackson
+     * consumes the hook property to select it
+     */
+    @JsonIgnore
+    public String getHookName() {
+        JsonTypeName typeName = getClass().getAnnotation(JsonTypeName.class);
+        return typeName != null ? typeName.value() : hook;
+    }
+
+    /**
+     * @return the hook context; order hooks declare their own context type
+     */
+    @JsonIgnore
+    public Context getHookContext() {
+        return context;
+    }
+
     public static class FhirAuthorization {
         @JsonProperty(value = "access_token", required = true)
         public String accessToken;
@@ -78,30 +100,43 @@ public class CdsHooksRequest {
         public String encounterId;
     }
 
+    /**
+     * Prefetch results keyed by prefetch template name. Results are parsed straight
+     * into R4 resources; entries the client could not (or did not successfully)
+     * fulfill are kept with a null value.
+     */
+    @JsonDeserialize(using = Prefetch.Deserializer.class)
     public static class Prefetch {
         @JsonProperty
-        public Map<String, JsonElement> resources = new HashMap<>();
+        public Map<String, Resource> resources = new LinkedHashMap<>();
 
-        @JsonAnySetter
-        public void setResources(String key, Object resource) {
-            if (resource == null) {
-                resources.put(key, JsonNull.INSTANCE);
+        public void setResources(String key, JsonNode resource) {
+            if (resource != null && resource.isObject() && resource.has("response")) {
+                JsonNode response = resource.get("response");
+                resource = response.path("status").asText().equals("200 OK") ? resource.get("resource") : null;
             }
-            JsonElement element = gson.fromJson(gson.toJson(resource), JsonElement.class);
-            if (element.isJsonArray()) {
-                resources.put(key, element.getAsJsonArray());
+            resources.put(key, FhirResourceDeserializer.parse(Resource.class, resource));
+        }
+
+        public static class Deserializer extends StdDeserializer<Prefetch> {
+            private static final long serialVersionUID = 1L;
+
+            public Deserializer() {
+                super(Prefetch.class);
             }
-            else if (element.isJsonObject()) {
-                JsonObject resourceObject = element.getAsJsonObject();
-                if (resourceObject.has("response")) {
-                    JsonObject response = resourceObject.get("response").getAsJsonObject();
-                    if (response.has("status") && response.get("status").getAsString().equals("200 OK")
-                            && resourceObject.has("resource")) {
-                        resources.put(key, resourceObject.get("resource").getAsJsonObject());
-                    }
-                } else {
-                    resources.put(key, resourceObject);
+
+            @Override
+            public Prefetch deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+                Prefetch prefetch = new Prefetch();
+                if (parser.currentToken() != JsonToken.START_OBJECT) {
+                    return (Prefetch) context.handleUnexpectedToken(Prefetch.class, parser);
                 }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String key = parser.currentName();
+                    parser.nextToken();
+                    prefetch.setResources(key, context.readTree(parser));
+                }
+                return prefetch;
             }
         }
     }
@@ -116,14 +151,17 @@ public class CdsHooksRequest {
         @JsonProperty(required = true)
         public CdsHooksRequest.OrderSign.Context context;
 
+        @Override
+        @JsonIgnore
+        public Context getHookContext() {
+            return context;
+        }
+
+        @JsonIgnoreProperties(ignoreUnknown = true)
         public static class Context extends CdsHooksRequest.Context {
             @JsonProperty(required = true)
-            public JsonObject draftOrders;
-
-            @JsonAnySetter
-            public void setDraftOrders(Object bundle) {
-                draftOrders = gson.fromJson(gson.toJson(bundle), JsonObject.class);
-            }
+            @JsonDeserialize(using = FhirResourceDeserializer.BundleResource.class)
+            public Bundle draftOrders;
         }
     }
 
@@ -132,6 +170,12 @@ public class CdsHooksRequest {
         @JsonProperty(required = true)
         public CdsHooksRequest.OrderSelect.Context context;
 
+        @Override
+        @JsonIgnore
+        public Context getHookContext() {
+            return context;
+        }
+
         public static class Context extends CdsHooksRequest.OrderSign.Context {
             @JsonProperty(required = true)
             private List<String> selections;
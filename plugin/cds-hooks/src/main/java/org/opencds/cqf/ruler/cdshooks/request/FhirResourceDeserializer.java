@@ -0,0 +1,83 @@
+package org.opencds.cqf.ruler.cdshooks.request;
+
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Resource;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.parser.LenientErrorHandler;
+import ca.uhn.fhir.parser.json.jackson.JacksonStructure;
+
+/**
+ * Deserializes FHIR R4 resources embedded in a CDS Hooks request (prefetch
+ * and draftOrders) directly from the Jackson tree read for the request. The
+ * tree is handed to the HAPI parser as is, so the resource JSON is tokenized
+ * once and never written back out to a String.
+ * <p>
+ * HAPI parsers are not thread safe but are costly to create, so one parser is
+ * kept per thread.
+ *
+ * @param <T> the resource type
+ */
+public class FhirResourceDeserializer<T extends Resource> extends StdDeserializer<T> {
+	private static final long serialVersionUID = 1L;
+
+	private static final ThreadLocal<IParser> parser = ThreadLocal.withInitial(
+			() -> FhirContext.forR4Cached().newJsonParser().setParserErrorHandler(new LenientErrorHandler()));
+
+	private final Class<T> resourceType;
+
+	protected FhirResourceDeserializer(Class<T> resourceType) {
+		super(resourceType);
+		this.resourceType = resourceType;
+	}
+
+	@Override
+	public T deserialize(JsonParser jsonParser, DeserializationContext context) throws IOException {
+		return parse(resourceType, context.readTree(jsonParser));
+	}
+
+	/**
+	 * Parses a resource from a JSON tree.
+	 *
+	 * @param resourceType the expected resource type
+	 * @param node         the JSON tree
+	 * @param <R>          the resource type
+	 * @return the resource, or null if the node is not a JSON object
+	 */
+	public static <R extends Resource> R parse(Class<R> resourceType, JsonNode node) {
+		if (node == null || !node.isObject()) {
+			return null;
+		}
+		JacksonStructure structure = new JacksonStructure();
+		structure.setNativeObject((ObjectNode) node);
+		// abstract types are resolved from the resourceType property
+		Class<? extends Resource> type = Modifier.isAbstract(resourceType.getModifiers()) ? null : resourceType;
+		return resourceType.cast(parser.get().parseResource(type, structure));
+	}
+
+	public static class AnyResource extends FhirResourceDeserializer<Resource> {
+		private static final long serialVersionUID = 1L;
+
+		public AnyResource() {
+			super(Resource.class);
+		}
+	}
+
+	public static class BundleResource extends FhirResourceDeserializer<Bundle> {
+		private static final long serialVersionUID = 1L;
+
+		public BundleResource() {
+			super(Bundle.class);
+		}
+	}
+}
@@ -6,8 +6,8 @@ import ca.uhn.fhir.parser.LenientErrorHandler;
 import com.fasterxml.jackson.annotation.JsonGetter;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
-import com.fasterxml.jackson.annotation.JsonRawValue;
 import com.fasterxml.jackson.annotation.JsonSetter;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 import org.hl7.fhir.Coding;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.slf4j.Logger;
@@ -93,6 +93,12 @@ public class Card {
      */
     private List<Card.Link> links;
 
+    /**
+     * Id of the service that produced the card. Only set on the cards of a response
+     * merging several services (POST /cds-services/$hook/{hookName}).
+     */
+    private String serviceId;
+
     // Getters and Setters
 
     /**
@@ -287,6 +293,45 @@ public class Card {
         this.links = links;
     }
 
+    /**
+     * Get the id of the service that produced the card
+     * @return {@link Card#serviceId}
+     */
+    @JsonGetter
+    public String getServiceId() {
+        return serviceId;
+    }
+
+    /**
+     * Set the id of the service that produced the card
+     * @param serviceId {@link Card#serviceId}
+     */
+    @JsonSetter
+    public void setServiceId(String serviceId) {
+        this.serviceId = serviceId;
+    }
+
+    /**
+     * Returns a shallow copy of the card tagged with the service that produced it,
+     * leaving this card, which may be cached, as it is.
+     * @param serviceId {@link Card#serviceId}
+     * @return the tagged copy
+     */
+    public Card withServiceId(String serviceId) {
+        Card card = new Card();
+        card.uuid = uuid;
+        card.summary = summary;
+        card.detail = detail;
+        card.indicator = indicator;
+        card.source = source;
+        card.suggestions = suggestions;
+        card.selectionBehavior = selectionBehavior;
+        card.overrideReasons = overrideReasons;
+        card.links = links;
+        card.serviceId = serviceId;
+        return card;
+    }
+
     public static class Source {
 
         // Member variables
@@ -597,6 +642,8 @@ public class Card {
              * Get the resource to be created/updated by the suggested action
              * @return @link Card.Suggestion.Action#resource
              */
+            @JsonGetter
+            @JsonSerialize(using = FhirResourceSerializer.class)
             public IBaseResource getResource() {
                 return resource;
             }
@@ -605,8 +652,7 @@ public class Card {
              * Get the resource to be created/updated by the suggested action
              * @return String representation of {@link Card.Suggestion.Action#resource}
              */
-            @JsonGetter("resource")
-            @JsonRawValue
+            @JsonIgnore
             public String getResourceString() {
                 if (resource == null) return null;
                 return new JsonParser(fhirContext, new LenientErrorHandler()).setPrettyPrint(true).encodeResourceToString(resource);
@@ -2,8 +2,16 @@ package org.opencds.cqf.ruler.cdshooks.response;
 
 import java.util.List;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 public class Cards {
     public List<Card> cards;
+    /**
+     * Set when the evaluation was cut off by its deadline and the cards are the
+     * ones completed until then; partial responses are not cached.
+     */
+    @JsonIgnore
+    public boolean partial;
 
 //    public static class Card {
 //        public String uuid;
@@ -0,0 +1,165 @@
+package org.opencds.cqf.ruler.cdshooks.response;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.DefaultIndenter;
+import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Serializes a {@link Cards} response to an output stream in a single pass.
+ * <p>
+ * Cards are written by Jackson straight to the stream and any FHIR resources in
+ * suggestions are encoded by HAPI into the same stream (see
+ * {@link FhirResourceSerializer}), so no intermediate copies of the response
+ * are built. Pretty printing is optional; when enabled the layout matches the
+ * Gson pretty printer previously used for responses.
+ */
+public class CardsWriter {
+	private static final ObjectMapper mapper = new ObjectMapper()
+			.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+	private final boolean prettyPrint;
+
+	public CardsWriter(boolean prettyPrint) {
+		this.prettyPrint = prettyPrint;
+	}
+
+	public boolean isPrettyPrint() {
+		return prettyPrint;
+	}
+
+	/**
+	 * Writes the cards, followed by a newline, to the stream. The stream is
+	 * flushed but not closed.
+	 *
+	 * @param cards the response
+	 * @param out   the stream to write to
+	 * @throws IOException if the stream can not be written to
+	 */
+	public void write(Cards cards, OutputStream out) throws IOException {
+		write(cards, out, 0);
+	}
+
+	/**
+	 * Writes the cards, followed by a newline, to the stream while capturing at
+	 * most {@code captureBytes} of the output for logging. The stream is flushed
+	 * but not closed.
+	 *
+	 * @param cards        the response
+	 * @param out          the stream to write to
+	 * @param captureBytes the maximum number of bytes to capture
+	 * @return the captured prefix of the response, or null if nothing was captured
+	 * @throws IOException if the stream can not be written to
+	 */
+	public String write(Cards cards, OutputStream out, int captureBytes) throws IOException {
+		CapturingOutputStream capture = captureBytes > 0 ? new CapturingOutputStream(out, captureBytes) : null;
+		writeTo(cards, capture != null ? capture : out);
+		return capture != null ? capture.getCaptured() : null;
+	}
+
+	private void writeTo(Cards cards, OutputStream out) throws IOException {
+		try (JsonGenerator generator = mapper.getFactory().createGenerator(out, JsonEncoding.UTF8)) {
+			generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+			if (prettyPrint) {
+				generator.setPrettyPrinter(new GsonStylePrettyPrinter());
+			}
+			mapper.writeValue(generator, cards);
+			generator.writeRaw('\n');
+		}
+	}
+
+	/**
+	 * Passes everything through to the target stream, keeping a copy of the
+	 * first {@code limit} bytes.
+	 */
+	static class CapturingOutputStream extends FilterOutputStream {
+		private final ByteArrayOutputStream captured;
+		private final int limit;
+		private long total;
+
+		CapturingOutputStream(OutputStream out, int limit) {
+			super(out);
+			this.limit = limit;
+			this.captured = new ByteArrayOutputStream(Math.min(limit, 8192));
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			if (captured.size() < limit) {
+				captured.write(b);
+			}
+			total++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			int remaining = limit - captured.size();
+			if (remaining > 0) {
+				captured.write(b, off, Math.min(remaining, len));
+			}
+			total += len;
+		}
+
+		String getCaptured() {
+			String text = captured.toString(StandardCharsets.UTF_8);
+			return total > limit ? text + "... (" + total + " bytes)" : text;
+		}
+	}
+
+	/**
+	 * Pretty printer producing the same layout as Gson: two space indentation,
+	 * array elements on their own lines, no space before the colon and no space
+	 * in empty arrays or objects.
+	 */
+	static class GsonStylePrettyPrinter extends DefaultPrettyPrinter {
+		private static final long serialVersionUID = 1L;
+
+		GsonStylePrettyPrinter() {
+			DefaultIndenter indenter = new DefaultIndenter("  ", "\n");
+			indentObjectsWith(indenter);
+			indentArraysWith(indenter);
+		}
+
+		@Override
+		public GsonStylePrettyPrinter createInstance() {
+			return new GsonStylePrettyPrinter();
+		}
+
+		@Override
+		public void writeObjectFieldValueSeparator(JsonGenerator g) throws IOException {
+			g.writeRaw(": ");
+		}
+
+		@Override
+		public void writeEndObject(JsonGenerator g, int nrOfEntries) throws IOException {
+			if (!_objectIndenter.isInline()) {
+				--_nesting;
+			}
+			if (nrOfEntries > 0) {
+				_objectIndenter.writeIndentation(g, _nesting);
+			}
+			g.writeRaw('}');
+		}
+
+		@Override
+		public void writeEndArray(JsonGenerator g, int nrOfValues) throws IOException {
+			if (!_arrayIndenter.isInline()) {
+				--_nesting;
+			}
+			if (nrOfValues > 0) {
+				_arrayIndenter.writeIndentation(g, _nesting);
+			}
+			g.writeRaw(']');
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package org.opencds.cqf.ruler.cdshooks.response;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.JsonParser;
+import ca.uhn.fhir.parser.LenientErrorHandler;
+import ca.uhn.fhir.parser.json.BaseJsonLikeWriter;
+
+/**
+ * Writes FHIR resources embedded in a CDS Hooks response (e.g.
+ * {@link Card.Suggestion.Action#getResource()}) directly into the Jackson
+ * generator producing the response. The HAPI encoder emits its JSON events
+ * into the same generator, so the resource is never materialized as a
+ * {@link String} and is formatted consistently with the rest of the response.
+ */
+public class FhirResourceSerializer extends StdSerializer<IBaseResource> {
+	private static final long serialVersionUID = 1L;
+
+	public FhirResourceSerializer() {
+		super(IBaseResource.class);
+	}
+
+	@Override
+	public void serialize(IBaseResource resource, JsonGenerator generator, SerializerProvider provider)
+			throws IOException {
+		FhirContext fhirContext = FhirContext.forCached(resource.getStructureFhirVersionEnum());
+		JsonParser parser = new JsonParser(fhirContext, new LenientErrorHandler());
+		parser.encodeResourceToJsonLikeWriter(resource, new GeneratorWriter(generator));
+	}
+
+	/**
+	 * Adapts a Jackson {@link JsonGenerator} to the writer abstraction used by
+	 * the HAPI JSON encoder. Opening, flushing and closing are left to the owner
+	 * of the generator.
+	 */
+	static class GeneratorWriter extends BaseJsonLikeWriter {
+		private final JsonGenerator generator;
+
+		GeneratorWriter(JsonGenerator generator) {
+			this.generator = generator;
+		}
+
+		@Override
+		public BaseJsonLikeWriter init() {
+			return this;
+		}
+
+		@Override
+		public BaseJsonLikeWriter flush() {
+			return this;
+		}
+
+		@Override
+		public void close() {
+			// the generator is owned by the response writer
+		}
+
+		@Override
+		public BaseJsonLikeWriter beginObject() throws IOException {
+			generator.writeStartObject();
+			return this;
+		}
+
+		@Override
+		public BaseJsonLikeWriter beginObject(String name) throws IOException {
+			generator.writeObjectFieldStart(name);
+			return this;
+		}
+
+		@Override
+		public BaseJsonLikeWriter beginArray(String name) throws IOException {
+			generator.writeArrayFieldStart(name);
+			return this;
+		}
+
+		@Override
+		public BaseJsonLikeWriter write(String value) throws IOException {
+			generator.writeString(value);
+			return this;
+		}
+
+		@Override
+		public BaseJsonLikeWriter write(BigInteger value) throws IOException {
+			generator.writeNumber(value);
+			return this;
+		}
+
+		@Override
+		public BaseJsonLikeWriter write(BigDecimal value) throws IOException {
+			generator.writeNumber(value);
+			return this;
+		}
+
+		@Override
+		public BaseJsonLikeWriter write(long value) throws IOException {
+			generator.writeNumber(value);
+			return this;
+		}
+
+		@Override
+		public BaseJsonLikeWriter write(double value) throws IOException {
+			generator.writeNumber(value);
+			return this;
+		}
+
+		@Override
+		public BaseJsonLikeWriter write(Boolean value) throws IOException {
+			generator.writeBoolean(value);
+			return this;
+		}
+
+		@Override
+		public BaseJsonLikeWriter write(boolean value) throws IOException {
+			generator.writeBoolean(value);
+			return this;
+		}
+
+		@Override
+		public BaseJsonLikeWriter writeNull() throws IOException {
+			generator.writeNull();
+			return this;
+		}
+
+		@Override
+		public BaseJsonLikeWriter write(String name, String value) throws IOException {
+			generator.writeStringField(name, value);
+			return this;
+		}
+
+		@Override
+		public BaseJsonLikeWriter write(String name, BigInteger value) throws IOException {
+			generator.writeFieldName(name);
+			generator.writeNumber(value);
+			return this;
+		}
+
+		@Override
+		public BaseJsonLikeWriter write(String name, BigDecimal value) throws IOException {
+			generator.writeNumberField(name, value);
+			return this;
+		}
+
+		@Override
+		public BaseJsonLikeWriter write(String name, long value) throws IOException {
+			generator.writeNumberField(name, value);
+			return this;
+		}
+
+		@Override
+		public BaseJsonLikeWriter write(String name, double value) throws IOException {
+			generator.writeNumberField(name, value);
+			return this;
+		}
+
+		@Override
+		public BaseJsonLikeWriter write(String name, Boolean value) throws IOException {
+			generator.writeBooleanField(name, value);
+			return this;
+		}
+
+		@Override
+		public BaseJsonLikeWriter write(String name, boolean value) throws IOException {
+			generator.writeBooleanField(name, value);
+			return this;
+		}
+
+		@Override
+		public BaseJsonLikeWriter endObject() throws IOException {
+			generator.writeEndObject();
+			return this;
+		}
+
+		@Override
+		public BaseJsonLikeWriter endArray() throws IOException {
+			generator.writeEndArray();
+			return this;
+		}
+
+		@Override
+		public BaseJsonLikeWriter endBlock() throws IOException {
+			if (generator.getOutputContext().inArray()) {
+				generator.writeEndArray();
+			} else {
+				generator.writeEndObject();
+			}
+			return this;
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package org.opencds.cqf.ruler.plugin.cdshooks;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksAdmissionController;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksMetrics;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksProperties;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class CdsHooksAdmissionControllerTest {
+	private CdsHooksProperties.Admission properties;
+	private SimpleMeterRegistry meterRegistry;
+	private CdsHooksAdmissionController controller;
+
+	@BeforeEach
+	void setUp() {
+		properties = new CdsHooksProperties.Admission();
+		properties.setEnabled(true);
+		properties.setMaxConcurrent(2);
+		properties.setMaxConcurrentPerService(1);
+		properties.setQueueCapacity(1);
+		properties.setMaxWaitMillis(50);
+		meterRegistry = new SimpleMeterRegistry();
+		controller = new CdsHooksAdmissionController(properties, new CdsHooksMetrics(meterRegistry));
+	}
+
+	private double count(String service, String result) {
+		return meterRegistry.get(CdsHooksMetrics.ADMISSION_REQUESTS).tag(CdsHooksMetrics.SERVICE_TAG, service)
+				.tag(CdsHooksMetrics.RESULT_TAG, result).counter().count();
+	}
+
+	@Test
+	void testLimitsPerServiceAndOverall() throws InterruptedException {
+		CdsHooksAdmissionController.Permit first = controller.admit("a");
+		assertNotNull(first);
+		assertNull(controller.admit("a"));
+		CdsHooksAdmissionController.Permit second = controller.admit("b");
+		assertNotNull(second);
+		assertNull(controller.admit("c"));
+		assertEquals(2, controller.getInFlight());
+
+		first.close();
+		first.close();
+		assertEquals(1, controller.getInFlight());
+		assertNotNull(controller.admit("c"));
+		assertEquals(1, count("a", CdsHooksAdmissionController.REJECTED));
+		assertEquals(1, count("c", CdsHooksAdmissionController.ACCEPTED));
+	}
+
+	@Test
+	void testUnlimitedPermitHoldsNoSlot() throws InterruptedException {
+		try (CdsHooksAdmissionController.Permit permit = controller.unlimited()) {
+			assertEquals(0, controller.getInFlight());
+			assertNotNull(controller.admit("a"));
+			assertNotNull(controller.admit("b"));
+		}
+		assertEquals(2, controller.getInFlight());
+	}
+
+	@Test
+	void testWaitingRequestIsAdmittedWhenASlotIsReleased() throws Exception {
+		properties.setMaxWaitMillis(5000);
+		CdsHooksAdmissionController.Permit permit = controller.admit("a");
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<CdsHooksAdmissionController.Permit> waiting = executor.submit(() -> controller.admit("a"));
+			while (controller.getWaiting() == 0) {
+				Thread.sleep(5);
+			}
+			// the queue holds a single request
+			assertNull(controller.admit("a"));
+			permit.close();
+			assertNotNull(waiting.get());
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(1, count("a", CdsHooksAdmissionController.QUEUED));
+	}
+
+	@Test
+	void testLimitsCanBeChangedAtRuntime() throws InterruptedException {
+		assertNotNull(controller.admit("a"));
+		assertNull(controller.admit("a"));
+		properties.getServices().put("a", 2);
+		assertNotNull(controller.admit("a"));
+		properties.setMaxConcurrent(3);
+		properties.getServices().put("a", 3);
+		assertNotNull(controller.admit("a"));
+		assertEquals(3, controller.getInFlight());
+	}
+
+	@Test
+	void testDisabledAdmitsEverything() throws InterruptedException {
+		properties.setEnabled(false);
+		for (int i = 0; i < 10; i++) {
+			assertNotNull(controller.admit("a"));
+		}
+		assertEquals(0, controller.getInFlight());
+	}
+}
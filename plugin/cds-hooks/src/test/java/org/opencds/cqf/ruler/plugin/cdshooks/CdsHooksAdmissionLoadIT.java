@@ -0,0 +1,124 @@
+package org.opencds.cqf.ruler.plugin.cdshooks;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksAdmissionController;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksMetrics;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Offers hooks at about 2.5 times the rate the server can evaluate them, on a
+ * container-sized thread pool, with and without admission control. Without it
+ * requests queue up and latency grows for as long as the burst lasts; with it
+ * the excess is answered with a fast 503 and the latency of every response
+ * stays within the wait limit plus one evaluation.
+ * <p>
+ * The assertions are on wall-clock latencies, so this runs with the
+ * integration tests rather than the unit tests.
+ */
+class CdsHooksAdmissionLoadIT {
+	private static final Logger logger = LoggerFactory.getLogger(CdsHooksAdmissionLoadIT.class);
+	private static final int CONTAINER_THREADS = 200;
+	private static final int WORKERS = 4;
+	private static final long WORK_MILLIS = 10;
+	private static final int REQUESTS = 600;
+	private static final long INTERVAL_MICROS = 1000;
+	private static final long MAX_WAIT_MILLIS = 100;
+
+	private static final class Result {
+		private final List<Long> latencies;
+		private final int rejected;
+
+		private Result(List<Long> latencies, int rejected) {
+			this.latencies = latencies;
+			this.rejected = rejected;
+		}
+
+		private long percentile(double percentile) {
+			return latencies.get((int) Math.ceil(percentile * latencies.size()) - 1);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("p50 %d ms, p99 %d ms, max %d ms, rejected %d of %d", percentile(0.5),
+					percentile(0.99), percentile(1.0), rejected, latencies.size());
+		}
+	}
+
+	private static Result run(CdsHooksAdmissionController controller) throws Exception {
+		// the cpu the evaluations compete for
+		Semaphore workers = new Semaphore(WORKERS, true);
+		AtomicInteger rejected = new AtomicInteger();
+		ExecutorService container = Executors.newFixedThreadPool(CONTAINER_THREADS);
+		try {
+			List<Future<Long>> responses = new ArrayList<>();
+			for (int i = 0; i < REQUESTS; i++) {
+				long arrival = System.nanoTime();
+				responses.add(container.submit(() -> {
+					CdsHooksAdmissionController.Permit permit = controller.admit("service-" + arrival % 2);
+					if (permit == null) {
+						rejected.incrementAndGet();
+					} else {
+						try (permit) {
+							workers.acquire();
+							try {
+								Thread.sleep(WORK_MILLIS);
+							} finally {
+								workers.release();
+							}
+						}
+					}
+					return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - arrival);
+				}));
+				LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(INTERVAL_MICROS));
+			}
+			List<Long> latencies = new ArrayList<>();
+			for (Future<Long> response : responses) {
+				latencies.add(response.get());
+			}
+			Collections.sort(latencies);
+			return new Result(latencies, rejected.get());
+		} finally {
+			container.shutdownNow();
+		}
+	}
+
+	private static CdsHooksAdmissionController controller(boolean enabled) {
+		CdsHooksProperties.Admission properties = new CdsHooksProperties.Admission();
+		properties.setEnabled(enabled);
+		properties.setMaxConcurrent(WORKERS);
+		properties.setMaxConcurrentPerService(WORKERS);
+		properties.setQueueCapacity(2 * WORKERS);
+		properties.setMaxWaitMillis(MAX_WAIT_MILLIS);
+		return new CdsHooksAdmissionController(properties, new CdsHooksMetrics(new SimpleMeterRegistry()));
+	}
+
+	@Test
+	void testTailLatencyStaysBoundedUnderOverload() throws Exception {
+		Result unbounded = run(controller(false));
+		Result admitted = run(controller(true));
+		logger.info("without admission control: {}", unbounded);
+		logger.info("with admission control:    {}", admitted);
+
+		assertTrue(admitted.rejected > 0);
+		assertTrue(admitted.percentile(0.99) < MAX_WAIT_MILLIS + WORK_MILLIS + 400,
+				"p99 with admission control: " + admitted.percentile(0.99));
+		assertTrue(admitted.percentile(0.99) < unbounded.percentile(0.99));
+	}
+}
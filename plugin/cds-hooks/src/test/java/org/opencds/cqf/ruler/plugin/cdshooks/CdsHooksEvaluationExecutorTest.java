@@ -0,0 +1,78 @@
+package org.opencds.cqf.ruler.plugin.cdshooks;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksEvaluationExecutor;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksMetrics;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksProperties;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class CdsHooksEvaluationExecutorTest {
+
+	private static CdsHooksEvaluationExecutor executor(int maxThreads, int queueCapacity) {
+		CdsHooksProperties.Async properties = new CdsHooksProperties.Async();
+		properties.setEnabled(true);
+		properties.setMaxThreads(maxThreads);
+		properties.setQueueCapacity(queueCapacity);
+		return new CdsHooksEvaluationExecutor(properties, new CdsHooksMetrics(new SimpleMeterRegistry()));
+	}
+
+	@Test
+	void testCancelInterruptsRunningEvaluation() throws Exception {
+		CdsHooksEvaluationExecutor executor = executor(1, 1);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch interrupted = new CountDownLatch(1);
+		try {
+			Future<?> evaluation = executor.execute("service", () -> {
+				started.countDown();
+				try {
+					Thread.sleep(TimeUnit.SECONDS.toMillis(30));
+				} catch (InterruptedException e) {
+					interrupted.countDown();
+				}
+			});
+			assertTrue(started.await(5, TimeUnit.SECONDS));
+
+			evaluation.cancel(true);
+
+			assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	void testCancelledQueuedEvaluationNeverRunsAndFreesItsSlot() throws Exception {
+		CdsHooksEvaluationExecutor executor = executor(1, 1);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicBoolean ran = new AtomicBoolean();
+		try {
+			executor.execute("service", () -> {
+				try {
+					release.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+			Future<?> queued = executor.execute("service", () -> ran.set(true));
+
+			queued.cancel(true);
+			release.countDown();
+
+			CountDownLatch next = new CountDownLatch(1);
+			executor.execute("service", next::countDown);
+			assertTrue(next.await(5, TimeUnit.SECONDS));
+			assertFalse(ran.get());
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package org.opencds.cqf.ruler.plugin.cdshooks;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksFanOut;
+import org.opencds.cqf.ruler.cdshooks.EvaluationDeadline;
+
+class CdsHooksFanOutTest {
+
+	@Test
+	void testServicesRunInParallel() throws Exception {
+		List<String> services = Arrays.asList("a", "b", "c");
+		CountDownLatch started = new CountDownLatch(services.size());
+		try (CdsHooksFanOut fanOut = new CdsHooksFanOut(services.size())) {
+			Map<String, String> results = fanOut.evaluate(services, service -> {
+				started.countDown();
+				try {
+					// only completes if every service is running at the same time
+					if (!started.await(5, TimeUnit.SECONDS)) {
+						throw new IllegalStateException("services ran one after another");
+					}
+				} catch (InterruptedException e) {
+					throw new IllegalStateException(e);
+				}
+				return service.toUpperCase();
+			});
+
+			assertEquals(services, List.copyOf(results.keySet()));
+			assertEquals("B", results.get("b"));
+		}
+	}
+
+	@Test
+	void testFailedServiceIsLeftOut() {
+		try (CdsHooksFanOut fanOut = new CdsHooksFanOut(2)) {
+			Map<String, String> results = fanOut.evaluate(Arrays.asList("a", "b"), service -> {
+				if (service.equals("a")) {
+					throw new IllegalStateException("a failed");
+				}
+				return service;
+			});
+
+			assertEquals(List.of("b"), List.copyOf(results.keySet()));
+		}
+	}
+
+	@Test
+	void testSlowServiceIsLeftOutAtDeadline() {
+		try (CdsHooksFanOut fanOut = new CdsHooksFanOut(2);
+				EvaluationDeadline.Scope scope = EvaluationDeadline.after(200).bind()) {
+			long start = System.nanoTime();
+			Map<String, String> results = fanOut.evaluate(Arrays.asList("slow", "fast"), service -> {
+				if (service.equals("slow")) {
+					try {
+						Thread.sleep(5000);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				return service;
+			});
+
+			assertEquals(List.of("fast"), List.copyOf(results.keySet()));
+			assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2000);
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package org.opencds.cqf.ruler.plugin.cdshooks;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksMetrics;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksMetricsServlet;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksStageTimings;
+
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+
+class CdsHooksStageTimingsTest {
+
+	@Test
+	void testRepeatedStagesAddUp() {
+		CdsHooksStageTimings timings = new CdsHooksStageTimings();
+		timings.record(CdsHooksStageTimings.PARSE, TimeUnit.MICROSECONDS.toNanos(1500));
+		timings.record(CdsHooksStageTimings.APPLY, TimeUnit.MILLISECONDS.toNanos(2));
+		timings.record(CdsHooksStageTimings.APPLY, TimeUnit.MILLISECONDS.toNanos(3));
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(5), timings.get(CdsHooksStageTimings.APPLY));
+		assertEquals("parse;dur=1.50, apply;dur=5.00", timings.toServerTiming());
+	}
+
+	@Test
+	void testFailedStagesAreTimed() {
+		CdsHooksStageTimings timings = new CdsHooksStageTimings();
+		assertThrows(IllegalStateException.class, () -> timings.time(CdsHooksStageTimings.LIBRARY, () -> {
+			throw new IllegalStateException();
+		}));
+		assertTrue(timings.toServerTiming().startsWith("library;dur="));
+	}
+
+	@Test
+	void testTimingsArePublishedPerServiceHookAndStage() {
+		CompositeMeterRegistry registry = new CompositeMeterRegistry();
+		PrometheusMeterRegistry prometheus = CdsHooksMetricsServlet.prometheusRegistry(registry);
+		CdsHooksMetrics metrics = new CdsHooksMetrics(registry);
+
+		CdsHooksStageTimings timings = new CdsHooksStageTimings();
+		timings.record(CdsHooksStageTimings.LIBRARY, TimeUnit.MILLISECONDS.toNanos(40));
+		timings.record(CdsHooksStageTimings.SERIALIZE, TimeUnit.MILLISECONDS.toNanos(1));
+		timings.publish(metrics, "opioidcds-10", "patient-view");
+
+		Timer library = registry.get(CdsHooksMetrics.STAGE_DURATION).tag(CdsHooksMetrics.SERVICE_TAG, "opioidcds-10")
+				.tag(CdsHooksMetrics.HOOK_TAG, "patient-view")
+				.tag(CdsHooksMetrics.STAGE_TAG, CdsHooksStageTimings.LIBRARY).timer();
+		assertEquals(1, library.count());
+		assertEquals(40, library.totalTime(TimeUnit.MILLISECONDS), 0.001);
+		assertTrue(prometheus.scrape().contains("cdshooks_stage_duration_seconds_bucket{hook=\"patient-view\""));
+	}
+}
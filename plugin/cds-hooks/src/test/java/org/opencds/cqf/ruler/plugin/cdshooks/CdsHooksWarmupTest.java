@@ -0,0 +1,40 @@
+package org.opencds.cqf.ruler.plugin.cdshooks;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksProperties;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksWarmup;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksWarmupHealthIndicator;
+import org.springframework.boot.actuate.health.Status;
+
+class CdsHooksWarmupTest {
+
+	@Test
+	void testDisabledWarmupIsReady() {
+		CdsHooksProperties.Warmup properties = new CdsHooksProperties.Warmup();
+		properties.setEnabled(false);
+		properties.setHoldTraffic(true);
+		try (CdsHooksWarmup warmup = new CdsHooksWarmup(null, null, null, null, properties)) {
+			warmup.start(Set.of("plandefinition-Screening"));
+
+			assertTrue(warmup.isReady());
+			assertFalse(warmup.isHoldingTraffic());
+			assertEquals(0, warmup.getServices());
+			assertEquals(Status.UP, new CdsHooksWarmupHealthIndicator(warmup).health().getStatus());
+		}
+	}
+
+	@Test
+	void testWarmupWithoutEvaluationSettingsIsReady() {
+		CdsHooksProperties.Warmup properties = new CdsHooksProperties.Warmup();
+		properties.setEnabled(true);
+		try (CdsHooksWarmup warmup = new CdsHooksWarmup(null, null, null, null, properties)) {
+			assertTrue(warmup.isReady());
+		}
+	}
+}
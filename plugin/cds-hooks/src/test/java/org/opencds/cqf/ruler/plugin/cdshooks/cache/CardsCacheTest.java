@@ -0,0 +1,159 @@
+package org.opencds.cqf.ruler.plugin.cdshooks.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksMetrics;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksProperties;
+import org.opencds.cqf.ruler.cdshooks.cache.CardsCache;
+import org.opencds.cqf.ruler.cdshooks.cache.PatientCompartmentInvalidator;
+import org.opencds.cqf.ruler.cdshooks.response.Cards;
+
+import ca.uhn.fhir.context.FhirContext;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class CardsCacheTest {
+	private final AtomicLong now = new AtomicLong();
+	private final AtomicInteger evaluations = new AtomicInteger();
+	private SimpleMeterRegistry meterRegistry;
+	private CardsCache cache;
+
+	@BeforeEach
+	void setUp() {
+		CdsHooksProperties.Cache properties = new CdsHooksProperties.Cache();
+		properties.setTtlMillis(1000);
+		properties.setMaxEntries(2);
+		meterRegistry = new SimpleMeterRegistry();
+		cache = new CardsCache(properties, new CdsHooksMetrics(meterRegistry), now::get);
+	}
+
+	private static CardsCache.Key key(String patientId, String fhirServer) {
+		return new CardsCache.Key("service", "1", "screening-request=1", "patient-view", patientId, fhirServer, null,
+				"context", null);
+	}
+
+	private Cards evaluate() {
+		evaluations.incrementAndGet();
+		return new Cards();
+	}
+
+	private double count(String result) {
+		Counter counter = meterRegistry.find(CdsHooksMetrics.CARDS_CACHE).tag(CdsHooksMetrics.RESULT_TAG, result)
+				.counter();
+		return counter == null ? 0 : counter.count();
+	}
+
+	@Test
+	void testEntriesExpire() {
+		Cards cards = cache.get(key("123", null), this::evaluate);
+		assertSame(cards, cache.get(key("123", null), this::evaluate));
+		assertEquals(1, evaluations.get());
+
+		now.addAndGet(TimeUnit.MILLISECONDS.toNanos(1001));
+		cache.get(key("123", null), this::evaluate);
+		assertEquals(2, evaluations.get());
+		assertEquals(1, count(CdsHooksMetrics.CACHE_HIT));
+		assertEquals(2, count(CdsHooksMetrics.CACHE_MISS));
+	}
+
+	@Test
+	void testNewActivityDefinitionVersionMisses() {
+		cache.get(key("123", null), this::evaluate);
+		cache.get(new CardsCache.Key("service", "1", "screening-request=2", "patient-view", "123", null, null,
+				"context", null), this::evaluate);
+		assertEquals(2, evaluations.get());
+	}
+
+	@Test
+	void testLeastRecentlyUsedEntriesAreEvicted() {
+		cache.get(key("1", null), this::evaluate);
+		cache.get(key("2", null), this::evaluate);
+		cache.get(key("1", null), this::evaluate);
+		cache.get(key("3", null), this::evaluate);
+		assertEquals(2, cache.size());
+
+		cache.get(key("1", null), this::evaluate);
+		assertEquals(3, evaluations.get());
+		cache.get(key("2", null), this::evaluate);
+		assertEquals(4, evaluations.get());
+	}
+
+	@Test
+	void testPatientChangesInvalidateLocalEntries() {
+		PatientCompartmentInvalidator invalidator = new PatientCompartmentInvalidator(cache,
+				FhirContext.forR4Cached());
+		cache.get(key("123", null), this::evaluate);
+		cache.get(key("123", "http://ehr.example.org/fhir"), this::evaluate);
+
+		Observation observation = new Observation().setSubject(new Reference("Patient/123"));
+		assertEquals(Set.of("123"), invalidator.patientIds(observation));
+		invalidator.resourceCreated(observation);
+
+		assertEquals(1, cache.size());
+		cache.get(key("123", "http://ehr.example.org/fhir"), this::evaluate);
+		cache.get(key("123", null), this::evaluate);
+		assertEquals(3, evaluations.get());
+	}
+
+	@Test
+	void testConcurrentIdenticalRequestsEvaluateOnce() throws Exception {
+		int requests = 8;
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(requests);
+		try {
+			List<Future<Cards>> results = new ArrayList<>();
+			results.add(executor.submit(() -> cache.get(key("123", null), () -> {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return evaluate();
+			})));
+			started.await();
+			for (int i = 1; i < requests; i++) {
+				results.add(executor.submit(() -> cache.get(key("123", null), this::evaluate)));
+			}
+			while (count(CdsHooksMetrics.CACHE_COALESCED) < requests - 1) {
+				Thread.sleep(5);
+			}
+			release.countDown();
+
+			Cards first = results.get(0).get();
+			for (Future<Cards> result : results) {
+				assertSame(first, result.get());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(1, evaluations.get());
+	}
+
+	@Test
+	void testFailuresAreNotCached() {
+		assertThrows(IllegalStateException.class, () -> cache.get(key("123", null), () -> {
+			throw new IllegalStateException("evaluation failed");
+		}));
+		cache.get(key("123", null), this::evaluate);
+		assertEquals(1, evaluations.get());
+	}
+}
@@ -0,0 +1,118 @@
+package org.opencds.cqf.ruler.plugin.cdshooks.capture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksProperties;
+import org.opencds.cqf.ruler.cdshooks.capture.HookCapture;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+class HookCaptureTest {
+	private static final ObjectMapper mapper = new ObjectMapper();
+	private static final String REQUEST = "{\"hook\":\"patient-view\",\"context\":{\"patientId\":\"Patient/123\"},"
+			+ "\"prefetch\":{\"patient\":{\"resourceType\":\"Patient\",\"id\":\"123\","
+			+ "\"identifier\":[{\"system\":\"urn:mrn\",\"value\":\"MRN-1\"}]},"
+			+ "\"conditions\":{\"resourceType\":\"Bundle\",\"entry\":[{\"resource\":{\"resourceType\":\"Condition\","
+			+ "\"id\":\"c1\",\"subject\":{\"reference\":\"Patient/123\"}}}]}}}";
+
+	private static CdsHooksProperties.Capture properties(Path directory) {
+		CdsHooksProperties.Capture properties = new CdsHooksProperties.Capture();
+		properties.setEnabled(true);
+		properties.setDirectory(directory.toString());
+		return properties;
+	}
+
+	@Test
+	void testPseudonymize() throws Exception {
+		JsonNode request = mapper.readTree(REQUEST);
+		HookCapture.pseudonymize(request, "salt");
+
+		String pseudonym = request.at("/prefetch/patient/id").asText();
+		assertNotEquals("123", pseudonym);
+		assertEquals("Patient/" + pseudonym, request.at("/context/patientId").asText());
+		assertEquals("Patient/" + pseudonym,
+				request.at("/prefetch/conditions/entry/0/resource/subject/reference").asText());
+		assertEquals("c1", request.at("/prefetch/conditions/entry/0/resource/id").asText());
+		assertNotEquals("MRN-1", request.at("/prefetch/patient/identifier/0/value").asText());
+		assertEquals("urn:mrn", request.at("/prefetch/patient/identifier/0/system").asText());
+
+		// the same patient gets the same pseudonym, another salt another one
+		JsonNode again = mapper.readTree(REQUEST);
+		HookCapture.pseudonymize(again, "salt");
+		assertEquals(pseudonym, again.at("/prefetch/patient/id").asText());
+		JsonNode salted = mapper.readTree(REQUEST);
+		HookCapture.pseudonymize(salted, "pepper");
+		assertNotEquals(pseudonym, salted.at("/prefetch/patient/id").asText());
+	}
+
+	@Test
+	void testRecord(@TempDir Path directory) throws Exception {
+		try (HookCapture capture = new HookCapture(properties(directory))) {
+			assertTrue(capture.sample());
+			capture.record("screening", "patient-view", REQUEST.getBytes(StandardCharsets.UTF_8), 200, 12_500_000);
+		}
+
+		List<Path> files = HookCapture.captureFiles(directory);
+		assertEquals(1, files.size());
+		List<String> lines = Files.readAllLines(files.get(0));
+		assertEquals(1, lines.size());
+		JsonNode line = mapper.readTree(lines.get(0));
+		assertEquals("screening", line.get("service").asText());
+		assertEquals(200, line.get("status").asInt());
+		assertEquals(12.5, line.get("durationMillis").asDouble());
+		assertFalse(line.get("request").toString().contains("Patient/123"));
+	}
+
+	@Test
+	void testAuthorizationIsNotWritten(@TempDir Path directory) throws Exception {
+		CdsHooksProperties.Capture properties = properties(directory);
+		properties.setPseudonymize(false);
+		String request = "{\"hook\":\"patient-view\",\"fhirServer\":\"http://ehr/fhir\","
+				+ "\"fhirAuthorization\":{\"access_token\":\"secret\",\"token_type\":\"Bearer\","
+				+ "\"subject\":\"cds-service\"},\"context\":{\"patientId\":\"123\"}}";
+		try (HookCapture capture = new HookCapture(properties)) {
+			capture.record("screening", "patient-view", request.getBytes(StandardCharsets.UTF_8), 200, 0);
+		}
+
+		String line = Files.readAllLines(HookCapture.captureFiles(directory).get(0)).get(0);
+		assertFalse(line.contains("fhirAuthorization"));
+		assertFalse(line.contains("secret"));
+		assertTrue(line.contains("http://ehr/fhir"));
+	}
+
+	@Test
+	void testRotation(@TempDir Path directory) throws Exception {
+		CdsHooksProperties.Capture properties = properties(directory);
+		properties.setMaxFileBytes(1);
+		properties.setMaxFiles(3);
+		try (HookCapture capture = new HookCapture(properties)) {
+			for (int i = 0; i < 5; i++) {
+				capture.record("screening", "patient-view", REQUEST.getBytes(StandardCharsets.UTF_8), 200, 0);
+			}
+		}
+
+		List<Path> files = HookCapture.captureFiles(directory);
+		assertEquals(3, files.size());
+		for (Path file : files) {
+			assertEquals(1, Files.readAllLines(file).size());
+		}
+	}
+
+	@Test
+	void testDisabled(@TempDir Path directory) {
+		CdsHooksProperties.Capture properties = properties(directory);
+		properties.setEnabled(false);
+		assertFalse(new HookCapture(properties).sample());
+	}
+}
@@ -0,0 +1,57 @@
+package org.opencds.cqf.ruler.plugin.cdshooks.discovery;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.opencds.cqf.ruler.cdshooks.discovery.DiscoverySnapshotStore;
+import org.opencds.cqf.ruler.cdshooks.discovery.ResolvedService;
+
+import com.google.gson.JsonObject;
+
+class DiscoverySnapshotStoreTest {
+
+	private static ResolvedService service(String id, String version) {
+		JsonObject json = new JsonObject();
+		json.addProperty("hook", "patient-view");
+		json.addProperty("id", id);
+		Map<String, String> dependencies = new LinkedHashMap<>();
+		dependencies.put("Library/" + id, "2");
+		dependencies.put("ValueSet/" + id + "-codes", "1");
+		return new ResolvedService(json, version, dependencies,
+				Collections.singleton("http://example.org/Library/" + id));
+	}
+
+	@Test
+	void testRoundTrip(@TempDir Path directory) {
+		DiscoverySnapshotStore store = new DiscoverySnapshotStore(directory.resolve("services.json"));
+		assertTrue(store.load().isEmpty());
+
+		store.save(Arrays.asList(service("first", "1"), service("second", "3")));
+		Map<String, ResolvedService> loaded = store.load();
+
+		assertEquals(Arrays.asList("first", "second"), Arrays.asList(loaded.keySet().toArray()));
+		ResolvedService second = loaded.get("second");
+		assertEquals("3", second.getPlanDefinitionVersion());
+		assertEquals("2", second.getDependencies().get("Library/second"));
+		assertEquals("1", second.getDependencies().get("ValueSet/second-codes"));
+		assertEquals(Collections.singleton("http://example.org/Library/second"), second.getCanonicals());
+		assertEquals("patient-view", second.getService().get("hook").getAsString());
+	}
+
+	@Test
+	void testUnreadableSnapshotIsIgnored(@TempDir Path directory) throws IOException {
+		Path path = directory.resolve("services.json");
+		Files.writeString(path, "{ not json");
+		assertTrue(new DiscoverySnapshotStore(path).load().isEmpty());
+	}
+}
@@ -0,0 +1,165 @@
+package org.opencds.cqf.ruler.plugin.cdshooks.prefetch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksMetrics;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksProperties;
+import org.opencds.cqf.ruler.cdshooks.prefetch.PrefetchFulfiller;
+import org.opencds.cqf.ruler.cdshooks.providers.ProviderConfiguration;
+import org.opencds.cqf.ruler.cdshooks.remote.RemoteDataRetriever;
+import org.opencds.cqf.ruler.cdshooks.remote.RemoteFhirClientRegistry;
+
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class PrefetchFulfillerTest {
+	private static final IParser parser = FhirContext.forR4Cached().newJsonParser();
+
+	private HttpServer server;
+	private String baseUrl;
+	private final List<String> requests = new CopyOnWriteArrayList<>();
+	private SimpleMeterRegistry meterRegistry;
+	private RemoteFhirClientRegistry clients;
+	private RemoteDataRetriever retriever;
+	private PrefetchFulfiller fulfiller;
+
+	@BeforeEach
+	void setUp() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/fhir", this::handle);
+		server.setExecutor(Executors.newFixedThreadPool(4));
+		server.start();
+		baseUrl = "http://localhost:" + server.getAddress().getPort() + "/fhir";
+
+		meterRegistry = new SimpleMeterRegistry();
+		CdsHooksMetrics metrics = new CdsHooksMetrics(meterRegistry);
+		clients = new RemoteFhirClientRegistry(FhirContext.forR4Cached(), new CdsHooksProperties.RemoteClient(),
+				"client_id", metrics);
+		retriever = new RemoteDataRetriever(null, ProviderConfiguration.DEFAULT_PROVIDER_CONFIGURATION, 2);
+		fulfiller = new PrefetchFulfiller(null, null, retriever, metrics, 2);
+	}
+
+	@AfterEach
+	void tearDown() throws IOException {
+		fulfiller.close();
+		retriever.close();
+		clients.close();
+		server.stop(0);
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		String path = exchange.getRequestURI().getPath();
+		requests.add(path + "?" + exchange.getRequestURI().getQuery());
+		Bundle bundle = new Bundle().setType(Bundle.BundleType.SEARCHSET);
+		if (path.endsWith("/Observation")) {
+			bundle.addEntry().setResource(new Observation().setId("obs-1"));
+		} else {
+			bundle.addEntry().setResource(new Patient().setId("123"));
+		}
+		byte[] bytes = parser.encodeResourceToString(bundle).getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+		exchange.sendResponseHeaders(200, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	@Test
+	void testFill() {
+		Map<String, String> context = Collections.singletonMap("context.patientId", "123");
+		assertEquals("Patient?_id=123", PrefetchFulfiller.fill("Patient?_id=Patient/{{context.patientId}}", context));
+		assertEquals("Observation?subject=Patient/123",
+				PrefetchFulfiller.fill("Observation?subject=Patient/{{ context.patientId }}", context));
+		assertNull(PrefetchFulfiller.fill("Encounter?_id={{context.encounterId}}", context));
+	}
+
+	@Test
+	void testFillWithPrefixedPatientId() {
+		Map<String, String> context = Collections.singletonMap("context.patientId", "Patient/123");
+		assertEquals("Patient?_id=123", PrefetchFulfiller.fill("Patient?_id=Patient/{{context.patientId}}", context));
+		assertEquals("Observation?patient=Patient/123",
+				PrefetchFulfiller.fill("Observation?patient=Patient/{{context.patientId}}", context));
+		assertEquals("Patient/123", PrefetchFulfiller.fill("Patient/{{context.patientId}}", context));
+	}
+
+	@Test
+	void testToQuery() {
+		RemoteDataRetriever.Query query = PrefetchFulfiller
+				.toQuery("Observation?subject=Patient/123&code=http://loinc.org|1,http://loinc.org|2");
+		assertEquals("Observation", query.getResourceType());
+		assertEquals(Collections.singletonMap("subject", "Patient/123"), query.getParameters());
+		assertEquals("code", query.getCodeParameter());
+		assertEquals(Arrays.asList("http://loinc.org|1", "http://loinc.org|2"), query.getCodes());
+	}
+
+	@Test
+	void testContextValuesAreEncodedOnce() {
+		Map<String, String> context = Collections.singletonMap("context.userId", "Practitioner/a|b,c&d=e");
+		String url = PrefetchFulfiller.fill("Observation?performer={{context.userId}}&code=http://loinc.org|1", context);
+		assertEquals("Observation?performer=Practitioner%2Fa%5C%7Cb%5C%2Cc%26d%3De&code=http://loinc.org|1", url);
+
+		RemoteDataRetriever.Query query = PrefetchFulfiller.toQuery(url);
+		assertEquals(Collections.singletonMap("performer", "Practitioner/a\\|b\\,c&d=e"), query.getParameters());
+		assertEquals("code", query.getCodeParameter());
+		assertEquals(Collections.singletonList("http://loinc.org|1"), query.getCodes());
+	}
+
+	@Test
+	void testContextValueWithPipeIsNotTakenAsCodes() {
+		RemoteDataRetriever.Query query = PrefetchFulfiller.toQuery(PrefetchFulfiller
+				.fill("Encounter?identifier={{context.encounterId}}", Collections.singletonMap("context.encounterId",
+						"http://hospital.example|1,2")));
+		assertNull(query.getCodeParameter());
+		assertEquals(Collections.singletonMap("identifier", "http://hospital.example\\|1\\,2"), query.getParameters());
+		assertEquals(Collections.singletonList("Encounter?identifier=http%3A%2F%2Fhospital.example%5C%7C1%5C%2C2"),
+				retriever.getSearchUrls(Collections.singletonList(query)));
+	}
+
+	@Test
+	void testFulfillsMissingTemplatesRemotely() {
+		JsonObject templates = new JsonObject();
+		templates.addProperty("item1", "Patient?_id={{context.patientId}}");
+		templates.addProperty("item2", "Observation?subject=Patient/{{context.patientId}}&code=http://loinc.org|1");
+		templates.addProperty("item3", "Encounter?_id={{context.encounterId}}");
+		templates.addProperty("item4", "Patient?_id={{context.patientId}}");
+		Map<String, Resource> provided = new HashMap<>();
+		provided.put("item1", new Patient().setId("123"));
+		provided.put("item4", null);
+
+		Map<String, Resource> fulfilled = fulfiller.fulfill("service", templates, provided,
+				Collections.singletonMap("context.patientId", "123"), clients.getClient(baseUrl, null));
+
+		assertEquals(Arrays.asList("item2", "item4"), Arrays.asList(fulfilled.keySet().toArray()));
+		assertEquals("obs-1", ((Bundle) fulfilled.get("item2")).getEntryFirstRep().getResource().getIdElement()
+				.getIdPart());
+		assertEquals(2, requests.size());
+		assertEquals(1, meterRegistry.get(CdsHooksMetrics.PREFETCH_FULFILLMENT)
+				.tag(CdsHooksMetrics.PREFETCH_TAG, "item2").tag(CdsHooksMetrics.SOURCE_TAG, "remote").timer()
+				.count());
+	}
+}
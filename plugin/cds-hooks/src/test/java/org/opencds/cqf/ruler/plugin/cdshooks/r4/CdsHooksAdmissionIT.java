@@ -0,0 +1,110 @@
+package org.opencds.cqf.ruler.plugin.cdshooks.r4;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.hl7.fhir.r4.model.IdType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksAdmissionController;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksConfig;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksMetrics;
+import org.opencds.cqf.ruler.cdshooks.CdsServicesCache;
+import org.opencds.cqf.ruler.plugin.cdshooks.ResourceChangeEvent;
+import org.opencds.cqf.ruler.test.RestIntegrationTest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+@DirtiesContext
+@ExtendWith(SpringExtension.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {
+		CdsHooksConfig.class }, properties = { "hapi.fhir.fhir_version=r4", "hapi.fhir.cr.enabled=true",
+				"hapi.fhir.cdshooks.admission.enabled=true", "hapi.fhir.cdshooks.admission.maxConcurrent=1",
+				"hapi.fhir.cdshooks.admission.maxConcurrentPerService=1",
+				"hapi.fhir.cdshooks.admission.queueCapacity=0",
+				"hapi.fhir.cdshooks.admission.retryAfterSeconds=7" })
+class CdsHooksAdmissionIT extends RestIntegrationTest {
+	private static final String SERVICE = "plandefinition-Screening";
+
+	@Autowired
+	CdsServicesCache cdsServicesCache;
+	@Autowired
+	CdsHooksAdmissionController admissionController;
+	@Autowired
+	CdsHooksMetrics cdsHooksMetrics;
+	private String ourCdsBase;
+
+	@BeforeEach
+	void beforeEach() {
+		ourCdsBase = "http://localhost:" + getPort() + "/cds-services";
+		loadTransaction("Screening-bundle-r4.json");
+		ResourceChangeEvent rce = new ResourceChangeEvent();
+		rce.setUpdatedResourceIds(Collections.singletonList(new IdType(SERVICE)));
+		cdsServicesCache.handleChange(rce);
+	}
+
+	private HttpPost hookRequest() {
+		return hookRequest(SERVICE);
+	}
+
+	private HttpPost hookRequest(String service) {
+		JsonObject jsonRequestObject = new Gson().fromJson(stringFromResource("request-HighRiskIDUPatient.json"),
+				JsonObject.class);
+		jsonRequestObject.addProperty("fhirServer", getServerBase());
+		HttpPost request = new HttpPost(ourCdsBase + "/" + service);
+		request.setEntity(new StringEntity(jsonRequestObject.toString(), "UTF-8"));
+		request.addHeader("Content-Type", "application/json");
+		return request;
+	}
+
+	@Test
+	void testSaturatedAdmissionIsAnsweredWithRetryAfter() throws IOException, InterruptedException {
+		try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+			try (CdsHooksAdmissionController.Permit permit = admissionController.admit(SERVICE)) {
+				assertNotNull(permit);
+				try (CloseableHttpResponse response = httpClient.execute(hookRequest())) {
+					assertEquals(503, response.getStatusLine().getStatusCode());
+					assertEquals("7", response.getFirstHeader("Retry-After").getValue());
+					assertTrue(EntityUtils.toString(response.getEntity()).contains("capacity exceeded"));
+				}
+			}
+
+			try (CloseableHttpResponse response = httpClient.execute(hookRequest())) {
+				assertEquals(200, response.getStatusLine().getStatusCode());
+				assertNotNull(new Gson().fromJson(EntityUtils.toString(response.getEntity()), JsonObject.class)
+						.get("cards"));
+			}
+		}
+	}
+
+	@Test
+	void testUnknownServiceIsRejectedBeforeAdmission() throws IOException {
+		try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+			for (String service : Arrays.asList("unknown-service", "$hook/unknown-hook")) {
+				try (CloseableHttpResponse response = httpClient.execute(hookRequest(service))) {
+					assertEquals(404, response.getStatusLine().getStatusCode());
+				}
+			}
+		}
+		assertTrue(cdsHooksMetrics.getRegistry().getMeters().stream()
+				.map(meter -> meter.getId().getTag(CdsHooksMetrics.SERVICE_TAG))
+				.noneMatch(tag -> tag != null && tag.contains("unknown")));
+	}
+}
@@ -0,0 +1,41 @@
+package org.opencds.cqf.ruler.plugin.cdshooks.r4;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksConfig;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import io.micrometer.core.instrument.Gauge;
+
+@DirtiesContext
+@ExtendWith(SpringExtension.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {
+		CdsHooksConfig.class }, properties = { "hapi.fhir.fhir_version=r4", "hapi.fhir.cr.enabled=true",
+				"hapi.fhir.cdshooks.async.enabled=true", "hapi.fhir.cdshooks.async.maxThreads=4" })
+class CdsHooksAsyncConcurrencyIT extends CdsHooksConcurrencyIT {
+	@Autowired
+	CdsHooksMetrics cdsHooksMetrics;
+
+	@AfterEach
+	void evaluationsDrained() throws InterruptedException {
+		Gauge active = cdsHooksMetrics.getRegistry().find(CdsHooksMetrics.EVALUATIONS_ACTIVE)
+				.tag(CdsHooksMetrics.SERVICE_TAG, "plandefinition-Screening").gauge();
+		Gauge queued = cdsHooksMetrics.getRegistry().find(CdsHooksMetrics.EVALUATIONS_QUEUED)
+				.tag(CdsHooksMetrics.SERVICE_TAG, "plandefinition-Screening").gauge();
+		assertNotNull(active);
+		assertNotNull(queued);
+		// responses complete just before the executor thread updates the gauges
+		for (int i = 0; i < 50 && active.value() > 0; i++) {
+			Thread.sleep(100);
+		}
+		assertEquals(0.0, active.value());
+		assertEquals(0.0, queued.value());
+	}
+}
@@ -0,0 +1,84 @@
+package org.opencds.cqf.ruler.plugin.cdshooks.r4;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksConfig;
+import org.opencds.cqf.ruler.cdshooks.CdsServicesCache;
+import org.opencds.cqf.ruler.cdshooks.cache.CardsCache;
+import org.opencds.cqf.ruler.plugin.cdshooks.ResourceChangeEvent;
+import org.opencds.cqf.ruler.test.RestIntegrationTest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+@DirtiesContext
+@ExtendWith(SpringExtension.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {
+		CdsHooksConfig.class }, properties = { "hapi.fhir.fhir_version=r4", "hapi.fhir.cr.enabled=true",
+				"hapi.fhir.cdshooks.cache.enabled=true", "hapi.fhir.cdshooks.cache.ttlMillis=600000" })
+class CdsHooksCardsCacheIT extends RestIntegrationTest {
+	private static final String SERVICE = "hello-world-patient-view";
+	// request-HelloWorld.json sends the patient as Patient/patient-hello-world-patient-view
+	private static final String PATIENT = "patient-hello-world-patient-view";
+
+	@Autowired
+	CdsServicesCache cdsServicesCache;
+	@Autowired
+	CardsCache cardsCache;
+	private String ourCdsBase;
+
+	@BeforeEach
+	void beforeEach() {
+		ourCdsBase = "http://localhost:" + getPort() + "/cds-services";
+		loadTransaction("HelloWorldPatientView-bundle.json");
+		ResourceChangeEvent rce = new ResourceChangeEvent();
+		rce.setUpdatedResourceIds(Collections.singletonList(new IdType(SERVICE)));
+		cdsServicesCache.handleChange(rce);
+		cardsCache.clear();
+	}
+
+	private int hook() throws IOException {
+		JsonObject jsonRequestObject = new Gson().fromJson(stringFromResource("request-HelloWorld.json"),
+				JsonObject.class);
+		jsonRequestObject.addProperty("fhirServer", getServerBase());
+		HttpPost request = new HttpPost(ourCdsBase + "/" + SERVICE);
+		request.setEntity(new StringEntity(jsonRequestObject.toString(), "UTF-8"));
+		request.addHeader("Content-Type", "application/json");
+		try (CloseableHttpClient httpClient = HttpClients.createDefault();
+				CloseableHttpResponse response = httpClient.execute(request)) {
+			return response.getStatusLine().getStatusCode();
+		}
+	}
+
+	@Test
+	void testPrefixedPatientIdIsInvalidatedByLocalChanges() throws IOException {
+		assertEquals(200, hook());
+		assertEquals(1, cardsCache.size());
+		assertEquals(200, hook());
+		assertEquals(1, cardsCache.size());
+
+		Patient patient = new Patient().setGender(Enumerations.AdministrativeGender.FEMALE);
+		patient.setId(PATIENT);
+		update(patient);
+
+		assertEquals(0, cardsCache.size());
+	}
+}
@@ -0,0 +1,133 @@
+package org.opencds.cqf.ruler.plugin.cdshooks.r4;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.hl7.fhir.r4.model.IdType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksConfig;
+import org.opencds.cqf.ruler.cdshooks.CdsServicesCache;
+import org.opencds.cqf.ruler.plugin.cdshooks.ResourceChangeEvent;
+import org.opencds.cqf.ruler.test.RestIntegrationTest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+@DirtiesContext
+@ExtendWith(SpringExtension.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {
+		CdsHooksConfig.class }, properties = { "hapi.fhir.fhir_version=r4", "hapi.fhir.cr.enabled=true" })
+class CdsHooksConcurrencyIT extends RestIntegrationTest {
+	private static final int REQUEST_COUNT = 240;
+	private static final int CLIENT_THREADS = 32;
+
+	// The Screening service puts the patient's name in the detail of its top
+	// level card, so a card computed for one patient is recognizable in another
+	// patient's response.
+	private static final Map<String, String> PATIENT_NAMES = new LinkedHashMap<>();
+	static {
+		PATIENT_NAMES.put("InclusionPatient", "Peter Chalmers");
+		PATIENT_NAMES.put("MSMPatient", "Joe Kotic");
+		PATIENT_NAMES.put("HighRiskPregnantPatient", "Beatrix Coraline");
+		PATIENT_NAMES.put("HighRiskIDUPatient", "Ashley Madelyn");
+		PATIENT_NAMES.put("HighRiskSTDPatient", "John Jones");
+		PATIENT_NAMES.put("ExclusionPatient", "Sally Merryweather");
+	}
+
+	@Autowired
+	CdsServicesCache cdsServicesCache;
+
+	@Test
+	void testConcurrentHooksDoNotShareState() throws Exception {
+		loadTransaction("Screening-bundle-r4.json");
+
+		ResourceChangeEvent rce = new ResourceChangeEvent();
+		rce.setUpdatedResourceIds(Collections.singletonList(new IdType("plandefinition-Screening")));
+		cdsServicesCache.handleChange(rce);
+
+		String serviceUrl = "http://localhost:" + getPort() + "/cds-services/plandefinition-Screening";
+		List<String> patients = new ArrayList<>(PATIENT_NAMES.keySet());
+		ExecutorService executor = Executors.newFixedThreadPool(CLIENT_THREADS);
+		try (CloseableHttpClient httpClient = HttpClients.custom()
+				.setMaxConnTotal(CLIENT_THREADS).setMaxConnPerRoute(CLIENT_THREADS).build()) {
+			List<Future<JsonArray>> responses = new ArrayList<>();
+			for (int i = 0; i < REQUEST_COUNT; i++) {
+				String patient = patients.get(i % patients.size());
+				responses.add(executor.submit(hook(httpClient, serviceUrl, patient)));
+			}
+
+			for (int i = 0; i < REQUEST_COUNT; i++) {
+				String patient = patients.get(i % patients.size());
+				List<String> details = details(responses.get(i).get(5, TimeUnit.MINUTES));
+				assertTrue(details.contains(PATIENT_NAMES.get(patient)),
+						"Missing card for " + patient + " in " + details);
+				PATIENT_NAMES.forEach((otherPatient, otherName) -> {
+					if (!otherPatient.equals(patient)) {
+						assertFalse(details.contains(otherName),
+								"Card for " + otherPatient + " leaked into response for " + patient);
+					}
+				});
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private Callable<JsonArray> hook(CloseableHttpClient httpClient, String serviceUrl, String patient) {
+		return () -> {
+			JsonObject request = new JsonObject();
+			request.addProperty("hookInstance", patient);
+			request.addProperty("fhirServer", getServerBase());
+			request.addProperty("hook", "patient-view");
+			JsonObject context = new JsonObject();
+			context.addProperty("userId", "Practitioner/example");
+			context.addProperty("patientId", "Patient/" + patient);
+			request.add("context", context);
+
+			HttpPost post = new HttpPost(serviceUrl);
+			post.setEntity(new StringEntity(request.toString()));
+			post.addHeader("Content-Type", "application/json");
+			try (CloseableHttpResponse response = httpClient.execute(post)) {
+				assertEquals(200, response.getStatusLine().getStatusCode());
+				String result = EntityUtils.toString(response.getEntity());
+				return new Gson().fromJson(result, JsonObject.class).get("cards").getAsJsonArray();
+			}
+		};
+	}
+
+	private static List<String> details(JsonArray cards) {
+		List<String> details = new ArrayList<>();
+		for (JsonElement card : cards) {
+			JsonElement detail = card.getAsJsonObject().get("detail");
+			if (detail != null) {
+				details.add(detail.getAsString());
+			}
+		}
+		return details;
+	}
+}
@@ -0,0 +1,116 @@
+package org.opencds.cqf.ruler.plugin.cdshooks.r4;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.PlanDefinition;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksAdmissionController;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksConfig;
+import org.opencds.cqf.ruler.cdshooks.CdsServicesCache;
+import org.opencds.cqf.ruler.plugin.cdshooks.ResourceChangeEvent;
+import org.opencds.cqf.ruler.test.RestIntegrationTest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+@DirtiesContext
+@ExtendWith(SpringExtension.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {
+		CdsHooksConfig.class }, properties = { "hapi.fhir.fhir_version=r4", "hapi.fhir.cr.enabled=true",
+				"hapi.fhir.cdshooks.admission.enabled=true", "hapi.fhir.cdshooks.admission.maxConcurrent=2",
+				"hapi.fhir.cdshooks.admission.maxConcurrentPerService=1",
+				"hapi.fhir.cdshooks.admission.queueCapacity=0" })
+class CdsHooksFanOutIT extends RestIntegrationTest {
+	private static final String SERVICE = "plandefinition-Screening";
+	private static final String COPY = "plandefinition-Screening-copy";
+
+	@Autowired
+	CdsServicesCache cdsServicesCache;
+	@Autowired
+	CdsHooksAdmissionController admissionController;
+	private String ourCdsBase;
+
+	@BeforeEach
+	void beforeEach() {
+		ourCdsBase = "http://localhost:" + getPort() + "/cds-services";
+		loadTransaction("Screening-bundle-r4.json");
+		PlanDefinition copy = getClient().read().resource(PlanDefinition.class).withId(SERVICE).execute();
+		copy.setId(COPY);
+		copy.setUrl(copy.getUrl() + "-copy");
+		update(copy);
+		ResourceChangeEvent rce = new ResourceChangeEvent();
+		rce.setUpdatedResourceIds(Arrays.asList(new IdType(SERVICE), new IdType(COPY)));
+		cdsServicesCache.handleChange(rce);
+	}
+
+	private HttpPost hookRequest() {
+		JsonObject jsonRequestObject = new Gson().fromJson(stringFromResource("request-HighRiskIDUPatient.json"),
+				JsonObject.class);
+		jsonRequestObject.addProperty("fhirServer", getServerBase());
+		HttpPost request = new HttpPost(ourCdsBase + "/$hook/patient-view");
+		request.setEntity(new StringEntity(jsonRequestObject.toString(), "UTF-8"));
+		request.addHeader("Content-Type", "application/json");
+		return request;
+	}
+
+	private static Set<String> serviceIds(JsonArray cards) {
+		Set<String> serviceIds = new HashSet<>();
+		for (JsonElement card : cards) {
+			serviceIds.add(card.getAsJsonObject().get("serviceId").getAsString());
+		}
+		return serviceIds;
+	}
+
+	@Test
+	void testCardsOfEveryServiceAreMerged() throws IOException {
+		assertTrue(cdsServicesCache.getSnapshot().getServiceIds("patient-view").containsAll(Arrays.asList(SERVICE,
+				COPY)));
+		try (CloseableHttpClient httpClient = HttpClients.createDefault();
+				CloseableHttpResponse response = httpClient.execute(hookRequest())) {
+			assertEquals(200, response.getStatusLine().getStatusCode());
+			JsonArray cards = new Gson().fromJson(EntityUtils.toString(response.getEntity()), JsonObject.class)
+					.getAsJsonArray("cards");
+			assertNotNull(cards);
+			assertEquals(new HashSet<>(Arrays.asList(SERVICE, COPY)), serviceIds(cards));
+		}
+	}
+
+	@Test
+	void testServicesAreAdmittedOneByOne() throws IOException, InterruptedException {
+		try (CloseableHttpClient httpClient = HttpClients.createDefault();
+				CdsHooksAdmissionController.Permit permit = admissionController.admit(SERVICE)) {
+			assertNotNull(permit);
+			try (CloseableHttpResponse response = httpClient.execute(hookRequest())) {
+				assertEquals(200, response.getStatusLine().getStatusCode());
+				JsonArray cards = new Gson().fromJson(EntityUtils.toString(response.getEntity()), JsonObject.class)
+						.getAsJsonArray("cards");
+				Set<String> serviceIds = serviceIds(cards);
+				assertTrue(serviceIds.contains(COPY));
+				assertFalse(serviceIds.contains(SERVICE));
+			}
+		}
+	}
+}
@@ -31,7 +31,8 @@ import com.google.gson.JsonObject;
 @DirtiesContext
 @ExtendWith(SpringExtension.class)
 @SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {
-		CdsHooksConfig.class }, properties = { "hapi.fhir.fhir_version=r4" })
+		CdsHooksConfig.class }, properties = { "hapi.fhir.fhir_version=r4",
+				"hapi.fhir.cdshooks.response.prettyPrint=true" })
 class CdsHooksResponseIT extends RestIntegrationTest {
 	@Autowired
 	CdsServicesCache cdsServicesCache;
@@ -1,7 +1,10 @@
 package org.opencds.cqf.ruler.plugin.cdshooks.r4;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
 import java.io.IOException;
@@ -17,11 +20,15 @@ import org.apache.http.util.EntityUtils;
 import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.Patient;
 import org.hl7.fhir.r4.model.PlanDefinition;
+import org.hl7.fhir.r4.model.ValueSet;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.opencds.cqf.ruler.cdshooks.CdsHooksConfig;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksMetrics;
+import org.opencds.cqf.ruler.cdshooks.CdsServiceDependencyListener;
 import org.opencds.cqf.ruler.cdshooks.CdsServicesCache;
+import org.opencds.cqf.ruler.cdshooks.CdsServicesSnapshot;
 import org.opencds.cqf.ruler.plugin.cdshooks.ResourceChangeEvent;
 import org.opencds.cqf.ruler.test.RestIntegrationTest;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -40,6 +47,10 @@ import com.google.gson.JsonObject;
 class CdsHooksServletIT extends RestIntegrationTest {
 	@Autowired
 	CdsServicesCache cdsServicesCache;
+	@Autowired
+	CdsHooksMetrics cdsHooksMetrics;
+	@Autowired
+	CdsServiceDependencyListener cdsServiceDependencyListener;
 	private String ourCdsBase;
 
 	@BeforeEach
@@ -58,6 +69,62 @@ class CdsHooksServletIT extends RestIntegrationTest {
 		}
 	}
 
+	@Test
+	void testGetCdsServicesConditional() throws IOException {
+		loadTransaction("Screening-bundle-r4.json");
+		ResourceChangeEvent rce = new ResourceChangeEvent();
+		rce.setUpdatedResourceIds(Collections.singletonList(new IdType("plandefinition-Screening")));
+		cdsServicesCache.handleChange(rce);
+		CdsServicesSnapshot snapshot = cdsServicesCache.getSnapshot();
+		assertTrue(snapshot.getServiceIds("patient-view").contains("plandefinition-Screening"));
+
+		try (CloseableHttpClient httpClient = HttpClients.custom().disableContentCompression().build()) {
+			HttpGet request = new HttpGet(ourCdsBase);
+			try (CloseableHttpResponse response = httpClient.execute(request)) {
+				assertEquals(200, response.getStatusLine().getStatusCode());
+				assertEquals(snapshot.getETag(), response.getFirstHeader("ETag").getValue());
+				JsonObject services = new Gson().fromJson(EntityUtils.toString(response.getEntity()), JsonObject.class);
+				assertEquals(snapshot.size(), services.get("services").getAsJsonArray().size());
+			}
+
+			request.addHeader("If-None-Match", snapshot.getETag());
+			try (CloseableHttpResponse response = httpClient.execute(request)) {
+				assertEquals(304, response.getStatusLine().getStatusCode());
+			}
+
+			request = new HttpGet(ourCdsBase);
+			request.addHeader("Accept-Encoding", "gzip");
+			try (CloseableHttpResponse response = httpClient.execute(request)) {
+				assertEquals(200, response.getStatusLine().getStatusCode());
+				assertEquals("gzip", response.getFirstHeader("Content-Encoding").getValue());
+				assertArrayEquals(snapshot.getDiscoveryGzip(), EntityUtils.toByteArray(response.getEntity()));
+			}
+		}
+	}
+
+	@Test
+	void testValueSetChangeRefreshesPrefetch() {
+		loadTransaction("Screening-bundle-r4.json");
+		ResourceChangeEvent rce = new ResourceChangeEvent();
+		rce.setUpdatedResourceIds(Collections.singletonList(new IdType("plandefinition-Screening")));
+		cdsServicesCache.handleChange(rce);
+		assertEquals(Collections.singleton("plandefinition-Screening"),
+				cdsServicesCache.getDependentServiceIds(
+						Collections.singletonList("http://fhir.org/guides/nachc/hiv-cds/ValueSet/nachc-h1-de9")));
+		assertFalse(cdsServicesCache.getSnapshot().getService("plandefinition-Screening").get("prefetch").toString()
+				.contains("NACHC.H1.DE9.ADDED"));
+
+		ValueSet valueSet = getClient().read().resource(ValueSet.class).withId("nachc-h1-de9").execute();
+		valueSet.getCompose().getIncludeFirstRep().addConcept().setCode("NACHC.H1.DE9.ADDED");
+		update(valueSet);
+
+		ResourceChangeEvent valueSetChange = new ResourceChangeEvent();
+		valueSetChange.setUpdatedResourceIds(Collections.singletonList(new IdType("ValueSet/nachc-h1-de9")));
+		cdsServiceDependencyListener.handleChange(valueSetChange);
+		assertTrue(cdsServicesCache.getSnapshot().getService("plandefinition-Screening").get("prefetch").toString()
+				.contains("NACHC.H1.DE9.ADDED"));
+	}
+
 	@Test
 	void testCdsServicesCache() {
 		loadTransaction("Screening-bundle-r4.json");
@@ -71,20 +138,20 @@ class CdsHooksServletIT extends RestIntegrationTest {
 		cdsServicesCache.clearCache();
 
 		cdsServicesCache.handleChange(rce);
-		assertEquals(1, cdsServicesCache.getCdsServiceCache().get().size());
+		assertEquals(1, cdsServicesCache.getSnapshot().size());
 
 		rce.setCreatedResourceIds(Collections.singletonList(p2.getIdElement()));
 		cdsServicesCache.handleChange(rce);
-		assertEquals(2, cdsServicesCache.getCdsServiceCache().get().size());
+		assertEquals(2, cdsServicesCache.getSnapshot().size());
 
 		rce.setCreatedResourceIds(null);
 		rce.setDeletedResourceIds(Collections.singletonList(p1.getIdElement()));
 		cdsServicesCache.handleChange(rce);
-		assertEquals(1, cdsServicesCache.getCdsServiceCache().get().size());
+		assertEquals(1, cdsServicesCache.getSnapshot().size());
 
 		assertEquals(
 				"HelloWorldPatientView",
-				cdsServicesCache.getCdsServiceCache().get().get(0).getAsJsonObject().get("name").getAsString());
+				cdsServicesCache.getSnapshot().getServices().get(0).get("name").getAsString());
 		PlanDefinition updatedP2 = new PlanDefinition();
 		p2.copyValues(updatedP2);
 		updatedP2.setName("HelloWorldPatientView-updated");
@@ -94,7 +161,7 @@ class CdsHooksServletIT extends RestIntegrationTest {
 		cdsServicesCache.handleChange(rce);
 		assertEquals(
 				"HelloWorldPatientView-updated",
-				cdsServicesCache.getCdsServiceCache().get().get(0).getAsJsonObject().get("name").getAsString());
+				cdsServicesCache.getSnapshot().getServices().get(0).get("name").getAsString());
 	}
 
 	@Test
@@ -159,6 +226,10 @@ class CdsHooksServletIT extends RestIntegrationTest {
 			String actualPatientID = suggestionsActivityResource.get("subject").getAsJsonObject().get("reference")
 					.getAsString();
 			assertEquals("Patient/" + expectedPatientID, actualPatientID);
+
+			// One library evaluation plus one evaluation for all inline expressions
+			assertEquals(2.0, cdsHooksMetrics.getRegistry().get(CdsHooksMetrics.ENGINE_INVOCATIONS)
+					.tag(CdsHooksMetrics.SERVICE_TAG, "plandefinition-Screening").summary().max());
 		} catch (IOException ioe) {
 			fail(ioe.getMessage());
 		}
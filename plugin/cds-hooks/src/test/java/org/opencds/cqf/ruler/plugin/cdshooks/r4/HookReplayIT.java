@@ -0,0 +1,105 @@
+package org.opencds.cqf.ruler.plugin.cdshooks.r4;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+import org.hl7.fhir.r4.model.IdType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksConfig;
+import org.opencds.cqf.ruler.cdshooks.CdsServicesCache;
+import org.opencds.cqf.ruler.cdshooks.capture.HookCapture;
+import org.opencds.cqf.ruler.plugin.cdshooks.ResourceChangeEvent;
+import org.opencds.cqf.ruler.test.RestIntegrationTest;
+import org.opencds.cqf.ruler.test.replay.HookReplay;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+/**
+ * Seeds a capture with the opioid recommendation fixtures and replays it
+ * against the embedded server.
+ */
+@DirtiesContext
+@ExtendWith(SpringExtension.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {
+		CdsHooksConfig.class }, properties = { "hapi.fhir.fhir_version=r4", "hapi.fhir.cr.enabled=true",
+				"hapi.fhir.cdshooks.capture.enabled=true",
+				"hapi.fhir.cdshooks.capture.directory=target/hook-replay-it" })
+class HookReplayIT extends RestIntegrationTest {
+	private static final Logger logger = LoggerFactory.getLogger(HookReplayIT.class);
+
+	@Autowired
+	CdsServicesCache cdsServicesCache;
+	@Autowired
+	HookCapture hookCapture;
+
+	@Test
+	void testCaptureAndReplay() throws Exception {
+		loadTransaction("opioidcds-01-bundle.json");
+		loadTransaction("opioidcds-04-bundle.json");
+		loadTransaction("opioidcds-08-bundle.json");
+		ResourceChangeEvent rce = new ResourceChangeEvent();
+		rce.setCreatedResourceIds(Arrays.asList(new IdType("PlanDefinition/opioidcds-01"),
+				new IdType("PlanDefinition/opioidcds-04"), new IdType("PlanDefinition/opioidcds-08-order-sign")));
+		cdsServicesCache.handleChange(rce);
+
+		String cdsBase = "http://localhost:" + getPort() + "/cds-services";
+		List<HookReplay.Request> seed = HookReplay.withFhirServer(Arrays.asList(
+				new HookReplay.Request("opioidcds-01",
+						withAuthorization(stringFromResource("opioidcds-01-request-prefetch.json"))),
+				new HookReplay.Request("opioidcds-04", stringFromResource("opioidcds-04-request-prefetch.json")),
+				new HookReplay.Request("opioidcds-08-order-sign",
+						stringFromResource("opioidcds-08-request-prefetch.json"))),
+				getServerBase());
+		Path captureDirectory = Paths.get("target/hook-replay-it");
+		int captured = countCaptured(captureDirectory);
+
+		HookReplay.Report seeded = new HookReplay(cdsBase, seed).run(seed.size());
+		assertEquals(0, seeded.getErrors());
+		hookCapture.close();
+
+		for (Path file : HookCapture.captureFiles(captureDirectory)) {
+			assertFalse(Files.readString(file).contains("access_token"), file + " holds an access token");
+		}
+		List<HookReplay.Request> corpus = HookReplay.readCapture(HookCapture.captureFiles(captureDirectory));
+		assertEquals(captured + seed.size(), corpus.size());
+		// pseudonymized patients are not in the server, the prefetch carries their data
+		assertFalse(corpus.get(corpus.size() - 1).getBody()
+				.contains("egICGav-o1PPZqCGJ02G0rZfgFquWZ3QQeahd8KF154c3"));
+
+		HookReplay.Report report = new HookReplay(cdsBase, corpus.subList(captured, corpus.size()))
+				.withRate(20).withConcurrency(4).run(30);
+		logger.info("Replay of the opioid fixtures: {}", report);
+		assertEquals(30, report.getRequests());
+		assertEquals(0, report.getErrors());
+	}
+
+	private static String withAuthorization(String request) {
+		JsonObject body = new Gson().fromJson(request, JsonObject.class);
+		JsonObject authorization = new JsonObject();
+		authorization.addProperty("access_token", "replay-it-token");
+		authorization.addProperty("token_type", "Bearer");
+		authorization.addProperty("expires_in", 300);
+		authorization.addProperty("scope", "patient/*.read");
+		authorization.addProperty("subject", "cds-service");
+		body.add("fhirAuthorization", authorization);
+		return body.toString();
+	}
+
+	private static int countCaptured(Path directory) throws Exception {
+		return HookReplay.readCapture(HookCapture.captureFiles(directory)).size();
+	}
+}
@@ -0,0 +1,113 @@
+package org.opencds.cqf.ruler.plugin.cdshooks.r4;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.r4.model.ActivityDefinition;
+import org.hl7.fhir.r4.model.Expression;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.PlanDefinition;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.ruler.cdshooks.r4.R4ActivityTemplateCache;
+import org.opencds.cqf.ruler.cdshooks.r4.R4ServicePlan;
+import org.opencds.cqf.ruler.cdshooks.r4.R4ServicePlanCache;
+
+import ca.uhn.fhir.context.FhirContext;
+
+class R4ActivityTemplateCacheTest {
+
+	private static ActivityDefinition definition() {
+		ActivityDefinition definition = new ActivityDefinition();
+		definition.setId("ActivityDefinition/activitydefinition-hiv-screening-request/_history/1");
+		definition.addLibrary("Library/Screening");
+		definition.addDynamicValue().setPath("priority").setExpression(
+				new Expression().setLanguage("text/cql").setExpression("'urgent'"));
+		return definition;
+	}
+
+	private static R4ServicePlan.Action action() {
+		PlanDefinition planDefinition = FhirContext.forR4Cached().newJsonParser().parseResource(PlanDefinition.class,
+				R4ActivityTemplateCacheTest.class.getResourceAsStream("/Screening-plandefinition.json"));
+		ActivityDefinition definition = definition();
+		return R4ServicePlan.compile(planDefinition, id -> definition).getActions().get(0).getActions().get(0);
+	}
+
+	@Test
+	void testReadOncePerVersion() {
+		R4ActivityTemplateCache cache = new R4ActivityTemplateCache(new R4ServicePlanCache(null));
+		R4ServicePlan.Action action = action();
+		List<IdType> reads = new ArrayList<>();
+
+		ActivityDefinition first = cache.get(action, id -> {
+			reads.add(id);
+			return definition();
+		});
+		ActivityDefinition second = cache.get(action, id -> {
+			reads.add(id);
+			return definition();
+		});
+
+		assertEquals(1, reads.size());
+		assertEquals("1", reads.get(0).getVersionIdPart());
+		assertNotSame(first, second);
+		assertTrue(first.getDynamicValue().isEmpty());
+		assertEquals("Library/Screening", second.getLibrary().get(0).getValue());
+
+		cache.clear();
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	void testMissingDefinitionIsNotCached() {
+		R4ActivityTemplateCache cache = new R4ActivityTemplateCache(new R4ServicePlanCache(null));
+		R4ServicePlan.Action action = action();
+
+		assertNull(cache.get(action, id -> null));
+		assertEquals(0, cache.size());
+		assertEquals("Library/Screening",
+				cache.get(action, id -> definition()).getLibrary().get(0).getValue());
+	}
+
+	@Test
+	void testConcurrentCallersShareOneRead() throws Exception {
+		R4ActivityTemplateCache cache = new R4ActivityTemplateCache(new R4ServicePlanCache(null));
+		R4ServicePlan.Action action = action();
+		AtomicInteger reads = new AtomicInteger();
+		CountDownLatch release = new CountDownLatch(1);
+		int callers = 8;
+
+		ExecutorService executor = Executors.newFixedThreadPool(callers);
+		try {
+			List<Future<ActivityDefinition>> results = new ArrayList<>();
+			for (int i = 0; i < callers; i++) {
+				results.add(executor.submit(() -> cache.get(action, id -> {
+					reads.incrementAndGet();
+					try {
+						release.await(5, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					return definition();
+				})));
+			}
+			release.countDown();
+			for (Future<ActivityDefinition> result : results) {
+				assertEquals("Library/Screening", result.get(5, TimeUnit.SECONDS).getLibrary().get(0).getValue());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(1, reads.get());
+	}
+}
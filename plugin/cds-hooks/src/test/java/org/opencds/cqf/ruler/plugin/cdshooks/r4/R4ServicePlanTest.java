@@ -0,0 +1,117 @@
+package org.opencds.cqf.ruler.plugin.cdshooks.r4;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashSet;
+
+import org.hl7.fhir.r4.model.ActivityDefinition;
+import org.hl7.fhir.r4.model.Expression;
+import org.hl7.fhir.r4.model.PlanDefinition;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.ruler.cdshooks.r4.R4ServicePlan;
+import org.opencds.cqf.ruler.cdshooks.response.ErrorHandling;
+
+import ca.uhn.fhir.context.FhirContext;
+
+class R4ServicePlanTest {
+
+	private static PlanDefinition screening() {
+		return FhirContext.forR4Cached().newJsonParser().parseResource(PlanDefinition.class,
+				R4ServicePlanTest.class.getResourceAsStream("/Screening-plandefinition.json"));
+	}
+
+	@Test
+	void testCompile() {
+		R4ServicePlan plan = R4ServicePlan.compile(screening());
+
+		assertEquals("plandefinition-Screening", plan.getServiceId());
+		assertEquals("Library/Screening", plan.getLibraryId().getValue());
+		assertEquals(new HashSet<>(plan.getExpressions()).size(), plan.getExpressions().size());
+		assertTrue(plan.getExpressions().contains("Patient Name"));
+		assertTrue(plan.getExpressions().contains("Never Tested Condition"));
+		assertTrue(plan.getLinks().isEmpty());
+
+		R4ServicePlan.Action top = plan.getActions().get(0);
+		assertEquals(R4ServicePlan.ExpressionKind.INLINE_CQL, top.getConditions().get(0).getKind());
+		assertEquals("Inline Expression 1", top.getConditions().get(0).getName());
+		assertNotNull(plan.getInlineLibrary());
+		assertTrue(plan.getInlineLibrary().contains("define \"Inline Expression 1\":\n  'true'"));
+		assertEquals("CdsHooksInline_plandefinition_Screening", plan.getInlineLibraryIdentifier().getId());
+		assertTrue(plan.getInlineLibrary().contains("version '" + plan.getInlineLibraryIdentifier().getVersion() + "'"));
+		assertEquals(R4ServicePlan.DynamicValueTarget.DETAIL, top.getDynamicValues().get(0).getTarget());
+		assertEquals(R4ServicePlan.DynamicValueTarget.INDICATOR, top.getDynamicValues().get(1).getTarget());
+
+		R4ServicePlan.Action neverTested = top.getActions().get(0);
+		assertEquals(R4ServicePlan.ExpressionKind.IDENTIFIER, neverTested.getConditions().get(0).getKind());
+		assertEquals(R4ServicePlan.DynamicValueTarget.SUMMARY, neverTested.getDynamicValues().get(0).getTarget());
+		assertEquals(R4ServicePlan.DynamicValueTarget.RESOURCE, neverTested.getDynamicValues().get(3).getTarget());
+		assertTrue(neverTested.hasSuggestion());
+		assertNotNull(neverTested.getDefinitionId());
+		assertEquals("ActivityDefinition", neverTested.getDefinitionId().getResourceType());
+	}
+
+	@Test
+	void testCompileActivityDefinitionTemplate() {
+		ActivityDefinition definition = new ActivityDefinition();
+		definition.setId("ActivityDefinition/screening-request/_history/3");
+		definition.addLibrary("Library/Screening");
+		definition.addDynamicValue().setPath("note.text").setExpression(
+				new Expression().setLanguage("text/cql-identifier").setExpression("Patient Name"));
+		definition.addDynamicValue().setPath("priority").setExpression(
+				new Expression().setLanguage("text/cql").setExpression("'urgent'"));
+
+		R4ServicePlan plan = R4ServicePlan.compile(screening(), id -> definition);
+		R4ServicePlan.Action neverTested = plan.getActions().get(0).getActions().get(0);
+		assertEquals("activitydefinition-hiv-screening-request=3", plan.getDefinitionVersions());
+
+		assertTrue(neverTested.hasDefinitionTemplate());
+		assertEquals("3", neverTested.getDefinitionVersion());
+		assertEquals(2, neverTested.getDefinitionDynamicValues().size());
+		R4ServicePlan.DynamicValue note = neverTested.getDefinitionDynamicValues().get(0);
+		assertEquals(R4ServicePlan.DynamicValueTarget.RESOURCE, note.getTarget());
+		assertEquals("Patient Name", note.getExpression().getName());
+		assertEquals(R4ServicePlan.ExpressionKind.INLINE_CQL,
+				neverTested.getDefinitionDynamicValues().get(1).getExpression().getKind());
+	}
+
+	@Test
+	void testCompileActivityDefinitionWithoutTemplate() {
+		ActivityDefinition fhirPath = new ActivityDefinition();
+		fhirPath.setId("ActivityDefinition/screening-request/_history/1");
+		fhirPath.addDynamicValue().setPath("priority").setExpression(
+				new Expression().setLanguage("text/fhirpath").setExpression("'urgent'"));
+		assertFalse(R4ServicePlan.compile(screening(), id -> fhirPath).getActions().get(0).getActions().get(0)
+				.hasDefinitionTemplate());
+
+		ActivityDefinition otherLibrary = new ActivityDefinition();
+		otherLibrary.setId("ActivityDefinition/screening-request/_history/1");
+		otherLibrary.addLibrary("Library/Other");
+		otherLibrary.addDynamicValue().setPath("priority").setExpression(
+				new Expression().setLanguage("text/cql-identifier").setExpression("Priority"));
+		R4ServicePlan plan = R4ServicePlan.compile(screening(), id -> otherLibrary);
+		assertFalse(plan.getActions().get(0).getActions().get(0).hasDefinitionTemplate());
+		assertFalse(plan.getExpressions().contains("Priority"));
+
+		ActivityDefinition otherLibraryInline = new ActivityDefinition();
+		otherLibraryInline.setId("ActivityDefinition/screening-request/_history/1");
+		otherLibraryInline.addLibrary("Library/Other");
+		otherLibraryInline.addDynamicValue().setPath("priority").setExpression(
+				new Expression().setLanguage("text/cql").setExpression("Other.Priority"));
+		assertFalse(R4ServicePlan.compile(screening(), id -> otherLibraryInline).getActions().get(0).getActions()
+				.get(0).hasDefinitionTemplate());
+
+		assertFalse(R4ServicePlan.compile(screening()).getActions().get(0).getActions().get(0)
+				.hasDefinitionTemplate());
+	}
+
+	@Test
+	void testCompileWithoutLibrary() {
+		PlanDefinition planDefinition = screening();
+		planDefinition.setLibrary(null);
+		assertThrows(ErrorHandling.CdsHooksError.class, () -> R4ServicePlan.compile(planDefinition));
+	}
+}
@@ -0,0 +1,120 @@
+package org.opencds.cqf.ruler.plugin.cdshooks.remote;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.ruler.cdshooks.EvaluationDeadline;
+import org.opencds.cqf.ruler.cdshooks.remote.DeadlineLimitedHttpClient;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.apache.ApacheRestfulClientFactory;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+
+/**
+ * The engine builds the clients for remote data endpoints from the server's
+ * FhirContext, like the clients built here.
+ */
+class DeadlineLimitedHttpClientTest {
+	private static final String PATIENT = "{\"resourceType\":\"Patient\",\"id\":\"example\"}";
+
+	private HttpServer server;
+	private String baseUrl;
+	private FhirContext fhirContext;
+	private final AtomicInteger requests = new AtomicInteger();
+	private volatile long delayMillis;
+
+	@BeforeEach
+	void startServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/fhir", this::handle);
+		server.setExecutor(Executors.newFixedThreadPool(4));
+		server.start();
+		baseUrl = "http://localhost:" + server.getAddress().getPort() + "/fhir";
+		// not the cached context, the client factory is changed
+		fhirContext = FhirContext.forR4();
+		DeadlineLimitedHttpClient.install(fhirContext);
+	}
+
+	@AfterEach
+	void stopServer() {
+		server.stop(0);
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		try {
+			if (delayMillis > 0) {
+				Thread.sleep(delayMillis);
+			}
+			byte[] body = PATIENT.getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private IGenericClient client() {
+		return fhirContext.newRestfulGenericClient(baseUrl);
+	}
+
+	@Test
+	void testInstallIsIdempotent() {
+		Object httpClient = ((ApacheRestfulClientFactory) fhirContext.getRestfulClientFactory())
+				.getNativeHttpClient();
+		DeadlineLimitedHttpClient.install(fhirContext);
+		assertSame(httpClient, ((ApacheRestfulClientFactory) fhirContext.getRestfulClientFactory())
+				.getNativeHttpClient());
+	}
+
+	@Test
+	void testSlowRemoteEndpointGivesUpAtTheDeadline() {
+		delayMillis = 5000;
+		IGenericClient client = client();
+		long start = System.nanoTime();
+		try (EvaluationDeadline.Scope scope = EvaluationDeadline.after(200).bind()) {
+			assertThrows(RuntimeException.class,
+					() -> client.read().resource(Patient.class).withId("example").execute());
+		}
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 3000);
+	}
+
+	@Test
+	void testNoRequestIsSentOnceTheDeadlineHasPassed() throws InterruptedException {
+		IGenericClient client = client();
+		EvaluationDeadline deadline = EvaluationDeadline.after(1);
+		Thread.sleep(5);
+		try (EvaluationDeadline.Scope scope = deadline.bind()) {
+			assertThrows(RuntimeException.class,
+					() -> client.read().resource(Patient.class).withId("example").execute());
+		}
+		assertEquals(0, requests.get());
+	}
+
+	@Test
+	void testRequestsWithoutADeadlineAreUnchanged() {
+		delayMillis = 300;
+		Patient patient = client().read().resource(Patient.class).withId("example").execute();
+		assertEquals("example", patient.getIdElement().getIdPart());
+	}
+}
@@ -0,0 +1,247 @@
+package org.opencds.cqf.ruler.plugin.cdshooks.remote;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DataRequirement;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Library;
+import org.hl7.fhir.r4.model.Observation;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksMetrics;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksProperties;
+import org.opencds.cqf.ruler.cdshooks.providers.ProviderConfiguration;
+import org.opencds.cqf.ruler.cdshooks.remote.RemoteDataRetriever;
+import org.opencds.cqf.ruler.cdshooks.remote.RemoteFhirClientRegistry;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.SearchStyleEnum;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class RemoteDataRetrieverTest {
+	private static final IParser parser = FhirContext.forR4Cached().newJsonParser();
+
+	private HttpServer server;
+	private RemoteFhirClientRegistry clients;
+	private IGenericClient client;
+	private RemoteDataRetriever retriever;
+	// method, path and the number of codes of every recorded request
+	private final List<String> requests = new CopyOnWriteArrayList<>();
+	private final List<Integer> codeCounts = new CopyOnWriteArrayList<>();
+	// the decoded query of every recorded GET request
+	private final List<String> queries = new CopyOnWriteArrayList<>();
+	private final AtomicInteger resourceCount = new AtomicInteger();
+
+	@BeforeEach
+	void startServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/fhir", this::handle);
+		server.setExecutor(Executors.newFixedThreadPool(4));
+		server.start();
+		clients = new RemoteFhirClientRegistry(FhirContext.forR4Cached(), new CdsHooksProperties.RemoteClient(),
+				"client_id", new CdsHooksMetrics(new SimpleMeterRegistry()));
+		client = clients.getClient("http://localhost:" + server.getAddress().getPort() + "/fhir", null);
+	}
+
+	@AfterEach
+	void stopServer() throws IOException {
+		if (retriever != null) {
+			retriever.close();
+		}
+		clients.close();
+		server.stop(0);
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		String method = exchange.getRequestMethod();
+		String path = exchange.getRequestURI().getPath();
+		requests.add(method + " " + path);
+		String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+
+		Bundle response;
+		if (path.equals("/fhir") || path.equals("/fhir/")) {
+			Bundle batch = parser.parseResource(Bundle.class, body);
+			response = new Bundle().setType(Bundle.BundleType.BATCHRESPONSE);
+			for (Bundle.BundleEntryComponent entry : batch.getEntry()) {
+				String url = entry.getRequest().getUrl();
+				codeCounts.add(countCodes(url.substring(url.indexOf('?') + 1)));
+				response.addEntry().setResource(searchset()).getResponse().setStatus("200 OK");
+			}
+		} else {
+			if (method.equals("GET") && exchange.getRequestURI().getRawQuery() != null) {
+				queries.add(URLDecoder.decode(exchange.getRequestURI().getRawQuery(), StandardCharsets.UTF_8));
+			}
+			codeCounts.add(countCodes(method.equals("GET") ? exchange.getRequestURI().getRawQuery() : body));
+			response = searchset();
+		}
+
+		byte[] bytes = parser.encodeResourceToString(response).getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+		exchange.sendResponseHeaders(200, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	private Bundle searchset() {
+		Bundle bundle = new Bundle().setType(Bundle.BundleType.SEARCHSET);
+		bundle.addEntry().setResource(new Observation().setId("obs-" + resourceCount.incrementAndGet()));
+		return bundle;
+	}
+
+	private static int countCodes(String query) {
+		for (String parameter : query.split("&")) {
+			String decoded = URLDecoder.decode(parameter, StandardCharsets.UTF_8);
+			if (decoded.startsWith("code=")) {
+				return decoded.substring("code=".length()).split(",").length;
+			}
+		}
+		return 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	private RemoteDataRetriever retriever(Library library) {
+		DaoRegistry daoRegistry = mock(DaoRegistry.class);
+		IFhirResourceDao<Library> libraryDao = mock(IFhirResourceDao.class);
+		doReturn(libraryDao).when(daoRegistry).getResourceDao("Library");
+		when(libraryDao.read(any(IIdType.class), isNull())).thenReturn(library);
+		retriever = new RemoteDataRetriever(daoRegistry,
+				new ProviderConfiguration(true, 64, SearchStyleEnum.GET, 8000, 5, "client_id"), 4);
+		return retriever;
+	}
+
+	private RemoteDataRetriever retriever(SearchStyleEnum searchStyle) {
+		retriever = new RemoteDataRetriever(null,
+				new ProviderConfiguration(true, 64, searchStyle, 8000, 5, "client_id"), 4);
+		return retriever;
+	}
+
+	private static RemoteDataRetriever.Query query(int codes) {
+		List<String> tokens = new ArrayList<>();
+		for (int i = 0; i < codes; i++) {
+			tokens.add("http://loinc.org|" + i);
+		}
+		return new RemoteDataRetriever.Query("Observation", Collections.singletonMap("subject", "Patient/123"),
+				"code", tokens);
+	}
+
+	@Test
+	void testCodesAreSplitByMaxCodesPerQuery() {
+		Bundle data = retriever(SearchStyleEnum.GET).retrieve(client, Collections.singletonList(query(150)));
+
+		assertEquals(3, requests.size());
+		assertEquals(Collections.singletonList("GET /fhir/Observation"),
+				requests.stream().distinct().collect(Collectors.toList()));
+		assertEquals(Arrays.asList(22, 64, 64), codeCounts.stream().sorted().collect(Collectors.toList()));
+		assertEquals(3, data.getEntry().size());
+	}
+
+	@Test
+	void testPostSearchStyle() {
+		retriever(SearchStyleEnum.POST).retrieve(client, Collections.singletonList(query(150)));
+
+		assertEquals(3, requests.size());
+		assertEquals(Collections.singletonList("POST /fhir/Observation/_search"),
+				requests.stream().distinct().collect(Collectors.toList()));
+		assertEquals(150, codeCounts.stream().mapToInt(Integer::intValue).sum());
+	}
+
+	@Test
+	void testSearchesAboveThresholdAreBatched() {
+		Bundle data = retriever(SearchStyleEnum.GET).retrieve(client, Arrays.asList(query(150), query(150)));
+
+		assertEquals(Collections.singletonList("POST /fhir"), requests);
+		assertEquals(6, codeCounts.size());
+		assertEquals(300, codeCounts.stream().mapToInt(Integer::intValue).sum());
+		assertEquals(6, data.getEntry().size());
+	}
+
+	@Test
+	void testSearchesWithinThresholdAreNotBatched() {
+		retriever(SearchStyleEnum.GET).retrieve(client, Arrays.asList(query(10), query(10), query(0)));
+
+		assertEquals(3, requests.size());
+		assertEquals(Arrays.asList(0, 10, 10), codeCounts.stream().sorted().collect(Collectors.toList()));
+	}
+
+	@Test
+	void testDataRequirementsArePreloadedWithThePatient() {
+		Library library = new Library();
+		library.addDataRequirement().setType("Observation").addCodeFilter().setPath("code")
+				.addCode(new Coding("http://loinc.org", "1234-5", null));
+		library.addDataRequirement().setType("Condition");
+
+		RemoteDataRetriever.Preloaded preloaded = retriever(library).preload(client,
+				new IdType("Library", "example"), "123");
+
+		assertEquals(Arrays.asList("GET /fhir/Condition", "GET /fhir/Observation", "GET /fhir/Patient"),
+				requests.stream().sorted().collect(Collectors.toList()));
+		assertEquals(3, preloaded.getData().getEntry().size());
+		assertTrue(preloaded.isComplete());
+	}
+
+	@Test
+	void testPatientReferenceIsSearchedByItsId() {
+		Library library = new Library();
+		library.addDataRequirement().setType("Condition");
+
+		retriever(library).preload(client, new IdType("Library", "example"), "Patient/123");
+
+		assertTrue(queries.contains("_id=123"), queries.toString());
+		assertTrue(queries.stream().anyMatch(query -> query.endsWith("=Patient/123")), queries.toString());
+		assertFalse(queries.stream().anyMatch(query -> query.contains("Patient/Patient")), queries.toString());
+	}
+
+	@Test
+	void testRequirementsOutsideThePatientCompartmentAreNotComplete() {
+		Library library = new Library();
+		library.addDataRequirement().setType("Condition");
+		library.addDataRequirement().setType("Medication");
+
+		RemoteDataRetriever.Preloaded preloaded = retriever(library).preload(client,
+				new IdType("Library", "example"), "Patient/123");
+
+		assertEquals(Arrays.asList("GET /fhir/Condition", "GET /fhir/Patient"),
+				requests.stream().sorted().collect(Collectors.toList()));
+		assertFalse(preloaded.isComplete());
+	}
+
+	@Test
+	void testNothingIsPreloadedWithoutDataRequirements() {
+		assertNull(retriever(new Library()).preload(client, new IdType("Library", "example"), "123"));
+		assertEquals(0, requests.size());
+	}
+}
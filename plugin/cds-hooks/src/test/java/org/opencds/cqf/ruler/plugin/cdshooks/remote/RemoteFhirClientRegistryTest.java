@@ -0,0 +1,201 @@
+package org.opencds.cqf.ruler.plugin.cdshooks.remote;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksMetrics;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksProperties;
+import org.opencds.cqf.ruler.cdshooks.EvaluationDeadline;
+import org.opencds.cqf.ruler.cdshooks.remote.RemoteFhirClientRegistry;
+import org.opencds.cqf.ruler.cdshooks.request.CdsHooksRequest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class RemoteFhirClientRegistryTest {
+	private static final String PATIENT = "{\"resourceType\":\"Patient\",\"id\":\"example\",\"gender\":\"female\"}";
+
+	private HttpServer server;
+	private String baseUrl;
+	private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+	private final Set<String> authorizations = ConcurrentHashMap.newKeySet();
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicInteger maxActive = new AtomicInteger();
+	private volatile long delayMillis;
+
+	private SimpleMeterRegistry meterRegistry;
+	private RemoteFhirClientRegistry registry;
+
+	@BeforeEach
+	void startServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/fhir", this::handle);
+		server.setExecutor(Executors.newFixedThreadPool(8));
+		server.start();
+		baseUrl = "http://localhost:" + server.getAddress().getPort() + "/fhir";
+		meterRegistry = new SimpleMeterRegistry();
+	}
+
+	@AfterEach
+	void stopServer() throws IOException {
+		if (registry != null) {
+			registry.close();
+		}
+		server.stop(0);
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		int current = active.incrementAndGet();
+		maxActive.accumulateAndGet(current, Math::max);
+		try {
+			clientPorts.add(exchange.getRemoteAddress().getPort());
+			String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+			authorizations.add(authorization + " " + exchange.getRequestHeaders().getFirst("client_id"));
+			if (delayMillis > 0) {
+				Thread.sleep(delayMillis);
+			}
+			byte[] body = PATIENT.getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			active.decrementAndGet();
+		}
+	}
+
+	private RemoteFhirClientRegistry registry(int maxConcurrentRequestsPerHost) {
+		CdsHooksProperties.RemoteClient properties = new CdsHooksProperties.RemoteClient();
+		properties.setMaxConcurrentRequestsPerHost(maxConcurrentRequestsPerHost);
+		registry = new RemoteFhirClientRegistry(FhirContext.forR4Cached(), properties, "client_id",
+				new CdsHooksMetrics(meterRegistry));
+		return registry;
+	}
+
+	private static CdsHooksRequest.FhirAuthorization authorization(String subject, String token) {
+		CdsHooksRequest.FhirAuthorization authorization = new CdsHooksRequest.FhirAuthorization();
+		authorization.tokenType = "Bearer";
+		authorization.accessToken = token;
+		authorization.subject = subject;
+		return authorization;
+	}
+
+	@Test
+	void testEachClientSendsOnlyItsOwnAuthorization() throws Exception {
+		RemoteFhirClientRegistry clients = registry(4);
+		IGenericClient first = clients.getClient(baseUrl, authorization("ehr-a", "t1"));
+		IGenericClient second = clients.getClient(baseUrl + "/", authorization("ehr-a", "t2"));
+		assertNotSame(first, second);
+
+		second.read().resource(Patient.class).withId("example").execute();
+		Patient patient = first.read().resource(Patient.class).withId("example").execute();
+		assertEquals("example", patient.getIdElement().getIdPart());
+		assertEquals(Set.of("Bearer t1 ehr-a", "Bearer t2 ehr-a"), authorizations);
+		// both clients share the pooled connection
+		assertEquals(1, clientPorts.size());
+	}
+
+	@Test
+	void testConcurrentRequestsDoNotShareTokens() throws Exception {
+		RemoteFhirClientRegistry clients = registry(8);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<?>> reads = new ArrayList<>();
+			for (int i = 0; i < 32; i++) {
+				String token = "t" + i;
+				reads.add(executor.submit(() -> {
+					IGenericClient client = clients.getClient(baseUrl, authorization("ehr-a", token));
+					client.read().resource(Patient.class).withId("example").execute();
+					client.read().resource(Patient.class).withId("example").execute();
+				}));
+			}
+			for (Future<?> read : reads) {
+				read.get();
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(32, authorizations.size());
+	}
+
+	@Test
+	void testConnectionsAreKeptAlive() {
+		IGenericClient client = registry(4).getClient(baseUrl, null);
+		for (int i = 0; i < 5; i++) {
+			client.read().resource(Patient.class).withId("example").execute();
+		}
+		assertEquals(1, clientPorts.size());
+		assertEquals(5, meterRegistry.get(CdsHooksMetrics.REMOTE_REQUESTS)
+				.tag(CdsHooksMetrics.OUTCOME_TAG, "2xx").timer().count());
+	}
+
+	@Test
+	void testConcurrentRequestsPerHostAreLimited() throws Exception {
+		delayMillis = 50;
+		IGenericClient client = registry(2).getClient(baseUrl, null);
+		ExecutorService executor = Executors.newFixedThreadPool(6);
+		try {
+			List<Future<Patient>> reads = new ArrayList<>();
+			for (int i = 0; i < 6; i++) {
+				reads.add(executor.submit(() -> client.read().resource(Patient.class).withId("example").execute()));
+			}
+			for (Future<Patient> read : reads) {
+				assertEquals("female", read.get().getGender().toCode());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertTrue(maxActive.get() <= 2);
+	}
+
+	@Test
+	void testRequestsGiveUpAtTheDeadline() {
+		delayMillis = 5000;
+		IGenericClient client = registry(4).getClient(baseUrl, null);
+		long start = System.nanoTime();
+		try (EvaluationDeadline.Scope scope = EvaluationDeadline.after(200).bind()) {
+			assertThrows(RuntimeException.class,
+					() -> client.read().resource(Patient.class).withId("example").execute());
+		}
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 3000);
+	}
+
+	@Test
+	void testNoRequestIsSentOnceTheDeadlineHasPassed() throws InterruptedException {
+		IGenericClient client = registry(4).getClient(baseUrl, null);
+		EvaluationDeadline deadline = EvaluationDeadline.after(1);
+		Thread.sleep(5);
+		try (EvaluationDeadline.Scope scope = deadline.bind()) {
+			assertThrows(RuntimeException.class,
+					() -> client.read().resource(Patient.class).withId("example").execute());
+		}
+		assertTrue(clientPorts.isEmpty());
+	}
+}
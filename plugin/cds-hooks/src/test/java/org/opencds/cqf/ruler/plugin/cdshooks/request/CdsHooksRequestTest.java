@@ -2,8 +2,16 @@ package org.opencds.cqf.ruler.plugin.cdshooks.request;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.MedicationRequest;
+import org.hl7.fhir.r4.model.Resource;
 import org.junit.jupiter.api.Test;
 import org.opencds.cqf.ruler.cdshooks.request.CdsHooksRequest;
 
@@ -85,4 +93,28 @@ class CdsHooksRequestTest {
 			// pass
 		}
 	}
+
+	@Test
+	void testPrefetchAndDraftOrders() throws IOException {
+		ObjectMapper mapper = new ObjectMapper().setSerializationInclusion(JsonInclude.Include.NON_NULL);
+		CdsHooksRequest cdsHooksRequest;
+		try (InputStream is = CdsHooksRequestTest.class.getResourceAsStream("/opioidcds-04-request-prefetch.json")) {
+			cdsHooksRequest = mapper.readValue(is, CdsHooksRequest.class);
+		}
+		assertTrue(cdsHooksRequest instanceof CdsHooksRequest.OrderSelect);
+
+		Bundle draftOrders = ((CdsHooksRequest.OrderSelect) cdsHooksRequest).context.draftOrders;
+		assertNotNull(draftOrders);
+		assertEquals(1, draftOrders.getEntry().size());
+		assertTrue(draftOrders.getEntryFirstRep().getResource() instanceof MedicationRequest);
+		assertEquals("example-rec-04-prefetch-context", draftOrders.getEntryFirstRep().getResource().getIdPart());
+
+		assertNotNull(cdsHooksRequest.prefetch);
+		assertEquals(13, cdsHooksRequest.prefetch.resources.size());
+		assertTrue(cdsHooksRequest.prefetch.resources.containsKey("item13"));
+		assertNull(cdsHooksRequest.prefetch.resources.get("item13"));
+		Resource item3 = cdsHooksRequest.prefetch.resources.get("item3");
+		assertNotNull(item3);
+		assertEquals("Patient", item3.fhirType());
+	}
 }
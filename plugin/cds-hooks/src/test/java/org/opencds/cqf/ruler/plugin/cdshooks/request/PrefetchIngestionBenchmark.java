@@ -0,0 +1,101 @@
+package org.opencds.cqf.ruler.plugin.cdshooks.request;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.opencds.cqf.ruler.cdshooks.r4.CdsHooksUtil;
+import org.opencds.cqf.ruler.cdshooks.request.CdsHooksRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.JsonParser;
+import ca.uhn.fhir.parser.LenientErrorHandler;
+
+/**
+ * Compares ingesting the opioid recommendation requests the way the servlet
+ * used to (Jackson to Object, Gson round trips, HAPI parse of the re-encoded
+ * JSON per prefetch entry and for draftOrders) against parsing the request
+ * straight into R4 resources. Run the main method to include allocation per
+ * request from the GC profiler.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PrefetchIngestionBenchmark {
+	private static final ObjectMapper mapper = new ObjectMapper()
+			.enable(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS);
+	private static final Gson gson = new Gson();
+
+	@Param({ "opioidcds-01-request-prefetch.json", "opioidcds-04-request-prefetch.json",
+			"opioidcds-08-request-prefetch.json" })
+	public String fixture;
+
+	private byte[] request;
+
+	@Setup
+	public void setup() throws IOException {
+		try (InputStream is = PrefetchIngestionBenchmark.class.getResourceAsStream("/" + fixture)) {
+			request = is.readAllBytes();
+		}
+	}
+
+	@Benchmark
+	public void legacy(Blackhole blackhole) throws IOException {
+		Map<?, ?> body = mapper.readValue(request, Map.class);
+		Map<?, ?> context = (Map<?, ?>) body.get("context");
+		JsonObject draftOrders = gson.fromJson(gson.toJson(context.get("draftOrders")), JsonObject.class);
+		blackhole.consume(new JsonParser(FhirContext.forR4Cached(), new LenientErrorHandler())
+				.parseResource(Bundle.class, draftOrders.toString()));
+		for (Object value : ((Map<?, ?>) body.get("prefetch")).values()) {
+			JsonElement element = gson.fromJson(gson.toJson(value), JsonElement.class);
+			if (element.isJsonObject() && element.getAsJsonObject().has("resource")) {
+				JsonObject resource = element.getAsJsonObject().get("resource").getAsJsonObject();
+				blackhole.consume(new JsonParser(FhirContext.forR4Cached(), new LenientErrorHandler())
+						.parseResource(resource.toString()));
+			}
+		}
+	}
+
+	@Benchmark
+	public void streaming(Blackhole blackhole) throws IOException {
+		CdsHooksRequest cdsHooksRequest = mapper.readValue(request, CdsHooksRequest.class);
+		blackhole.consume(cdsHooksRequest instanceof CdsHooksRequest.OrderSelect
+				? ((CdsHooksRequest.OrderSelect) cdsHooksRequest).context.draftOrders
+				: ((CdsHooksRequest.OrderSign) cdsHooksRequest).context.draftOrders);
+		blackhole.consume(CdsHooksUtil.getPrefetchResources(cdsHooksRequest));
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(PrefetchIngestionBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build()).run();
+	}
+}
@@ -0,0 +1,137 @@
+package org.opencds.cqf.ruler.plugin.cdshooks.response;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.ruler.cdshooks.response.Card;
+import org.opencds.cqf.ruler.cdshooks.response.Cards;
+import org.opencds.cqf.ruler.cdshooks.response.CardsWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.fasterxml.jackson.annotation.JsonGetter;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonRawValue;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParser;
+
+/**
+ * Compares the cost of writing a Cards response the way the servlet used to
+ * (Jackson to a String with resources pre-encoded by HAPI, re-parsed and pretty
+ * printed by Gson) against streaming it with {@link CardsWriter}. Run the main
+ * method to get allocation per response ({@code gc.alloc.rate.norm}) from the
+ * GC profiler.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CardsSerializationBenchmark {
+
+	@Param({ "1", "10" })
+	public int cardCount;
+
+	private Cards cards;
+	private final CardsWriter prettyWriter = new CardsWriter(true);
+	private final CardsWriter compactWriter = new CardsWriter(false);
+
+	@Setup
+	public void setup() {
+		List<Card> list = new ArrayList<>();
+		for (int i = 0; i < cardCount; i++) {
+			list.addAll(CardsWriterTest.cards().cards);
+		}
+		cards = new Cards();
+		cards.cards = list;
+	}
+
+	@Benchmark
+	public void legacy(Blackhole blackhole) throws IOException {
+		PrintWriter writer = new PrintWriter(new BlackholeOutputStream(blackhole), false, StandardCharsets.UTF_8);
+		writer.println(legacyJson(cards));
+		writer.flush();
+	}
+
+	@Benchmark
+	public void streamingPretty(Blackhole blackhole) throws IOException {
+		prettyWriter.write(cards, new BlackholeOutputStream(blackhole));
+	}
+
+	@Benchmark
+	public void streamingCompact(Blackhole blackhole) throws IOException {
+		compactWriter.write(cards, new BlackholeOutputStream(blackhole));
+	}
+
+	private static final ObjectMapper legacyMapper = new ObjectMapper()
+			.setSerializationInclusion(JsonInclude.Include.NON_NULL)
+			.addMixIn(Card.Suggestion.Action.class, LegacyActionMixIn.class);
+
+	/**
+	 * The response body as previously produced by the servlet, without the
+	 * trailing newline.
+	 */
+	static String legacyJson(Cards cards) throws IOException {
+		String json = legacyMapper.writeValueAsString(cards);
+		return new GsonBuilder().disableHtmlEscaping().setPrettyPrinting().create()
+				.toJson(JsonParser.parseString(json));
+	}
+
+	// Restores the pre-encoded resource string the actions used to serialize
+	abstract static class LegacyActionMixIn {
+		@JsonIgnore
+		public abstract IBaseResource getResource();
+
+		@JsonGetter("resource")
+		@JsonRawValue
+		public abstract String getResourceString();
+	}
+
+	private static class BlackholeOutputStream extends OutputStream {
+		private final Blackhole blackhole;
+
+		BlackholeOutputStream(Blackhole blackhole) {
+			this.blackhole = blackhole;
+		}
+
+		@Override
+		public void write(int b) {
+			blackhole.consume(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			blackhole.consume(b);
+		}
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(CardsSerializationBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build()).run();
+	}
+}
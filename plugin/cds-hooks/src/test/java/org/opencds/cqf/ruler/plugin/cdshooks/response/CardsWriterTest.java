@@ -0,0 +1,92 @@
+package org.opencds.cqf.ruler.plugin.cdshooks.response;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.ServiceRequest;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.ruler.cdshooks.response.Card;
+import org.opencds.cqf.ruler.cdshooks.response.Cards;
+import org.opencds.cqf.ruler.cdshooks.response.CardsWriter;
+
+import com.google.gson.JsonParser;
+
+import ca.uhn.fhir.context.FhirContext;
+
+class CardsWriterTest {
+
+	static Cards cards() {
+		Card card = new Card();
+		card.setSummary("Greater than or equals symbol (≥) (&#8805;) (U+2265)");
+		card.setDetail("Some <br /> detail");
+		card.setIndicator("info");
+		Card.Source source = new Card.Source();
+		source.setLabel("Test");
+		card.setSource(source);
+		card.setLinks(Collections.emptyList());
+		card.setSelectionBehavior("any");
+
+		ServiceRequest serviceRequest = new ServiceRequest();
+		serviceRequest.setId("example");
+		serviceRequest.setStatus(ServiceRequest.ServiceRequestStatus.DRAFT);
+		serviceRequest.setIntent(ServiceRequest.ServiceRequestIntent.PROPOSAL);
+		CodeableConcept code = new CodeableConcept();
+		code.addCoding().setSystem("http://loinc.org").setCode("75622-1");
+		serviceRequest.setCode(code);
+		serviceRequest.getSubject().setReference("Patient/example");
+
+		Card.Suggestion.Action action = new Card.Suggestion.Action();
+		action.fhirContext = FhirContext.forR4Cached();
+		action.setType("create");
+		action.setDescription("Order the test");
+		action.setResource(serviceRequest);
+		Card.Suggestion suggestion = new Card.Suggestion();
+		suggestion.setLabel("Order");
+		suggestion.setActions(Collections.singletonList(action));
+		card.setSuggestions(Collections.singletonList(suggestion));
+
+		Cards cards = new Cards();
+		cards.cards = Collections.singletonList(card);
+		return cards;
+	}
+
+	static String legacy(Cards cards) throws IOException {
+		return CardsSerializationBenchmark.legacyJson(cards) + "\n";
+	}
+
+	@Test
+	void testPrettyPrintMatchesLegacyFormat() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new CardsWriter(true).write(cards(), out);
+		assertEquals(legacy(cards()), out.toString(StandardCharsets.UTF_8));
+	}
+
+	@Test
+	void testCompactIsEquivalent() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new CardsWriter(false).write(cards(), out);
+		String compact = out.toString(StandardCharsets.UTF_8);
+		assertFalse(compact.trim().contains("\n"));
+		assertEquals(JsonParser.parseString(legacy(cards())), JsonParser.parseString(compact));
+	}
+
+	@Test
+	void testCapture() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CardsWriter writer = new CardsWriter(false);
+		assertNull(writer.write(cards(), out, 0));
+
+		out.reset();
+		String captured = writer.write(cards(), out, 16);
+		assertTrue(captured.startsWith(out.toString(StandardCharsets.UTF_8).substring(0, 16)));
+		assertTrue(captured.endsWith("(" + out.size() + " bytes)"));
+	}
+}
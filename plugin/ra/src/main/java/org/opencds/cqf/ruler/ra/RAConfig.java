@@ -1,12 +1,26 @@
 package org.opencds.cqf.ruler.ra;
 
+import ca.uhn.fhir.batch2.api.IJobCoordinator;
+import ca.uhn.fhir.batch2.model.JobDefinition;
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.rest.server.util.ISearchParamRegistry;
 import ca.uhn.fhir.rest.server.provider.ResourceProviderFactory;
 import org.opencds.cqf.external.annotations.OnR4Condition;
 import org.opencds.cqf.external.cr.PostInitProviderRegisterer;
-import org.opencds.cqf.ruler.api.OperationProvider;
+import org.opencds.cqf.ruler.ra.async.EvaluatePatientsStep;
+import org.opencds.cqf.ruler.ra.async.RAAsyncInterceptor;
+import org.opencds.cqf.ruler.ra.async.RAAsyncJobParameters;
+import org.opencds.cqf.ruler.ra.async.RAAsyncOutputCleaner;
+import org.opencds.cqf.ruler.ra.async.RAAsyncStatusProvider;
+import org.opencds.cqf.ruler.ra.async.RAOperationInvoker;
+import org.opencds.cqf.ruler.ra.async.RAPatientChunk;
+import org.opencds.cqf.ruler.ra.async.ResolvePatientsStep;
 import org.opencds.cqf.ruler.ra.r4.ApproveProvider;
 import org.opencds.cqf.ruler.ra.r4.AssistedServlet;
+import org.opencds.cqf.ruler.ra.r4.CodingGapSearchParameters;
+import org.opencds.cqf.ruler.ra.r4.CodingGapsPipeline;
 import org.opencds.cqf.ruler.ra.r4.RACodingGapsProvider;
 import org.opencds.cqf.ruler.ra.r4.RemediateProvider;
 import org.opencds.cqf.ruler.ra.r4.ResolveProvider;
@@ -29,34 +43,107 @@ public class RAConfig {
 
 	@Bean
 	@Conditional(OnR4Condition.class)
-	public OperationProvider r4ReportProvider() {
+	public CodingGapSearchParameters codingGapSearchParameters(DaoRegistry daoRegistry,
+			ISearchParamRegistry searchParamRegistry) {
+		return new CodingGapSearchParameters(daoRegistry, searchParamRegistry);
+	}
+
+	/**
+	 * The threads building coding gap reports, shared by every $ra.coding-gaps
+	 * request, streamed or asynchronous.
+	 */
+	@Bean(destroyMethod = "close")
+	@Conditional(OnR4Condition.class)
+	public CodingGapsPipeline codingGapsPipeline(RAProperties raProperties) {
+		return new CodingGapsPipeline(raProperties.getCodingGaps());
+	}
+
+	@Bean
+	@Conditional(OnR4Condition.class)
+	public RACodingGapsProvider r4ReportProvider() {
 		return new RACodingGapsProvider();
 	}
 
 	@Bean
 	@Conditional(OnR4Condition.class)
-	public OperationProvider r4RiskAdjustmentProvider() {
+	public RiskAdjustmentProvider r4RiskAdjustmentProvider() {
 		return new RiskAdjustmentProvider();
 	}
 
 	@Bean
 	@Conditional(OnR4Condition.class)
-	public OperationProvider r4RemediateProvider() {
+	public RemediateProvider r4RemediateProvider() {
 		return new RemediateProvider();
 	}
 
 	@Bean
 	@Conditional(OnR4Condition.class)
-	public OperationProvider r4ApproveProvider() {
+	public ApproveProvider r4ApproveProvider() {
 		return new ApproveProvider();
 	}
 
 	@Bean
 	@Conditional(OnR4Condition.class)
-	public OperationProvider r4ResolveProvider() {
+	public ResolveProvider r4ResolveProvider() {
 		return new ResolveProvider();
 	}
 
+	@Bean
+	@Conditional(OnR4Condition.class)
+	public RAOperationInvoker raOperationInvoker(FhirContext fhirContext, RACodingGapsProvider codingGapsProvider,
+			ApproveProvider approveProvider, ResolveProvider resolveProvider, RemediateProvider remediateProvider,
+			RiskAdjustmentProvider riskAdjustmentProvider) {
+		return new RAOperationInvoker(fhirContext, codingGapsProvider, approveProvider, resolveProvider,
+				remediateProvider, riskAdjustmentProvider);
+	}
+
+	/**
+	 * The patients of the subject are resolved first and handed out in chunks of
+	 * {@code hapi.fhir.ra.async.chunk-size}, each evaluated by a Batch2 worker and
+	 * checkpointed as soon as its output is stored.
+	 */
+	@Bean
+	@Conditional(OnR4Condition.class)
+	public JobDefinition<RAAsyncJobParameters> raAsyncJobDefinition(RAProperties raProperties,
+			RACodingGapsProvider codingGapsProvider, RAOperationInvoker raOperationInvoker, DaoRegistry daoRegistry,
+			FhirContext fhirContext) {
+		return JobDefinition.newBuilder()
+				.setJobDefinitionId(RAConstants.ASYNC_JOB_DEFINITION_ID)
+				.setJobDescription("Asynchronous Da Vinci Risk Adjustment operation")
+				.setJobDefinitionVersion(1)
+				.setParametersType(RAAsyncJobParameters.class)
+				.addFirstStep("resolve-patients", "Resolve the patients of the subject", RAPatientChunk.class,
+						new ResolvePatientsStep(codingGapsProvider, raProperties.getAsync().getChunkSize()))
+				.addLastStep("evaluate-patients", "Run the operation for each patient and store the output",
+						new EvaluatePatientsStep(raOperationInvoker, daoRegistry, fhirContext))
+				.build();
+	}
+
+	@Bean
+	@Conditional(OnR4Condition.class)
+	public RAAsyncInterceptor raAsyncInterceptor(RAProperties raProperties, IJobCoordinator jobCoordinator,
+			FhirContext fhirContext, IInterceptorService interceptorService) {
+		RAAsyncInterceptor interceptor = new RAAsyncInterceptor(jobCoordinator, fhirContext);
+		if (raProperties.getAsync().isEnabled()) {
+			interceptorService.registerInterceptor(interceptor);
+		}
+		return interceptor;
+	}
+
+	@Bean(destroyMethod = "close")
+	@Conditional(OnR4Condition.class)
+	public RAAsyncOutputCleaner raAsyncOutputCleaner(RAProperties raProperties, IJobCoordinator jobCoordinator,
+			DaoRegistry daoRegistry) {
+		return new RAAsyncOutputCleaner(jobCoordinator, daoRegistry,
+				raProperties.getAsync().getOutputRetentionMinutes());
+	}
+
+	@Bean
+	@Conditional(OnR4Condition.class)
+	public RAAsyncStatusProvider r4AsyncStatusProvider() {
+		return new RAAsyncStatusProvider();
+	}
+
 	@Bean
 	@Conditional(OnR4Condition.class)
 	public ServletRegistrationBean<AssistedServlet> assistedServletServletRegistrationBeanR4(
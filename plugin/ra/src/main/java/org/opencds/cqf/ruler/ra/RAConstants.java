@@ -79,6 +79,20 @@ public class RAConstants {
 			Collections.singletonList(new CanonicalType(RAConstants.CODING_GAP_BUNDLE_URL)))
 			.setLastUpdated(new Date());
 
+	// Search parameters indexing coding gap Bundles, see CodingGapSearchParameters
+	public static final String CODING_GAP_SUBJECT_SEARCH_PARAM = "ra-coding-gap-subject";
+	public static final String CODING_GAP_REPORT_DATE_SEARCH_PARAM = "ra-coding-gap-report-date";
+
+	// $ra.coding-gaps streamed as NDJSON, see RACodingGapsProvider
+	public static final String CODING_GAPS_STREAM_OPERATION = "$ra.coding-gaps-stream";
+
+	// Asynchronous operation constants, see the async package
+	public static final String ASYNC_JOB_DEFINITION_ID = "davinci-ra-async-operation";
+	public static final String ASYNC_STATUS_OPERATION = "$ra.async-status";
+	public static final String ASYNC_JOB_ID_PARAM = "_jobId";
+	public static final String ASYNC_JOB_TAG_SYSTEM = "http://cqframework.org/fhir/CodeSystem/ra-async-job";
+	public static final String ASYNC_OUTPUT_TAG_SYSTEM = "http://cqframework.org/fhir/CodeSystem/ra-async-output";
+
 	// Composition constants
 	public static final Meta COMPOSITION_META = new Meta().addProfile(
 			"http://hl7.org/fhir/us/davinci-ra/StructureDefinition/ra-coding-gap-composition")
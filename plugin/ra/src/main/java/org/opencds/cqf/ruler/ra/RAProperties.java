@@ -63,4 +63,78 @@ public class RAProperties {
 			this.ra_composition_section_author = raCompositionSectionAuthor;
 		}
 	}
+
+	private CodingGaps codingGaps = new CodingGaps();
+
+	public CodingGaps getCodingGaps() {
+		return codingGaps;
+	}
+
+	public void setCodingGaps(CodingGaps codingGaps) {
+		this.codingGaps = codingGaps;
+	}
+
+	public static class CodingGaps {
+		private int parallelism = 4;
+
+		public int getParallelism() {
+			return parallelism;
+		}
+
+		public void setParallelism(int parallelism) {
+			this.parallelism = parallelism;
+		}
+
+		private int progressInterval = 1000;
+
+		public int getProgressInterval() {
+			return progressInterval;
+		}
+
+		public void setProgressInterval(int progressInterval) {
+			this.progressInterval = progressInterval;
+		}
+	}
+
+	private Async async = new Async();
+
+	public Async getAsync() {
+		return async;
+	}
+
+	public void setAsync(Async async) {
+		this.async = async;
+	}
+
+	public static class Async {
+		private boolean enabled = true;
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		private int chunkSize = 100;
+
+		public int getChunkSize() {
+			return chunkSize;
+		}
+
+		public void setChunkSize(int chunkSize) {
+			this.chunkSize = chunkSize;
+		}
+
+		private long outputRetentionMinutes = 1440;
+
+		public long getOutputRetentionMinutes() {
+			return outputRetentionMinutes;
+		}
+
+		public void setOutputRetentionMinutes(long outputRetentionMinutes) {
+			this.outputRetentionMinutes = outputRetentionMinutes;
+		}
+	}
 }
@@ -1,5 +1,6 @@
 package org.opencds.cqf.ruler.ra;
 
+import org.opencds.cqf.ruler.ra.async.RAAsyncStatusProvider;
 import org.opencds.cqf.ruler.ra.r4.ApproveProvider;
 import org.opencds.cqf.ruler.ra.r4.RACodingGapsProvider;
 import org.opencds.cqf.ruler.ra.r4.RemediateProvider;
@@ -64,4 +65,13 @@ public class RAProviderFactory {
 					+ myFhirContext.getVersion().getVersion());
 		}
 	}
+	public Object getRAAsyncStatusProvider() {
+		switch (myFhirContext.getVersion().getVersion()) {
+			case R4:
+				return myApplicationContext.getBean(RAAsyncStatusProvider.class);
+			default:
+				throw new ConfigurationException("RAAsyncStatusProvider not supported for FHIR version "
+					+ myFhirContext.getVersion().getVersion());
+		}
+	}
 }
@@ -0,0 +1,94 @@
+package org.opencds.cqf.ruler.ra.async;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.hl7.fhir.r4.model.Binary;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Resource;
+import org.opencds.cqf.ruler.ra.RAConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.batch2.api.IJobDataSink;
+import ca.uhn.fhir.batch2.api.ILastJobStepWorker;
+import ca.uhn.fhir.batch2.api.RunOutcome;
+import ca.uhn.fhir.batch2.api.StepExecutionDetails;
+import ca.uhn.fhir.batch2.api.VoidModel;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+
+/**
+ * The second step of an asynchronous $ra operation: runs the operation for
+ * each patient of a chunk and stores the resources it returns as NDJSON
+ * Binaries, one per resource type, tagged with the job they belong to.
+ * <p>
+ * The Binaries are named after the chunk, so a chunk run again after a
+ * failure replaces its output instead of adding to it. OperationOutcomes,
+ * including those of a patient the operation failed for, are written to the
+ * error output.
+ */
+public class EvaluatePatientsStep implements ILastJobStepWorker<RAAsyncJobParameters, RAPatientChunk> {
+	private static final Logger logger = LoggerFactory.getLogger(EvaluatePatientsStep.class);
+	static final String ERROR = "error";
+	static final String OUTPUT = "output";
+
+	private final RAOperationInvoker invoker;
+	private final DaoRegistry daoRegistry;
+	private final IParser parser;
+
+	public EvaluatePatientsStep(RAOperationInvoker invoker, DaoRegistry daoRegistry, FhirContext fhirContext) {
+		this.invoker = invoker;
+		this.daoRegistry = daoRegistry;
+		this.parser = fhirContext.newJsonParser().setPrettyPrint(false);
+	}
+
+	@Override
+	public RunOutcome run(StepExecutionDetails<RAAsyncJobParameters, RAPatientChunk> stepExecutionDetails,
+			IJobDataSink<VoidModel> dataSink) {
+		RAAsyncJobParameters job = stepExecutionDetails.getParameters();
+		// by resource type, OperationOutcomes under ERROR
+		Map<String, StringBuilder> ndjson = new LinkedHashMap<>();
+		for (String patient : stepExecutionDetails.getData().getPatients()) {
+			try {
+				Parameters result = invoker.invoke(job, patient);
+				for (Parameters.ParametersParameterComponent parameter : result.getParameter()) {
+					if (parameter.hasResource()) {
+						append(ndjson, parameter.getResource());
+					}
+				}
+			} catch (RuntimeException e) {
+				logger.warn("{} failed for {}: {}", job.getOperation(), patient, e.getMessage());
+				OperationOutcome outcome = new OperationOutcome();
+				outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.ERROR)
+						.setCode(OperationOutcome.IssueType.EXCEPTION)
+						.setDiagnostics(patient + ": " + e.getMessage());
+				append(ndjson, outcome);
+			}
+		}
+
+		String jobId = stepExecutionDetails.getInstance().getInstanceId();
+		for (Map.Entry<String, StringBuilder> file : ndjson.entrySet()) {
+			Binary binary = new Binary();
+			binary.setId("ra-" + stepExecutionDetails.getChunkId() + "-" + file.getKey());
+			binary.setContentType("application/fhir+ndjson");
+			binary.setData(file.getValue().toString().getBytes(StandardCharsets.UTF_8));
+			binary.getMeta().addTag(RAConstants.ASYNC_JOB_TAG_SYSTEM, jobId, null);
+			boolean error = file.getKey().equals(ERROR);
+			binary.getMeta().addTag(RAConstants.ASYNC_OUTPUT_TAG_SYSTEM, error ? ERROR : OUTPUT,
+					error ? "OperationOutcome" : file.getKey());
+			daoRegistry.getResourceDao(Binary.class).update(binary, new SystemRequestDetails());
+		}
+		return new RunOutcome(stepExecutionDetails.getData().getPatients().size());
+	}
+
+	private void append(Map<String, StringBuilder> ndjson, Resource resource) {
+		String key = resource instanceof OperationOutcome ? ERROR : resource.fhirType();
+		ndjson.computeIfAbsent(key, k -> new StringBuilder()).append(parser.encodeResourceToString(resource))
+				.append('\n');
+	}
+}
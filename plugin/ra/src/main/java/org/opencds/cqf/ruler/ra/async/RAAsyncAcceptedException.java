@@ -0,0 +1,23 @@
+package org.opencds.cqf.ruler.ra.async;
+
+import org.hl7.fhir.instance.model.api.IBaseOperationOutcome;
+
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+
+/**
+ * Answers an asynchronous $ra kick-off request with {@code 202 Accepted} and
+ * the {@code Content-Location} to poll. Interceptors at
+ * {@code SERVER_INCOMING_REQUEST_PRE_HANDLED} cannot write a response
+ * themselves, so the server writes this one in place of the operation's.
+ */
+public class RAAsyncAcceptedException extends BaseServerResponseException {
+	private static final long serialVersionUID = 1L;
+
+	public static final int STATUS_CODE = 202;
+
+	public RAAsyncAcceptedException(IBaseOperationOutcome outcome, String contentLocation) {
+		super(STATUS_CODE, "Accepted", outcome);
+		addResponseHeader(Constants.HEADER_CONTENT_LOCATION, contentLocation);
+	}
+}
@@ -0,0 +1,165 @@
+package org.opencds.cqf.ruler.ra.async;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Binary;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Parameters;
+import org.opencds.cqf.ruler.ra.RAConstants;
+import org.opencds.cqf.ruler.utility.Operations;
+
+import ca.uhn.fhir.batch2.api.IJobCoordinator;
+import ca.uhn.fhir.batch2.model.JobInstance;
+import ca.uhn.fhir.batch2.model.JobInstanceStartRequest;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.IPreResourceShowDetails;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+
+/**
+ * Kicks off an $ra operation requested with {@code Prefer: respond-async} as a
+ * Batch2 job instead of running it within the request, in the style of the
+ * bulk data {@code $export}: the response is {@code 202 Accepted} with a
+ * {@code Content-Location} to poll with
+ * {@value RAConstants#ASYNC_STATUS_OPERATION}. Only a request the server would
+ * have let run the operation itself is accepted.
+ * <p>
+ * The job runs the operation once per patient of the subject, in chunks of
+ * {@code hapi.fhir.ra.async.chunk-size} patients, and writes what each chunk
+ * returns to NDJSON Binaries, which only requests with the token of the
+ * kick-off request may see.
+ */
+@Interceptor
+public class RAAsyncInterceptor {
+	private final IJobCoordinator jobCoordinator;
+	private final FhirContext fhirContext;
+
+	public RAAsyncInterceptor(IJobCoordinator jobCoordinator, FhirContext fhirContext) {
+		this.jobCoordinator = jobCoordinator;
+		this.fhirContext = fhirContext;
+	}
+
+	/**
+	 * Runs once the operation has been resolved and every other interceptor,
+	 * authorization and consent included, has let the request through. The
+	 * request is then answered with a {@link RAAsyncAcceptedException} instead
+	 * of being handed to the operation.
+	 */
+	@Hook(value = Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED, order = Integer.MAX_VALUE)
+	public void kickOff(RequestDetails requestDetails, RestOperationTypeEnum operationType) {
+		String prefer = requestDetails.getHeader(Constants.HEADER_PREFER);
+		if (prefer == null || !prefer.contains(Constants.HEADER_PREFER_RESPOND_ASYNC)
+				|| (operationType != RestOperationTypeEnum.EXTENDED_OPERATION_TYPE
+						&& operationType != RestOperationTypeEnum.EXTENDED_OPERATION_INSTANCE)
+				|| !RAOperationInvoker.OPERATIONS.contains(requestDetails.getOperation())) {
+			return;
+		}
+
+		RAAsyncJobParameters job = new RAAsyncJobParameters();
+		job.setOperation(requestDetails.getOperation());
+		if (requestDetails.getId() != null && requestDetails.getId().hasIdPart()) {
+			job.setResourceId(requestDetails.getId().toUnqualifiedVersionless().getValue());
+		}
+		job.setServerBase(requestDetails.getFhirServerBase());
+		job.setRequest(requestDetails.getCompleteUrl());
+		job.setParameters(parameters(requestDetails));
+		job.setAuthorizationHash(RAAsyncJobParameters.hash(requestDetails.getHeader(Constants.HEADER_AUTHORIZATION)));
+		validate(job);
+
+		JobInstanceStartRequest startRequest = new JobInstanceStartRequest();
+		startRequest.setJobDefinitionId(RAConstants.ASYNC_JOB_DEFINITION_ID);
+		startRequest.setParameters(job);
+		String jobId = jobCoordinator.startInstance(requestDetails, startRequest).getInstanceId();
+
+		OperationOutcome outcome = new OperationOutcome();
+		outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.INFORMATION)
+				.setCode(OperationOutcome.IssueType.INFORMATIONAL)
+				.setDiagnostics(String.format("%s accepted as job %s", job.getOperation(), jobId));
+		throw new RAAsyncAcceptedException(outcome, String.format("%s/%s?%s=%s",
+				requestDetails.getFhirServerBase(), RAConstants.ASYNC_STATUS_OPERATION,
+				RAConstants.ASYNC_JOB_ID_PARAM, jobId));
+	}
+
+	/**
+	 * Lets only the requests made with the token a job was kicked off with see
+	 * its output, whether it is read from the manifest url or found by a search.
+	 * Requests the server makes itself are let through.
+	 */
+	@Hook(Pointcut.STORAGE_PRESHOW_RESOURCES)
+	public void checkOutputAccess(IPreResourceShowDetails details, RequestDetails requestDetails) {
+		if (requestDetails == null || requestDetails instanceof SystemRequestDetails) {
+			return;
+		}
+		for (IBaseResource resource : details) {
+			if (!(resource instanceof Binary)) {
+				continue;
+			}
+			Coding tag = ((Binary) resource).getMeta().getTag().stream()
+					.filter(t -> RAConstants.ASYNC_JOB_TAG_SYSTEM.equals(t.getSystem())).findFirst().orElse(null);
+			if (tag == null) {
+				continue;
+			}
+			JobInstance instance;
+			try {
+				instance = jobCoordinator.getInstance(tag.getCode());
+			} catch (ResourceNotFoundException e) {
+				throw new ForbiddenOperationException("The job of this output no longer exists");
+			}
+			instance.getParameters(RAAsyncJobParameters.class).checkAuthorization(requestDetails);
+		}
+	}
+
+	private Map<String, List<String>> parameters(RequestDetails requestDetails) {
+		Map<String, List<String>> parameters = new LinkedHashMap<>();
+		if (requestDetails.getRequestType() == RequestTypeEnum.POST) {
+			String contentType = requestDetails.getHeader(Constants.HEADER_CONTENT_TYPE);
+			EncodingEnum encoding = contentType != null ? EncodingEnum.forContentType(contentType) : null;
+			Parameters resource = (encoding != null ? encoding : EncodingEnum.JSON).newParser(fhirContext)
+					.parseResource(Parameters.class, new String(requestDetails.loadRequestContents(),
+							requestDetails.getCharset() != null ? requestDetails.getCharset() : Constants.CHARSET_UTF8));
+			for (Parameters.ParametersParameterComponent parameter : resource.getParameter()) {
+				if (parameter.hasValue() && parameter.getValue().isPrimitive()) {
+					parameters.computeIfAbsent(parameter.getName(), name -> new ArrayList<>())
+							.add(parameter.getValue().primitiveValue());
+				}
+			}
+		} else {
+			requestDetails.getParameters().forEach((name, values) -> {
+				if (!name.startsWith("_")) {
+					parameters.put(name, new ArrayList<>(Arrays.asList(values)));
+				}
+			});
+		}
+		return parameters;
+	}
+
+	private static void validate(RAAsyncJobParameters job) {
+		for (String name : Arrays.asList(RAConstants.PERIOD_START, RAConstants.PERIOD_END, RAConstants.SUBJECT)) {
+			List<String> values = job.getParameters().get(name);
+			if (values == null || values.size() != 1) {
+				throw new InvalidRequestException(String.format("Parameter '%s' must be provided once", name));
+			}
+		}
+		if (!Operations.PATIENT_OR_GROUP_REFERENCE.matcher(job.getParameters().get(RAConstants.SUBJECT).get(0))
+				.matches()) {
+			throw new InvalidRequestException(
+					String.format("Parameter '%s' must be a Patient or Group reference", RAConstants.SUBJECT));
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package org.opencds.cqf.ruler.ra.async;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import ca.uhn.fhir.model.api.IModelJson;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
+
+/**
+ * The request an asynchronous $ra operation was kicked off with.
+ */
+public class RAAsyncJobParameters implements IModelJson {
+	@JsonProperty("operation")
+	private String operation;
+	@JsonProperty("resourceId")
+	private String resourceId;
+	@JsonProperty("serverBase")
+	private String serverBase;
+	@JsonProperty("request")
+	private String request;
+	@JsonProperty("parameters")
+	private Map<String, List<String>> parameters = new LinkedHashMap<>();
+	@JsonProperty("authorizationHash")
+	private String authorizationHash;
+
+	/**
+	 * @return the name of the operation, e.g. {@code $ra.coding-gaps}
+	 */
+	public String getOperation() {
+		return operation;
+	}
+
+	public void setOperation(String operation) {
+		this.operation = operation;
+	}
+
+	/**
+	 * @return the id of the resource an instance level operation was invoked on
+	 */
+	public String getResourceId() {
+		return resourceId;
+	}
+
+	public void setResourceId(String resourceId) {
+		this.resourceId = resourceId;
+	}
+
+	public String getServerBase() {
+		return serverBase;
+	}
+
+	public void setServerBase(String serverBase) {
+		this.serverBase = serverBase;
+	}
+
+	/**
+	 * @return the url of the kick-off request, reported in the manifest
+	 */
+	public String getRequest() {
+		return request;
+	}
+
+	public void setRequest(String request) {
+		this.request = request;
+	}
+
+	/**
+	 * @return the primitive parameters of the request, by name
+	 */
+	public Map<String, List<String>> getParameters() {
+		return parameters;
+	}
+
+	public void setParameters(Map<String, List<String>> parameters) {
+		this.parameters = parameters;
+	}
+
+	/**
+	 * @return the hash of the {@code Authorization} header of the kick-off
+	 *         request, which the status request and the output have to be made
+	 *         with as well; null if there was none
+	 */
+	public String getAuthorizationHash() {
+		return authorizationHash;
+	}
+
+	public void setAuthorizationHash(String authorizationHash) {
+		this.authorizationHash = authorizationHash;
+	}
+
+	/**
+	 * Hashes an {@code Authorization} header so that the job does not store the
+	 * token itself.
+	 *
+	 * @param authorization the header, may be null
+	 * @return the SHA-256 hash of the header in hex, or null
+	 */
+	public static String hash(String authorization) {
+		if (authorization == null) {
+			return null;
+		}
+		try {
+			return String.format("%064x", new BigInteger(1, MessageDigest.getInstance("SHA-256")
+					.digest(authorization.getBytes(StandardCharsets.UTF_8))));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Checks that a request for the status or the output of the job carries the
+	 * same {@code Authorization} header the job was kicked off with.
+	 *
+	 * @param requestDetails the request
+	 * @throws ForbiddenOperationException if it does not
+	 */
+	public void checkAuthorization(RequestDetails requestDetails) {
+		if (authorizationHash == null) {
+			return;
+		}
+		String hash = hash(requestDetails.getHeader(Constants.HEADER_AUTHORIZATION));
+		if (hash == null || !MessageDigest.isEqual(authorizationHash.getBytes(StandardCharsets.UTF_8),
+				hash.getBytes(StandardCharsets.UTF_8))) {
+			throw new ForbiddenOperationException("Access to this job requires the token it was kicked off with");
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package org.opencds.cqf.ruler.ra.async;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Binary;
+import org.hl7.fhir.r4.model.Coding;
+import org.opencds.cqf.ruler.ra.RAConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.batch2.api.IJobCoordinator;
+import ca.uhn.fhir.batch2.model.JobInstance;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.api.model.ExpungeOptions;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+
+/**
+ * Deletes the NDJSON Binaries of asynchronous $ra operations once their job
+ * has been purged, or has ended more than
+ * {@code hapi.fhir.ra.async.output-retention-minutes} ago. The Binaries are
+ * expunged as well where the server allows it, as they hold patient data.
+ * <p>
+ * Runs on a single daemon thread, as often as the retention but at least
+ * hourly.
+ */
+public class RAAsyncOutputCleaner implements AutoCloseable {
+	private static final Logger logger = LoggerFactory.getLogger(RAAsyncOutputCleaner.class);
+
+	private final IJobCoordinator jobCoordinator;
+	private final DaoRegistry daoRegistry;
+	private final long retentionMillis;
+	private final ScheduledExecutorService scheduler;
+
+	public RAAsyncOutputCleaner(IJobCoordinator jobCoordinator, DaoRegistry daoRegistry, long retentionMinutes) {
+		this.jobCoordinator = jobCoordinator;
+		this.daoRegistry = daoRegistry;
+		this.retentionMillis = TimeUnit.MINUTES.toMillis(retentionMinutes);
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "ra-async-output-cleaner");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long period = Math.max(1, Math.min(retentionMinutes, 60));
+		scheduler.scheduleWithFixedDelay(this::cleanQuietly, period, period, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * @param instance a job
+	 * @return whether the output of the job is past its retention
+	 */
+	public boolean isExpired(JobInstance instance) {
+		Date ended = instance.getEndTime();
+		return ended != null && ended.getTime() + retentionMillis < System.currentTimeMillis();
+	}
+
+	/**
+	 * Deletes the output of every purged or expired job.
+	 *
+	 * @return the number of Binaries deleted
+	 */
+	public int clean() {
+		IFhirResourceDao<Binary> dao = daoRegistry.getResourceDao(Binary.class);
+		List<IBaseResource> binaries = dao.search(SearchParameterMap.newSynchronous()
+				.add(Constants.PARAM_TAG, new TokenParam(RAConstants.ASYNC_JOB_TAG_SYSTEM, null)),
+				new SystemRequestDetails()).getAllResources();
+		Map<String, Boolean> expiredJobs = new LinkedHashMap<>();
+		int deleted = 0;
+		for (IBaseResource resource : binaries) {
+			Binary binary = (Binary) resource;
+			Coding tag = binary.getMeta().getTag().stream()
+					.filter(t -> RAConstants.ASYNC_JOB_TAG_SYSTEM.equals(t.getSystem())).findFirst().orElse(null);
+			if (tag == null || !expiredJobs.computeIfAbsent(tag.getCode(), this::isPurgedOrExpired)) {
+				continue;
+			}
+			delete(dao, binary);
+			deleted++;
+		}
+		return deleted;
+	}
+
+	private boolean isPurgedOrExpired(String jobId) {
+		try {
+			return isExpired(jobCoordinator.getInstance(jobId));
+		} catch (ResourceNotFoundException e) {
+			return true;
+		}
+	}
+
+	private void delete(IFhirResourceDao<Binary> dao, Binary binary) {
+		SystemRequestDetails requestDetails = new SystemRequestDetails();
+		dao.delete(binary.getIdElement().toUnqualifiedVersionless(), requestDetails);
+		try {
+			dao.expunge(binary.getIdElement().toUnqualifiedVersionless(), new ExpungeOptions()
+					.setExpungeDeletedResources(true).setExpungeOldVersions(true), requestDetails);
+		} catch (RuntimeException e) {
+			logger.debug("Deleted {} but could not expunge it: {}", binary.getIdElement().getIdPart(),
+					e.getMessage());
+		}
+	}
+
+	private void cleanQuietly() {
+		try {
+			int deleted = clean();
+			if (deleted > 0) {
+				logger.info("Deleted {} expired asynchronous $ra output files", deleted);
+			}
+		} catch (RuntimeException e) {
+			logger.warn("Failed to delete expired asynchronous $ra output: {}", e.getMessage());
+		}
+	}
+
+	@Override
+	public void close() {
+		scheduler.shutdownNow();
+	}
+}
@@ -0,0 +1,115 @@
+package org.opencds.cqf.ruler.ra.async;
+
+import java.io.IOException;
+import java.util.List;
+
+import jakarta.servlet.http.HttpServletResponse;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.hl7.fhir.r4.model.Binary;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.opencds.cqf.ruler.provider.DaoRegistryOperationProvider;
+import org.opencds.cqf.ruler.ra.RAConstants;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import ca.uhn.fhir.batch2.api.IJobCoordinator;
+import ca.uhn.fhir.batch2.model.JobInstance;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.model.api.annotation.Description;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+/**
+ * Reports the status of an $ra operation kicked off with
+ * {@code Prefer: respond-async}, following the bulk data status request:
+ * {@code 202} with an {@code X-Progress} header while the job runs, the
+ * manifest of the NDJSON output once it is complete and {@code 500} with an
+ * OperationOutcome if it failed.
+ * <p>
+ * The status, like the output files, is only reported to requests made with
+ * the {@code Authorization} header the job was kicked off with.
+ */
+public class RAAsyncStatusProvider extends DaoRegistryOperationProvider {
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	@Autowired
+	private IJobCoordinator jobCoordinator;
+	@Autowired
+	private RAAsyncOutputCleaner outputCleaner;
+
+	@Description(shortDefinition = "$ra.async-status operation", value = "Reports the status of an asynchronous $ra operation and, once it is complete, the manifest of its NDJSON output.")
+	@Operation(name = RAConstants.ASYNC_STATUS_OPERATION, idempotent = true, manualResponse = true)
+	public void asyncStatus(
+			@OperationParam(name = RAConstants.ASYNC_JOB_ID_PARAM, typeName = "string", min = 1, max = 1) IPrimitiveType<String> jobId,
+			ServletRequestDetails requestDetails) throws IOException {
+		JobInstance instance = jobCoordinator.getInstance(jobId.getValue());
+		if (!RAConstants.ASYNC_JOB_DEFINITION_ID.equals(instance.getJobDefinitionId())) {
+			throw new ResourceNotFoundException("Unknown $ra job: " + jobId.getValue());
+		}
+		RAAsyncJobParameters job = instance.getParameters(RAAsyncJobParameters.class);
+		job.checkAuthorization(requestDetails);
+		if (outputCleaner.isExpired(instance)) {
+			throw new ResourceNotFoundException("The output of $ra job " + jobId.getValue() + " has expired");
+		}
+
+		HttpServletResponse response = requestDetails.getServletResponse();
+		switch (instance.getStatus()) {
+			case COMPLETED:
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.setContentType(Constants.CT_JSON);
+				response.setCharacterEncoding(Constants.CHARSET_NAME_UTF8);
+				response.getWriter().write(mapper.writerWithDefaultPrettyPrinter()
+						.writeValueAsString(manifest(instance, job, requestDetails.getFhirServerBase())));
+				break;
+			case FAILED:
+			case CANCELLED:
+				OperationOutcome outcome = new OperationOutcome();
+				outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.ERROR)
+						.setCode(OperationOutcome.IssueType.EXCEPTION)
+						.setDiagnostics(String.format("Job %s %s: %s", jobId.getValue(),
+								instance.getStatus().name().toLowerCase(), instance.getErrorMessage()));
+				response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+				response.setContentType(Constants.CT_FHIR_JSON_NEW);
+				response.setCharacterEncoding(Constants.CHARSET_NAME_UTF8);
+				response.getWriter().write(getFhirContext().newJsonParser().encodeResourceToString(outcome));
+				break;
+			default:
+				response.setStatus(HttpServletResponse.SC_ACCEPTED);
+				response.setHeader(Constants.HEADER_X_PROGRESS, String.format("%s, %d%% of patients done",
+						instance.getStatus().name(), Math.round(instance.getProgress() * 100)));
+				response.setHeader(Constants.HEADER_RETRY_AFTER, "10");
+				break;
+		}
+		response.getWriter().close();
+	}
+
+	private ObjectNode manifest(JobInstance instance, RAAsyncJobParameters job, String serverBase) {
+		ObjectNode manifest = mapper.createObjectNode();
+		manifest.put("transactionTime", new InstantType(instance.getStartTime()).getValueAsString());
+		manifest.put("request", job.getRequest());
+		manifest.put("requiresAccessToken", job.getAuthorizationHash() != null);
+		ArrayNode output = manifest.putArray(EvaluatePatientsStep.OUTPUT);
+		ArrayNode error = manifest.putArray(EvaluatePatientsStep.ERROR);
+		List<Binary> binaries = search(Binary.class, SearchParameterMap.newSynchronous()
+				.add(Constants.PARAM_TAG, new TokenParam(RAConstants.ASYNC_JOB_TAG_SYSTEM, instance.getInstanceId())))
+				.getAllResourcesTyped();
+		for (Binary binary : binaries) {
+			Coding kind = binary.getMeta().getTag(RAConstants.ASYNC_OUTPUT_TAG_SYSTEM, EvaluatePatientsStep.ERROR);
+			ObjectNode file = (kind != null ? error : output).addObject();
+			Coding type = kind != null ? kind
+					: binary.getMeta().getTag(RAConstants.ASYNC_OUTPUT_TAG_SYSTEM, EvaluatePatientsStep.OUTPUT);
+			file.put("type", type != null ? type.getDisplay() : null);
+			file.put("url", String.format("%s/Binary/%s", serverBase, binary.getIdElement().getIdPart()));
+		}
+		return manifest;
+	}
+}
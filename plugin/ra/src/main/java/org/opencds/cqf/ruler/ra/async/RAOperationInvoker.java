@@ -0,0 +1,101 @@
+package org.opencds.cqf.ruler.ra.async;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.opencds.cqf.ruler.ra.RAConstants;
+import org.opencds.cqf.ruler.ra.r4.ApproveProvider;
+import org.opencds.cqf.ruler.ra.r4.RACodingGapsProvider;
+import org.opencds.cqf.ruler.ra.r4.RemediateProvider;
+import org.opencds.cqf.ruler.ra.r4.ResolveProvider;
+import org.opencds.cqf.ruler.ra.r4.RiskAdjustmentProvider;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+
+/**
+ * Invokes an $ra operation for a single patient on behalf of an asynchronous
+ * request, as if the operation had been called with a GET request.
+ */
+public class RAOperationInvoker {
+	public static final String CODING_GAPS = "$ra.coding-gaps";
+	public static final String APPROVE = "$ra.approve-coding-gaps";
+	public static final String RESOLVE = "$ra.resolve-coding-gaps";
+	public static final String REMEDIATE = "$ra.remediate-coding-gaps";
+	public static final String EVALUATE_MEASURE = "$davinci-ra.evaluate-measure";
+	public static final Set<String> OPERATIONS = Set.of(CODING_GAPS, APPROVE, RESOLVE, REMEDIATE, EVALUATE_MEASURE);
+
+	private final FhirContext fhirContext;
+	private final RACodingGapsProvider codingGapsProvider;
+	private final ApproveProvider approveProvider;
+	private final ResolveProvider resolveProvider;
+	private final RemediateProvider remediateProvider;
+	private final RiskAdjustmentProvider riskAdjustmentProvider;
+
+	public RAOperationInvoker(FhirContext fhirContext, RACodingGapsProvider codingGapsProvider,
+			ApproveProvider approveProvider, ResolveProvider resolveProvider, RemediateProvider remediateProvider,
+			RiskAdjustmentProvider riskAdjustmentProvider) {
+		this.fhirContext = fhirContext;
+		this.codingGapsProvider = codingGapsProvider;
+		this.approveProvider = approveProvider;
+		this.resolveProvider = resolveProvider;
+		this.remediateProvider = remediateProvider;
+		this.riskAdjustmentProvider = riskAdjustmentProvider;
+	}
+
+	/**
+	 * @param job     the asynchronous request
+	 * @param patient the patient to run the operation for, replacing the subject
+	 *                of the request
+	 * @return the result of the operation
+	 */
+	public Parameters invoke(RAAsyncJobParameters job, String patient) {
+		Map<String, List<String>> parameters = new HashMap<>(job.getParameters());
+		parameters.put(RAConstants.SUBJECT, Collections.singletonList(patient));
+		SystemRequestDetails requestDetails = requestDetails(job, parameters);
+
+		DateType periodStart = date(parameters, RAConstants.PERIOD_START);
+		DateType periodEnd = date(parameters, RAConstants.PERIOD_END);
+		switch (job.getOperation()) {
+			case CODING_GAPS:
+				return codingGapsProvider.raCodingGapsForPatient(requestDetails, periodStart, periodEnd, patient);
+			case APPROVE:
+				return approveProvider.approve(requestDetails, periodStart, periodEnd, patient,
+						parameters.get(RAConstants.MEASURE_ID), parameters.get(RAConstants.MEASURE_IDENTIFIER),
+						parameters.get(RAConstants.MEASURE_URL));
+			case RESOLVE:
+				return resolveProvider.resolve(requestDetails, periodStart, periodEnd, patient);
+			case REMEDIATE:
+				return remediateProvider.remediate(requestDetails, periodStart, periodEnd, patient);
+			case EVALUATE_MEASURE:
+				return riskAdjustmentProvider.evaluateRiskConditionCategory(requestDetails,
+						new IdType(job.getResourceId()), periodStart, periodEnd, patient);
+			default:
+				throw new IllegalArgumentException("Not an asynchronous $ra operation: " + job.getOperation());
+		}
+	}
+
+	private SystemRequestDetails requestDetails(RAAsyncJobParameters job, Map<String, List<String>> parameters) {
+		SystemRequestDetails requestDetails = new SystemRequestDetails();
+		requestDetails.setFhirContext(fhirContext);
+		requestDetails.setFhirServerBase(job.getServerBase());
+		requestDetails.setRequestType(RequestTypeEnum.GET);
+		requestDetails.setOperation(job.getOperation());
+		Map<String, String[]> values = new HashMap<>();
+		parameters.forEach((name, value) -> values.put(name, value.toArray(new String[0])));
+		requestDetails.setParameters(values);
+		return requestDetails;
+	}
+
+	private static DateType date(Map<String, List<String>> parameters, String name) {
+		List<String> values = parameters.get(name);
+		return values == null || values.isEmpty() ? null : new DateType(values.get(0));
+	}
+}
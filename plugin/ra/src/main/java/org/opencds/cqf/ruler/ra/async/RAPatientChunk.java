@@ -0,0 +1,34 @@
+package org.opencds.cqf.ruler.ra.async;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import ca.uhn.fhir.model.api.IModelJson;
+
+/**
+ * A work unit of an asynchronous $ra operation: the patients it runs for.
+ */
+public class RAPatientChunk implements IModelJson {
+	@JsonProperty("patients")
+	private List<String> patients = new ArrayList<>();
+
+	public RAPatientChunk() {
+	}
+
+	public RAPatientChunk(List<String> patients) {
+		this.patients = patients;
+	}
+
+	/**
+	 * @return the patients, as {@code Patient/id} references
+	 */
+	public List<String> getPatients() {
+		return patients;
+	}
+
+	public void setPatients(List<String> patients) {
+		this.patients = patients;
+	}
+}
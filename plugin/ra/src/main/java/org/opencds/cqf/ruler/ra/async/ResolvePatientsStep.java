@@ -0,0 +1,48 @@
+package org.opencds.cqf.ruler.ra.async;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.r4.model.Patient;
+import org.opencds.cqf.ruler.ra.RAConstants;
+import org.opencds.cqf.ruler.ra.r4.RACodingGapsProvider;
+
+import ca.uhn.fhir.batch2.api.IFirstJobStepWorker;
+import ca.uhn.fhir.batch2.api.IJobDataSink;
+import ca.uhn.fhir.batch2.api.RunOutcome;
+import ca.uhn.fhir.batch2.api.StepExecutionDetails;
+import ca.uhn.fhir.batch2.api.VoidModel;
+
+/**
+ * The first step of an asynchronous $ra operation: splits the patients of the
+ * subject into chunks, each run and checkpointed on its own.
+ */
+public class ResolvePatientsStep implements IFirstJobStepWorker<RAAsyncJobParameters, RAPatientChunk> {
+	private final RACodingGapsProvider codingGapsProvider;
+	private final int chunkSize;
+
+	public ResolvePatientsStep(RACodingGapsProvider codingGapsProvider, int chunkSize) {
+		this.codingGapsProvider = codingGapsProvider;
+		this.chunkSize = Math.max(1, chunkSize);
+	}
+
+	@Override
+	public RunOutcome run(StepExecutionDetails<RAAsyncJobParameters, VoidModel> stepExecutionDetails,
+			IJobDataSink<RAPatientChunk> dataSink) {
+		String subject = stepExecutionDetails.getParameters().getParameters().get(RAConstants.SUBJECT).get(0);
+		List<String> chunk = new ArrayList<>();
+		int count = 0;
+		for (Patient patient : codingGapsProvider.getPatientListFromSubject(subject)) {
+			chunk.add("Patient/" + patient.getIdElement().getIdPart());
+			count++;
+			if (chunk.size() == chunkSize) {
+				dataSink.accept(new RAPatientChunk(chunk));
+				chunk = new ArrayList<>();
+			}
+		}
+		if (!chunk.isEmpty()) {
+			dataSink.accept(new RAPatientChunk(chunk));
+		}
+		return new RunOutcome(count);
+	}
+}
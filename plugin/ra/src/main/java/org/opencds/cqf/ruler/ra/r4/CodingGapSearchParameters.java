@@ -0,0 +1,100 @@
+package org.opencds.cqf.ruler.ra.r4;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.SearchParameter;
+import org.opencds.cqf.ruler.ra.RAConstants;
+import org.opencds.cqf.ruler.utility.Searches;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.server.util.ISearchParamRegistry;
+
+/**
+ * Search parameters on coding gap report Bundles, so the most recent Bundle of
+ * a patient is found with one indexed search instead of reading every coding
+ * gap Bundle on the server:
+ * <ul>
+ * <li>{@value RAConstants#CODING_GAP_SUBJECT_SEARCH_PARAM}: the subject of the
+ * Composition that starts the document</li>
+ * <li>{@value RAConstants#CODING_GAP_REPORT_DATE_SEARCH_PARAM}: the dates of
+ * the MeasureReports in the Bundle</li>
+ * </ul>
+ * The parameters are installed on first use rather than at startup. Bundles
+ * stored before that are indexed by the reindex job the server starts when a
+ * SearchParameter is created; until then they are only found by the scan
+ * {@link RiskAdjustmentUser} falls back to.
+ */
+public class CodingGapSearchParameters {
+	private static final String SUBJECT_EXPRESSION = "Bundle.entry[0].resource.as(Composition).subject";
+	private static final String REPORT_DATE_EXPRESSION = "Bundle.entry.resource.as(MeasureReport).date";
+
+	private final DaoRegistry daoRegistry;
+	private final ISearchParamRegistry searchParamRegistry;
+
+	private volatile boolean installed;
+
+	public CodingGapSearchParameters(DaoRegistry daoRegistry, ISearchParamRegistry searchParamRegistry) {
+		this.daoRegistry = daoRegistry;
+		this.searchParamRegistry = searchParamRegistry;
+	}
+
+	/**
+	 * Creates the search parameters the server does not have yet and refreshes
+	 * the registry so they can be searched on right away. Does nothing once
+	 * they are installed.
+	 */
+	public void ensureInstalled() {
+		if (installed) {
+			return;
+		}
+		synchronized (this) {
+			if (installed) {
+				return;
+			}
+			IFhirResourceDao<SearchParameter> dao = daoRegistry.getResourceDao(SearchParameter.class);
+			boolean created = false;
+			for (SearchParameter searchParameter : searchParameters()) {
+				if (dao.search(Searches.byUrl(searchParameter.getUrl()), new SystemRequestDetails()).isEmpty()) {
+					dao.update(searchParameter, new SystemRequestDetails());
+					created = true;
+				}
+			}
+			if (created) {
+				searchParamRegistry.forceRefresh();
+			}
+			installed = true;
+		}
+	}
+
+	static List<SearchParameter> searchParameters() {
+		SearchParameter subject = searchParameter(RAConstants.CODING_GAP_SUBJECT_SEARCH_PARAM,
+				Enumerations.SearchParamType.REFERENCE, SUBJECT_EXPRESSION,
+				"The subject of the coding gap report");
+		subject.addTarget("Patient");
+		subject.addTarget("Group");
+		SearchParameter reportDate = searchParameter(RAConstants.CODING_GAP_REPORT_DATE_SEARCH_PARAM,
+				Enumerations.SearchParamType.DATE, REPORT_DATE_EXPRESSION,
+				"The date of the MeasureReports in the coding gap report");
+		return Arrays.asList(subject, reportDate);
+	}
+
+	private static SearchParameter searchParameter(String code, Enumerations.SearchParamType type,
+			String expression, String description) {
+		SearchParameter searchParameter = new SearchParameter();
+		searchParameter.setId(code);
+		searchParameter.setUrl("http://cqframework.org/fhir/SearchParameter/" + code);
+		searchParameter.setName(code);
+		searchParameter.setStatus(Enumerations.PublicationStatus.ACTIVE);
+		searchParameter.setDescription(description);
+		searchParameter.setCode(code);
+		searchParameter.addBase("Bundle");
+		searchParameter.setType(type);
+		searchParameter.setExpression(expression);
+		searchParameter.setXpathUsage(SearchParameter.XPathUsageType.NORMAL);
+		return searchParameter;
+	}
+}
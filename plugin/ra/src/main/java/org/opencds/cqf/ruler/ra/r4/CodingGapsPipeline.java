@@ -0,0 +1,143 @@
+package org.opencds.cqf.ruler.ra.r4;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.opencds.cqf.ruler.ra.RAProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the per-patient work of coding gaps requests on a bounded number of
+ * threads and hands each result to a sink as soon as it, and every result
+ * before it, is done.
+ * <p>
+ * One pipeline is shared by every request: its {@code parallelism} threads and
+ * bounded queue are the limit for the whole server, not per request. Once the
+ * queue is full a request runs its next patient on its own thread, which slows
+ * it down instead of growing the queue.
+ * <p>
+ * Results reach the sink in patient order and on the calling thread, so the
+ * sink needs no synchronization. At most twice the parallelism of results are
+ * held at once, which keeps memory flat however large the Group is when the
+ * sink writes results out rather than collecting them. Progress is logged
+ * every {@code progressInterval} patients.
+ */
+public class CodingGapsPipeline implements AutoCloseable {
+	private static final Logger logger = LoggerFactory.getLogger(CodingGapsPipeline.class);
+
+	private final int parallelism;
+	private final int progressInterval;
+	private final ExecutorService executor;
+
+	public CodingGapsPipeline(RAProperties.CodingGaps properties) {
+		this(properties.getParallelism(), properties.getProgressInterval());
+	}
+
+	public CodingGapsPipeline(int parallelism, int progressInterval) {
+		this.parallelism = Math.max(1, parallelism);
+		this.progressInterval = progressInterval;
+		this.executor = this.parallelism == 1 ? null
+				: new ThreadPoolExecutor(this.parallelism, this.parallelism, 0L, TimeUnit.MILLISECONDS,
+						new ArrayBlockingQueue<>(this.parallelism * 2), new CodingGapsThreadFactory(),
+						CodingGapsPipeline::runOnCaller);
+	}
+
+	/**
+	 * Processes every patient and waits for the last result to be consumed.
+	 * The first exception thrown by a task or the sink stops the run and is
+	 * rethrown.
+	 *
+	 * @param <P>      the type of the patients
+	 * @param <T>      the type of the results
+	 * @param subject  the subject of the request, for the progress log
+	 * @param patients the patients to process
+	 * @param task     the work for one patient
+	 * @param sink     the consumer of the results
+	 */
+	public <P, T> void run(String subject, List<P> patients, Function<P, T> task, Consumer<T> sink) {
+		if (parallelism == 1) {
+			for (int i = 0; i < patients.size(); i++) {
+				sink.accept(task.apply(patients.get(i)));
+				progress(subject, i + 1, patients.size());
+			}
+			return;
+		}
+
+		Deque<Future<T>> window = new ArrayDeque<>();
+		int done = 0;
+		try {
+			for (P patient : patients) {
+				if (window.size() >= parallelism * 2) {
+					sink.accept(next(window));
+					progress(subject, ++done, patients.size());
+				}
+				window.add(executor.submit(() -> task.apply(patient)));
+			}
+			while (!window.isEmpty()) {
+				sink.accept(next(window));
+				progress(subject, ++done, patients.size());
+			}
+		} finally {
+			// the threads are shared, only this run's patients are dropped
+			window.forEach(future -> future.cancel(true));
+		}
+	}
+
+	private static void runOnCaller(Runnable task, ThreadPoolExecutor executor) {
+		if (executor.isShutdown()) {
+			throw new RejectedExecutionException("The coding gaps pipeline is shut down");
+		}
+		task.run();
+	}
+
+	private static <T> T next(Deque<Future<T>> window) {
+		try {
+			return window.poll().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted processing coding gaps", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	private void progress(String subject, int done, int total) {
+		if (progressInterval > 0 && (done % progressInterval == 0 || done == total) && total > 1) {
+			logger.info("$ra.coding-gaps for {}: {} of {} patients done", subject, done, total);
+		}
+	}
+
+	@Override
+	public void close() {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+
+	private static class CodingGapsThreadFactory implements ThreadFactory {
+		private static final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "ra-coding-gaps-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -4,9 +4,18 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static org.opencds.cqf.fhir.utility.r4.Parameters.parameters;
 import static org.opencds.cqf.fhir.utility.r4.Parameters.part;
 
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.instance.model.api.IPrimitiveType;
@@ -15,7 +24,9 @@ import org.hl7.fhir.r4.model.Composition;
 import org.hl7.fhir.r4.model.DetectedIssue;
 import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.OperationOutcome;
 import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Patient;
 import org.hl7.fhir.r4.model.Resource;
 import org.opencds.cqf.ruler.behavior.ConfigurationUser;
 import org.opencds.cqf.ruler.behavior.ResourceCreator;
@@ -24,22 +35,32 @@ import org.opencds.cqf.ruler.provider.DaoRegistryOperationProvider;
 import org.opencds.cqf.ruler.ra.RAConstants;
 import org.opencds.cqf.ruler.ra.RAProperties;
 import org.opencds.cqf.ruler.utility.Operations;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Configurable;
 
 import com.google.common.base.Strings;
 
 import ca.uhn.fhir.model.api.annotation.Description;
+import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.rest.annotation.Operation;
 import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.Constants;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import jakarta.servlet.http.HttpServletResponse;
 
 @Configurable
 public class RACodingGapsProvider extends DaoRegistryOperationProvider
 		implements ParameterUser, ConfigurationUser, ResourceCreator, RiskAdjustmentUser {
+	private static final Logger logger = LoggerFactory.getLogger(RACodingGapsProvider.class);
 
 	@Autowired
 	private RAProperties raProperties;
+	@Autowired
+	private CodingGapsPipeline codingGapsPipeline;
 
 	private IdType compositionSectionAuthor;
 	private Resource author;
@@ -68,6 +89,54 @@ public class RACodingGapsProvider extends DaoRegistryOperationProvider
 			@OperationParam(name = RAConstants.PERIOD_END, typeName = "date") IPrimitiveType<Date> periodEnd,
 			@OperationParam(name = RAConstants.SUBJECT) String subject) throws FHIRException {
 
+		Parameters invalid = validate(requestDetails);
+		if (invalid != null) {
+			return invalid;
+		}
+
+		ensureSupplementalDataElementSearchParameter(requestDetails);
+
+		Parameters result = newResource(Parameters.class,
+				RAConstants.REPORT_ID_PREFIX + UUID.randomUUID());
+
+		streamCodingGaps(requestDetails.getFhirServerBase(), periodStart.getValueAsString(),
+				periodEnd.getValueAsString(), subject, bundles -> bundles.forEach(
+						bundle -> result.addParameter(part(RAConstants.RETURN_PARAM_NAME, bundle))));
+
+		return result;
+	}
+
+	/**
+	 * Runs $ra.coding-gaps for a single patient on the calling thread, without
+	 * the {@link CodingGapsPipeline}. Used by the workers of asynchronous
+	 * requests, which already run one patient at a time each.
+	 *
+	 * @param requestDetails the request, with the parameters of the operation
+	 * @param periodStart    the start of the clinical evaluation period
+	 * @param periodEnd      the end of the clinical evaluation period
+	 * @param patient        a Patient reference
+	 * @return a Parameters with the Bundles of the patient
+	 */
+	public Parameters raCodingGapsForPatient(RequestDetails requestDetails, IPrimitiveType<Date> periodStart,
+			IPrimitiveType<Date> periodEnd, String patient) {
+		Parameters invalid = validate(requestDetails);
+		if (invalid != null) {
+			return invalid;
+		}
+
+		ensureSupplementalDataElementSearchParameter(requestDetails);
+
+		Parameters result = newResource(Parameters.class,
+				RAConstants.REPORT_ID_PREFIX + UUID.randomUUID());
+		for (Patient p : getPatientListFromSubject(patient)) {
+			buildCodingGapReportBundles(requestDetails.getFhirServerBase(), periodStart.getValueAsString(),
+					periodEnd.getValueAsString(), patient, p)
+					.forEach(bundle -> result.addParameter(part(RAConstants.RETURN_PARAM_NAME, bundle)));
+		}
+		return result;
+	}
+
+	private Parameters validate(RequestDetails requestDetails) {
 		try {
 			validateParameters(requestDetails);
 		} catch (Exception e) {
@@ -79,34 +148,108 @@ public class RACodingGapsProvider extends DaoRegistryOperationProvider
 		} catch (Exception e) {
 			return parameters(part("Invalid configuration", generateIssue("error", e.getMessage())));
 		}
+		return null;
+	}
 
+	/**
+	 * Streams the result of $ra.coding-gaps as NDJSON, one coding gap report
+	 * Bundle per line, written as soon as the patient it belongs to is done.
+	 * Meant for large Groups, whose Bundles do not fit in the single Parameters
+	 * the operation returns. Being an operation of the server, the request goes
+	 * through the same authorization, consent and partition interceptors as
+	 * $ra.coding-gaps.
+	 * <p>
+	 * If a patient fails once the response has started, an OperationOutcome
+	 * describing the failure is the last line.
+	 *
+	 * @param requestDetails metadata about the current request being processed.
+	 *                       Generally auto-populated by the HAPI FHIR server
+	 *                       framework.
+	 * @param periodStart    the start of the clinical evaluation period
+	 * @param periodEnd      the end of the clinical evaluation period
+	 * @param subject        a Patient or Patient Group
+	 * @throws IOException if the response can not be written
+	 */
+	@Description(shortDefinition = "$ra.coding-gaps-stream operation", value = "Streams the result of the <a href=\"https://build.fhir.org/ig/HL7/davinci-ra/OperationDefinition-ra.coding-gaps.html\">$ra.coding-gaps</a> operation as NDJSON, one coding gap report Bundle per line.")
+	@Operation(name = RAConstants.CODING_GAPS_STREAM_OPERATION, idempotent = true, type = MeasureReport.class, manualResponse = true)
+	public void raCodingGapsStream(
+			ServletRequestDetails requestDetails,
+			@OperationParam(name = RAConstants.PERIOD_START, typeName = "date") IPrimitiveType<Date> periodStart,
+			@OperationParam(name = RAConstants.PERIOD_END, typeName = "date") IPrimitiveType<Date> periodEnd,
+			@OperationParam(name = RAConstants.SUBJECT) String subject) throws IOException {
+		try {
+			validateParameters(requestDetails);
+			validateConfiguration(requestDetails);
+		} catch (RuntimeException e) {
+			throw new InvalidRequestException(e.getMessage());
+		}
 		ensureSupplementalDataElementSearchParameter(requestDetails);
 
-		Parameters result = newResource(Parameters.class,
-				RAConstants.REPORT_ID_PREFIX + UUID.randomUUID());
+		HttpServletResponse response = requestDetails.getServletResponse();
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType(Constants.CT_FHIR_NDJSON);
+		response.setCharacterEncoding(Constants.CHARSET_NAME_UTF8);
+		IParser parser = getFhirContext().newJsonParser().setPrettyPrint(false);
+		PrintWriter writer = response.getWriter();
+		AtomicInteger written = new AtomicInteger();
+		try {
+			streamCodingGaps(requestDetails.getFhirServerBase(), periodStart.getValueAsString(),
+					periodEnd.getValueAsString(), subject, bundles -> {
+						for (Bundle bundle : bundles) {
+							writer.println(parser.encodeResourceToString(bundle));
+							written.incrementAndGet();
+						}
+						writer.flush();
+						if (writer.checkError()) {
+							throw new UncheckedIOException(new IOException("The client closed the connection"));
+						}
+					});
+		} catch (RuntimeException e) {
+			logger.warn("{} for {} failed after {} Bundles", RAConstants.CODING_GAPS_STREAM_OPERATION, subject,
+					written.get(), e);
+			OperationOutcome outcome = new OperationOutcome();
+			outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.ERROR)
+					.setCode(OperationOutcome.IssueType.EXCEPTION).setDiagnostics(e.getMessage());
+			writer.println(parser.encodeResourceToString(outcome));
+		}
+		writer.close();
+	}
 
-		getPatientListFromSubject(subject).forEach(
-				patient -> {
-					List<MeasureReport> reports = getMeasureReports(
-							patient.getIdElement().getIdPart(), periodStart.getValueAsString(),
-							periodEnd.getValueAsString());
-					if (reports.isEmpty()) {
-						result.addParameter(part(
-								RAConstants.RETURN_PARAM_NAME,
-								buildMissingMeasureReportCodingGapReportBundle(requestDetails.getFhirServerBase(), patient)));
-					} else {
-						reports.forEach(report -> {
-							List<DetectedIssue> issues = buildOriginalIssues(report);
-							Composition composition = buildComposition(subject, report, issues, compositionSectionAuthor);
-							Bundle bundle = buildCodingGapReportBundle(requestDetails.getFhirServerBase(), composition, issues,
-									report, author);
-							result.addParameter(part(RAConstants.RETURN_PARAM_NAME,
-									bundle.setId(UUID.randomUUID().toString())));
-						});
-					}
-				});
+	/**
+	 * Builds the coding gap report Bundles of every patient of the subject on
+	 * the {@link CodingGapsPipeline} shared by all requests, and hands the
+	 * Bundles of each patient to the sink as soon as they are built, in patient
+	 * order. The parameters and the configuration must have been validated.
+	 *
+	 * @param serverBase  the base of the server, for the full urls of the entries
+	 * @param periodStart the start of the clinical evaluation period
+	 * @param periodEnd   the end of the clinical evaluation period
+	 * @param subject     a Patient or Patient Group
+	 * @param sink        the consumer of the Bundles of each patient
+	 */
+	public void streamCodingGaps(String serverBase, String periodStart, String periodEnd, String subject,
+			Consumer<List<Bundle>> sink) {
+		codingGapsPipeline.run(subject, getPatientListFromSubject(subject),
+				patient -> buildCodingGapReportBundles(serverBase, periodStart, periodEnd, subject, patient), sink);
+	}
 
-		return result;
+	private List<Bundle> buildCodingGapReportBundles(String serverBase, String periodStart, String periodEnd,
+			String subject, Patient patient) {
+		List<MeasureReport> reports = getMeasureReports(patient.getIdElement().getIdPart(), periodStart, periodEnd);
+		if (reports.isEmpty()) {
+			return Collections.singletonList(buildMissingMeasureReportCodingGapReportBundle(serverBase, patient));
+		}
+		List<Bundle> bundles = new ArrayList<>();
+		// the reports of a patient mostly reference the same evidence
+		Map<String, Resource> resourceCache = new HashMap<>();
+		reports.forEach(report -> {
+			List<DetectedIssue> issues = buildOriginalIssues(report);
+			Composition composition = buildComposition(subject, report, issues, compositionSectionAuthor);
+			Bundle bundle = buildCodingGapReportBundle(serverBase, composition, issues, report, author,
+					resourceCache);
+			bundles.add((Bundle) bundle.setId(UUID.randomUUID().toString()));
+		});
+		return bundles;
 	}
 
 	public void validateParameters(RequestDetails requestDetails) {
@@ -20,6 +20,7 @@ import org.opencds.cqf.ruler.behavior.r4.ParameterUser;
 import org.opencds.cqf.ruler.provider.DaoRegistryOperationProvider;
 import org.opencds.cqf.ruler.ra.RAConstants;
 import org.opencds.cqf.ruler.utility.Operations;
+import org.springframework.beans.factory.annotation.Autowired;
 
 import ca.uhn.fhir.rest.annotation.Operation;
 import ca.uhn.fhir.rest.annotation.OperationParam;
@@ -27,6 +28,9 @@ import ca.uhn.fhir.rest.api.server.RequestDetails;
 
 public class RemediateProvider extends DaoRegistryOperationProvider implements RiskAdjustmentUser, ParameterUser {
 
+	@Autowired
+	private CodingGapSearchParameters codingGapSearchParameters;
+
 	@Operation(name = "$ra.remediate-coding-gaps", idempotent = true, type = MeasureReport.class)
 	public Parameters remediate(
 			RequestDetails requestDetails,
@@ -40,6 +44,7 @@ public class RemediateProvider extends DaoRegistryOperationProvider implements R
 			return parameters(part(RAConstants.INVALID_PARAMETERS_NAME,
 					generateIssue(RAConstants.INVALID_PARAMETERS_SEVERITY, e.getMessage())));
 		}
+		codingGapSearchParameters.ensureInstalled();
 
 		List<Bundle> codingGapReportBundles = new ArrayList<>();
 		getPatientListFromSubject(subject).forEach(
@@ -21,6 +21,7 @@ import org.opencds.cqf.ruler.behavior.r4.ParameterUser;
 import org.opencds.cqf.ruler.provider.DaoRegistryOperationProvider;
 import org.opencds.cqf.ruler.ra.RAConstants;
 import org.opencds.cqf.ruler.utility.Operations;
+import org.springframework.beans.factory.annotation.Autowired;
 
 import ca.uhn.fhir.model.api.annotation.Description;
 import ca.uhn.fhir.rest.annotation.Operation;
@@ -30,6 +31,9 @@ import ca.uhn.fhir.rest.api.server.RequestDetails;
 public class ResolveProvider extends DaoRegistryOperationProvider
 		implements ParameterUser, ResourceCreator, RiskAdjustmentUser {
 
+	@Autowired
+	private CodingGapSearchParameters codingGapSearchParameters;
+
 	/**
 	 * Implements the <a href=
 	 * "https://build.fhir.org/ig/HL7/davinci-ra/OperationDefinition-ra.resolve-coding-gaps.html">$ra.resolve-coding-gaps</a>
@@ -59,6 +63,7 @@ public class ResolveProvider extends DaoRegistryOperationProvider
 			return parameters(part(RAConstants.INVALID_PARAMETERS_NAME,
 					generateIssue(RAConstants.INVALID_PARAMETERS_SEVERITY, e.getMessage())));
 		}
+		codingGapSearchParameters.ensureInstalled();
 
 		List<Bundle> codingGapReportBundles = new ArrayList<>();
 		getPatientListFromSubject(subject).forEach(
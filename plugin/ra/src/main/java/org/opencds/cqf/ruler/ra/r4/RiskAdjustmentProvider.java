@@ -2,8 +2,10 @@ package org.opencds.cqf.ruler.ra.r4;
 
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import org.hl7.fhir.instance.model.api.IIdType;
 import org.hl7.fhir.instance.model.api.IPrimitiveType;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.CodeableConcept;
@@ -239,7 +241,9 @@ public class RiskAdjustmentProvider extends DaoRegistryOperationProvider impleme
 			raBundle.addEntry().setResource(processedReport);
 
 			Map<String, Resource> evalPlusSDE = new HashMap<>();
-			getEvaluatedResources(processedReport, evalPlusSDE).getSDE(processedReport, evalPlusSDE);
+			List<IIdType> ids = getEvaluatedResourceIds(processedReport);
+			ids.addAll(getSDEIds(processedReport));
+			resolveResources(ids, evalPlusSDE);
 			for (Map.Entry<String, Resource> evaluatedResources : evalPlusSDE.entrySet()) {
 				raBundle.addEntry().setResource(evaluatedResources.getValue());
 			}
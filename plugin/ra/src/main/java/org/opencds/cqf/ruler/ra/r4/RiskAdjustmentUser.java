@@ -67,20 +67,64 @@ public interface RiskAdjustmentUser extends MeasureReportUser {
 				}).collect(Collectors.toList());
 	}
 
+	/**
+	 * @param subject the subject of the coding gap reports
+	 * @return the coding gap report Bundles of the subject, most recent first
+	 */
 	default List<Bundle> getMostRecentCodingGapReportBundles(String subject) {
-		// Something like the following should work, but the composition search
-		// parameter doesn't appear to be implemented
-		// return search(Bundle.class, SearchParameterMap.newSynchronous()
-		// .add(Bundle.SP_TYPE, new TokenParam("document"))
-		// .add(Bundle.SP_COMPOSITION, new ReferenceParam("Composition",
-		// Composition.SP_SUBJECT, subject))
-		// .setSort(new SortSpec(Bundle.SP_TIMESTAMP,
-		// SortOrderEnum.DESC))).getAllResourcesTyped();
-		return search(Bundle.class, SearchParameterMap.newSynchronous()
+		List<Bundle> bundles = search(Bundle.class, codingGapReportSearch(subject)).getAllResourcesTyped();
+		return !bundles.isEmpty() ? bundles
+				: getUnindexedCodingGapReportBundles().stream()
+						.filter(bundle -> isCodingGapReportOf(bundle, subject)).collect(Collectors.toList());
+	}
+
+	/**
+	 * @param subject     the subject of the coding gap reports
+	 * @param periodStart the earliest date of a MeasureReport in the Bundle
+	 * @param periodEnd   the latest date of a MeasureReport in the Bundle
+	 * @return the coding gap report Bundles of the subject with a MeasureReport
+	 *         dated in the period, most recent first
+	 */
+	default List<Bundle> getMostRecentCodingGapReportBundles(String subject, Date periodStart, Date periodEnd) {
+		List<Bundle> bundles = search(Bundle.class, codingGapReportSearch(subject)
+				.add(RAConstants.CODING_GAP_REPORT_DATE_SEARCH_PARAM, new DateRangeParam(periodStart, periodEnd)))
+				.getAllResourcesTyped();
+		return !bundles.isEmpty() ? bundles
+				: getUnindexedCodingGapReportBundles().stream()
+						.filter(bundle -> isCodingGapReportOf(bundle, subject) && bundle.getEntry().stream().anyMatch(
+								entry -> entry.hasResource() && entry.getResource() instanceof MeasureReport
+										&& ((MeasureReport) entry.getResource()).hasDate()
+										&& ((MeasureReport) entry.getResource()).getDate().compareTo(periodStart) >= 0
+										&& ((MeasureReport) entry.getResource()).getDate().compareTo(periodEnd) <= 0))
+						.collect(Collectors.toList());
+	}
+
+	// Uses the search parameters of CodingGapSearchParameters, the standard
+	// Bundle composition parameter is not indexed by the server.
+	private SearchParameterMap codingGapReportSearch(String subject) {
+		return codingGapReportSearch()
+				.add(RAConstants.CODING_GAP_SUBJECT_SEARCH_PARAM, new ReferenceParam(subject));
+	}
+
+	private SearchParameterMap codingGapReportSearch() {
+		return SearchParameterMap.newSynchronous()
 				.add(Bundle.SP_TYPE, new TokenParam("document"))
 				.add("_profile", new UriParam(RAConstants.CODING_GAP_BUNDLE_URL))
-				.setSort(new SortSpec(Bundle.SP_TIMESTAMP, SortOrderEnum.DESC)))
-				.getAllResourcesTyped();
+				.setSort(new SortSpec(Bundle.SP_TIMESTAMP, SortOrderEnum.DESC));
+	}
+
+	// Bundles stored before the search parameters were installed are not indexed
+	// until the server has reindexed them, so when the indexed search finds
+	// nothing every coding gap Bundle is read, as it was before the index.
+	private List<Bundle> getUnindexedCodingGapReportBundles() {
+		return search(Bundle.class, codingGapReportSearch()).getAllResourcesTyped();
+	}
+
+	private static boolean isCodingGapReportOf(Bundle bundle, String subject) {
+		return bundle.hasEntry() && bundle.getEntryFirstRep().hasResource()
+				&& bundle.getEntryFirstRep().getResource() instanceof Composition
+				&& ((Composition) bundle.getEntryFirstRep().getResource()).getSubject().getReference()
+						.endsWith(subject);
 	}
 
 	default Bundle getMostRecentCodingGapReportBundle(String subject) {
@@ -93,7 +137,7 @@ public interface RiskAdjustmentUser extends MeasureReportUser {
 	}
 
 	default Bundle getMostRecentCodingGapReportBundle(String subject, Date periodStart, Date periodEnd) {
-		return getMostRecentCodingGapReportBundles(subject).stream().filter(
+		return getMostRecentCodingGapReportBundles(subject, periodStart, periodEnd).stream().filter(
 				bundle -> bundle.hasEntry() && bundle.getEntryFirstRep().hasResource()
 						&& bundle.getEntryFirstRep().getResource() instanceof Composition
 						&& ((Composition) bundle.getEntryFirstRep().getResource()).getSubject().getReference()
@@ -108,7 +152,7 @@ public interface RiskAdjustmentUser extends MeasureReportUser {
 
 	default Bundle getMostRecentCodingGapReportBundle(String subject, String measureId, Date periodStart,
 			Date periodEnd) {
-		return getMostRecentCodingGapReportBundles(subject).stream().filter(
+		return getMostRecentCodingGapReportBundles(subject, periodStart, periodEnd).stream().filter(
 				bundle -> bundle.hasEntry() && bundle.getEntryFirstRep().hasResource()
 						&& bundle.getEntryFirstRep().getResource() instanceof Composition
 						&& ((Composition) bundle.getEntryFirstRep().getResource()).getSubject().getReference()
@@ -430,20 +474,39 @@ public interface RiskAdjustmentUser extends MeasureReportUser {
 
 	default Bundle buildCodingGapReportBundle(String serverBase, Composition composition, List<DetectedIssue> issues,
 			MeasureReport report, Resource author) {
+		return buildCodingGapReportBundle(serverBase, composition, issues, report, author, new HashMap<>());
+	}
+
+	/**
+	 * Builds a coding gap report Bundle, reading the evidence of every issue and
+	 * the evaluated resources of the report together, see
+	 * {@link #resolveResources}.
+	 *
+	 * @param resourceCache the resources already read, by simple id, shared by the
+	 *                      Bundles built for the same request
+	 */
+	default Bundle buildCodingGapReportBundle(String serverBase, Composition composition, List<DetectedIssue> issues,
+			MeasureReport report, Resource author, Map<String, Resource> resourceCache) {
+		List<IIdType> references = getEvidenceReferences(issues);
+		references.addAll(getEvaluatedResourceIds(report));
+		resolveResources(references, resourceCache);
+
 		Bundle codingGapReportBundle = startCodingGapReportBundle();
 		codingGapReportBundle.addEntry(getBundleEntry(serverBase, composition));
-		Map<String, Resource> evaluatedResources = new HashMap<>();
 		for (DetectedIssue issue : issues) {
 			codingGapReportBundle.addEntry(getBundleEntry(serverBase, issue));
-			evaluatedResources.putAll(getEvidenceResources(issue));
 		}
+		Map<String, Resource> evaluatedResources = getEvidenceResources(issues, resourceCache);
 		codingGapReportBundle.addEntry(getBundleEntry(serverBase, report));
 
 		if (author != null) {
 			codingGapReportBundle.addEntry(getBundleEntry(serverBase, author));
 		}
 
-		getEvaluatedResources(report, evaluatedResources);
+		for (IIdType evaluatedResource : getEvaluatedResourceIds(report)) {
+			String id = Ids.simple(evaluatedResource);
+			evaluatedResources.putIfAbsent(id, resourceCache.get(id));
+		}
 
 		for (Map.Entry<String, Resource> evaluatedResourcesSet : evaluatedResources.entrySet()) {
 			codingGapReportBundle.addEntry(getBundleEntry(serverBase, evaluatedResourcesSet.getValue()));
@@ -459,19 +522,42 @@ public interface RiskAdjustmentUser extends MeasureReportUser {
 	}
 
 	default Map<String, Resource> getEvidenceResources(DetectedIssue issue) {
+		return getEvidenceResources(Collections.singletonList(issue), new HashMap<>());
+	}
+
+	/**
+	 * @param issues        the issues
+	 * @param resourceCache the resources already read, by simple id; the evidence
+	 *                      missing from it is read and added to it
+	 * @return the evidence of the issues, by simple id
+	 */
+	default Map<String, Resource> getEvidenceResources(List<DetectedIssue> issues, Map<String, Resource> resourceCache) {
+		List<IIdType> references = getEvidenceReferences(issues);
+		resolveResources(references, resourceCache);
 		Map<String, Resource> evidenceResources = new HashMap<>();
-		for (DetectedIssue.DetectedIssueEvidenceComponent evidence : issue.getEvidence()) {
-			if (evidence.hasDetail()) {
-				for (Reference detail : evidence.getDetail()) {
-					if (detail.getReference().startsWith("MeasureReport/"))
-						continue;
-					evidenceResources.put(Ids.simple(new IdType(detail.getReference())),
-							read(new IdType(detail.getReference())));
+		for (IIdType reference : references) {
+			String id = Ids.simple(reference);
+			evidenceResources.put(id, resourceCache.get(id));
+		}
+
+		return evidenceResources;
+	}
+
+	default List<IIdType> getEvidenceReferences(List<DetectedIssue> issues) {
+		List<IIdType> references = new ArrayList<>();
+		for (DetectedIssue issue : issues) {
+			for (DetectedIssue.DetectedIssueEvidenceComponent evidence : issue.getEvidence()) {
+				if (evidence.hasDetail()) {
+					for (Reference detail : evidence.getDetail()) {
+						if (detail.getReference().startsWith("MeasureReport/"))
+							continue;
+						references.add(new IdType(detail.getReference()));
+					}
 				}
 			}
 		}
 
-		return evidenceResources;
+		return references;
 	}
 
 	default List<String> getMeasureReferences(
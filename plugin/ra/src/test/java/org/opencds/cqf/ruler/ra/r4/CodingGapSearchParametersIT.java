@@ -0,0 +1,108 @@
+package org.opencds.cqf.ruler.ra.r4;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DateType;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.ruler.ra.RAConfig;
+import org.opencds.cqf.ruler.ra.RAConstants;
+import org.opencds.cqf.ruler.test.RestIntegrationTest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.annotation.DirtiesContext;
+
+import ca.uhn.fhir.rest.gclient.DateClientParam;
+import ca.uhn.fhir.rest.gclient.ReferenceClientParam;
+
+@DirtiesContext
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {
+		RAConfig.class }, properties = { "hapi.fhir.fhir_version=r4", "hapi.fhir.cr.enabled=true" })
+class CodingGapSearchParametersIT extends RestIntegrationTest {
+	@Autowired
+	private CodingGapSearchParameters codingGapSearchParameters;
+
+	@Test
+	void testCodingGapBundlesAreIndexedBySubjectAndReportDate() {
+		codingGapSearchParameters.ensureInstalled();
+		loadResource("Organization-ra-payer01.json");
+		loadResource("Observation-ra-obs01pat02.json");
+		loadResource("Encounter-ra-encounter31pat02.json");
+		loadResource("Encounter-ra-measurereport03-remediate.json");
+		loadResource("Condition-ra-condition31pat02.json");
+		loadResource("Condition-ra-measurereport03-remediate.json");
+		loadResource("Patient-ra-patient01.json");
+		loadResource("Patient-ra-patient02.json");
+		loadResource("MeasureReport-ra-measurereport03.json");
+		loadResource("Bundle-ra-coding-gaps-result-1.json");
+		loadResource("Bundle-ra-coding-gaps-result-2.json");
+		loadResource("Bundle-ra-coding-gaps-result-3.json");
+
+		ReferenceClientParam subject = new ReferenceClientParam(RAConstants.CODING_GAP_SUBJECT_SEARCH_PARAM);
+		DateClientParam reportDate = new DateClientParam(RAConstants.CODING_GAP_REPORT_DATE_SEARCH_PARAM);
+
+		Bundle patient02 = getClient().search().forResource(Bundle.class)
+				.where(subject.hasId("Patient/ra-patient02"))
+				.sort().descending(Bundle.SP_TIMESTAMP)
+				.returnBundle(Bundle.class).execute();
+		assertEquals(3, patient02.getEntry().size());
+		assertEquals("condition-category-report-2",
+				patient02.getEntryFirstRep().getResource().getIdElement().getIdPart());
+
+		Bundle patient01 = getClient().search().forResource(Bundle.class)
+				.where(subject.hasId("Patient/ra-patient01"))
+				.returnBundle(Bundle.class).execute();
+		assertEquals(0, patient01.getEntry().size());
+
+		Bundle in2021 = getClient().search().forResource(Bundle.class)
+				.where(subject.hasId("Patient/ra-patient02"))
+				.and(reportDate.afterOrEquals().day("2021-01-01"))
+				.and(reportDate.beforeOrEquals().day("2021-12-31"))
+				.returnBundle(Bundle.class).execute();
+		assertEquals(3, in2021.getEntry().size());
+
+		Bundle in2022 = getClient().search().forResource(Bundle.class)
+				.where(subject.hasId("Patient/ra-patient02"))
+				.and(reportDate.afterOrEquals().day("2022-01-01"))
+				.returnBundle(Bundle.class).execute();
+		assertEquals(0, in2022.getEntry().size());
+	}
+}
+
+@DirtiesContext
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {
+		RAConfig.class }, properties = { "hapi.fhir.fhir_version=r4", "hapi.fhir.cr.enabled=true" })
+class UnindexedCodingGapBundles extends RestIntegrationTest {
+	@Autowired
+	private CodingGapSearchParameters codingGapSearchParameters;
+	@Autowired
+	private ResolveProvider resolveProvider;
+
+	@Test
+	void testBundlesStoredBeforeTheSearchParametersAreFound() {
+		loadResource("Organization-ra-payer01.json");
+		loadResource("Observation-ra-obs01pat02.json");
+		loadResource("Encounter-ra-encounter31pat02.json");
+		loadResource("Encounter-ra-measurereport03-remediate.json");
+		loadResource("Condition-ra-condition31pat02.json");
+		loadResource("Condition-ra-measurereport03-remediate.json");
+		loadResource("Patient-ra-patient01.json");
+		loadResource("Patient-ra-patient02.json");
+		loadResource("MeasureReport-ra-measurereport03.json");
+		loadResource("Bundle-ra-coding-gaps-result-1.json");
+		loadResource("Bundle-ra-coding-gaps-result-2.json");
+		loadResource("Bundle-ra-coding-gaps-result-3.json");
+		codingGapSearchParameters.ensureInstalled();
+
+		List<Bundle> patient02 = resolveProvider.getMostRecentCodingGapReportBundles("Patient/ra-patient02");
+		assertEquals(3, patient02.size());
+		assertEquals("condition-category-report-2", patient02.get(0).getIdElement().getIdPart());
+		assertEquals(0, resolveProvider.getMostRecentCodingGapReportBundles("Patient/ra-patient01").size());
+		assertEquals(3, resolveProvider.getMostRecentCodingGapReportBundles("Patient/ra-patient02",
+				new DateType("2021-01-01").getValue(), new DateType("2021-12-31").getValue()).size());
+		assertEquals(0, resolveProvider.getMostRecentCodingGapReportBundles("Patient/ra-patient02",
+				new DateType("2022-01-01").getValue(), new DateType("2022-12-31").getValue()).size());
+	}
+}
@@ -0,0 +1,98 @@
+package org.opencds.cqf.ruler.ra.r4;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+
+class CodingGapsPipelineTest {
+
+	@Test
+	void testResultsAreConsumedInPatientOrder() {
+		List<Integer> patients = IntStream.range(0, 50).boxed().collect(Collectors.toList());
+		List<Integer> results = new ArrayList<>();
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger maxRunning = new AtomicInteger();
+
+		try (CodingGapsPipeline pipeline = new CodingGapsPipeline(4, 10)) {
+			pipeline.run("Group/test", patients, patient -> {
+				maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+				try {
+					Thread.sleep(ThreadLocalRandom.current().nextInt(5));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				running.decrementAndGet();
+				return patient * 2;
+			}, results::add);
+		}
+
+		assertEquals(patients.stream().map(patient -> patient * 2).collect(Collectors.toList()), results);
+		assertTrue(maxRunning.get() <= 4);
+	}
+
+	@Test
+	void testFailedPatientStopsTheRun() {
+		List<Integer> patients = IntStream.range(0, 20).boxed().collect(Collectors.toList());
+		List<Integer> results = new ArrayList<>();
+
+		try (CodingGapsPipeline pipeline = new CodingGapsPipeline(2, 0)) {
+			IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+					() -> pipeline.run("Group/test", patients, patient -> {
+						if (patient == 5) {
+							throw new IllegalArgumentException("patient 5 failed");
+						}
+						return patient;
+					}, results::add));
+
+			assertEquals("patient 5 failed", e.getMessage());
+			assertEquals(List.of(0, 1, 2, 3, 4), results);
+
+			// the pipeline keeps serving other requests
+			List<Integer> next = new ArrayList<>();
+			pipeline.run("Group/next", List.of(1, 2, 3), patient -> patient, next::add);
+			assertEquals(List.of(1, 2, 3), next);
+		}
+	}
+
+	@Test
+	void testRequestsShareTheThreads() throws Exception {
+		List<Integer> patients = IntStream.range(0, 40).boxed().collect(Collectors.toList());
+		Set<String> threads = ConcurrentHashMap.newKeySet();
+		try (CodingGapsPipeline pipeline = new CodingGapsPipeline(2, 0)) {
+			ExecutorService requests = Executors.newFixedThreadPool(4);
+			try {
+				List<Future<?>> runs = new ArrayList<>();
+				for (int i = 0; i < 4; i++) {
+					runs.add(requests.submit(() -> pipeline.run("Group/test", patients, patient -> {
+						if (Thread.currentThread().getName().startsWith("ra-coding-gaps-")) {
+							threads.add(Thread.currentThread().getName());
+						}
+						return patient;
+					}, patient -> {
+					})));
+				}
+				for (Future<?> run : runs) {
+					run.get(30, TimeUnit.SECONDS);
+				}
+			} finally {
+				requests.shutdownNow();
+			}
+		}
+		assertTrue(threads.size() <= 2, threads.toString());
+	}
+}
@@ -9,24 +9,42 @@ import static org.opencds.cqf.fhir.utility.r4.Parameters.datePart;
 import static org.opencds.cqf.fhir.utility.r4.Parameters.parameters;
 import static org.opencds.cqf.fhir.utility.r4.Parameters.stringPart;
 
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.hl7.fhir.r4.model.Binary;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Composition;
 import org.hl7.fhir.r4.model.DetectedIssue;
 import org.hl7.fhir.r4.model.Group;
 import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Observation;
 import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.opencds.cqf.ruler.ra.RAConfig;
 import org.opencds.cqf.ruler.ra.RAConstants;
 import org.opencds.cqf.ruler.ra.RAProperties;
+import org.opencds.cqf.ruler.ra.async.RAAsyncOutputCleaner;
 import org.opencds.cqf.ruler.test.RestIntegrationTest;
 import org.opencds.cqf.ruler.test.utility.Urls;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.annotation.DirtiesContext;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 import ca.uhn.fhir.rest.gclient.IOperationUntypedWithInput;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 
@@ -40,6 +58,10 @@ import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 class RACodingGapsProviderIT extends RestIntegrationTest {
 	@Autowired
 	private RAProperties myRaProperties;
+	@Autowired
+	private RAAsyncOutputCleaner myOutputCleaner;
+	@Autowired
+	private RACodingGapsProvider myCodingGapsProvider;
 
 	@BeforeEach
 	public void beforeEach() {
@@ -387,6 +409,142 @@ class RACodingGapsProviderIT extends RestIntegrationTest {
 		assertEquals(2, result.getParameter().size());
 	}
 
+	@Test
+	void testSubjectMultiplePatientGroupStream() throws Exception {
+		loadResource("Patient-ra-patient02.json");
+		loadResource("Patient-ra-patient03.json");
+		loadResource("Group-ra-group02.json");
+
+		HttpResponse<String> response = HttpClient.newHttpClient().send(HttpRequest.newBuilder(URI.create(
+				getServerBase() + "/MeasureReport/" + RAConstants.CODING_GAPS_STREAM_OPERATION
+						+ "?periodStart=2021-01-01&periodEnd=2021-12-31"
+						+ "&subject=Group/ra-group02"))
+				.GET().build(), HttpResponse.BodyHandlers.ofString());
+
+		assertEquals(200, response.statusCode());
+		List<String> lines = response.body().lines().collect(Collectors.toList());
+		assertEquals(2, lines.size());
+		for (String line : lines) {
+			assertTrue(getFhirContext().newJsonParser().parseResource(line) instanceof Bundle);
+		}
+	}
+
+	@Test
+	void testSubjectMultiplePatientGroupAsync() throws Exception {
+		loadResource("Patient-ra-patient02.json");
+		loadResource("Patient-ra-patient03.json");
+		loadResource("Group-ra-group02.json");
+
+		HttpClient client = HttpClient.newHttpClient();
+		HttpResponse<String> kickOff = client.send(HttpRequest.newBuilder(URI.create(getServerBase()
+				+ "/MeasureReport/$ra.coding-gaps?periodStart=2021-01-01&periodEnd=2021-12-31"
+				+ "&subject=Group/ra-group02"))
+				.header("Prefer", "respond-async").header("Authorization", "Bearer kick-off")
+				.GET().build(), HttpResponse.BodyHandlers.ofString());
+
+		assertEquals(202, kickOff.statusCode());
+		String status = kickOff.headers().firstValue("Content-Location").orElse(null);
+		assertNotNull(status);
+		assertTrue(status.contains(RAConstants.ASYNC_STATUS_OPERATION));
+
+		// the status is only reported to the caller that kicked the job off
+		assertEquals(403, client.send(HttpRequest.newBuilder(URI.create(status))
+				.header("Authorization", "Bearer someone-else").GET().build(),
+				HttpResponse.BodyHandlers.ofString()).statusCode());
+
+		HttpResponse<String> poll = null;
+		for (int i = 0; i < 60; i++) {
+			poll = client.send(HttpRequest.newBuilder(URI.create(status))
+					.header("Authorization", "Bearer kick-off").GET().build(), HttpResponse.BodyHandlers.ofString());
+			if (poll.statusCode() != 202) {
+				break;
+			}
+			Thread.sleep(1000);
+		}
+		assertEquals(200, poll.statusCode());
+
+		JsonNode manifest = new ObjectMapper().readTree(poll.body());
+		assertTrue(manifest.get("requiresAccessToken").asBoolean());
+		assertTrue(manifest.get("request").asText().contains("subject=Group/ra-group02"));
+		assertEquals(0, manifest.get("error").size());
+		assertEquals(1, manifest.get("output").size());
+		JsonNode output = manifest.get("output").get(0);
+		assertEquals("Bundle", output.get("type").asText());
+
+		String url = output.get("url").asText();
+		assertEquals(403, client.send(HttpRequest.newBuilder(URI.create(url))
+				.header("Authorization", "Bearer someone-else").GET().build(),
+				HttpResponse.BodyHandlers.ofString()).statusCode());
+		HttpResponse<String> file = client.send(HttpRequest.newBuilder(URI.create(url))
+				.header("Authorization", "Bearer kick-off").GET().build(), HttpResponse.BodyHandlers.ofString());
+		assertEquals(200, file.statusCode());
+		List<String> lines = file.body().lines().filter(line -> !line.isBlank()).collect(Collectors.toList());
+		assertEquals(2, lines.size());
+		// neither patient has a MeasureReport, so each Bundle holds just the patient
+		List<String> patients = lines.stream()
+				.map(line -> getFhirContext().newJsonParser().parseResource(Bundle.class, line))
+				.map(bundle -> bundle.getEntryFirstRep().getResource().getIdElement().toUnqualifiedVersionless()
+						.getValue())
+				.sorted().collect(Collectors.toList());
+		assertEquals(List.of("Patient/ra-patient02", "Patient/ra-patient03"), patients);
+	}
+
+	@Test
+	void testVersionedEvidenceIsReadAsThatVersion() {
+		Observation observation = new Observation().setStatus(Observation.ObservationStatus.PRELIMINARY);
+		observation.setId("ra-versioned-evidence");
+		update(observation);
+		update(observation.setStatus(Observation.ObservationStatus.FINAL));
+		loadResource("Patient-ra-patient02.json");
+
+		DetectedIssue issue = new DetectedIssue();
+		issue.addEvidence().addDetail(new Reference("Observation/ra-versioned-evidence/_history/1"))
+				.addDetail(new Reference("Patient/ra-patient02"));
+		Map<String, Resource> evidence = myCodingGapsProvider.getEvidenceResources(issue);
+
+		assertEquals(2, evidence.size());
+		Observation versioned = (Observation) evidence.get("Observation/ra-versioned-evidence");
+		assertEquals("1", versioned.getIdElement().getVersionIdPart());
+		assertEquals(Observation.ObservationStatus.PRELIMINARY, versioned.getStatus());
+		assertNotNull(evidence.get("Patient/ra-patient02"));
+	}
+
+	@Test
+	void testOutputOfPurgedJobIsDeleted() {
+		Binary binary = new Binary();
+		binary.setId("ra-purged-Bundle");
+		binary.setContentType("application/fhir+ndjson");
+		binary.setData("{}".getBytes(StandardCharsets.UTF_8));
+		binary.getMeta().addTag(RAConstants.ASYNC_JOB_TAG_SYSTEM, "purged-job", null);
+		update(binary);
+
+		assertTrue(myOutputCleaner.clean() >= 1);
+		BaseServerResponseException e = assertThrows(BaseServerResponseException.class,
+				() -> getClient().read().resource(Binary.class).withId("ra-purged-Bundle").execute());
+		// gone, or not found if the server allows expunge
+		assertTrue(e.getStatusCode() == 410 || e.getStatusCode() == 404);
+	}
+
+	@Test
+	void testInvalidSubjectAsync() throws Exception {
+		HttpResponse<String> response = HttpClient.newHttpClient().send(HttpRequest.newBuilder(URI.create(
+				getServerBase() + "/MeasureReport/$ra.coding-gaps?periodStart=2021-01-01&periodEnd=2021-12-31"))
+				.header("Prefer", "respond-async").GET().build(), HttpResponse.BodyHandlers.ofString());
+
+		assertEquals(400, response.statusCode());
+	}
+
+	@Test
+	void testInvalidSubjectStream() throws Exception {
+		HttpResponse<String> response = HttpClient.newHttpClient().send(HttpRequest.newBuilder(URI.create(
+				getServerBase() + "/MeasureReport/" + RAConstants.CODING_GAPS_STREAM_OPERATION
+						+ "?periodStart=2021-01-01&periodEnd=2021-12-31"
+						+ "&subject=Encounter/ra-encounter01"))
+				.GET().build(), HttpResponse.BodyHandlers.ofString());
+
+		assertEquals(400, response.statusCode());
+	}
+
 	@Test
 	void testSingleSubjectSingleReportGET() {
 		Parameters params = parameters(
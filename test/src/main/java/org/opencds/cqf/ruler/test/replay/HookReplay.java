@@ -0,0 +1,275 @@
+package org.opencds.cqf.ruler.test.replay;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Replays CDS Hooks requests against a running server, typically the embedded
+ * server of a {@link org.opencds.cqf.ruler.test.RestIntegrationTest}, and
+ * reports latency percentiles and the error rate.
+ * <p>
+ * The corpus is either read from the NDJSON files written by the cds-hooks
+ * plugin's capture mode (one
+ * {@code {"service": ..., "request": {...}}} object per line) or built from
+ * request fixtures. Requests are sent in corpus order, cycling through it, at
+ * a fixed rate by at most {@code concurrency} clients at once. Latencies are
+ * measured from the time a request was scheduled to be sent, so a server that
+ * falls behind the rate shows it in the percentiles instead of slowing the
+ * replay down.
+ */
+public class HookReplay {
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	/**
+	 * A request to replay: the service it invokes and its body.
+	 */
+	public static class Request {
+		private final String service;
+		private final String body;
+
+		public Request(String service, String body) {
+			this.service = service;
+			this.body = body;
+		}
+
+		public String getService() {
+			return service;
+		}
+
+		public String getBody() {
+			return body;
+		}
+	}
+
+	private final String cdsServicesUrl;
+	private final List<Request> corpus;
+	private double requestsPerSecond;
+	private int concurrency = 1;
+	private Duration timeout = Duration.ofSeconds(60);
+
+	/**
+	 * @param cdsServicesUrl the url of the cds-services endpoint, e.g.
+	 *                       {@code http://localhost:8080/cds-services}
+	 * @param corpus         the requests to replay
+	 */
+	public HookReplay(String cdsServicesUrl, List<Request> corpus) {
+		if (corpus.isEmpty()) {
+			throw new IllegalArgumentException("The replay corpus is empty");
+		}
+		this.cdsServicesUrl = cdsServicesUrl.endsWith("/") ? cdsServicesUrl : cdsServicesUrl + "/";
+		this.corpus = Collections.unmodifiableList(new ArrayList<>(corpus));
+	}
+
+	/**
+	 * @param requestsPerSecond the rate requests are sent at, 0 to send as fast
+	 *                          as the clients allow
+	 * @return this replay
+	 */
+	public HookReplay withRate(double requestsPerSecond) {
+		this.requestsPerSecond = requestsPerSecond;
+		return this;
+	}
+
+	/**
+	 * @param concurrency the number of requests in flight at most
+	 * @return this replay
+	 */
+	public HookReplay withConcurrency(int concurrency) {
+		this.concurrency = concurrency;
+		return this;
+	}
+
+	public HookReplay withTimeout(Duration timeout) {
+		this.timeout = timeout;
+		return this;
+	}
+
+	/**
+	 * Reads the requests captured in NDJSON files.
+	 *
+	 * @param files the capture files, in the order to replay them
+	 * @return the requests
+	 * @throws IOException if a file can not be read
+	 */
+	public static List<Request> readCapture(List<Path> files) throws IOException {
+		List<Request> requests = new ArrayList<>();
+		for (Path file : files) {
+			try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (line.isBlank()) {
+						continue;
+					}
+					JsonNode captured = mapper.readTree(line);
+					requests.add(new Request(captured.get("service").asText(),
+							mapper.writeValueAsString(captured.get("request"))));
+				}
+			}
+		}
+		return requests;
+	}
+
+	/**
+	 * Points every request at another FHIR server, e.g. the embedded server the
+	 * fixtures were loaded into.
+	 *
+	 * @param requests   the requests
+	 * @param fhirServer the new fhirServer of the requests
+	 * @return the rewritten requests
+	 * @throws IOException if a request is not valid JSON
+	 */
+	public static List<Request> withFhirServer(List<Request> requests, String fhirServer) throws IOException {
+		List<Request> rewritten = new ArrayList<>();
+		for (Request request : requests) {
+			ObjectNode body = (ObjectNode) mapper.readTree(request.getBody());
+			body.put("fhirServer", fhirServer);
+			rewritten.add(new Request(request.getService(), mapper.writeValueAsString(body)));
+		}
+		return rewritten;
+	}
+
+	/**
+	 * Sends {@code count} requests and waits for all of them to complete.
+	 *
+	 * @param count the number of requests to send
+	 * @return the report of the replay
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public Report run(int count) throws InterruptedException {
+		HttpClient client = HttpClient.newBuilder().connectTimeout(timeout).build();
+		AtomicLongArray latencies = new AtomicLongArray(count);
+		AtomicInteger next = new AtomicInteger();
+		AtomicInteger errors = new AtomicInteger();
+		long intervalNanos = requestsPerSecond > 0 ? (long) (1_000_000_000L / requestsPerSecond) : 0;
+		ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+		long start = System.nanoTime();
+		try {
+			List<Future<?>> workers = new ArrayList<>();
+			for (int i = 0; i < concurrency; i++) {
+				workers.add(clients.submit(() -> {
+					for (int index = next.getAndIncrement(); index < count; index = next.getAndIncrement()) {
+						long scheduled = start + index * intervalNanos;
+						long wait;
+						while ((wait = scheduled - System.nanoTime()) > 0) {
+							LockSupport.parkNanos(wait);
+						}
+						if (!send(client, corpus.get(index % corpus.size()))) {
+							errors.incrementAndGet();
+						}
+						latencies.set(index, System.nanoTime() - Math.max(scheduled, start));
+					}
+				}));
+			}
+			for (Future<?> worker : workers) {
+				try {
+					worker.get();
+				} catch (ExecutionException e) {
+					throw new IllegalStateException("Replay client failed", e.getCause());
+				}
+			}
+		} finally {
+			clients.shutdownNow();
+			clients.awaitTermination(10, TimeUnit.SECONDS);
+		}
+		long[] sorted = new long[count];
+		for (int i = 0; i < count; i++) {
+			sorted[i] = latencies.get(i);
+		}
+		Arrays.sort(sorted);
+		return new Report(sorted, errors.get(), System.nanoTime() - start);
+	}
+
+	private boolean send(HttpClient client, Request request) {
+		HttpRequest httpRequest = HttpRequest.newBuilder(URI.create(cdsServicesUrl + request.getService()))
+				.timeout(timeout)
+				.header("Content-Type", "application/json")
+				.POST(HttpRequest.BodyPublishers.ofString(request.getBody(), StandardCharsets.UTF_8))
+				.build();
+		try {
+			HttpResponse<Void> response = client.send(httpRequest, HttpResponse.BodyHandlers.discarding());
+			return response.statusCode() < 400;
+		} catch (IOException e) {
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * The outcome of a replay. Requests answered with a status of 400 or more,
+	 * or not answered at all, count as errors.
+	 */
+	public static class Report {
+		private final long[] latencies;
+		private final int errors;
+		private final long elapsedNanos;
+
+		Report(long[] latencies, int errors, long elapsedNanos) {
+			this.latencies = latencies;
+			this.errors = errors;
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		public int getRequests() {
+			return latencies.length;
+		}
+
+		public int getErrors() {
+			return errors;
+		}
+
+		public double getErrorRate() {
+			return latencies.length == 0 ? 0 : (double) errors / latencies.length;
+		}
+
+		/**
+		 * @param percentile the percentile, e.g. 99
+		 * @return the latency at the percentile in milliseconds
+		 */
+		public double getLatencyMillis(double percentile) {
+			if (latencies.length == 0) {
+				return 0;
+			}
+			int index = (int) Math.ceil(percentile / 100 * latencies.length) - 1;
+			return latencies[Math.max(0, Math.min(index, latencies.length - 1))] / 1_000_000.0;
+		}
+
+		public double getThroughput() {
+			return latencies.length / (elapsedNanos / 1_000_000_000.0);
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.ROOT,
+					"%d requests, %.1f/s, errors %.2f%%, p50 %.1f ms, p95 %.1f ms, p99 %.1f ms",
+					getRequests(), getThroughput(), getErrorRate() * 100, getLatencyMillis(50),
+					getLatencyMillis(95), getLatencyMillis(99));
+		}
+	}
+}